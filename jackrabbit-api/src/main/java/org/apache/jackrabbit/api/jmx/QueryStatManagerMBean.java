@@ -76,4 +76,22 @@ public interface QueryStatManagerMBean {
      */
     void clearPopularQueriesQueue();
 
+    /**
+     * @return number of created queries whose parsed query tree was found
+     *         in the query plan cache
+     */
+    long getPlanCacheHitCount();
+
+    /**
+     * @return number of created queries whose statement had to be parsed
+     *         because it was not found in the query plan cache
+     */
+    long getPlanCacheMissCount();
+
+    /**
+     * @return the ratio of query plan cache hits to all lookups, or 0 if
+     *         there were no lookups yet
+     */
+    double getPlanCacheHitRatio();
+
 }
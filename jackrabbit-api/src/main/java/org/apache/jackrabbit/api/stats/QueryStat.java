@@ -70,6 +70,18 @@ public interface QueryStat {
      */
     void clearPopularQueriesQueue();
 
+    /**
+     * @return number of created queries whose parsed query tree was found
+     *         in the query plan cache
+     */
+    long getPlanCacheHitCount();
+
+    /**
+     * @return number of created queries whose statement had to be parsed
+     *         because it was not found in the query plan cache
+     */
+    long getPlanCacheMissCount();
+
     /** -- GENERAL OPS -- **/
 
     /**
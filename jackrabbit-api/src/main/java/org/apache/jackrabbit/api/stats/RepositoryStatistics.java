@@ -41,6 +41,21 @@ public interface RepositoryStatistics {
         BUNDLE_COUNTER(true),
         BUNDLE_WS_SIZE_COUNTER(true),
 
+        /**
+         * Number of bundles found in the off-heap bundle cache.
+         */
+        BUNDLE_OFFHEAP_CACHE_HIT_COUNTER(true),
+
+        /**
+         * Number of bundles not found in the off-heap bundle cache.
+         */
+        BUNDLE_OFFHEAP_CACHE_MISS_COUNTER(true),
+
+        /**
+         * Number of bundles evicted from the off-heap bundle cache.
+         */
+        BUNDLE_OFFHEAP_CACHE_EVICTION_COUNTER(true),
+
         /**
          * Number of read accesses through any session.
          */
@@ -102,6 +117,54 @@ public interface RepositoryStatistics {
          */
         QUERY_AVERAGE(true),
 
+        /**
+         * Number of updates of the query index that became visible to
+         * queries.
+         */
+        INDEX_UPDATE_COUNTER(true),
+
+        /**
+         * Total time in milli seconds between saving the changes of the
+         * index updates and the updates becoming visible to queries.
+         */
+        INDEX_VISIBILITY_LAG_DURATION(true),
+
+        /**
+         * Average time in milli seconds between saving changes and the
+         * changes becoming visible to queries. This is the sum of all
+         * visibility lags divided by the number of index updates in the
+         * respective time period.
+         */
+        INDEX_VISIBILITY_LAG_AVERAGE(true),
+
+        /**
+         * Number of finished merges of query index segments.
+         */
+        INDEX_MERGE_COUNTER(true),
+
+        /**
+         * Total time in milli seconds spent on merging query index segments.
+         */
+        INDEX_MERGE_DURATION(true),
+
+        /**
+         * Average time in milli seconds of a query index merge. This is the
+         * sum of all merge durations divided by the number of merges in the
+         * respective time period.
+         */
+        INDEX_MERGE_AVERAGE(true),
+
+        /**
+         * Number of bytes written by query index merges. The value per
+         * second is the merge throughput.
+         */
+        INDEX_MERGE_SIZE(true),
+
+        /**
+         * Number of query index merges that are queued or running.
+         */
+        INDEX_MERGE_BACKLOG(false),
+
         /**
          * Total number of observation {@code Event} instances delivered
          * to all observation listeners.
@@ -20,6 +20,7 @@ package org.apache.jackrabbit.aws.ext;
 import java.util.Properties;
 
 import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 
@@ -72,6 +73,24 @@ public class S3RequestDecorator {
         return request;
     }
 
+    /**
+     * Set encryption in {@link InitiateMultipartUploadRequest}
+     */
+    public InitiateMultipartUploadRequest decorate(InitiateMultipartUploadRequest request) {
+        switch (getDataEncryption()) {
+            case SSE_S3:
+                ObjectMetadata metadata = request.getObjectMetadata() == null
+                                ? new ObjectMetadata()
+                                : request.getObjectMetadata();
+                metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+                request.setObjectMetadata(metadata);
+                break;
+            case NONE:
+                break;
+        }
+        return request;
+    }
+
     private DataEncryption getDataEncryption() {
         return this.dataEncryption;
     }
@@ -17,6 +17,7 @@
 
 package org.apache.jackrabbit.aws.ext.ds;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,7 +41,7 @@ import org.apache.jackrabbit.core.data.AsyncTouchCallback;
 import org.apache.jackrabbit.core.data.AsyncTouchResult;
 import org.apache.jackrabbit.core.data.AsyncUploadCallback;
 import org.apache.jackrabbit.core.data.AsyncUploadResult;
-import org.apache.jackrabbit.core.data.Backend;
+import org.apache.jackrabbit.core.data.MultipartBackend;
 import org.apache.jackrabbit.core.data.CachingDataStore;
 import org.apache.jackrabbit.core.data.DataIdentifier;
 import org.apache.jackrabbit.core.data.DataStoreException;
@@ -53,15 +54,21 @@ import com.amazonaws.AmazonServiceException;
 import com.amazonaws.event.ProgressEvent;
 import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CopyObjectRequest;
 import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.Region;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.transfer.Copy;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
@@ -69,7 +76,7 @@ import com.amazonaws.services.s3.transfer.Upload;
 /**
  * A data store backend that stores data on Amazon S3.
  */
-public class S3Backend implements Backend {
+public class S3Backend implements MultipartBackend {
 
     /**
      * Logger instance.
@@ -216,6 +223,102 @@ public class S3Backend implements Backend {
             callback));
     }
 
+    @Override
+    public String initiateUpload(DataIdentifier identifier, long length)
+            throws DataStoreException {
+        String key = getKeyName(identifier);
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(
+                getClass().getClassLoader());
+            String uploadId = s3service.initiateMultipartUpload(
+                s3ReqDecorator.decorate(new InitiateMultipartUploadRequest(
+                    bucket, key))).getUploadId();
+            LOG.debug("multipart upload [{}] of [{}] started.", uploadId, key);
+            return uploadId;
+        } catch (AmazonClientException e) {
+            throw new DataStoreException("Could not start upload of " + key, e);
+        } finally {
+            if (contextClassLoader != null) {
+                Thread.currentThread().setContextClassLoader(contextClassLoader);
+            }
+        }
+    }
+
+    /**
+     * Uploads the part with an UploadPart request and returns its ETag.
+     */
+    @Override
+    public String uploadPart(DataIdentifier identifier, String uploadId,
+            int partNumber, File file, long offset, long length)
+            throws DataStoreException {
+        String key = getKeyName(identifier);
+        long start = System.currentTimeMillis();
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(
+                getClass().getClassLoader());
+            UploadPartRequest request = new UploadPartRequest().withBucketName(
+                bucket).withKey(key).withUploadId(uploadId).withPartNumber(
+                partNumber).withFile(file).withFileOffset(offset).withPartSize(
+                length);
+            String eTag = s3service.uploadPart(request).getPartETag().getETag();
+            LOG.debug("part [{}] of [{}] uploaded in [{}]ms", new Object[] {
+                partNumber, key, (System.currentTimeMillis() - start) });
+            return eTag;
+        } catch (AmazonClientException e) {
+            throw new DataStoreException("Could not upload part " + partNumber
+                + " of " + key, e);
+        } finally {
+            if (contextClassLoader != null) {
+                Thread.currentThread().setContextClassLoader(contextClassLoader);
+            }
+        }
+    }
+
+    @Override
+    public void completeUpload(DataIdentifier identifier, String uploadId,
+            List<String> partTags) throws DataStoreException {
+        String key = getKeyName(identifier);
+        List<PartETag> eTags = new ArrayList<PartETag>(partTags.size());
+        for (int i = 0; i < partTags.size(); i++) {
+            eTags.add(new PartETag(i + 1, partTags.get(i)));
+        }
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(
+                getClass().getClassLoader());
+            s3service.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                bucket, key, uploadId, eTags));
+            LOG.debug("multipart upload [{}] of [{}] completed.", uploadId, key);
+        } catch (AmazonClientException e) {
+            throw new DataStoreException("Could not complete upload of " + key, e);
+        } finally {
+            if (contextClassLoader != null) {
+                Thread.currentThread().setContextClassLoader(contextClassLoader);
+            }
+        }
+    }
+
+    @Override
+    public void abortUpload(DataIdentifier identifier, String uploadId)
+            throws DataStoreException {
+        String key = getKeyName(identifier);
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(
+                getClass().getClassLoader());
+            s3service.abortMultipartUpload(new AbortMultipartUploadRequest(
+                bucket, key, uploadId));
+        } catch (AmazonClientException e) {
+            throw new DataStoreException("Could not abort upload of " + key, e);
+        } finally {
+            if (contextClassLoader != null) {
+                Thread.currentThread().setContextClassLoader(contextClassLoader);
+            }
+        }
+    }
+
     /**
      * Check if record identified by identifier exists in Amazon S3.
      */
@@ -394,6 +497,46 @@ public class S3Backend implements Backend {
         }
     }
 
+    /**
+     * Reads the range with a ranged GET request.
+     */
+    @Override
+    public InputStream read(DataIdentifier identifier, long offset,
+            long length) throws DataStoreException {
+        if (length == 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        long start = System.currentTimeMillis();
+        String key = getKeyName(identifier);
+        // the end of the range is inclusive and may be after the end of
+        // the object
+        long end = length > Long.MAX_VALUE - offset
+            ? Long.MAX_VALUE - 1
+            : offset + length - 1;
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(
+                getClass().getClassLoader());
+            GetObjectRequest request = new GetObjectRequest(bucket, key);
+            request.setRange(offset, end);
+            S3Object object = s3service.getObject(request);
+            InputStream in = object.getObjectContent();
+            LOG.debug("[{}] read of range [{}-{}] took [{}]ms", new Object[] {
+                identifier, offset, end, (System.currentTimeMillis() - start) });
+            return in;
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 416) {
+                // requested range not satisfiable: offset after the end
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            throw new DataStoreException("Object not found: " + key, e);
+        } finally {
+            if (contextClassLoader != null) {
+                Thread.currentThread().setContextClassLoader(contextClassLoader);
+            }
+        }
+    }
+
     @Override
     public Iterator<DataIdentifier> getAllIdentifiers()
             throws DataStoreException {
@@ -55,6 +55,12 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
     /** Logger instance for this class */
     private static Logger log = LoggerFactory.getLogger(LazyItemIterator.class);
 
+    /**
+     * The number of child node states that are prefetched from the
+     * persistence manager at once.
+     */
+    private static final int PREFETCH_SIZE = 100;
+
     /**
      * The session context used to access the repository.
      */
@@ -75,6 +81,12 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
     /** prefetched item to be returned on <code>{@link #next()}</code> */
     private Item next;
 
+    /**
+     * the position up to which the child node states have been prefetched
+     * from the persistence manager
+     */
+    private int prefetchedStates;
+
     /**
      * Creates a new <code>LazyItemIterator</code> instance.
      *
@@ -115,6 +127,9 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
         next = null;
         while (next == null && pos < idList.size()) {
             ItemId id = idList.get(pos);
+            if (parentId != null && pos >= prefetchedStates) {
+                prefetchStates();
+            }
             try {
                 if (parentId != null) {
                     next = itemMgr.getNode((NodeId) id, parentId);
@@ -125,6 +140,7 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
                 log.debug("ignoring nonexistent item " + id);
                 // remove invalid id
                 idList.remove(pos);
+                prefetchedStates--;
 
                 // maybe fix the root cause
                 if (parentId != null && sessionContext.getSessionImpl().autoFixCorruptions()) {
@@ -148,16 +164,35 @@ public class LazyItemIterator implements NodeIterator, PropertyIterator {
                 log.debug("ignoring nonexistent item " + id);
                 // remove invalid id
                 idList.remove(pos);
+                prefetchedStates--;
                 // try next
             } catch (RepositoryException e) {
                 log.error("failed to fetch item " + id + ", skipping...", e);
                 // remove invalid id
                 idList.remove(pos);
+                prefetchedStates--;
                 // try next
             }
         }
     }
 
+    /**
+     * Prefetches the states of the next {@link #PREFETCH_SIZE} child nodes,
+     * so that they are loaded with a few bulk reads instead of one read
+     * per node.
+     */
+    private void prefetchStates() {
+        int end = Math.min(pos + PREFETCH_SIZE, idList.size());
+        if (end - pos > 1) {
+            List<NodeId> ids = new ArrayList<NodeId>(end - pos);
+            for (ItemId id : idList.subList(pos, end)) {
+                ids.add((NodeId) id);
+            }
+            sessionContext.getWorkspace().getItemStateManager().prefetch(ids);
+        }
+        prefetchedStates = end;
+    }
+
     //---------------------------------------------------------< NodeIterator >
     /**
      * {@inheritDoc}
@@ -24,6 +24,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.jcr.NamespaceException;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -33,6 +35,7 @@ import javax.jcr.query.InvalidQueryException;
 import javax.jcr.query.Query;
 import javax.jcr.query.qom.QueryObjectModel;
 
+import org.apache.jackrabbit.api.stats.RepositoryStatistics;
 import org.apache.jackrabbit.core.config.SearchConfig;
 import org.apache.jackrabbit.core.fs.FileSystem;
 import org.apache.jackrabbit.core.id.NodeId;
@@ -108,6 +111,17 @@ public class SearchManager implements SynchronousEventListener {
      */
     private Path excludePath;
 
+    /**
+     * Number of index updates that became visible to queries.
+     */
+    private final AtomicLong indexUpdateCounter;
+
+    /**
+     * Accumulated time between saving changes and the changes becoming
+     * visible to queries.
+     */
+    private final AtomicLong indexVisibilityLag;
+
     /**
      * Creates a new <code>SearchManager</code>.
      *
@@ -136,6 +150,10 @@ public class SearchManager implements SynchronousEventListener {
         this.nsReg = repositoryContext.getNamespaceRegistry();
         this.itemMgr = itemMgr;
         this.parentHandler = (parentMgr != null) ? parentMgr.handler : null;
+        this.indexUpdateCounter = repositoryContext.getRepositoryStatistics().getCounter(
+                RepositoryStatistics.Type.INDEX_UPDATE_COUNTER);
+        this.indexVisibilityLag = repositoryContext.getRepositoryStatistics().getCounter(
+                RepositoryStatistics.Type.INDEX_VISIBILITY_LAG_DURATION);
 
         // register namespaces
         safeRegisterNamespace(NS_XS_PREFIX, NS_XS_URI);
@@ -262,8 +280,33 @@ public class SearchManager implements SynchronousEventListener {
             SessionContext sessionContext, QueryObjectModelTree qomTree,
             String langugage, Node node)
             throws InvalidQueryException, RepositoryException {
+        return createQueryObjectModel(
+                sessionContext, qomTree, langugage, node, null);
+    }
+
+    /**
+     * Creates a query object model that can be executed on the workspace.
+     *
+     * @param sessionContext component context of the current session
+     * @param qomTree   the query object model tree, representing the query.
+     * @param langugage the original language of the query statement.
+     * @param node      a nt:query node where the query was read from or
+     *                  <code>null</code> if it is not a stored query.
+     * @param statement the query object model tree serialized according to
+     *                  the language or <code>null</code> if it has not been
+     *                  serialized yet.
+     * @return the query object model for the query.
+     * @throws InvalidQueryException the the query object model tree is
+     *                               considered invalid by the query handler
+     *                               implementation.
+     * @throws RepositoryException   if any other error occurs.
+     */
+    public QueryObjectModel createQueryObjectModel(
+            SessionContext sessionContext, QueryObjectModelTree qomTree,
+            String langugage, Node node, String statement)
+            throws InvalidQueryException, RepositoryException {
         QueryObjectModelImpl qom = new QueryObjectModelImpl();
-        qom.init(sessionContext, handler, qomTree, langugage, node);
+        qom.init(sessionContext, handler, qomTree, langugage, node, statement);
         return qom;
     }
 
@@ -325,9 +368,12 @@ public class SearchManager implements SynchronousEventListener {
         final Map<NodeId, EventImpl> addedNodes = new HashMap<NodeId, EventImpl>();
         // property events
         List<EventImpl> propEvents = new ArrayList<EventImpl>();
+        // date of the oldest change in this batch
+        long oldest = Long.MAX_VALUE;
 
         while (events.hasNext()) {
             EventImpl e = (EventImpl) events.nextEvent();
+            oldest = Math.min(oldest, e.getDate());
             if (!isExcluded(e)) {
                 long type = e.getType();
                 if (type == Event.NODE_ADDED) {
@@ -406,6 +452,10 @@ public class SearchManager implements SynchronousEventListener {
         if (removedNodes.size() > 0 || addedNodes.size() > 0) {
             try {
                 handler.updateNodes(removedIds, addedStates);
+                // the changes are visible to queries once updateNodes returns
+                indexUpdateCounter.incrementAndGet();
+                indexVisibilityLag.addAndGet(
+                        Math.max(0, System.currentTimeMillis() - oldest));
             } catch (RepositoryException e) {
                 log.error("Error indexing node.", e);
             } catch (IOException e) {
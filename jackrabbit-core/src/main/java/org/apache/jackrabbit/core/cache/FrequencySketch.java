@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+/**
+ * A probabilistic multiset for estimating the popularity of cache keys
+ * within a time window. This is a Count-Min sketch with four hash functions
+ * and 4-bit counters packed sixteen to a <code>long</code>. Once the number
+ * of recorded increments reaches the sample size all counters are halved,
+ * so that the estimated frequencies age and older popularity fades away.
+ * <p>
+ * This class is not thread-safe; {@link TinyLFUCache} only accesses it
+ * while holding its eviction lock.
+ */
+class FrequencySketch {
+
+    /** Seeds of the four hash functions (large primes). */
+    private static final long[] SEED = new long[] {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    /** Mask used to halve all 4-bit counters of a table word at once. */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /** Mask selecting the lowest bit of each 4-bit counter. */
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    /** The maximum value of a single counter. */
+    private static final int MAX_FREQUENCY = 15;
+
+    private long[] table = new long[1];
+
+    private int tableMask;
+
+    private int sampleSize = 10;
+
+    private int size;
+
+    /**
+     * Grows the sketch so that it can accurately estimate the frequencies
+     * of the given number of distinct keys. The recorded frequencies are
+     * discarded when the table needs to grow; a shrinking capacity is
+     * ignored.
+     *
+     * @param maximumSize expected number of distinct keys
+     */
+    void ensureCapacity(long maximumSize) {
+        int maximum = (int) Math.min(
+                Math.max(maximumSize, 1), Integer.MAX_VALUE >>> 1);
+        if (table.length >= maximum) {
+            return;
+        }
+        table = new long[ceilingPowerOfTwo(maximum)];
+        tableMask = table.length - 1;
+        sampleSize = 10 * maximum;
+        if (sampleSize <= 0) {
+            sampleSize = Integer.MAX_VALUE;
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns the estimated number of occurrences of the given key,
+     * up to a maximum of 15.
+     *
+     * @param key cache key
+     * @return estimated frequency
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = (start + i) << 2;
+            int count = (int) ((table[index] >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments the popularity of the given key, unless it already
+     * reached the maximum. Halves all counters if the sample size has
+     * been reached.
+     *
+     * @param key cache key
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Halves every counter and adjusts the sample size accordingly.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEED[i]) * SEED[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    /**
+     * Applies a supplemental hash function to defend against poor quality
+     * hash codes.
+     */
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return 1 << -Integer.numberOfLeadingZeros(x - 1);
+    }
+
+}
@@ -0,0 +1,548 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent cache implementation with lock-free reads and a W-TinyLFU
+ * eviction policy. It is a drop-in alternative for {@link ConcurrentCache}
+ * in places where the monitors of the cache segments become contended
+ * under read-heavy load.
+ * <p>
+ * Entries are kept in a {@link ConcurrentHashMap}, so a {@link #get(Object)}
+ * never blocks. Instead of reordering an LRU list on every read, accesses
+ * are recorded in small striped ring buffers that are drained in batches
+ * by whichever thread manages to acquire the eviction lock. The buffers
+ * are lossy: when a buffer is full the access is simply not recorded,
+ * which only affects the precision of the eviction policy.
+ * <p>
+ * The eviction policy divides the memory allocated by the
+ * {@link CacheManager} into a small admission window (1%) and a main
+ * space, which is a segmented LRU with a probation and a protected (80%)
+ * segment. Entries evicted from the window compete with the least
+ * recently used probation entry, and only the one that was accessed more
+ * often according to a {@link FrequencySketch} stays in the cache. This
+ * protects the cache from being flushed by a scan over rarely used items,
+ * such as a traversal of a large subtree.
+ * <p>
+ * Modifications ({@link #put(Object, Object, long)}, {@link #remove(Object)}
+ * and {@link #clear()}) are serialized by the eviction lock.
+ */
+public class TinyLFUCache<K, V> extends AbstractCache {
+
+    /**
+     * Default number of read buffers. Like in {@link ConcurrentCache}, the
+     * number of available processors is used as the expected amount of
+     * parallelism, rounded up to the next power of two.
+     */
+    private static final int DEFAULT_NUMBER_OF_BUFFERS =
+        Integer.highestOneBit(
+                Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    /** The number of slots in each read buffer (must be a power of two). */
+    private static final int READ_BUFFER_SIZE = 32;
+
+    /** The number of pending reads that triggers draining a buffer. */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 16;
+
+    /** Percentage of the cache size used for the admission window. */
+    private static final int WINDOW_PERCENTAGE = 1;
+
+    /** Percentage of the main space used for the protected segment. */
+    private static final int PROTECTED_PERCENTAGE = 80;
+
+    private static final int WINDOW = 0;
+
+    private static final int PROBATION = 1;
+
+    private static final int PROTECTED = 2;
+
+    private static final int DEAD = 3;
+
+    /**
+     * A cache entry. The value is volatile so it can be read without
+     * locking; all other mutable fields are guarded by the eviction lock.
+     */
+    private static final class E<K, V> {
+
+        private final K key;
+
+        private volatile V value;
+
+        private long size;
+
+        private int queue;
+
+        private E<K, V> previous;
+
+        private E<K, V> next;
+
+        public E(K key, V value, long size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * Doubly linked list of cache entries in access order. The least
+     * recently used entry is the head of the list.
+     */
+    private static final class AccessOrderQueue<K, V> {
+
+        private E<K, V> head;
+
+        private E<K, V> tail;
+
+        private long size;
+
+        void add(E<K, V> entry) {
+            entry.previous = tail;
+            entry.next = null;
+            if (tail == null) {
+                head = entry;
+            } else {
+                tail.next = entry;
+            }
+            tail = entry;
+            size += entry.size;
+        }
+
+        void remove(E<K, V> entry) {
+            if (entry.previous == null) {
+                head = entry.next;
+            } else {
+                entry.previous.next = entry.next;
+            }
+            if (entry.next == null) {
+                tail = entry.previous;
+            } else {
+                entry.next.previous = entry.previous;
+            }
+            entry.previous = null;
+            entry.next = null;
+            size -= entry.size;
+        }
+
+        void moveToTail(E<K, V> entry) {
+            if (entry != tail) {
+                remove(entry);
+                add(entry);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            size = 0;
+        }
+
+    }
+
+    /**
+     * Lossy, bounded buffer of recent reads. Any number of threads can
+     * offer entries, but only the thread holding the eviction lock drains
+     * the buffer.
+     */
+    private static final class ReadBuffer<K, V> {
+
+        private final AtomicLong writeCount = new AtomicLong();
+
+        private volatile long readCount;
+
+        private final AtomicReferenceArray<E<K, V>> slots =
+            new AtomicReferenceArray<E<K, V>>(READ_BUFFER_SIZE);
+
+        /**
+         * Records a read of the given entry.
+         *
+         * @return <code>true</code> if the buffer should be drained
+         */
+        boolean offer(E<K, V> entry) {
+            long read = readCount;
+            long write = writeCount.get();
+            long pending = write - read;
+            if (pending >= READ_BUFFER_SIZE) {
+                return true;
+            }
+            if (writeCount.compareAndSet(write, write + 1)) {
+                slots.lazySet((int) (write & (READ_BUFFER_SIZE - 1)), entry);
+            }
+            return pending + 1 >= READ_BUFFER_DRAIN_THRESHOLD;
+        }
+
+        /**
+         * Passes all published reads to the given cache policy. Must only
+         * be called while holding the eviction lock.
+         */
+        void drainTo(TinyLFUCache<K, V> cache) {
+            long read = readCount;
+            long write = writeCount.get();
+            for (; read < write; read++) {
+                int index = (int) (read & (READ_BUFFER_SIZE - 1));
+                E<K, V> entry = slots.get(index);
+                if (entry == null) {
+                    // slot claimed but not yet published, retry next time
+                    break;
+                }
+                slots.lazySet(index, null);
+                cache.onAccess(entry);
+            }
+            readCount = read;
+        }
+
+    }
+
+    private final String name;
+
+    private final ConcurrentMap<K, E<K, V>> map;
+
+    private final ReadBuffer<K, V>[] readBuffers;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    private final AccessOrderQueue<K, V> window = new AccessOrderQueue<K, V>();
+
+    private final AccessOrderQueue<K, V> probation =
+        new AccessOrderQueue<K, V>();
+
+    private final AccessOrderQueue<K, V> protectedQueue =
+        new AccessOrderQueue<K, V>();
+
+    @SuppressWarnings("unchecked")
+    public TinyLFUCache(String name, int numberOfBuffers) {
+        this.name = name;
+        this.map = new ConcurrentHashMap<K, E<K, V>>(
+                16, 0.75f, Math.max(numberOfBuffers, 1));
+        this.readBuffers =
+            new ReadBuffer[Integer.highestOneBit(Math.max(numberOfBuffers, 1))];
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer<K, V>();
+        }
+    }
+
+    public TinyLFUCache(String name) {
+        this(name, DEFAULT_NUMBER_OF_BUFFERS);
+    }
+
+    /**
+     * Checks if the identified entry is cached. This does not count as
+     * an access of the entry.
+     *
+     * @param key entry key
+     * @return <code>true</code> if the entry is cached,
+     *         <code>false</code> otherwise
+     */
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Returns the identified cache entry. This method never blocks.
+     *
+     * @param key entry key
+     * @return entry value, or <code>null</code> if not found
+     */
+    public V get(K key) {
+        recordCacheAccess();
+
+        E<K, V> entry = map.get(key);
+        if (entry != null) {
+            V value = entry.value;
+            recordRead(entry);
+            return value;
+        }
+        recordCacheMiss();
+        return null;
+    }
+
+    /**
+     * Returns all values in the cache. Like {@link ConcurrentCache#values()}
+     * this is only guaranteed to return accurate results when there are no
+     * concurrent threads modifying the cache.
+     *
+     * @return cached values
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<V>(map.size());
+        for (E<K, V> entry : map.values()) {
+            values.add(entry.value);
+        }
+        return values;
+    }
+
+    /**
+     * Adds the given entry to the cache.
+     *
+     * @param key entry key
+     * @param value entry value
+     * @param size entry size
+     * @return the previous value, or <code>null</code>
+     */
+    public V put(K key, V value, long size) {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+
+            E<K, V> entry = map.get(key);
+            if (entry != null) {
+                V previous = entry.value;
+                AccessOrderQueue<K, V> queue = getQueue(entry);
+                queue.size += size - entry.size;
+                recordSizeChange(size - entry.size);
+                entry.size = size;
+                entry.value = value;
+                onAccess(entry);
+                evict();
+                return previous;
+            }
+
+            entry = new E<K, V>(key, value, size);
+            map.put(key, entry);
+            recordSizeChange(size);
+            sketch.ensureCapacity(map.size());
+            sketch.increment(key);
+            entry.queue = WINDOW;
+            window.add(entry);
+            evict();
+            return null;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the identified entry from the cache.
+     *
+     * @param key entry key
+     * @return removed entry, or <code>null</code> if not found
+     */
+    public V remove(K key) {
+        evictionLock.lock();
+        try {
+            E<K, V> entry = map.remove(key);
+            if (entry != null) {
+                unlink(entry);
+                return entry.value;
+            } else {
+                return null;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public void clear() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            for (E<K, V> entry : map.values()) {
+                recordSizeChange(-entry.size);
+                entry.queue = DEAD;
+                entry.previous = null;
+                entry.next = null;
+            }
+            map.clear();
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Checks if the cache size is zero.
+     */
+    public boolean isEmpty() {
+        return getMemoryUsed() == 0;
+    }
+
+    /**
+     * Sets the maximum size of the cache and evicts any excess items until
+     * the current size falls within the given limit.
+     */
+    @Override
+    public void setMaxMemorySize(long size) {
+        super.setMaxMemorySize(size);
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long getElementCount() {
+        return map.size();
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + getClass().getSimpleName() + "@"
+                + Integer.toHexString(hashCode()) + "]";
+    }
+
+    //-------------------------------------------------------------< policy >
+
+    /**
+     * Records a read of the given entry in the read buffer of the current
+     * thread, and drains the buffers if they are filling up and no other
+     * thread is already doing so.
+     */
+    private void recordRead(E<K, V> entry) {
+        int index = (int) Thread.currentThread().getId()
+            & (readBuffers.length - 1);
+        if (readBuffers[index].offer(entry) && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffers() {
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i].drainTo(this);
+        }
+    }
+
+    private AccessOrderQueue<K, V> getQueue(E<K, V> entry) {
+        switch (entry.queue) {
+        case WINDOW:
+            return window;
+        case PROBATION:
+            return probation;
+        case PROTECTED:
+            return protectedQueue;
+        default:
+            throw new IllegalStateException("Entry already evicted");
+        }
+    }
+
+    /**
+     * Updates the policy after an access of the given entry: window and
+     * protected entries move to the tail of their segment, while probation
+     * entries are promoted to the protected segment.
+     */
+    private void onAccess(E<K, V> entry) {
+        if (entry.queue == DEAD) {
+            return;
+        }
+        sketch.increment(entry.key);
+        if (entry.queue == PROBATION) {
+            probation.remove(entry);
+            entry.queue = PROTECTED;
+            protectedQueue.add(entry);
+
+            long maxProtected = getMainSize() * PROTECTED_PERCENTAGE / 100;
+            while (protectedQueue.size > maxProtected
+                    && protectedQueue.head != entry) {
+                E<K, V> demoted = protectedQueue.head;
+                protectedQueue.remove(demoted);
+                demoted.queue = PROBATION;
+                probation.add(demoted);
+            }
+        } else {
+            getQueue(entry).moveToTail(entry);
+        }
+    }
+
+    private long getWindowSize() {
+        return getMaxMemorySize() * WINDOW_PERCENTAGE / 100;
+    }
+
+    private long getMainSize() {
+        return getMaxMemorySize() - getWindowSize();
+    }
+
+    /**
+     * Moves excess entries from the admission window to the probation
+     * segment and then evicts entries until the cache is small enough.
+     * Each candidate that left the window is compared with the least
+     * recently used probation entry, and the one with the lower estimated
+     * frequency is evicted.
+     */
+    private void evict() {
+        E<K, V> candidate = null;
+        long maxWindow = getWindowSize();
+        while (window.size > maxWindow && window.head != null) {
+            E<K, V> entry = window.head;
+            window.remove(entry);
+            entry.queue = PROBATION;
+            probation.add(entry);
+            if (candidate == null) {
+                candidate = entry;
+            }
+        }
+
+        while (isTooBig()) {
+            E<K, V> victim = probation.head;
+            if (victim == null) {
+                victim = protectedQueue.head;
+                if (victim == null) {
+                    victim = window.head;
+                    if (victim == null) {
+                        break;
+                    }
+                }
+                evictEntry(victim);
+            } else if (candidate == null || victim == candidate) {
+                if (victim == candidate) {
+                    candidate = candidate.next;
+                }
+                evictEntry(victim);
+            } else if (sketch.frequency(candidate.key)
+                    > sketch.frequency(victim.key)) {
+                evictEntry(victim);
+            } else {
+                E<K, V> next = candidate.next;
+                evictEntry(candidate);
+                candidate = next;
+            }
+        }
+    }
+
+    private void evictEntry(E<K, V> entry) {
+        map.remove(entry.key, entry);
+        unlink(entry);
+    }
+
+    private void unlink(E<K, V> entry) {
+        if (entry.queue != DEAD) {
+            getQueue(entry).remove(entry);
+            entry.queue = DEAD;
+            recordSizeChange(-entry.size);
+        }
+    }
+
+}
@@ -20,11 +20,16 @@ import org.apache.jackrabbit.api.management.DataStoreGarbageCollector;
 import org.apache.jackrabbit.api.management.MarkEventListener;
 import org.apache.jackrabbit.core.RepositoryContext;
 import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.data.DataIdentifier;
+import org.apache.jackrabbit.core.data.DataReferences;
 import org.apache.jackrabbit.core.data.DataStore;
+import org.apache.jackrabbit.core.data.ReferenceAwareDataStore;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
 import org.apache.jackrabbit.core.observation.SynchronousEventListener;
+import org.apache.jackrabbit.core.persistence.BinaryReferencePersistenceManager;
 import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.persistence.util.BinaryReferenceIndex;
 import org.apache.jackrabbit.core.persistence.util.NodeInfo;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
@@ -39,7 +44,13 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.InvalidItemStateException;
 import javax.jcr.Item;
@@ -66,6 +77,12 @@ import javax.jcr.observation.ObservationManager;
  * entries are detected because the modified date is changed when they are
  * added.
  * <p>
+ * If all persistence managers maintain an index of the referenced data store
+ * records (see {@link BinaryReferencePersistenceManager}), and the data store
+ * can delete single records, the nodes are not scanned at all. Instead, the
+ * sweep deletes all records that are not referenced by any of the indexes
+ * and were not modified since the mark phase started.
+ * <p>
  * Example code to run the data store garbage collection:
  * <pre>
  * JackrabbitRepositoryFactory jf = (JackrabbitRepositoryFactory) factory;
@@ -95,6 +112,17 @@ public class GarbageCollector implements DataStoreGarbageCollector {
      */
     private static final boolean NODE_ID_SCAN = Boolean.getBoolean("org.apache.jackrabbit.garbagecollector.node_id.scan");
 
+    /**
+     * The default number of threads used to mark the binaries found in the
+     * persistence managers. Defaults to 1 (sequential scan).
+     */
+    private static final int MARK_THREADS = Integer.getInteger("org.apache.jackrabbit.garbagecollector.markthreads", 1);
+
+    /**
+     * Counter for generating unique names for the mark threads.
+     */
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(1);
+
     private MarkEventListener callback;
 
     private long sleepBetweenNodes;
@@ -117,8 +145,16 @@ public class GarbageCollector implements DataStoreGarbageCollector {
 
     private boolean persistenceManagerScan;
 
+    private int markThreads = MARK_THREADS;
+
     private volatile RepositoryException observationException;
 
+    /**
+     * The binary reference indexes of all persistence managers, or
+     * <code>null</code> if the nodes are scanned.
+     */
+    private List<BinaryReferenceIndex> binaryReferences;
+
     /**
      * Create a new garbage collector.
      * This method is usually not called by the application, it is called
@@ -176,6 +212,11 @@ public class GarbageCollector implements DataStoreGarbageCollector {
                 scanNodes(s);
             }
         } else {
+            binaryReferences = getBinaryReferences();
+            if (binaryReferences != null) {
+                LOG.info("Using the binary reference indexes, skipping the node scan");
+                return;
+            }
             try {
                 if (!NODE_ID_SCAN) {
                     scanPersistenceManagersByNodeInfos();
@@ -188,6 +229,45 @@ public class GarbageCollector implements DataStoreGarbageCollector {
         }
     }
 
+    /**
+     * Returns the binary reference indexes of all persistence managers, if
+     * the sweep can use them. The indexes are not used in a cluster, as the
+     * binaries referenced by the changes of other cluster nodes are only
+     * known once these changes are synchronized, which may happen after the
+     * sweep.
+     *
+     * @return the indexes, or <code>null</code> if the nodes need to be
+     *         scanned
+     */
+    private List<BinaryReferenceIndex> getBinaryReferences()
+            throws RepositoryException {
+        if (!(store instanceof ReferenceAwareDataStore)) {
+            return null;
+        }
+        if (context != null && context.getClusterNode() != null) {
+            LOG.info("Clustering is enabled, not using the binary reference indexes");
+            return null;
+        }
+        List<BinaryReferenceIndex> indexes =
+            new ArrayList<BinaryReferenceIndex>(pmList.length);
+        for (IterablePersistenceManager pm : pmList) {
+            if (!(pm instanceof BinaryReferencePersistenceManager)) {
+                return null;
+            }
+            BinaryReferenceIndex index;
+            try {
+                index = ((BinaryReferencePersistenceManager) pm).getBinaryReferences();
+            } catch (ItemStateException e) {
+                throw new RepositoryException(e);
+            }
+            if (index == null) {
+                return null;
+            }
+            indexes.add(index);
+        }
+        return indexes;
+    }
+
     private void scanNodes(SessionImpl session) throws RepositoryException {
 
         // add a listener to get 'moved' nodes
@@ -199,6 +279,23 @@ public class GarbageCollector implements DataStoreGarbageCollector {
         recurse(session.getRootNode(), sleepBetweenNodes);
     }
 
+    /**
+     * Sets the number of threads used to mark the binaries when scanning
+     * the persistence managers. If more than one thread is used, the batches
+     * of nodes returned by the persistence managers are processed in
+     * parallel, and the {@link MarkEventListener} may be called from any of
+     * these threads (but never concurrently).
+     *
+     * @param threads the number of threads
+     */
+    public void setMarkThreads(int threads) {
+        this.markThreads = Math.max(1, threads);
+    }
+
+    public int getMarkThreads() {
+        return markThreads;
+    }
+
     public void setPersistenceManagerScan(boolean allow) {
         persistenceManagerScan = allow;
     }
@@ -208,83 +305,204 @@ public class GarbageCollector implements DataStoreGarbageCollector {
     }
 
     private void scanPersistenceManagersByNodeInfos() throws RepositoryException, ItemStateException {
-        int pmCount = 0;
-        for (IterablePersistenceManager pm : pmList) {
-            pmCount++;
-            int count = 0;
-            Map<NodeId,NodeInfo> batch = pm.getAllNodeInfos(null, NODESATONCE);
-            while (!batch.isEmpty()) {
-                NodeId lastId = null;
-                for (NodeInfo info : batch.values()) {
-                    count++;
-                    if (count % 1000 == 0) {
-                        LOG.debug(pm.toString() + " ("+pmCount + "/" + pmList.length + "): analyzed " + count + " nodes...");
-                    }
-                    lastId = info.getId();
-                    if (callback != null) {
-                        callback.beforeScanning(null);
-                    }
-                    if (info.hasBlobsInDataStore()) {
-                        try {
-                            NodeState state = pm.load(info.getId());
-                            Set<Name> propertyNames = state.getPropertyNames();
-                            for (Name name : propertyNames) {
-                                PropertyId pid = new PropertyId(info.getId(), name);
-                                PropertyState ps = pm.load(pid);
-                                if (ps.getType() == PropertyType.BINARY) {
-                                    for (InternalValue v : ps.getValues()) {
-                                        // getLength will update the last modified date
-                                        // if the persistence manager scan is running
-                                        v.getLength();
-                                    }
-                                }
-                            }
-                        } catch (NoSuchItemStateException ignored) {
-                            // the node may have been deleted in the meantime
+        ParallelMarker marker = markThreads > 1 ? new ParallelMarker(markThreads) : null;
+        try {
+            int pmCount = 0;
+            for (IterablePersistenceManager pm : pmList) {
+                pmCount++;
+                int count = 0;
+                Map<NodeId,NodeInfo> batch = pm.getAllNodeInfos(null, NODESATONCE);
+                while (!batch.isEmpty()) {
+                    NodeId lastId = null;
+                    List<NodeId> ids = new ArrayList<NodeId>(batch.size());
+                    List<Boolean> blobs = new ArrayList<Boolean>(batch.size());
+                    for (NodeInfo info : batch.values()) {
+                        count++;
+                        if (count % 1000 == 0) {
+                            LOG.debug(pm.toString() + " ("+pmCount + "/" + pmList.length + "): analyzed " + count + " nodes...");
                         }
+                        lastId = info.getId();
+                        ids.add(info.getId());
+                        blobs.add(info.hasBlobsInDataStore());
+                    }
+                    if (marker != null) {
+                        marker.mark(pm, ids, blobs);
+                    } else {
+                        markNodes(pm, ids, blobs);
                     }
+                    batch = pm.getAllNodeInfos(lastId, NODESATONCE);
                 }
-                batch = pm.getAllNodeInfos(lastId, NODESATONCE);
+            }
+            if (marker != null) {
+                marker.finish();
+            }
+        } finally {
+            if (marker != null) {
+                marker.abort();
             }
         }
         NodeInfo.clearPool();
     }
 
     private void scanPersistenceManagersByNodeIds() throws RepositoryException, ItemStateException {
-        int pmCount = 0;
-        for (IterablePersistenceManager pm : pmList) {
-            pmCount++;
-            List<NodeId> allNodeIds = pm.getAllNodeIds(null, 0);
-            int overAllCount = allNodeIds.size();
-            int count = 0;
-            for (NodeId id : allNodeIds) {
-                count++;
-                if (count % 1000 == 0) {
-                    LOG.debug(pm.toString() + " ("+pmCount + "/" + pmList.length + "): analyzed " + count + " nodes [" + overAllCount + "]...");
+        ParallelMarker marker = markThreads > 1 ? new ParallelMarker(markThreads) : null;
+        try {
+            int pmCount = 0;
+            for (IterablePersistenceManager pm : pmList) {
+                pmCount++;
+                List<NodeId> allNodeIds = pm.getAllNodeIds(null, 0);
+                int overAllCount = allNodeIds.size();
+                for (int i = 0; i < overAllCount; i += NODESATONCE) {
+                    LOG.debug(pm.toString() + " ("+pmCount + "/" + pmList.length + "): analyzed " + i + " nodes [" + overAllCount + "]...");
+                    List<NodeId> ids = allNodeIds.subList(i, Math.min(i + NODESATONCE, overAllCount));
+                    if (marker != null) {
+                        marker.mark(pm, ids, null);
+                    } else {
+                        markNodes(pm, ids, null);
+                    }
                 }
-                if (callback != null) {
+            }
+            if (marker != null) {
+                marker.finish();
+            }
+        } finally {
+            if (marker != null) {
+                marker.abort();
+            }
+        }
+    }
+
+    /**
+     * Marks the binaries referenced by the given nodes, by accessing them
+     * while the persistence manager scan is running.
+     *
+     * @param pm the persistence manager
+     * @param ids the node ids
+     * @param blobs for each node, whether it has binaries in the data
+     *            store, or <code>null</code> if unknown
+     */
+    private void markNodes(
+            IterablePersistenceManager pm, List<NodeId> ids, List<Boolean> blobs)
+            throws RepositoryException, ItemStateException {
+        for (int i = 0; i < ids.size(); i++) {
+            if (callback != null) {
+                synchronized (callback) {
                     callback.beforeScanning(null);
                 }
-                try {
-                    NodeState state = pm.load(id);
-                    Set<Name> propertyNames = state.getPropertyNames();
-                    for (Name name : propertyNames) {
-                        PropertyId pid = new PropertyId(id, name);
-                        PropertyState ps = pm.load(pid);
-                        if (ps.getType() == PropertyType.BINARY) {
-                            for (InternalValue v : ps.getValues()) {
-                                // getLength will update the last modified date
-                                // if the persistence manager scan is running
-                                v.getLength();
-                            }
+            }
+            if (blobs != null && !blobs.get(i)) {
+                continue;
+            }
+            NodeId id = ids.get(i);
+            try {
+                NodeState state = pm.load(id);
+                Set<Name> propertyNames = state.getPropertyNames();
+                for (Name name : propertyNames) {
+                    PropertyId pid = new PropertyId(id, name);
+                    PropertyState ps = pm.load(pid);
+                    if (ps.getType() == PropertyType.BINARY) {
+                        for (InternalValue v : ps.getValues()) {
+                            // getLength will update the last modified date
+                            // if the persistence manager scan is running
+                            v.getLength();
+                        }
+                    }
+                }
+            } catch (NoSuchItemStateException e) {
+                // the node may have been deleted or moved in the meantime
+                // ignore it
+            }
+        }
+    }
+
+    /**
+     * Marks batches of nodes on a pool of threads, while the batches are
+     * fetched by the calling thread. Each batch covers the range of node ids
+     * that follow the last id of the previous batch, in the order of the
+     * persistence manager. Node ids can't be split into ranges up front, as
+     * the key order differs between persistence managers. The number of
+     * pending batches is limited to bound the memory usage.
+     */
+    private class ParallelMarker {
+
+        private final ThreadPoolExecutor executor;
+
+        private final Semaphore pending;
+
+        private volatile Exception failure;
+
+        public ParallelMarker(int threads) {
+            executor = new ThreadPoolExecutor(
+                    threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "jackrabbit-gc-mark-" + THREAD_COUNTER.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pending = new Semaphore(threads * 2);
+        }
+
+        public void mark(
+                final IterablePersistenceManager pm,
+                final List<NodeId> ids, final List<Boolean> blobs)
+                throws RepositoryException, ItemStateException {
+            try {
+                pending.acquire();
+            } catch (InterruptedException e) {
+                throw new RepositoryException("Interrupted while marking", e);
+            }
+            checkFailure();
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (failure == null) {
+                            markNodes(pm, ids, blobs);
                         }
+                    } catch (Exception e) {
+                        failure = e;
+                    } finally {
+                        pending.release();
                     }
-                } catch (NoSuchItemStateException e) {
-                    // the node may have been deleted or moved in the meantime
-                    // ignore it
                 }
+            });
+        }
+
+        /**
+         * Waits until all batches are marked.
+         */
+        public void finish() throws RepositoryException, ItemStateException {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    checkFailure();
+                }
+            } catch (InterruptedException e) {
+                throw new RepositoryException("Interrupted while marking", e);
+            }
+            checkFailure();
+        }
+
+        /**
+         * Stops all threads, if the marking was not finished.
+         */
+        public void abort() {
+            executor.shutdownNow();
+        }
+
+        private void checkFailure() throws RepositoryException, ItemStateException {
+            Exception e = failure;
+            if (e instanceof RepositoryException) {
+                throw (RepositoryException) e;
+            } else if (e instanceof ItemStateException) {
+                throw (ItemStateException) e;
+            } else if (e != null) {
+                throw new RepositoryException("Marking failed", e);
             }
         }
+
     }
 
     /**
@@ -310,9 +528,39 @@ public class GarbageCollector implements DataStoreGarbageCollector {
             throw new RepositoryException("scan must be called first");
         }
         stopScan();
+        if (binaryReferences != null) {
+            return sweepUnreferenced();
+        }
         return store.deleteAllOlderThan(startScanTimestamp);
     }
 
+    /**
+     * Deletes the data store records that are not referenced by any of the
+     * binary reference indexes, and were not modified since the scan
+     * started. The data store does not delete records that are in use, for
+     * example by values that are not saved yet.
+     *
+     * @return the number of deleted records
+     */
+    private int sweepUnreferenced() throws RepositoryException {
+        return ((ReferenceAwareDataStore) store).deleteAllOlderThan(
+                startScanTimestamp, new DataReferences() {
+                    public boolean isReferenced(DataIdentifier identifier) {
+                        return GarbageCollector.this.isReferenced(identifier);
+                    }
+                });
+    }
+
+    private boolean isReferenced(DataIdentifier identifier) {
+        String id = identifier.toString();
+        for (BinaryReferenceIndex index : binaryReferences) {
+            if (index.isReferenced(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Get the data store if one is used.
      *
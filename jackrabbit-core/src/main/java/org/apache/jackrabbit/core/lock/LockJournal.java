@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.lock;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.fs.FileSystemException;
+import org.apache.jackrabbit.core.fs.FileSystemResource;
+
+/**
+ * Persists the open-scoped locks of a workspace incrementally. The locks
+ * file written by earlier versions is used as a snapshot, and every change
+ * is written as a small journal entry to the <code>locks.journal</code>
+ * folder, so that the cost of locking or unlocking a node does not depend
+ * on the number of held locks. Once the number of journal entries exceeds
+ * a quarter of the number of locks (or at least {@link #MIN_COMPACT_ENTRIES}),
+ * the snapshot is rewritten and the journal entries are deleted.
+ * <p>
+ * Each line of the snapshot contains a lock token, optionally followed by a
+ * comma and the timeout hint. Journal entries contain lines of the same
+ * format prefixed by <code>+</code> for added locks, or <code>-</code>
+ * followed by the lock token for removed locks. Replaying the journal on
+ * top of the snapshot is idempotent, so an interrupted compaction does not
+ * lose any changes.
+ * <p>
+ * This class is not thread-safe, the {@link LockManagerImpl} serializes the
+ * access to it.
+ */
+class LockJournal {
+
+    /**
+     * Name of the snapshot file.
+     */
+    private static final String LOCKS_FILE = "locks";
+
+    /**
+     * Name of the folder that contains the journal entries.
+     */
+    private static final String JOURNAL_FOLDER = "locks.journal";
+
+    /**
+     * Minimum number of journal entries before the journal is compacted.
+     */
+    static final int MIN_COMPACT_ENTRIES = 1000;
+
+    /**
+     * The file system.
+     */
+    private final FileSystem fs;
+
+    /**
+     * The snapshot file.
+     */
+    private final FileSystemResource locksFile;
+
+    /**
+     * Lines of the current open-scoped locks, keyed by lock token.
+     */
+    private final Map<String, String> locks =
+        new LinkedHashMap<String, String>();
+
+    /**
+     * Changes that have not been written to the journal yet.
+     */
+    private final List<String> pending = new ArrayList<String>();
+
+    /**
+     * Number of journal entries written since the last compaction.
+     */
+    private int entries;
+
+    /**
+     * Sequence number of the next journal entry.
+     */
+    private long sequence;
+
+    /**
+     * Creates a journal that uses the given file system.
+     *
+     * @param fs file system
+     */
+    public LockJournal(FileSystem fs) {
+        this.fs = fs;
+        this.locksFile = new FileSystemResource(
+                fs, FileSystem.SEPARATOR + LOCKS_FILE);
+    }
+
+    /**
+     * Returns the path of the snapshot file, used for logging.
+     *
+     * @return path of the locks file
+     */
+    public String getPath() {
+        return locksFile.getPath();
+    }
+
+    /**
+     * Reads the snapshot and replays the journal.
+     *
+     * @return lines of the persisted locks
+     * @throws FileSystemException if the locks can not be read
+     */
+    public Collection<String> load() throws FileSystemException {
+        locks.clear();
+        pending.clear();
+        if (locksFile.exists()) {
+            for (String line : readLines(locksFile)) {
+                locks.put(getLockToken(line), line);
+            }
+        }
+
+        String[] names = listEntries();
+        for (String name : names) {
+            for (String line : readLines(getEntry(name))) {
+                if (line.startsWith("+")) {
+                    line = line.substring(1);
+                    locks.put(getLockToken(line), line);
+                } else if (line.startsWith("-")) {
+                    locks.remove(line.substring(1));
+                }
+            }
+        }
+        entries = names.length;
+        if (names.length > 0) {
+            sequence = Long.parseLong(names[names.length - 1], 16) + 1;
+        }
+
+        return new ArrayList<String>(locks.values());
+    }
+
+    /**
+     * Records an added lock.
+     *
+     * @param info lock info
+     */
+    public void lockAdded(LockInfo info) {
+        StringBuilder builder = new StringBuilder(info.getLockToken());
+        // Store the timeout hint, if one is specified
+        if (info.getTimeoutHint() != Long.MAX_VALUE) {
+            builder.append(',');
+            builder.append(info.getTimeoutHint());
+        }
+        String line = builder.toString();
+        locks.put(info.getLockToken(), line);
+        pending.add("+" + line);
+    }
+
+    /**
+     * Records a removed lock.
+     *
+     * @param token lock token
+     */
+    public void lockRemoved(String token) {
+        if (locks.remove(token) != null) {
+            pending.add("-" + token);
+        }
+    }
+
+    /**
+     * Writes all pending changes as a single journal entry, and compacts
+     * the journal if it has grown too large.
+     *
+     * @throws FileSystemException if the changes can not be written
+     */
+    public void save() throws FileSystemException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        FileSystemResource entry = getEntry(String.format("%016x", sequence));
+        entry.makeParentDirs();
+        writeLines(entry, pending);
+        sequence++;
+        entries++;
+        pending.clear();
+
+        if (entries >= Math.max(MIN_COMPACT_ENTRIES, locks.size() / 4)) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes all locks to the snapshot file and deletes the journal
+     * entries. Pending changes are included in the snapshot.
+     *
+     * @throws FileSystemException if the snapshot can not be written
+     */
+    public void compact() throws FileSystemException {
+        writeLines(locksFile, locks.values());
+        pending.clear();
+        for (String name : listEntries()) {
+            getEntry(name).delete();
+        }
+        entries = 0;
+    }
+
+    /**
+     * Returns the number of journal entries written since the last
+     * compaction.
+     *
+     * @return number of journal entries
+     */
+    int getEntryCount() {
+        return entries;
+    }
+
+    private static String getLockToken(String line) {
+        int comma = line.indexOf(',');
+        return comma != -1 ? line.substring(0, comma) : line;
+    }
+
+    private FileSystemResource getEntry(String name) {
+        return new FileSystemResource(fs, FileSystem.SEPARATOR
+                + JOURNAL_FOLDER + FileSystem.SEPARATOR + name);
+    }
+
+    /**
+     * Returns the names of the journal entries in the order they were
+     * written.
+     */
+    private String[] listEntries() throws FileSystemException {
+        String folder = FileSystem.SEPARATOR + JOURNAL_FOLDER;
+        if (!fs.exists(folder)) {
+            return new String[0];
+        }
+        String[] names = fs.listFiles(folder);
+        Arrays.sort(names);
+        return names;
+    }
+
+    private static List<String> readLines(FileSystemResource resource)
+            throws FileSystemException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(resource.getInputStream()));
+            while (true) {
+                String s = reader.readLine();
+                if (s == null || s.equals("")) {
+                    break;
+                }
+                lines.add(s);
+            }
+        } catch (IOException e) {
+            throw new FileSystemException(
+                    "error while reading " + resource.getPath(), e);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return lines;
+    }
+
+    private static void writeLines(
+            FileSystemResource resource, Collection<String> lines)
+            throws FileSystemException {
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(
+                    new OutputStreamWriter(resource.getOutputStream()));
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+        } catch (IOException e) {
+            throw new FileSystemException(
+                    "error while writing " + resource.getPath(), e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+}
@@ -16,11 +16,6 @@
  */
 package org.apache.jackrabbit.core.lock;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.concurrent.ScheduledExecutorService;
@@ -38,7 +33,6 @@ import javax.jcr.observation.Event;
 import javax.jcr.observation.EventIterator;
 
 import org.apache.commons.collections.map.LinkedMap;
-import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.core.NodeImpl;
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.SessionListener;
@@ -48,7 +42,6 @@ import org.apache.jackrabbit.core.cluster.LockEventChannel;
 import org.apache.jackrabbit.core.cluster.LockEventListener;
 import org.apache.jackrabbit.core.fs.FileSystem;
 import org.apache.jackrabbit.core.fs.FileSystemException;
-import org.apache.jackrabbit.core.fs.FileSystemResource;
 import org.apache.jackrabbit.core.id.ItemId;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
@@ -78,11 +71,6 @@ public class LockManagerImpl
      */
     private static final Logger log = LoggerFactory.getLogger(LockManagerImpl.class);
 
-    /**
-     * Name of the lock file
-     */
-    private static final String LOCKS_FILE = "locks";
-
     /**
      * Path map containing all locks at the leaves.
      */
@@ -109,9 +97,9 @@ public class LockManagerImpl
     private final SessionImpl sysSession;
 
     /**
-     * Locks file
+     * Lock journal
      */
-    private final FileSystemResource locksFile;
+    private final LockJournal journal;
 
     /**
      * Flag indicating whether automatic saving is disabled.
@@ -136,19 +124,17 @@ public class LockManagerImpl
             ScheduledExecutorService executor) throws RepositoryException {
 
         this.sysSession = session;
-        this.locksFile = new FileSystemResource(fs, FileSystem.SEPARATOR + LOCKS_FILE);
+        this.journal = new LockJournal(fs);
 
         session.getWorkspace().getObservationManager().
                 addEventListener(this, Event.NODE_ADDED | Event.NODE_REMOVED,
                         "/", true, null, null, true);
 
         try {
-            if (locksFile.exists()) {
-                load();
-            }
+            load();
         } catch (FileSystemException e) {
             throw new RepositoryException("I/O error while reading locks from '"
-                    + locksFile.getPath() + "'", e);
+                    + journal.getPath() + "'", e);
         }
 
         timeoutHandler = executor.scheduleWithFixedDelay(
@@ -156,11 +142,18 @@ public class LockManagerImpl
     }
 
     /**
-     * Close this lock manager. Writes back all changes.
+     * Close this lock manager. Writes back all changes and compacts the
+     * lock journal.
      */
     public void close() {
         timeoutHandler.cancel(false);
-        save();
+        try {
+            journal.compact();
+        } catch (FileSystemException fse) {
+            log.warn("I/O error while saving locks to '"
+                    + journal.getPath() + "': " + fse.getMessage());
+            log.debug("Root cause: ", fse);
+        }
     }
 
     /**
@@ -201,26 +194,14 @@ public class LockManagerImpl
     }
 
     /**
-     * Read locks from locks file and populate path map
+     * Read locks from the lock journal and populate path map
      */
     private void load() throws FileSystemException {
-        BufferedReader reader = null;
-
-        try {
-            reader = new BufferedReader(
-                    new InputStreamReader(locksFile.getInputStream()));
-            while (true) {
-                String s = reader.readLine();
-                if (s == null || s.equals("")) {
-                    break;
-                }
-                reapplyLock(s);
-            }
-        } catch (IOException e) {
-            throw new FileSystemException("error while reading locks file", e);
-        } finally {
-            IOUtils.closeQuietly(reader);
+        for (String line : journal.load()) {
+            reapplyLock(line);
         }
+        // forget about the locks that could not be recreated
+        save();
     }
 
     /**
@@ -258,57 +239,26 @@ public class LockManagerImpl
         } catch (RepositoryException e) {
             log.warn("Unable to recreate lock '" + token + "': " + e.getMessage());
             log.debug("Root cause: ", e);
+            journal.lockRemoved(token);
         } finally {
         	release();
         }
     }
 
     /**
-     * Write locks to locks file
+     * Write pending lock changes to the lock journal
      */
     private void save() {
         if (savingDisabled) {
             return;
         }
 
-        final ArrayList<LockInfo> list = new ArrayList<LockInfo>();
-
-        lockMap.traverse(new PathMap.ElementVisitor<LockInfo>() {
-            public void elementVisited(PathMap.Element<LockInfo> element) {
-                LockInfo info = element.get();
-                if (!info.isSessionScoped()) {
-                    list.add(info);
-                }
-            }
-        }, false);
-
-
-        BufferedWriter writer = null;
-
         try {
-            writer = new BufferedWriter(
-                    new OutputStreamWriter(locksFile.getOutputStream()));
-            for (LockInfo info : list) {
-                writer.write(info.getLockToken());
-
-                // Store the timeout hint, if one is specified
-                if (info.getTimeoutHint() != Long.MAX_VALUE) {
-                    writer.write(',');
-                    writer.write(Long.toString(info.getTimeoutHint()));
-                }
-
-                writer.newLine();
-            }
+            journal.save();
         } catch (FileSystemException fse) {
             log.warn("I/O error while saving locks to '"
-                    + locksFile.getPath() + "': " + fse.getMessage());
+                    + journal.getPath() + "': " + fse.getMessage());
             log.debug("Root cause: ", fse);
-        } catch (IOException ioe) {
-            log.warn("I/O error while saving locks to '"
-                    + locksFile.getPath() + "': " + ioe.getMessage());
-            log.debug("Root cause: ", ioe);
-        } finally {
-            IOUtils.closeQuietly(writer);
         }
     }
 
@@ -380,6 +330,7 @@ public class LockManagerImpl
             lockMap.put(path, info);
 
             if (!info.isSessionScoped()) {
+                journal.lockAdded(info);
                 save();
                 successful = true;
             }
@@ -431,6 +382,7 @@ public class LockManagerImpl
             info.setLive(false);
 
             if (!info.isSessionScoped()) {
+                journal.lockRemoved(info.getLockToken());
                 save();
                 successful = true;
             }
@@ -479,12 +431,14 @@ public class LockManagerImpl
                 if (info.isLive() && !info.isSessionScoped()) {
                     try {
                         lockMap.put(element.getPath(), info);
+                        journal.lockAdded(info);
                     } catch (MalformedPathException e) {
                         log.warn("Ignoring invalid lock path: " + info, e);
                     }
                 }
             }
         }, false);
+        save();
     }
 
     /**
@@ -867,7 +821,7 @@ public class LockManagerImpl
 
     /**
      * Start an update operation. This will acquire the lock on the lock map
-     * and disable saving the lock map file.
+     * and disable saving the lock journal.
      */
     public void beginUpdate() {
         acquire();
@@ -875,7 +829,7 @@ public class LockManagerImpl
     }
 
     /**
-     * End an update operation. This will save the lock map file and release
+     * End an update operation. This will save the lock journal and release
      * the lock on the lock map.
      */
     public void endUpdate() {
@@ -1179,6 +1133,7 @@ public class LockManagerImpl
             } catch (RepositoryException e) {
                 info.setLive(false);
                 if (!info.isSessionScoped()) {
+                    journal.lockRemoved(info.getLockToken());
                     needsSave = true;
                 }
             } finally {
@@ -1356,6 +1311,7 @@ public class LockManagerImpl
             info.setLive(true);
             lockMap.put(path, info);
 
+            journal.lockAdded(info);
             save();
         } finally {
             release();
@@ -1381,6 +1337,7 @@ public class LockManagerImpl
             element.set(null);
             info.setLive(false);
 
+            journal.lockRemoved(info.getLockToken());
             save();
 
         } finally {
@@ -211,6 +211,28 @@ class EventConsumer {
         }
     }
 
+    /**
+     * Returns <code>true</code> if the filter of this consumer lets at least
+     * one of the given events pass. Access rights are only checked when the
+     * events are consumed.
+     *
+     * @param events a collection of {@link EventState}s.
+     * @return <code>false</code> if none of the events would be delivered.
+     */
+    boolean accepts(EventStateCollection events) {
+        for (Iterator<EventState> it = events.iterator(); it.hasNext();) {
+            try {
+                if (!filter.blocks(it.next())) {
+                    return true;
+                }
+            } catch (RepositoryException e) {
+                // let consumeEvents() deal with it
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Dispatches the events to the <code>EventListener</code>.
      *
@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.observation;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The queue of pending events of a single asynchronous
+ * <code>EventConsumer</code>. Events are delivered by a shared executor,
+ * but at most one task per queue runs at any time, so that a listener
+ * receives its events in the order they were dispatched, and a slow
+ * listener does not delay the other listeners.
+ * <p>
+ * The queue is bounded in the sense that it reports being overloaded once it
+ * contains more than the configured number of events. Events are never
+ * dropped, instead the {@link ObservationDispatcher} delays the writing
+ * threads that add events to an overloaded queue. The queue updates a
+ * counter of overloaded queues shared with the other queues of the
+ * dispatcher whenever it becomes or stops being overloaded.
+ */
+class EventConsumerQueue implements Runnable {
+
+    /**
+     * Logger instance for this class
+     */
+    private static final Logger log =
+        LoggerFactory.getLogger(EventConsumerQueue.class);
+
+    /**
+     * The maximum number of event collections delivered by a single task,
+     * before the task is re-scheduled to give other listeners a chance.
+     */
+    static final int BATCH_SIZE = 100;
+
+    /**
+     * Marks the threads that are currently delivering events.
+     */
+    private static final ThreadLocal<Boolean> DELIVERING =
+        new ThreadLocal<Boolean>();
+
+    /**
+     * The executor that delivers the events.
+     */
+    private final Executor executor;
+
+    /**
+     * The maximum number of events in this queue before it is overloaded.
+     */
+    private final int maxQueuedEvents;
+
+    /**
+     * The number of queued events.
+     */
+    private final AtomicLong depth;
+
+    /**
+     * The time in milliseconds the most recently delivered events have been
+     * waiting in the queue.
+     */
+    private final AtomicLong lag;
+
+    /**
+     * The number of events that were added while the queue was overloaded.
+     */
+    private final AtomicLong overflow;
+
+    /**
+     * The number of overloaded queues of the dispatcher.
+     */
+    private final AtomicInteger overloadedQueues;
+
+    /**
+     * The pending events.
+     */
+    private final Queue<PendingEvents> pending = new ArrayDeque<PendingEvents>();
+
+    /**
+     * The number of events in {@link #pending}.
+     */
+    private int size;
+
+    /**
+     * Whether a task for this queue is scheduled or running.
+     */
+    private boolean scheduled;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param executor the executor that delivers the events
+     * @param maxQueuedEvents the maximum number of queued events
+     * @param depth counter for the number of queued events
+     * @param lag counter for the delivery lag in milliseconds
+     * @param overflow counter for events added to an overloaded queue
+     * @param overloadedQueues counter of the overloaded queues
+     */
+    EventConsumerQueue(
+            Executor executor, int maxQueuedEvents,
+            AtomicLong depth, AtomicLong lag, AtomicLong overflow,
+            AtomicInteger overloadedQueues) {
+        this.executor = executor;
+        this.maxQueuedEvents = maxQueuedEvents;
+        this.depth = depth;
+        this.lag = lag;
+        this.overflow = overflow;
+        this.overloadedQueues = overloadedQueues;
+    }
+
+    /**
+     * Returns <code>true</code> if the current thread is delivering events
+     * of any queue.
+     *
+     * @return whether the current thread is a notification thread
+     */
+    static boolean isDelivering() {
+        return DELIVERING.get() != null;
+    }
+
+    /**
+     * Queues events for delivery to the given consumer.
+     *
+     * @param consumer the consumer
+     * @param events the events
+     * @return <code>true</code> if the queue is overloaded
+     */
+    boolean add(EventConsumer consumer, EventStateCollection events) {
+        int count = events.size();
+        boolean schedule;
+        boolean overloaded;
+        synchronized (this) {
+            boolean wasOverloaded = size > maxQueuedEvents;
+            pending.add(new PendingEvents(consumer, events));
+            size += count;
+            overloaded = size > maxQueuedEvents;
+            if (overloaded) {
+                overflow.addAndGet(count);
+                if (!wasOverloaded) {
+                    overloadedQueues.incrementAndGet();
+                }
+            }
+            schedule = !scheduled;
+            scheduled = true;
+        }
+        depth.addAndGet(count);
+        if (schedule && !schedule()) {
+            // the executor is shut down, deliver with the current thread
+            run();
+        }
+        return overloaded;
+    }
+
+    /**
+     * Returns <code>true</code> if this queue contains more than the
+     * maximum number of events.
+     *
+     * @return whether this queue is overloaded
+     */
+    synchronized boolean isOverloaded() {
+        return size > maxQueuedEvents;
+    }
+
+    /**
+     * Returns the number of queued events.
+     *
+     * @return the number of queued events
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Delivers the pending events. Called by the executor.
+     */
+    public void run() {
+        boolean delivering = isDelivering();
+        DELIVERING.set(Boolean.TRUE);
+        try {
+            do {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    PendingEvents next;
+                    synchronized (this) {
+                        next = pending.poll();
+                        if (next == null) {
+                            scheduled = false;
+                            lag.set(0);
+                            return;
+                        }
+                        boolean wasOverloaded = size > maxQueuedEvents;
+                        size -= next.events.size();
+                        if (wasOverloaded && size <= maxQueuedEvents) {
+                            overloadedQueues.decrementAndGet();
+                        }
+                    }
+                    depth.addAndGet(-next.events.size());
+                    lag.set(System.currentTimeMillis() - next.queued);
+                    try {
+                        next.consumer.consumeEvents(next.events);
+                    } catch (Throwable t) {
+                        log.warn("EventConsumer "
+                                + next.consumer.getEventListener().getClass().getName()
+                                + " threw exception", t);
+                        // move on to the next events
+                    }
+                }
+                // give the other listeners a chance
+            } while (!schedule());
+        } finally {
+            if (!delivering) {
+                DELIVERING.remove();
+            }
+        }
+    }
+
+    /**
+     * Schedules a task for this queue.
+     *
+     * @return <code>false</code> if the executor did not accept the task
+     */
+    private boolean schedule() {
+        try {
+            executor.execute(this);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Events waiting for delivery to a consumer.
+     */
+    private static class PendingEvents {
+
+        private final EventConsumer consumer;
+
+        private final EventStateCollection events;
+
+        private final long queued = System.currentTimeMillis();
+
+        PendingEvents(EventConsumer consumer, EventStateCollection events) {
+            this.consumer = consumer;
+            this.events = events;
+        }
+
+    }
+
+}
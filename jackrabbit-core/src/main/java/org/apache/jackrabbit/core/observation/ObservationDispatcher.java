@@ -20,17 +20,51 @@ import org.apache.commons.collections.Buffer;
 import org.apache.commons.collections.BufferUtils;
 import org.apache.commons.collections.buffer.UnboundedFifoBuffer;
 import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.observation.EventListener;
 
 /**
  * Dispatcher for dispatching events to listeners within a single workspace.
+ * <p>
+ * By default, asynchronous events are delivered by a single notification
+ * thread from one shared queue. If a number of notification threads is
+ * configured, each asynchronous listener gets its own queue instead, and the
+ * queues are processed concurrently by a shared pool of threads. Events are
+ * still delivered in order to each listener, but a slow listener no longer
+ * delays the others. Only the writing threads that add events to the queue
+ * of a slow listener are delayed, and events that the filter of a listener
+ * blocks are not queued for it. The following time series are then
+ * recorded in the repository statistics for each registered listener,
+ * identified by its class name and identity hash code (for example
+ * <code>com.example.Listener@1b6d3586</code>), and removed when the
+ * listener is unregistered:
+ * <ul>
+ * <li><code>OBSERVATION_QUEUE_DEPTH[listener]</code>: the number of queued
+ * events</li>
+ * <li><code>OBSERVATION_QUEUE_LAG[listener]</code>: the time in
+ * milliseconds the most recently delivered events have been waiting in
+ * the queue</li>
+ * <li><code>OBSERVATION_QUEUE_OVERFLOW[listener]</code>: the number of
+ * events per second added to a queue that contains more than
+ * <code>jackrabbit.maxQueuedEventsPerListener</code> events</li>
+ * </ul>
  */
 public final class ObservationDispatcher extends EventDispatcher
         implements Runnable {
@@ -56,6 +90,23 @@ public final class ObservationDispatcher extends EventDispatcher
      */
     private static final int MAX_QUEUED_EVENTS = Integer.parseInt(System.getProperty("jackrabbit.maxQueuedEvents", "200000"));
 
+    /**
+     * The number of threads that deliver events from per-listener queues.
+     * The default value 0 means a single notification thread delivers all
+     * events from a shared queue. To change the default, set the system
+     * property jackrabbit.observation.threads to the required value.
+     */
+    private static final int NOTIFICATION_THREADS = Integer.getInteger("jackrabbit.observation.threads", 0);
+
+    /**
+     * The maximum number of queued events per listener if per-listener
+     * queues are used. If a queue contains more events, writing threads are
+     * delayed in the same way as for {@link #MAX_QUEUED_EVENTS}. To change
+     * the default, set the system property
+     * jackrabbit.maxQueuedEventsPerListener to the required value.
+     */
+    private static final int MAX_QUEUED_EVENTS_PER_LISTENER = Integer.getInteger("jackrabbit.maxQueuedEventsPerListener", MAX_QUEUED_EVENTS);
+
     /**
      * Currently active <code>EventConsumer</code>s for notification.
      */
@@ -90,10 +141,45 @@ public final class ObservationDispatcher extends EventDispatcher
     private AtomicInteger eventQueueSize = new AtomicInteger();
 
     /**
-     * The background notification thread
+     * The background notification thread, or <code>null</code> if
+     * per-listener queues are used.
      */
     private Thread notificationThread;
 
+    /**
+     * The threads that deliver events from per-listener queues, or
+     * <code>null</code> if a single notification thread is used.
+     */
+    private final ExecutorService notificationExecutor;
+
+    /**
+     * The per-listener queues of the asynchronous consumers.
+     */
+    private final Map<EventConsumer, EventConsumerQueue> consumerQueues =
+        new ConcurrentHashMap<EventConsumer, EventConsumerQueue>();
+
+    /**
+     * The maximum number of events per listener queue.
+     */
+    private final int maxQueuedEventsPerListener;
+
+    /**
+     * The number of per-listener queues that contain more than
+     * {@link #maxQueuedEventsPerListener} events.
+     */
+    private final AtomicInteger overloadedQueues = new AtomicInteger();
+
+    /**
+     * The overloaded queue the current thread last added events to, if any.
+     */
+    private final ThreadLocal<EventConsumerQueue> overloadedQueue =
+        new ThreadLocal<EventConsumerQueue>();
+
+    /**
+     * The repository statistics, or <code>null</code>.
+     */
+    private final RepositoryStatisticsImpl statistics;
+
     private long lastError;
 
     /**
@@ -101,9 +187,48 @@ public final class ObservationDispatcher extends EventDispatcher
      * and starts the notification thread daemon.
      */
     public ObservationDispatcher() {
-        notificationThread = new Thread(this, "ObservationManager");
-        notificationThread.setDaemon(true);
-        notificationThread.start();
+        this(null, 0, MAX_QUEUED_EVENTS_PER_LISTENER);
+    }
+
+    /**
+     * Creates a new <code>ObservationDispatcher</code> instance that
+     * uses the number of notification threads configured in the
+     * jackrabbit.observation.threads system property.
+     *
+     * @param statistics repository statistics, or <code>null</code>
+     */
+    public ObservationDispatcher(RepositoryStatisticsImpl statistics) {
+        this(statistics, NOTIFICATION_THREADS, MAX_QUEUED_EVENTS_PER_LISTENER);
+    }
+
+    /**
+     * Creates a new <code>ObservationDispatcher</code> instance.
+     *
+     * @param statistics repository statistics, or <code>null</code>
+     * @param threads the number of threads that deliver events from
+     *                per-listener queues, or 0 to deliver all events from
+     *                a shared queue with a single notification thread
+     * @param maxQueuedEventsPerListener the maximum number of events per
+     *                listener queue
+     */
+    public ObservationDispatcher(
+            RepositoryStatisticsImpl statistics,
+            int threads, int maxQueuedEventsPerListener) {
+        this.statistics = statistics;
+        this.maxQueuedEventsPerListener = maxQueuedEventsPerListener;
+        if (threads > 0) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new NotificationThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            notificationExecutor = executor;
+        } else {
+            notificationExecutor = null;
+            notificationThread = new Thread(this, "ObservationManager");
+            notificationThread.setDaemon(true);
+            notificationThread.start();
+        }
     }
 
     /**
@@ -111,12 +236,24 @@ public final class ObservationDispatcher extends EventDispatcher
      * effectively stop the background notification thread.
      */
     public void dispose() {
-        // dispatch dummy event to mark end of notification
-        eventQueue.add(DISPOSE_MARKER);
-        try {
-            notificationThread.join();
-        } catch (InterruptedException e) {
-            // FIXME log exception ?
+        if (notificationExecutor != null) {
+            // queued events are still delivered
+            notificationExecutor.shutdown();
+            try {
+                while (!notificationExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.warn("Waiting for EventListeners to finish");
+                }
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while stopping the notification", e);
+            }
+        } else {
+            // dispatch dummy event to mark end of notification
+            eventQueue.add(DISPOSE_MARKER);
+            try {
+                notificationThread.join();
+            } catch (InterruptedException e) {
+                // FIXME log exception ?
+            }
         }
         log.info("Notification of EventListeners stopped.");
     }
@@ -207,7 +344,7 @@ public final class ObservationDispatcher extends EventDispatcher
     void dispatchEvents(EventStateCollection events) {
         // JCR-3426: log warning when changes are done
         // with the notification thread
-        if (Thread.currentThread() == notificationThread) {
+        if (isNotificationThread()) {
             log.warn("Save call with event notification thread detected. This " +
                     "may lead to a growing event queue. Enable debug log to " +
                     "see the stack trace with the class calling save().");
@@ -228,14 +365,113 @@ public final class ObservationDispatcher extends EventDispatcher
                 // move on to next consumer
             }
         }
-        eventQueue.add(new DispatchAction(events, getAsynchronousConsumers()));
-        eventQueueSize.addAndGet(events.size());
+        if (notificationExecutor != null) {
+            EventConsumerQueue overloaded = null;
+            for (EventConsumer c : getAsynchronousConsumers()) {
+                EventConsumerQueue queue = consumerQueues.get(c);
+                // the queue is null if the consumer was just removed
+                if (queue != null && c.accepts(events)
+                        && queue.add(c, events)) {
+                    overloaded = queue;
+                }
+            }
+            if (overloaded != null) {
+                overloadedQueue.set(overloaded);
+            } else {
+                overloadedQueue.remove();
+            }
+        } else {
+            eventQueue.add(new DispatchAction(events, getAsynchronousConsumers()));
+            eventQueueSize.addAndGet(events.size());
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the current thread delivers events to
+     * asynchronous listeners.
+     */
+    private boolean isNotificationThread() {
+        return Thread.currentThread() == notificationThread
+                || EventConsumerQueue.isDelivering();
+    }
+
+    /**
+     * Returns <code>true</code> if too many events are queued in the shared
+     * queue, or if the current thread added events to the queue of a
+     * listener that is still overloaded.
+     */
+    boolean isEventQueueOverloaded() {
+        if (notificationExecutor == null) {
+            return eventQueueSize.get() > MAX_QUEUED_EVENTS;
+        }
+        EventConsumerQueue queue = overloadedQueue.get();
+        if (queue == null) {
+            return false;
+        }
+        if (overloadedQueues.get() > 0 && queue.isOverloaded()) {
+            return true;
+        }
+        overloadedQueue.remove();
+        return false;
+    }
+
+    /**
+     * Returns the name that identifies the given listener in the repository
+     * statistics.
+     *
+     * @param listener the listener
+     * @return the class name and identity hash code of the listener
+     */
+    static String getStatisticsName(EventListener listener) {
+        return listener.getClass().getName() + "@"
+            + Integer.toHexString(System.identityHashCode(listener));
+    }
+
+    /**
+     * Creates the queue of an asynchronous consumer, with counters of its
+     * own in the repository statistics.
+     */
+    private EventConsumerQueue createQueue(EventConsumer consumer) {
+        AtomicLong depth;
+        AtomicLong lag;
+        AtomicLong overflow;
+        if (statistics != null) {
+            String name = getStatisticsName(consumer.getEventListener());
+            depth = statistics.getCounter(
+                    "OBSERVATION_QUEUE_DEPTH[" + name + "]", false);
+            lag = statistics.getCounter(
+                    "OBSERVATION_QUEUE_LAG[" + name + "]", false);
+            overflow = statistics.getCounter(
+                    "OBSERVATION_QUEUE_OVERFLOW[" + name + "]", true);
+        } else {
+            depth = new AtomicLong();
+            lag = new AtomicLong();
+            overflow = new AtomicLong();
+        }
+        return new EventConsumerQueue(
+                notificationExecutor, maxQueuedEventsPerListener,
+                depth, lag, overflow, overloadedQueues);
+    }
+
+    /**
+     * Removes the counters of an asynchronous consumer from the repository
+     * statistics.
+     */
+    private void removeCounters(EventConsumer consumer) {
+        if (statistics != null) {
+            String name = getStatisticsName(consumer.getEventListener());
+            statistics.removeTimeSeries("OBSERVATION_QUEUE_DEPTH[" + name + "]");
+            statistics.removeTimeSeries("OBSERVATION_QUEUE_LAG[" + name + "]");
+            statistics.removeTimeSeries("OBSERVATION_QUEUE_OVERFLOW[" + name + "]");
+        }
     }
 
     /**
      * Checks if the observation event queue contains more than the
      * configured {@link #MAX_QUEUED_EVENTS maximum number of events},
-     * and delays the current thread in such cases. No delay is added
+     * or the current thread added events to the queue of a listener that
+     * contains more than {@link #MAX_QUEUED_EVENTS_PER_LISTENER}, and delays
+     * the current thread in such cases. No delay is added
      * if the current thread is the observation thread, for example if
      * an observation listener writes to the repository.
      * <p>
@@ -243,16 +479,16 @@ public final class ObservationDispatcher extends EventDispatcher
      * repository access locks.
      */
     public void delayIfEventQueueOverloaded() {
-        if (eventQueueSize.get() > MAX_QUEUED_EVENTS) {
+        if (isEventQueueOverloaded()) {
             boolean logWarning = false;
             long now = System.currentTimeMillis();
             // log a warning at most every 5 seconds (to avoid filling the log file)
             if (lastError == 0 || now > lastError + 5000) {
                 logWarning = true;
-                log.warn("More than " + MAX_QUEUED_EVENTS + " events in the queue", new Exception("Stack Trace"));
+                log.warn("Too many events in the queue", new Exception("Stack Trace"));
                 lastError = now;
             }
-            if (Thread.currentThread() == notificationThread) {
+            if (isNotificationThread()) {
                 if (logWarning) {
                     log.warn("Recursive notification?");
                 }
@@ -289,6 +525,11 @@ public final class ObservationDispatcher extends EventDispatcher
                 activeConsumers.add(consumer);
                 // reset read only consumer set
                 readOnlyConsumers = null;
+                // keep the queue of a replaced consumer to preserve the order
+                if (notificationExecutor != null
+                        && !consumerQueues.containsKey(consumer)) {
+                    consumerQueues.put(consumer, createQueue(consumer));
+                }
             }
         }
     }
@@ -307,8 +548,29 @@ public final class ObservationDispatcher extends EventDispatcher
                 activeConsumers.remove(consumer);
                 // reset read only listener set
                 readOnlyConsumers = null;
+                // already queued events are still delivered
+                if (consumerQueues.remove(consumer) != null) {
+                    removeCounters(consumer);
+                }
             }
         }
     }
 
+    /**
+     * Creates the daemon threads that deliver events from per-listener
+     * queues.
+     */
+    private static class NotificationThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(
+                    r, "ObservationManager-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
 }
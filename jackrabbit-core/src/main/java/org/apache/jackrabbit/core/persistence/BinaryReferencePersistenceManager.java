@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence;
+
+import org.apache.jackrabbit.core.persistence.util.BinaryReferenceIndex;
+import org.apache.jackrabbit.core.state.ItemStateException;
+
+/**
+ * A persistence manager that can keep an index of the data store records
+ * referenced by its binary properties. The data store garbage collector
+ * uses it to find unused records without reading all nodes.
+ */
+public interface BinaryReferencePersistenceManager extends PersistenceManager {
+
+    /**
+     * Returns the index of the referenced data store records. If the index
+     * is enabled but not complete yet, it is built first, which requires
+     * reading all nodes.
+     *
+     * @return the complete index, or <code>null</code> if the index is
+     *         not enabled
+     * @throws ItemStateException if the index could not be built
+     */
+    BinaryReferenceIndex getBinaryReferences() throws ItemStateException;
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+
+/**
+ * The bulk loading persistence manager can load multiple node states at
+ * once, for example with a single database query instead of one query per
+ * node. The shared item state manager uses this to prefetch the child
+ * nodes of a node that is being iterated.
+ */
+public interface BulkLoadingPersistenceManager extends PersistenceManager {
+
+    /**
+     * Loads the node states with the given ids. Node states that do not
+     * exist are not included in the returned map. The caller may not hold
+     * a read lock of the shared item state manager, so implementations must
+     * not add the loaded states to their own caches.
+     *
+     * @param ids the ids of the node states to load
+     * @return the loaded node states, keyed by id
+     * @throws ItemStateException if an error while loading occurs.
+     */
+    Map<NodeId, NodeState> load(Collection<NodeId> ids)
+            throws ItemStateException;
+
+}
@@ -20,12 +20,20 @@ import static org.apache.jackrabbit.spi.commons.name.NameConstants.JCR_MIXINTYPE
 import static org.apache.jackrabbit.spi.commons.name.NameConstants.JCR_PRIMARYTYPE;
 import static org.apache.jackrabbit.spi.commons.name.NameConstants.JCR_UUID;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
@@ -36,10 +44,13 @@ import org.apache.jackrabbit.core.cache.CacheAccessListener;
 import org.apache.jackrabbit.core.cache.ConcurrentCache;
 import org.apache.jackrabbit.core.cluster.UpdateEventChannel;
 import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.fs.FileSystemException;
 import org.apache.jackrabbit.core.fs.FileSystemResource;
 import org.apache.jackrabbit.core.id.ItemId;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.BinaryReferencePersistenceManager;
+import org.apache.jackrabbit.core.persistence.BulkLoadingPersistenceManager;
 import org.apache.jackrabbit.core.persistence.CachingPersistenceManager;
 import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
 import org.apache.jackrabbit.core.persistence.PMContext;
@@ -48,10 +59,13 @@ import org.apache.jackrabbit.core.persistence.check.ConsistencyCheckListener;
 import org.apache.jackrabbit.core.persistence.check.ConsistencyChecker;
 import org.apache.jackrabbit.core.persistence.check.ConsistencyReport;
 import org.apache.jackrabbit.core.persistence.util.BLOBStore;
+import org.apache.jackrabbit.core.persistence.util.BinaryReferenceIndex;
+import org.apache.jackrabbit.core.persistence.util.BundleBinding;
 import org.apache.jackrabbit.core.persistence.util.FileBasedIndex;
 import org.apache.jackrabbit.core.persistence.util.NodeInfo;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+import org.apache.jackrabbit.core.persistence.util.OffHeapBundleCache;
 import org.apache.jackrabbit.core.state.ChangeLog;
 import org.apache.jackrabbit.core.state.ItemState;
 import org.apache.jackrabbit.core.state.ItemStateException;
@@ -89,13 +103,31 @@ import org.slf4j.LoggerFactory;
  * because a lot of {@link #exists(NodeId)} calls are issued that would result
  * in a useless persistence lookup if the desired bundle does not exist.
  * <p>
+ * Optionally, an {@link OffHeapBundleCache} can be configured as a second
+ * level cache. It keeps serialized bundles outside of the Java heap and is
+ * consulted when a bundle is not found in the bundle cache, before loading
+ * it from the underlying system. This requires the persistence manager to
+ * provide its {@link BundleBinding} through {@link #getBundleBinding()}.
+ * <p>
+ * Optionally, a {@link BinaryReferenceIndex} of the data store records
+ * referenced by the bundles is maintained, which allows the data store
+ * garbage collector to find unused records without reading all bundles.
+ * The index is built the first time it is used, by reading all bundles
+ * while stores are blocked, and then kept up to date incrementally. In a
+ * cluster, changes of other cluster nodes invalidate the index, and the
+ * garbage collector doesn't use it but scans the bundles instead.
+ * <p>
  * Configuration:<br>
  * <ul>
  * <li>&lt;param name="{@link #setBundleCacheSize(String) bundleCacheSize}" value="8"/>
+ * <li>&lt;param name="{@link #setOffHeapBundleCacheSize(String) offHeapBundleCacheSize}" value="0"/>
+ * <li>&lt;param name="{@link #setBinaryReferenceIndex(String) binaryReferenceIndex}" value="false"/>
  * </ul>
  */
 public abstract class AbstractBundlePersistenceManager implements
-    PersistenceManager, CachingPersistenceManager, IterablePersistenceManager, CacheAccessListener, ConsistencyChecker {
+    PersistenceManager, CachingPersistenceManager, IterablePersistenceManager,
+    BulkLoadingPersistenceManager, BinaryReferencePersistenceManager,
+    CacheAccessListener, ConsistencyChecker {
 
     /** the audit logger */
     private static Logger auditLogger = LoggerFactory.getLogger("org.apache.jackrabbit.core.audit");
@@ -127,6 +159,9 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     private static final long MISSING_SIZE_ESTIMATE = 128;
 
+    /** number of bundles read at once when building the binary reference index */
+    private static final int BINARY_REFERENCES_BATCH_SIZE = 1024;
+
     /** the index for namespaces */
     private StringIndex nsIndex;
 
@@ -136,6 +171,35 @@ public abstract class AbstractBundlePersistenceManager implements
     /** the cache of loaded bundles */
     private ConcurrentCache<NodeId, NodePropBundle> bundles;
 
+    /** the optional off-heap cache of serialized bundles */
+    private OffHeapBundleCache offHeapBundles;
+
+    /** the optional index of the referenced data store records */
+    private BinaryReferenceIndex binaryReferences;
+
+    /**
+     * Blocks stores while the binary reference index is built. Stores
+     * hold the read lock, building the index holds the write lock.
+     */
+    private final ReadWriteLock binaryReferencesLock =
+        new ReentrantReadWriteLock();
+
+    /**
+     * References removed by the change log that is being stored by the
+     * current thread. They are removed from the index once the store is
+     * complete.
+     */
+    private final ThreadLocal<List<String>> removedReferences =
+        new ThreadLocal<List<String>>();
+
+    /**
+     * References added by the last attempt to store the current change log
+     * of the current thread. If the change log is stored again, they are
+     * replaced by the references of the new attempt.
+     */
+    private final ThreadLocal<List<String>> addedReferences =
+        new ThreadLocal<List<String>>();
+
     /** The default minimum stats logging interval (in ms). */
     private static final int DEFAULT_LOG_STATS_INTERVAL = 60 * 1000;
 
@@ -154,6 +218,12 @@ public abstract class AbstractBundlePersistenceManager implements
     /** default size of the bundle cache */
     private long bundleCacheSize = 8 * 1024 * 1024;
 
+    /** size of the off-heap bundle cache, disabled by default */
+    private long offHeapBundleCacheSize = 0;
+
+    /** whether the binary reference index is maintained */
+    private boolean binaryReferenceIndex = false;
+
     /** Counter of read operations. */
     private AtomicLong readCounter;
 
@@ -175,6 +245,15 @@ public abstract class AbstractBundlePersistenceManager implements
     /** Counter of bundle cache size. */
     private AtomicLong cacheSizeCounter;
 
+    /** Counter of off-heap bundle cache hits. */
+    private AtomicLong offHeapHitCounter;
+
+    /** Counter of off-heap bundle cache misses. */
+    private AtomicLong offHeapMissCounter;
+
+    /** Counter of off-heap bundle cache evictions. */
+    private AtomicLong offHeapEvictionCounter;
+
     /** The update event channel to use by the consistency checker when fixing inconsistencies */
     private UpdateEventChannel eventChannel;
 
@@ -196,6 +275,48 @@ public abstract class AbstractBundlePersistenceManager implements
         this.bundleCacheSize = Long.parseLong(bundleCacheSize) * 1024 * 1024;
     }
 
+    /**
+     * Returns the size of the off-heap bundle cache in megabytes.
+     * @return the size of the off-heap bundle cache in megabytes.
+     */
+    public String getOffHeapBundleCacheSize() {
+        return String.valueOf(offHeapBundleCacheSize / (1024 * 1024));
+    }
+
+    /**
+     * Sets the size of the off-heap bundle cache in megabytes. The default
+     * is 0, which disables the off-heap cache. The memory is allocated as
+     * direct buffers, so the <code>-XX:MaxDirectMemorySize</code> JVM option
+     * must be at least as large.
+     *
+     * @param offHeapBundleCacheSize the off-heap cache size in megabytes.
+     */
+    public void setOffHeapBundleCacheSize(String offHeapBundleCacheSize) {
+        this.offHeapBundleCacheSize =
+            Long.parseLong(offHeapBundleCacheSize) * 1024 * 1024;
+    }
+
+    /**
+     * Returns whether the binary reference index is maintained.
+     * @return "true" if the index is enabled
+     */
+    public String getBinaryReferenceIndex() {
+        return Boolean.toString(binaryReferenceIndex);
+    }
+
+    /**
+     * Defines whether an index of the data store records referenced by the
+     * bundles is maintained, for use by the data store garbage collector.
+     * The default is false. Disabling the index deletes it, so that an
+     * outdated index is never used.
+     *
+     * @param binaryReferenceIndex "true" to enable the index
+     */
+    public void setBinaryReferenceIndex(String binaryReferenceIndex) {
+        this.binaryReferenceIndex =
+            Boolean.valueOf(binaryReferenceIndex).booleanValue();
+    }
+
     /**
      * Creates the folder path for the given node id that is suitable for
      * storing states in a filesystem.
@@ -350,15 +471,23 @@ public abstract class AbstractBundlePersistenceManager implements
      * {@inheritDoc}
      */
     public synchronized void onExternalUpdate(ChangeLog changes) {
+        if (binaryReferences != null && binaryReferences.isComplete()) {
+            // the index can't track the changes of other cluster nodes
+            try {
+                binaryReferences.invalidate();
+            } catch (FileSystemException e) {
+                log.warn("Unable to delete the binary reference index", e);
+            }
+        }
         for (ItemState state : changes.modifiedStates()) {
-            bundles.remove(getBundleId(state));
+            evictBundle(getBundleId(state));
         }
         for (ItemState state : changes.deletedStates()) {
-            bundles.remove(getBundleId(state));
+            evictBundle(getBundleId(state));
         }
         for (ItemState state : changes.addedStates()) {
             // There may have been a cache miss entry
-            bundles.remove(getBundleId(state));
+            evictBundle(getBundleId(state));
         }
     }
 
@@ -382,6 +511,75 @@ public abstract class AbstractBundlePersistenceManager implements
         return infos;
     }
 
+    //----------------------------------< BinaryReferencePersistenceManager >--
+
+    /**
+     * {@inheritDoc}
+     *
+     * Building the index blocks all stores until all bundles are read.
+     */
+    public BinaryReferenceIndex getBinaryReferences()
+            throws ItemStateException {
+        BinaryReferenceIndex index = binaryReferences;
+        if (index != null && !index.isComplete()) {
+            binaryReferencesLock.writeLock().lock();
+            try {
+                if (!index.isComplete()) {
+                    buildBinaryReferences(index);
+                }
+            } finally {
+                binaryReferencesLock.writeLock().unlock();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Builds the binary reference index by reading all bundles.
+     *
+     * @param index the index to build
+     * @throws ItemStateException if the bundles could not be read, or the
+     *                            index could not be written
+     */
+    private void buildBinaryReferences(BinaryReferenceIndex index)
+            throws ItemStateException {
+        long time = System.currentTimeMillis();
+        int count = 0;
+        long references = 0;
+        boolean success = false;
+        try {
+            index.startBuild();
+            List<NodeId> ids = getAllNodeIds(null, BINARY_REFERENCES_BATCH_SIZE);
+            while (!ids.isEmpty()) {
+                List<String> identifiers = new ArrayList<String>();
+                for (NodePropBundle bundle : loadBundles(ids).values()) {
+                    BinaryReferenceIndex.addDataIdentifiers(bundle, identifiers);
+                }
+                index.addReferences(identifiers);
+                references += identifiers.size();
+                count += ids.size();
+                ids = getAllNodeIds(
+                        ids.get(ids.size() - 1), BINARY_REFERENCES_BATCH_SIZE);
+            }
+            index.finishBuild();
+            success = true;
+        } catch (RepositoryException e) {
+            throw new ItemStateException(
+                    "Unable to build the binary reference index", e);
+        } catch (FileSystemException e) {
+            throw new ItemStateException(
+                    "Unable to build the binary reference index", e);
+        } finally {
+            if (!success) {
+                index.cancelBuild();
+            }
+        }
+        log.info("Built the binary reference index of " + context.getHomeDir()
+                + " from " + count + " bundles in "
+                + (System.currentTimeMillis() - time) + " ms, "
+                + references + " references to data store records");
+    }
+
     //----------------------------------------------------------------< spi >---
 
     /**
@@ -395,6 +593,30 @@ public abstract class AbstractBundlePersistenceManager implements
     protected abstract NodePropBundle loadBundle(NodeId id)
             throws ItemStateException;
 
+    /**
+     * Loads the bundles with the given ids from the underlying system. The
+     * default implementation calls {@link #loadBundle(NodeId)} for each id.
+     * Subclasses that can load multiple bundles in a single round trip
+     * should override this method.
+     *
+     * @param ids the node ids of the bundles
+     * @return the loaded bundles, keyed by node id. Bundles that do not
+     *         exist are not included.
+     * @throws ItemStateException if an error while loading occurs.
+     */
+    protected Map<NodeId, NodePropBundle> loadBundles(Collection<NodeId> ids)
+            throws ItemStateException {
+        Map<NodeId, NodePropBundle> result =
+            new HashMap<NodeId, NodePropBundle>(ids.size());
+        for (NodeId id : ids) {
+            NodePropBundle bundle = loadBundle(id);
+            if (bundle != null) {
+                result.put(id, bundle);
+            }
+        }
+        return result;
+    }
+
     /**
      * Stores a bundle to the underlying system.
      *
@@ -439,6 +661,18 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     protected abstract BLOBStore getBlobStore();
 
+    /**
+     * Returns the binding used to serialize bundles. The off-heap bundle
+     * cache uses it to convert bundles to bytes and back. The default
+     * implementation returns <code>null</code>, which disables the
+     * off-heap cache.
+     *
+     * @return bundle binding, or <code>null</code>
+     */
+    protected BundleBinding getBundleBinding() {
+        return null;
+    }
+
     //-------------------------------------------------< PersistenceManager >---
 
     /**
@@ -453,6 +687,13 @@ public abstract class AbstractBundlePersistenceManager implements
         bundles.setMaxMemorySize(bundleCacheSize);
         bundles.setAccessListener(this);
 
+        // init the optional off-heap bundle cache
+        if (offHeapBundleCacheSize > 0) {
+            offHeapBundles = new OffHeapBundleCache(
+                    context.getHomeDir().getName() + "OffHeapBundleCache",
+                    offHeapBundleCacheSize);
+        }
+
         // statistics
         RepositoryStatisticsImpl stats = context.getRepositoryStatistics();
         readCounter = stats.getCounter(
@@ -469,6 +710,23 @@ public abstract class AbstractBundlePersistenceManager implements
                 RepositoryStatistics.Type.BUNDLE_CACHE_MISS_COUNTER);
         cacheMissDuration = stats.getCounter(
                 RepositoryStatistics.Type.BUNDLE_CACHE_MISS_DURATION);
+        offHeapHitCounter = stats.getCounter(
+                RepositoryStatistics.Type.BUNDLE_OFFHEAP_CACHE_HIT_COUNTER);
+        offHeapMissCounter = stats.getCounter(
+                RepositoryStatistics.Type.BUNDLE_OFFHEAP_CACHE_MISS_COUNTER);
+        offHeapEvictionCounter = stats.getCounter(
+                RepositoryStatistics.Type.BUNDLE_OFFHEAP_CACHE_EVICTION_COUNTER);
+
+        // load the binary reference index, or delete an outdated one
+        if (binaryReferenceIndex) {
+            binaryReferences = new BinaryReferenceIndex(context.getFileSystem());
+            if (!binaryReferences.load()) {
+                log.info("The binary reference index of " + context.getHomeDir()
+                        + " will be built on first use");
+            }
+        } else {
+            BinaryReferenceIndex.delete(context.getFileSystem());
+        }
     }
 
     /**
@@ -479,6 +737,11 @@ public abstract class AbstractBundlePersistenceManager implements
     public void close() throws Exception {
         // clear caches
         bundles.clear();
+        if (offHeapBundles != null) {
+            offHeapBundles.clear();
+            offHeapBundles = null;
+        }
+        binaryReferences = null;
     }
 
     /**
@@ -494,6 +757,48 @@ public abstract class AbstractBundlePersistenceManager implements
         return bundle.createNodeState(this);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Bundles that are neither in the bundle cache nor in the off-heap
+     * cache are loaded with a single call to {@link #loadBundles(Collection)}.
+     * The caches are not updated, since a concurrent store could make the
+     * loaded bundles stale before they are cached.
+     */
+    public Map<NodeId, NodeState> load(Collection<NodeId> ids)
+            throws ItemStateException {
+        Map<NodeId, NodeState> states =
+            new HashMap<NodeId, NodeState>(ids.size());
+        List<NodeId> missing = new ArrayList<NodeId>();
+        for (NodeId id : ids) {
+            NodePropBundle bundle = bundles.get(id);
+            readCounter.incrementAndGet();
+            if (bundle == null) {
+                bundle = getOffHeapBundle(id);
+                if (bundle == null) {
+                    missing.add(id);
+                    continue;
+                }
+                cacheMissCounter.incrementAndGet();
+            }
+            if (bundle != MISSING) {
+                states.put(id, bundle.createNodeState(this));
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            long time = System.nanoTime();
+            log.debug("Loading {} bundles", missing.size());
+            Map<NodeId, NodePropBundle> loaded = loadBundles(missing);
+            cacheMissDuration.addAndGet(System.nanoTime() - time);
+            cacheMissCounter.addAndGet(missing.size());
+            for (NodePropBundle bundle : loaded.values()) {
+                states.put(bundle.getId(), bundle.createNodeState(this));
+            }
+        }
+        return states;
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -586,7 +891,72 @@ public abstract class AbstractBundlePersistenceManager implements
      *
      * {@inheritDoc}
      */
-    public synchronized void store(ChangeLog changeLog)
+    public void store(ChangeLog changeLog) throws ItemStateException {
+        beginStore();
+        boolean success = false;
+        try {
+            synchronized (this) {
+                storeChanges(changeLog);
+            }
+            success = true;
+        } finally {
+            endStore(success);
+        }
+    }
+
+    /**
+     * Must be called by the current thread before storing a change log,
+     * without synchronizing on this persistence manager. Blocks while the
+     * binary reference index is being built.
+     */
+    protected void beginStore() {
+        if (binaryReferences != null) {
+            binaryReferencesLock.readLock().lock();
+        }
+    }
+
+    /**
+     * Must be called by the current thread once the change log is stored,
+     * or storing it failed, after {@link #beginStore()}. Applies the
+     * binary references removed by the change log to the index, if the
+     * changes are persisted.
+     *
+     * @param success whether the change log was stored successfully
+     */
+    protected void endStore(boolean success) {
+        if (binaryReferences != null) {
+            List<String> removed = removedReferences.get();
+            removedReferences.remove();
+            addedReferences.remove();
+            try {
+                if (success && removed != null) {
+                    binaryReferences.removeReferences(removed);
+                }
+            } catch (FileSystemException e) {
+                // the index only keeps some unused records alive
+                log.warn("Unable to update the binary reference index", e);
+            } finally {
+                binaryReferencesLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Stores the given changelog without synchronizing on this persistence
+     * manager. Subclasses that allow concurrent saves call this method
+     * directly, and must make sure that change logs which touch the same
+     * bundles or node references are not stored concurrently. The calls
+     * must be enclosed by {@link #beginStore()} and
+     * {@link #endStore(boolean)}. The same change log may be stored more
+     * than once, for example to retry a failed transaction, if the changes
+     * of the failed attempt are not persisted; only the last attempt
+     * counts.
+     * If storing fails, the bundle caches are cleared.
+     *
+     * @param changeLog the changelog to store
+     * @throws ItemStateException on failure
+     */
+    protected void storeChanges(ChangeLog changeLog)
             throws ItemStateException {
         boolean success = false;
         try {
@@ -595,6 +965,9 @@ public abstract class AbstractBundlePersistenceManager implements
         } finally {
             if (!success) {
                 bundles.clear();
+                if (offHeapBundles != null) {
+                    offHeapBundles.clear();
+                }
             }
         }
     }
@@ -607,6 +980,15 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     private void storeInternal(ChangeLog changeLog)
             throws ItemStateException {
+        removedReferences.remove();
+        // data identifiers referenced by the bundles before the changes
+        Map<NodeId, List<String>> oldReferences = null;
+        List<String> removed = null;
+        if (binaryReferences != null && binaryReferences.isComplete()) {
+            oldReferences = new HashMap<NodeId, List<String>>();
+            removed = new ArrayList<String>();
+        }
+
         // delete bundles
         HashSet<ItemId> deleted = new HashSet<ItemId>();
         for (ItemState state : changeLog.deletedStates()) {
@@ -615,6 +997,9 @@ public abstract class AbstractBundlePersistenceManager implements
                 if (bundle == null) {
                     throw new NoSuchItemStateException(state.getId().toString());
                 }
+                if (removed != null) {
+                    BinaryReferenceIndex.addDataIdentifiers(bundle, removed);
+                }
                 deleteBundle(bundle);
                 deleted.add(state.getId());
             }
@@ -638,6 +1023,7 @@ public abstract class AbstractBundlePersistenceManager implements
                         throw new NoSuchItemStateException(nodeId.toString());
                     }
                     modified.put(nodeId, bundle);
+                    rememberReferences(bundle, oldReferences);
                 }
                 bundle.update((NodeState) state);
             } else {
@@ -656,6 +1042,7 @@ public abstract class AbstractBundlePersistenceManager implements
                         throw new NoSuchItemStateException(nodeId.toString());
                     }
                     modified.put(nodeId, bundle);
+                    rememberReferences(bundle, oldReferences);
                 }
                 bundle.addProperty((PropertyState) state, getBlobStore());
             }
@@ -681,6 +1068,7 @@ public abstract class AbstractBundlePersistenceManager implements
                             throw new NoSuchItemStateException(nodeId.toString());
                         }
                         modified.put(nodeId, bundle);
+                        rememberReferences(bundle, oldReferences);
                     }
                     bundle.removeProperty(id.getName(), getBlobStore());
                 }
@@ -706,11 +1094,48 @@ public abstract class AbstractBundlePersistenceManager implements
                         throw new NoSuchItemStateException(nodeId.toString());
                     }
                     modified.put(nodeId, bundle);
+                    rememberReferences(bundle, oldReferences);
                 }
                 bundle.addProperty((PropertyState) state, getBlobStore());
             }
         }
 
+        // record the added references before storing the bundles, so that
+        // the index never misses a reference
+        if (removed != null) {
+            List<String> added = new ArrayList<String>();
+            for (NodePropBundle bundle : modified.values()) {
+                List<String> identifiers = new ArrayList<String>();
+                BinaryReferenceIndex.addDataIdentifiers(bundle, identifiers);
+                List<String> old = oldReferences.get(bundle.getId());
+                if (old != null) {
+                    List<String> unchanged = new ArrayList<String>(old);
+                    for (String identifier : identifiers) {
+                        if (!unchanged.remove(identifier)) {
+                            added.add(identifier);
+                        }
+                    }
+                    removed.addAll(unchanged);
+                } else {
+                    added.addAll(identifiers);
+                }
+            }
+            try {
+                binaryReferences.addReferences(added);
+                // the previous attempt was not persisted; its references
+                // are removed only now, so that no reference is missing
+                List<String> previous = addedReferences.get();
+                addedReferences.set(added);
+                if (previous != null) {
+                    binaryReferences.removeReferences(previous);
+                }
+            } catch (FileSystemException e) {
+                throw new ItemStateException(
+                        "Unable to update the binary reference index", e);
+            }
+            removedReferences.set(removed);
+        }
+
         // now store all modified bundles
         long updateSize = 0;
         for (NodePropBundle bundle : modified.values()) {
@@ -729,6 +1154,24 @@ public abstract class AbstractBundlePersistenceManager implements
         }
     }
 
+    /**
+     * Remembers the data identifiers referenced by the given bundle before
+     * it is modified.
+     *
+     * @param bundle the bundle
+     * @param oldReferences the map of remembered identifiers, or
+     *                      <code>null</code> if the binary reference index
+     *                      is not maintained
+     */
+    private static void rememberReferences(
+            NodePropBundle bundle, Map<NodeId, List<String>> oldReferences) {
+        if (oldReferences != null) {
+            List<String> identifiers = new ArrayList<String>();
+            BinaryReferenceIndex.addDataIdentifiers(bundle, identifiers);
+            oldReferences.put(bundle.getId(), identifiers);
+        }
+    }
+
     /**
      * Gets the bundle for the given node id. Read/write synchronization
      * happens higher up at the SISM level, so we don't need to worry about
@@ -765,17 +1208,88 @@ public abstract class AbstractBundlePersistenceManager implements
     private NodePropBundle getBundleCacheMiss(NodeId id)
             throws ItemStateException {
         long time = System.nanoTime();
-        log.debug("Loading bundle {}", id);
-        NodePropBundle bundle = loadBundle(id);
+        NodePropBundle bundle = getOffHeapBundle(id);
+        if (bundle == null) {
+            log.debug("Loading bundle {}", id);
+            bundle = loadBundle(id);
+            if (bundle != null) {
+                putOffHeapBundle(bundle);
+            }
+        }
         cacheMissDuration.addAndGet(System.nanoTime() - time);
         cacheMissCounter.incrementAndGet();
+        cacheBundle(id, bundle);
+        return bundle;
+    }
+
+    /**
+     * Adds a bundle that was loaded after a cache miss to the bundle cache.
+     *
+     * @param id the id of the bundle
+     * @param bundle the loaded bundle, or <code>null</code> if the bundle
+     *               does not exist
+     */
+    private void cacheBundle(NodeId id, NodePropBundle bundle) {
         if (bundle != null) {
             bundle.markOld();
             bundles.put(id, bundle, bundle.getSize());
         } else {
             bundles.put(id, MISSING, MISSING_SIZE_ESTIMATE);
         }
-        return bundle;
+    }
+
+    /**
+     * Looks up the given bundle in the off-heap cache, if one is configured.
+     *
+     * @param id the id of the bundle
+     * @return the deserialized bundle, or <code>null</code> if not cached
+     */
+    private NodePropBundle getOffHeapBundle(NodeId id) {
+        BundleBinding binding = getBundleBinding();
+        if (offHeapBundles == null || binding == null) {
+            return null;
+        }
+        byte[] data = offHeapBundles.get(id);
+        if (data == null) {
+            offHeapMissCounter.incrementAndGet();
+            return null;
+        }
+        try {
+            NodePropBundle bundle =
+                binding.readBundle(new ByteArrayInputStream(data), id);
+            offHeapHitCounter.incrementAndGet();
+            return bundle;
+        } catch (IOException e) {
+            log.warn("Unable to read bundle " + id
+                    + " from the off-heap cache", e);
+            offHeapBundles.remove(id);
+            offHeapMissCounter.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Adds the serialized form of the given bundle to the off-heap cache,
+     * if one is configured.
+     *
+     * @param bundle the bundle to cache
+     */
+    private void putOffHeapBundle(NodePropBundle bundle) {
+        BundleBinding binding = getBundleBinding();
+        if (offHeapBundles == null || binding == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    (int) Math.min(bundle.getSize(), Integer.MAX_VALUE));
+            binding.writeBundle(out, bundle);
+            offHeapEvictionCounter.addAndGet(
+                    offHeapBundles.put(bundle.getId(), out.toByteArray()));
+        } catch (IOException e) {
+            log.warn("Unable to add bundle " + bundle.getId()
+                    + " to the off-heap cache", e);
+            offHeapBundles.remove(bundle.getId());
+        }
     }
 
     /**
@@ -788,6 +1302,9 @@ public abstract class AbstractBundlePersistenceManager implements
         destroyBundle(bundle);
         bundle.removeAllProperties(getBlobStore());
         bundles.put(bundle.getId(), MISSING, MISSING_SIZE_ESTIMATE);
+        if (offHeapBundles != null) {
+            offHeapBundles.remove(bundle.getId());
+        }
     }
 
     /**
@@ -808,6 +1325,11 @@ public abstract class AbstractBundlePersistenceManager implements
 
         bundle.markOld();
 
+        // the serialized form is stale now, it gets re-added on the next miss
+        if (offHeapBundles != null) {
+            offHeapBundles.remove(bundle.getId());
+        }
+
         // only put to cache if already exists. this is to ensure proper
         // overwrite and not creating big contention during bulk loads
         if (bundles.containsKey(bundle.getId())) {
@@ -857,6 +1379,9 @@ public abstract class AbstractBundlePersistenceManager implements
      */
     protected void evictBundle(NodeId id) {
         bundles.remove(id);
+        if (offHeapBundles != null) {
+            offHeapBundles.remove(id);
+        }
     }
 
     public void cacheAccessed(long accessCount) {
@@ -872,6 +1397,12 @@ public abstract class AbstractBundlePersistenceManager implements
                 return;
             }
             log.info(bundles.getCacheInfoAsString());
+            if (offHeapBundles != null) {
+                log.info("cachename=" + offHeapBundles
+                        + ", elements=" + offHeapBundles.getElementCount()
+                        + ", usedmemorykb="
+                        + offHeapBundles.getMemoryUsed() / 1024);
+            }
             nextLogStats = now + minLogStatsInterval;
         }
     }
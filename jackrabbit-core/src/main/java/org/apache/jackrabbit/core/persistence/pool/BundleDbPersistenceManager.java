@@ -26,9 +26,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jcr.RepositoryException;
 import javax.sql.DataSource;
@@ -49,6 +54,7 @@ import org.apache.jackrabbit.core.persistence.util.NodeInfo;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
 import org.apache.jackrabbit.core.persistence.util.Serializer;
 import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
 import org.apache.jackrabbit.core.state.NodeReferences;
@@ -69,6 +75,7 @@ import org.slf4j.LoggerFactory;
  * Configuration:<br>
  * <ul>
  * <li>&lt;param name="{@link #setBundleCacheSize(String) bundleCacheSize}" value="8"/>
+ * <li>&lt;param name="{@link #setOffHeapBundleCacheSize(String) offHeapBundleCacheSize}" value="0"/>
  * <li>&lt;param name="{@link #setConsistencyCheck(String) consistencyCheck}" value="false"/>
  * <li>&lt;param name="{@link #setConsistencyFix(String) consistencyFix}" value="false"/>
  * <li>&lt;param name="{@link #setMinBlobSize(String) minBlobSize}" value="4096"/>
@@ -81,6 +88,8 @@ import org.slf4j.LoggerFactory;
  * <li>&lt;param name="{@link #setErrorHandling(String) errorHandling}" value=""/>
  * <li>&lt;param name="{@link #setBlockOnConnectionLoss(String) blockOnConnectionLoss}" value="false"/>
  * <li>&lt;param name="{@link #setSchemaCheckEnabled(String) schemaCheckEnabled}" value="true"/>
+ * <li>&lt;param name="{@link #setConcurrentStore(String) concurrentStore}" value="false"/>
+ * <li>&lt;param name="{@link #setBatchSize(String) batchSize}" value="0"/>
  * </ul>
  */
 public class BundleDbPersistenceManager
@@ -128,6 +137,12 @@ public class BundleDbPersistenceManager
     /** flag indicating if the consistency check should attempt to fix issues */
     protected boolean consistencyFix;
 
+    /**
+     * maximum number of bundles that are loaded with a single query by
+     * {@link #loadBundles(Collection)}
+     */
+    protected static final int BULK_LOAD_SIZE = 100;
+
     /** initial size of buffer used to serialize objects */
     protected static final int INITIAL_BUFFER_SIZE = 1024;
 
@@ -137,10 +152,44 @@ public class BundleDbPersistenceManager
     /** indicates whether to block if the database connection is lost */
     protected boolean blockOnConnectionLoss;
 
+    /** indicates whether disjoint change logs may be stored concurrently */
+    protected boolean concurrentStore;
+
+    /**
+     * maximum number of bundle and node reference statements that are sent
+     * to the database in a single JDBC batch, 0 disables batching
+     */
+    protected int batchSize;
+
+    /**
+     * The statements of the change log that is currently being stored by
+     * this thread, or <code>null</code> if batching is disabled.
+     */
+    private final ThreadLocal<StatementBatch> pendingStatements =
+        new ThreadLocal<StatementBatch>();
+
+    /** number of lock stripes used when storing concurrently */
+    private static final int STORE_LOCK_STRIPES = 1024;
+
+    /**
+     * Striped locks that serialize concurrent stores of change logs which
+     * touch the same bundles or node references. Locks are always acquired
+     * in ascending index order to avoid deadlocks.
+     */
+    private final ReentrantLock[] storeLocks =
+        new ReentrantLock[STORE_LOCK_STRIPES];
+
+    {
+        for (int i = 0; i < storeLocks.length; i++) {
+            storeLocks[i] = new ReentrantLock();
+        }
+    }
+
     // SQL statements for bundle management
     protected String bundleInsertSQL;
     protected String bundleUpdateSQL;
     protected String bundleSelectSQL;
+    protected String bundleSelectMultipleSQL;
     protected String bundleDeleteSQL;
     protected String bundleSelectAllIdsFromSQL;
     protected String bundleSelectAllIdsSQL;
@@ -435,6 +484,47 @@ public class BundleDbPersistenceManager
         return Boolean.toString(blockOnConnectionLoss);
     }
 
+    /**
+     * Checks whether disjoint change logs are stored concurrently.
+     * @return <code>true</code> if concurrent stores are enabled.
+     */
+    public String getConcurrentStore() {
+        return Boolean.toString(concurrentStore);
+    }
+
+    /**
+     * Defines whether change logs that do not touch the same bundles or
+     * node references may be stored concurrently, each in its own
+     * transaction on a separate pooled connection. By default all change
+     * logs are stored sequentially.
+     *
+     * @param concurrentStore the concurrent store flag.
+     */
+    public void setConcurrentStore(String concurrentStore) {
+        this.concurrentStore = Boolean.valueOf(concurrentStore).booleanValue();
+    }
+
+    /**
+     * Returns the maximum number of statements per JDBC batch.
+     * @return the batch size, 0 if batching is disabled.
+     */
+    public String getBatchSize() {
+        return Integer.toString(batchSize);
+    }
+
+    /**
+     * Sets the maximum number of bundle and node reference writes that are
+     * sent to the database in a single JDBC batch when a change log is
+     * stored. Large change logs, for example from an import, are then
+     * written in a few round trips instead of one per bundle. The default
+     * is 0, which writes each bundle with a separate statement.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(String batchSize) {
+        this.batchSize = Integer.parseInt(batchSize);
+    }
+
     /**
      * Returns <code>true</code> if the blobs are stored in the DB.
      * @return <code>true</code> if the blobs are stored in the DB.
@@ -468,19 +558,100 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      *
-     * Basically wraps a JDBC transaction around super.store().
-     * 
+     * Basically wraps a JDBC transaction around super.store(). If
+     * {@link #setConcurrentStore(String) concurrent stores} are enabled,
+     * only change logs that touch the same bundles or node references are
+     * serialized, otherwise all change logs are stored sequentially.
+     */
+    public void store(final ChangeLog changeLog) throws ItemStateException {
+        beginStore();
+        boolean success = false;
+        try {
+            if (!concurrentStore) {
+                synchronized (this) {
+                    storeInTransaction(changeLog);
+                }
+            } else {
+                BitSet stripes = getStoreLockStripes(changeLog);
+                int locked = -1;
+                try {
+                    for (int i = stripes.nextSetBit(0); i >= 0;
+                            i = stripes.nextSetBit(i + 1)) {
+                        storeLocks[i].lock();
+                        locked = i;
+                    }
+                    storeInTransaction(changeLog);
+                } finally {
+                    for (int i = stripes.nextSetBit(0); i >= 0 && i <= locked;
+                            i = stripes.nextSetBit(i + 1)) {
+                        storeLocks[i].unlock();
+                    }
+                }
+            }
+            success = true;
+        } finally {
+            endStore(success);
+        }
+    }
+
+    /**
+     * Returns the lock stripes of all bundles and node references that
+     * are written when storing the given change log.
+     *
+     * @param changeLog the change log
+     * @return lock stripe indexes
+     */
+    private BitSet getStoreLockStripes(ChangeLog changeLog) {
+        BitSet stripes = new BitSet(STORE_LOCK_STRIPES);
+        for (ItemState state : changeLog.addedStates()) {
+            stripes.set(getStoreLockStripe(getBundleId(state)));
+        }
+        for (ItemState state : changeLog.modifiedStates()) {
+            stripes.set(getStoreLockStripe(getBundleId(state)));
+        }
+        for (ItemState state : changeLog.deletedStates()) {
+            stripes.set(getStoreLockStripe(getBundleId(state)));
+        }
+        for (NodeReferences refs : changeLog.modifiedRefs()) {
+            stripes.set(getStoreLockStripe(refs.getTargetId()));
+        }
+        return stripes;
+    }
+
+    private static int getStoreLockStripe(NodeId id) {
+        return (id.hashCode() >>> 1) % STORE_LOCK_STRIPES;
+    }
+
+    private static NodeId getBundleId(ItemState state) {
+        if (state.isNode()) {
+            return (NodeId) state.getId();
+        } else {
+            return state.getParentId();
+        }
+    }
+
+    /**
+     * Stores the change log in a single JDBC transaction, retrying once
+     * or until interrupted, depending on {@link #blockOnConnectionLoss}.
+     *
      * FIXME: the retry logic is almost a duplicate of {@code ConnectionHelper.RetryManager}.
+     *
+     * @param changeLog the change log to store
+     * @throws ItemStateException if the change log could not be stored
      */
-    public synchronized void store(final ChangeLog changeLog) throws ItemStateException {
+    private void storeInTransaction(ChangeLog changeLog)
+            throws ItemStateException {
         int failures = 0;
         ItemStateException lastException = null;
         boolean sleepInterrupted = false;
         while (!sleepInterrupted && (blockOnConnectionLoss || failures <= 1)) {
+            boolean committed = false;
+            startNameIndexTransaction();
             try {
                 conHelper.startBatch();
-                super.store(changeLog);
+                storeChangesInBatches(changeLog);
                 conHelper.endBatch(true);
+                committed = true;
                 return;
             } catch (SQLException e) {
                 // Either startBatch or stopBatch threw it: either way the
@@ -498,6 +669,8 @@ public class BundleDbPersistenceManager
                 // if we got here due to a constraint violation and we
                 // are running in test mode, we really want to stop
                 assert !isIntegrityConstraintViolation(e.getCause());
+            } finally {
+                endNameIndexTransaction(committed);
             }
             failures++;
             log.error("Failed to persist ChangeLog (stacktrace on DEBUG log level), blockOnConnectionLoss = "
@@ -516,6 +689,108 @@ public class BundleDbPersistenceManager
         throw lastException;
     }
 
+    /**
+     * Makes the name index keep the names of the current thread's transaction
+     * to itself, since they are rolled back with the transaction.
+     */
+    private void startNameIndexTransaction() {
+        if (nameIndex instanceof DbNameIndex) {
+            ((DbNameIndex) nameIndex).startTransaction();
+        }
+    }
+
+    /**
+     * Publishes or discards the names of the current thread's transaction.
+     *
+     * @param committed <code>true</code> if the transaction was committed.
+     */
+    private void endNameIndexTransaction(boolean committed) {
+        if (nameIndex instanceof DbNameIndex) {
+            ((DbNameIndex) nameIndex).endTransaction(committed);
+        }
+    }
+
+    /**
+     * Stores the change log, collecting the bundle and node reference
+     * writes in JDBC batches if a {@link #setBatchSize(String) batch size}
+     * is configured.
+     *
+     * @param changeLog the change log to store
+     * @throws ItemStateException if the change log could not be stored
+     */
+    private void storeChangesInBatches(ChangeLog changeLog)
+            throws ItemStateException {
+        if (batchSize <= 0) {
+            storeChanges(changeLog);
+            return;
+        }
+
+        StatementBatch batch = new StatementBatch();
+        pendingStatements.set(batch);
+        try {
+            storeChanges(changeLog);
+            batch.execute();
+        } catch (SQLException e) {
+            String msg = "failed to write batched statements";
+            log.error(msg, e);
+            throw new ItemStateException(msg, e);
+        } finally {
+            pendingStatements.remove();
+        }
+    }
+
+    /**
+     * Executes the given update statement, or adds it to the pending JDBC
+     * batch of the current thread.
+     *
+     * @param sql the SQL statement
+     * @param params the statement parameters
+     * @throws SQLException if the statement (or the batch) failed
+     */
+    private void update(String sql, Object[] params) throws SQLException {
+        StatementBatch batch = pendingStatements.get();
+        if (batch != null) {
+            batch.add(sql, params);
+        } else {
+            conHelper.update(sql, params);
+        }
+    }
+
+    /**
+     * The pending write statements of a change log, grouped by SQL
+     * statement. The groups are executed in the order in which they were
+     * first used, so that for example deletes are executed before inserts.
+     */
+    private class StatementBatch {
+
+        private final Map<String, List<Object[]>> statements =
+            new LinkedHashMap<String, List<Object[]>>();
+
+        private int size;
+
+        public void add(String sql, Object[] params) throws SQLException {
+            List<Object[]> list = statements.get(sql);
+            if (list == null) {
+                list = new ArrayList<Object[]>();
+                statements.put(sql, list);
+            }
+            list.add(params);
+            if (++size >= batchSize) {
+                execute();
+            }
+        }
+
+        public void execute() throws SQLException {
+            for (Map.Entry<String, List<Object[]>> entry
+                    : statements.entrySet()) {
+                conHelper.updateBatch(entry.getKey(), entry.getValue());
+            }
+            statements.clear();
+            size = 0;
+        }
+
+    }
+
     private boolean isIntegrityConstraintViolation(Throwable t) {
         if (t instanceof SQLException) {
             String state = ((SQLException) t).getSQLState();
@@ -612,6 +887,14 @@ public class BundleDbPersistenceManager
         return blobStore;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BundleBinding getBundleBinding() {
+        return binding;
+    }
+
     /**
      * Creates a suitable blobstore
      * @return a blobstore
@@ -903,6 +1186,69 @@ public class BundleDbPersistenceManager
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The bundles are loaded in chunks of {@link #BULK_LOAD_SIZE} bundles,
+     * with one query per chunk.
+     */
+    @Override
+    protected Map<NodeId, NodePropBundle> loadBundles(Collection<NodeId> ids)
+            throws ItemStateException {
+        Map<NodeId, NodePropBundle> result =
+            new HashMap<NodeId, NodePropBundle>(ids.size());
+        List<NodeId> list = new ArrayList<NodeId>(ids);
+        for (int i = 0; i < list.size(); i += BULK_LOAD_SIZE) {
+            List<NodeId> chunk =
+                list.subList(i, Math.min(i + BULK_LOAD_SIZE, list.size()));
+            try {
+                loadBundles(chunk, result);
+            } catch (SQLException e) {
+                String msg = "failed to read bundles (stacktrace on DEBUG log level): " + e;
+                log.error(msg);
+                log.debug("failed to read bundles", e);
+                throw new ItemStateException(msg, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads up to {@link #BULK_LOAD_SIZE} bundles with a single query. The
+     * parameter list is always padded to the full size by repeating the last
+     * id, so that the same statement can be used for all chunks.
+     *
+     * @param ids the ids of the bundles to load
+     * @param result map to which the loaded bundles are added
+     * @throws SQLException if the bundles could not be read
+     */
+    private void loadBundles(List<NodeId> ids, Map<NodeId, NodePropBundle> result)
+            throws SQLException {
+        List<Object> params = new ArrayList<Object>();
+        for (int i = 0; i < BULK_LOAD_SIZE; i++) {
+            NodeId id = ids.get(Math.min(i, ids.size() - 1));
+            params.addAll(Arrays.asList(getKey(id)));
+        }
+        ResultSet rs = conHelper.exec(
+                bundleSelectMultipleSQL, params.toArray(), false, 0);
+        try {
+            while (rs.next()) {
+                NodeId id;
+                int column;
+                if (getStorageModel() == SM_BINARY_KEYS) {
+                    id = new NodeId(rs.getBytes(1));
+                    column = 2;
+                } else {
+                    id = new NodeId(rs.getLong(1), rs.getLong(2));
+                    column = 3;
+                }
+                result.put(id, readBundle(id, rs, column));
+            }
+        } finally {
+            DbUtility.close(rs);
+        }
+    }
+
     /**
      * Reads and parses a bundle from the BLOB in the given column of the
      * current row of the given result set. This is a helper method to
@@ -939,7 +1285,7 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    protected synchronized void storeBundle(NodePropBundle bundle) throws ItemStateException {
+    protected void storeBundle(NodePropBundle bundle) throws ItemStateException {
         try {
             ByteArrayOutputStream out =
                 new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
@@ -947,7 +1293,7 @@ public class BundleDbPersistenceManager
 
             String sql = bundle.isNew() ? bundleInsertSQL : bundleUpdateSQL;
             Object[] params = createParams(bundle.getId(), out.toByteArray(), true);
-            conHelper.update(sql, params);
+            update(sql, params);
         } catch (Exception e) {
             String msg;
 
@@ -968,9 +1314,9 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    protected synchronized void destroyBundle(NodePropBundle bundle) throws ItemStateException {
+    protected void destroyBundle(NodePropBundle bundle) throws ItemStateException {
         try {
-            conHelper.update(bundleDeleteSQL, getKey(bundle.getId()));
+            update(bundleDeleteSQL, getKey(bundle.getId()));
         } catch (Exception e) {
             if (e instanceof NoSuchItemStateException) {
                 throw (NoSuchItemStateException) e;
@@ -984,7 +1330,7 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    public synchronized NodeReferences loadReferencesTo(NodeId targetId)
+    public NodeReferences loadReferencesTo(NodeId targetId)
             throws NoSuchItemStateException, ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
@@ -1019,13 +1365,11 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      *
-     * This method uses shared <code>PreparedStatements</code>, which must
-     * be used strictly sequentially. Because this method synchronizes on the
-     * persistence manager instance, there is no need to synchronize on the
-     * shared statement. If the method would not be synchronized, the shared
-     * statement must be synchronized.
+     * The existence check and the following insert or update are not atomic,
+     * so concurrent stores of the same node references must be prevented
+     * by the caller, see {@link #store(ChangeLog)}.
      */
-    public synchronized void store(NodeReferences refs) throws ItemStateException {
+    public void store(NodeReferences refs) throws ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
@@ -1041,7 +1385,7 @@ public class BundleDbPersistenceManager
             Serializer.serialize(refs, out);
 
             Object[] params = createParams(refs.getTargetId(), out.toByteArray(), true);
-            conHelper.exec(sql, params);
+            update(sql, params);
             
             // there's no need to close a ByteArrayOutputStream
             //out.close();
@@ -1055,13 +1399,13 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    public synchronized void destroy(NodeReferences refs) throws ItemStateException {
+    public void destroy(NodeReferences refs) throws ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
 
         try {
-            conHelper.exec(nodeReferenceDeleteSQL, getKey(refs.getTargetId()));
+            update(nodeReferenceDeleteSQL, getKey(refs.getTargetId()));
         } catch (Exception e) {
             if (e instanceof NoSuchItemStateException) {
                 throw (NoSuchItemStateException) e;
@@ -1075,7 +1419,7 @@ public class BundleDbPersistenceManager
     /**
      * {@inheritDoc}
      */
-    public synchronized boolean existsReferencesTo(NodeId targetId) throws ItemStateException {
+    public boolean existsReferencesTo(NodeId targetId) throws ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
@@ -1112,6 +1456,12 @@ public class BundleDbPersistenceManager
             bundleInsertSQL = "insert into " + schemaObjectPrefix + "BUNDLE (BUNDLE_DATA, NODE_ID) values (?, ?)";
             bundleUpdateSQL = "update " + schemaObjectPrefix + "BUNDLE set BUNDLE_DATA = ? where NODE_ID = ?";
             bundleSelectSQL = "select BUNDLE_DATA from " + schemaObjectPrefix + "BUNDLE where NODE_ID = ?";
+            StringBuilder buff = new StringBuilder("select NODE_ID, BUNDLE_DATA from ");
+            buff.append(schemaObjectPrefix).append("BUNDLE where NODE_ID in (?");
+            for (int i = 1; i < BULK_LOAD_SIZE; i++) {
+                buff.append(", ?");
+            }
+            bundleSelectMultipleSQL = buff.append(")").toString();
             bundleDeleteSQL = "delete from " + schemaObjectPrefix + "BUNDLE where NODE_ID = ?";
 
             nodeReferenceInsertSQL = "insert into " + schemaObjectPrefix + "REFS (REFS_DATA, NODE_ID) values (?, ?)";
@@ -1127,6 +1477,12 @@ public class BundleDbPersistenceManager
             bundleInsertSQL = "insert into " + schemaObjectPrefix + "BUNDLE (BUNDLE_DATA, NODE_ID_HI, NODE_ID_LO) values (?, ?, ?)";
             bundleUpdateSQL = "update " + schemaObjectPrefix + "BUNDLE set BUNDLE_DATA = ? where NODE_ID_HI = ? and NODE_ID_LO = ?";
             bundleSelectSQL = "select BUNDLE_DATA from " + schemaObjectPrefix + "BUNDLE where NODE_ID_HI = ? and NODE_ID_LO = ?";
+            StringBuilder buff = new StringBuilder("select NODE_ID_HI, NODE_ID_LO, BUNDLE_DATA from ");
+            buff.append(schemaObjectPrefix).append("BUNDLE where (NODE_ID_HI = ? and NODE_ID_LO = ?)");
+            for (int i = 1; i < BULK_LOAD_SIZE; i++) {
+                buff.append(" or (NODE_ID_HI = ? and NODE_ID_LO = ?)");
+            }
+            bundleSelectMultipleSQL = buff.toString();
             bundleDeleteSQL = "delete from " + schemaObjectPrefix + "BUNDLE where NODE_ID_HI = ? and NODE_ID_LO = ?";
 
             nodeReferenceInsertSQL =
@@ -19,6 +19,7 @@ package org.apache.jackrabbit.core.persistence.pool;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.jackrabbit.core.util.StringIndex;
 import org.apache.jackrabbit.core.util.db.ConnectionHelper;
@@ -28,8 +29,12 @@ import org.apache.jackrabbit.core.util.db.DbUtility;
  * Implements a {@link StringIndex} that stores and retrieves the names from a
  * table in a database.
  * <p>
- * Note that this class is not threadsafe by itself. it needs to be synchronized
- * by the using application.
+ * The in-memory caches of this class are synchronized, so the index can be
+ * used by concurrent readers and writers of the owning persistence manager.
+ * Entries that are read or inserted within a transaction of the owning
+ * persistence manager are only added to the caches once the transaction is
+ * committed, see {@link #startTransaction()} and
+ * {@link #endTransaction(boolean)}.
  * <p>
  * Due to a bug with oracle that treats empty strings a null values
  * (see JCR-815), all empty strings are replaced by a ' '. since names never
@@ -48,6 +53,12 @@ public class DbNameIndex implements StringIndex {
     private final HashMap<String, Integer> string2Index = new HashMap<String, Integer>();
     private final HashMap<Integer, String> index2String = new HashMap<Integer, String>();
 
+    /**
+     * The entries read or inserted within the current transaction of a thread.
+     */
+    private final ThreadLocal<Map<String, Integer>> pending =
+        new ThreadLocal<Map<String, Integer>>();
+
     /**
      * Creates a new index that is stored in a db.
      * @param conHlpr the {@link ConnectionHelper}
@@ -81,21 +92,52 @@ public class DbNameIndex implements StringIndex {
         // BundleDbPersistenceManager that created this index
     }
 
+    /**
+     * Marks the start of a transaction of the current thread. Until
+     * {@link #endTransaction(boolean)} is called, the entries read or inserted
+     * by this thread are only visible to this thread, since the rows may
+     * still be rolled back.
+     */
+    public void startTransaction() {
+        pending.set(new HashMap<String, Integer>());
+    }
+
+    /**
+     * Marks the end of the transaction of the current thread. The entries of
+     * the transaction are added to the caches if it was committed, and
+     * discarded otherwise.
+     *
+     * @param committed <code>true</code> if the transaction was committed.
+     */
+    public void endTransaction(boolean committed) {
+        Map<String, Integer> entries = pending.get();
+        pending.remove();
+        if (committed && entries != null) {
+            synchronized (this) {
+                for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+                    string2Index.put(entry.getKey(), entry.getValue());
+                    index2String.put(entry.getValue(), entry.getKey());
+                }
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     public int stringToIndex(String string) {
         // check cache
-        Integer index = string2Index.get(string);
+        Integer index = getCachedIndex(string);
         if (index == null) {
+            // the database is accessed without holding the monitor, since
+            // the statements may block on the rows of concurrent transactions
             String dbString = string.length() == 0 ? " " : string;
             int idx = getIndex(dbString);
             if (idx == -1) {
                 idx = insertString(dbString);
             }
             index = Integer.valueOf(idx);
-            string2Index.put(string, index);
-            index2String.put(index, string);
+            cache(string, index);
             return idx;
         } else {
             return index.intValue();
@@ -108,18 +150,60 @@ public class DbNameIndex implements StringIndex {
     public String indexToString(int idx) throws IllegalArgumentException {
         // check cache
         Integer index = Integer.valueOf(idx);
-        String s = index2String.get(index);
+        String s;
+        synchronized (this) {
+            s = index2String.get(index);
+        }
         if (s == null) {
             s = getString(idx);
             if (s.equals(" ")) {
                 s = "";
             }
-            index2String.put(index, s);
-            string2Index.put(s, index);
+            cache(s, index);
         }
         return s;
     }
 
+    /**
+     * Returns the cached index of the given string, including the entries of
+     * the current transaction of this thread.
+     *
+     * @param string the string
+     * @return the index or <code>null</code> if not cached.
+     */
+    private Integer getCachedIndex(String string) {
+        Integer index;
+        synchronized (this) {
+            index = string2Index.get(string);
+        }
+        if (index == null) {
+            Map<String, Integer> entries = pending.get();
+            if (entries != null) {
+                index = entries.get(string);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Caches the given entry, or keeps it with the current transaction of
+     * this thread until that transaction is committed.
+     *
+     * @param string the string
+     * @param index its index
+     */
+    private void cache(String string, Integer index) {
+        Map<String, Integer> entries = pending.get();
+        if (entries != null) {
+            entries.put(string, index);
+        } else {
+            synchronized (this) {
+                string2Index.put(string, index);
+                index2String.put(index, string);
+            }
+        }
+    }
+
     /**
      * Inserts a string into the database and returns the new index.
      *
@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.PropertyType;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.data.DataIdentifier;
+import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.fs.FileSystemException;
+import org.apache.jackrabbit.core.fs.FileSystemPathUtil;
+import org.apache.jackrabbit.core.fs.FileSystemResource;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent index of the data store records referenced by the bundles of
+ * a persistence manager. For every data identifier, the index keeps the
+ * number of binary values that reference it, so that the data store
+ * garbage collector can find unused records without reading all bundles.
+ * <p>
+ * The index is kept in the file system of the persistence manager, with
+ * one small file per referenced data identifier that contains the
+ * reference count. The files are spread over two levels of folders below
+ * {@link #INDEX_FOLDER}, derived from the hash code of the identifier.
+ * Nothing is kept in memory, and adding or removing a reference only
+ * rewrites the file of that identifier, so the cost of an update does not
+ * depend on the size of the index. The index is complete if the
+ * {@link #COMPLETE_FILE} marker exists.
+ * <p>
+ * The persistence manager records added references before the bundles are
+ * written, and removed references only once the bundles are written. If a
+ * store fails or the process crashes in between, the index may therefore
+ * contain too many references, which only means that the garbage collector
+ * keeps some unused records. It never contains too few references. A count
+ * file that can not be parsed, for example because the process crashed
+ * while it was written, keeps the record referenced until the index is
+ * rebuilt.
+ * <p>
+ * An index is only {@link #isComplete() complete} if it has been built by
+ * reading all bundles. While it is not complete, added and removed
+ * references are ignored, and all records are considered referenced.
+ */
+public class BinaryReferenceIndex {
+
+    /**
+     * The logger instance.
+     */
+    private static final Logger log =
+        LoggerFactory.getLogger(BinaryReferenceIndex.class);
+
+    /**
+     * Name of the folder that contains the index.
+     */
+    static final String INDEX_FOLDER = "binaryReferences";
+
+    /**
+     * Name of the marker file of a complete index, within the index folder.
+     */
+    static final String COMPLETE_FILE = "complete";
+
+    /**
+     * Reference count of a count file that can not be parsed.
+     */
+    private static final int UNKNOWN_COUNT = -1;
+
+    /**
+     * Number of locks that serialize the updates of the count files.
+     */
+    private static final int LOCK_COUNT = 64;
+
+    /**
+     * The file system.
+     */
+    private final FileSystem fs;
+
+    /**
+     * The marker file of a complete index.
+     */
+    private final FileSystemResource completeFile;
+
+    /**
+     * Locks that serialize concurrent updates of the same count file,
+     * selected by the hash code of the identifier.
+     */
+    private final Object[] locks = new Object[LOCK_COUNT];
+
+    /**
+     * Whether the index contains all references of the persistence manager.
+     */
+    private volatile boolean complete;
+
+    /**
+     * Whether the index is being built. References are recorded while the
+     * index is built, even though it is not complete yet.
+     */
+    private volatile boolean building;
+
+    /**
+     * Creates an index that is persisted in the given file system.
+     *
+     * @param fs file system
+     */
+    public BinaryReferenceIndex(FileSystem fs) {
+        this.fs = fs;
+        this.completeFile = new FileSystemResource(fs, FileSystem.SEPARATOR
+                + INDEX_FOLDER + FileSystem.SEPARATOR + COMPLETE_FILE);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Adds the data identifiers of all binary values of the given bundle
+     * that are stored in the data store to the given list.
+     *
+     * @param bundle the bundle
+     * @param identifiers the list to add the data identifiers to
+     */
+    public static void addDataIdentifiers(
+            NodePropBundle bundle, List<String> identifiers) {
+        for (PropertyEntry entry : bundle.getPropertyEntries()) {
+            if (entry.getType() == PropertyType.BINARY) {
+                for (InternalValue value : entry.getValues()) {
+                    DataIdentifier identifier = value.getDataIdentifier();
+                    if (identifier != null) {
+                        identifiers.add(identifier.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the persisted index is complete.
+     *
+     * @return whether the index is complete
+     * @throws FileSystemException if the index can not be read
+     */
+    public boolean load() throws FileSystemException {
+        complete = completeFile.exists();
+        return complete;
+    }
+
+    /**
+     * Returns whether the index contains all references of the persistence
+     * manager.
+     *
+     * @return <code>true</code> if the index is complete
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns whether the given data identifier is referenced. If the index
+     * is not complete, or can not be read, all identifiers are considered
+     * to be referenced.
+     *
+     * @param identifier data identifier
+     * @return <code>true</code> if the identifier is (or may be) referenced
+     */
+    public boolean isReferenced(String identifier) {
+        if (!complete) {
+            return true;
+        }
+        try {
+            return getCountFile(identifier).exists();
+        } catch (FileSystemException e) {
+            log.warn("Unable to read the binary reference index", e);
+            return true;
+        }
+    }
+
+    /**
+     * Marks the index as incomplete. The references are only deleted when
+     * the index is {@link #startBuild() built} again, so that invalidating
+     * the index is cheap.
+     *
+     * @throws FileSystemException if the marker file can not be deleted
+     */
+    public void invalidate() throws FileSystemException {
+        complete = false;
+        if (completeFile.exists()) {
+            completeFile.delete();
+        }
+    }
+
+    /**
+     * Deletes all references and starts building the index. Until
+     * {@link #finishBuild()} is called, the index is incomplete but
+     * references are recorded. The caller must make sure that no references
+     * are added or removed by other threads while the index is built.
+     *
+     * @throws FileSystemException if the index can not be deleted
+     */
+    public void startBuild() throws FileSystemException {
+        invalidate();
+        delete(fs);
+        building = true;
+    }
+
+    /**
+     * Marks the index as complete once all references are recorded.
+     *
+     * @throws FileSystemException if the marker file can not be written
+     */
+    public void finishBuild() throws FileSystemException {
+        completeFile.makeParentDirs();
+        writeCount(completeFile, 0);
+        building = false;
+        complete = true;
+    }
+
+    /**
+     * Stops building the index after a failure. The index stays incomplete.
+     */
+    public void cancelBuild() {
+        building = false;
+    }
+
+    /**
+     * Records added references. Each occurrence of an identifier in the
+     * given collection counts as a reference. Does nothing if the index is
+     * not complete and not being built.
+     *
+     * @param identifiers data identifiers
+     * @throws FileSystemException if the index can not be updated
+     */
+    public void addReferences(Collection<String> identifiers)
+            throws FileSystemException {
+        if (complete || building) {
+            update(identifiers, 1);
+        }
+    }
+
+    /**
+     * Records removed references. Each occurrence of an identifier in the
+     * given collection counts as a reference. Does nothing if the index is
+     * not complete and not being built.
+     *
+     * @param identifiers data identifiers
+     * @throws FileSystemException if the index can not be updated
+     */
+    public void removeReferences(Collection<String> identifiers)
+            throws FileSystemException {
+        if (complete || building) {
+            update(identifiers, -1);
+        }
+    }
+
+    /**
+     * Returns the reference count of the given data identifier, or
+     * <code>-1</code> if the count is unknown.
+     *
+     * @param identifier data identifier
+     * @return the reference count
+     * @throws FileSystemException if the index can not be read
+     */
+    int getCount(String identifier) throws FileSystemException {
+        FileSystemResource file = getCountFile(identifier);
+        return file.exists() ? readCount(file) : 0;
+    }
+
+    /**
+     * Deletes the persisted index in the given file system, if there is
+     * one. Used when the index is disabled, so that a stale index is never
+     * used once it is enabled again.
+     *
+     * @param fs file system
+     * @throws FileSystemException if the files can not be deleted
+     */
+    public static void delete(FileSystem fs) throws FileSystemException {
+        String folder = FileSystem.SEPARATOR + INDEX_FOLDER;
+        if (fs.exists(folder)) {
+            fs.deleteFolder(folder);
+        }
+    }
+
+    /**
+     * Adds the given delta to the reference counts of the given identifiers.
+     */
+    private void update(Collection<String> identifiers, int delta)
+            throws FileSystemException {
+        Map<String, Integer> deltas = new HashMap<String, Integer>();
+        for (String identifier : identifiers) {
+            Integer d = deltas.get(identifier);
+            deltas.put(identifier, d != null ? d + delta : delta);
+        }
+        for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+            String identifier = entry.getKey();
+            synchronized (locks[(identifier.hashCode() & 0x7fffffff) % LOCK_COUNT]) {
+                FileSystemResource file = getCountFile(identifier);
+                boolean exists = file.exists();
+                int count = exists ? readCount(file) : 0;
+                if (count == UNKNOWN_COUNT) {
+                    continue;
+                }
+                count += entry.getValue();
+                if (count > 0) {
+                    if (!exists) {
+                        file.makeParentDirs();
+                    }
+                    writeCount(file, count);
+                } else if (exists) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private FileSystemResource getCountFile(String identifier) {
+        int hash = identifier.hashCode();
+        return new FileSystemResource(fs, String.format("%s%s%s%02x%s%02x%s%s",
+                FileSystem.SEPARATOR, INDEX_FOLDER,
+                FileSystem.SEPARATOR, (hash >>> 24) & 0xff,
+                FileSystem.SEPARATOR, (hash >>> 16) & 0xff,
+                FileSystem.SEPARATOR, FileSystemPathUtil.escapeName(identifier)));
+    }
+
+    private static int readCount(FileSystemResource file)
+            throws FileSystemException {
+        InputStream in = file.getInputStream();
+        try {
+            return Integer.parseInt(IOUtils.toString(in, "UTF-8").trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid reference count in " + file.getPath());
+            return UNKNOWN_COUNT;
+        } catch (IOException e) {
+            throw new FileSystemException(
+                    "error while reading " + file.getPath(), e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static void writeCount(FileSystemResource file, int count)
+            throws FileSystemException {
+        OutputStream out = file.getOutputStream();
+        try {
+            out.write(Integer.toString(count).getBytes("UTF-8"));
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            throw new FileSystemException(
+                    "error while writing " + file.getPath(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+/**
+ * Second level cache for serialized bundles that keeps the bundle bytes
+ * outside of the Java heap, in direct {@link ByteBuffer} slabs. Since the
+ * cached data is invisible to the garbage collector, this cache can be
+ * sized in gigabytes without causing long GC pauses. The JVM must be
+ * started with a large enough <code>-XX:MaxDirectMemorySize</code>.
+ * <p>
+ * The cache is divided into segments to reduce lock contention. Each
+ * segment is a ring buffer that is filled sequentially, and the oldest
+ * entries are overwritten (FIFO eviction) when the segment wraps around.
+ * Only a small index entry per cached bundle is kept on the heap.
+ * <p>
+ * The cache does not know how to (de)serialize bundles, it only stores
+ * the byte arrays produced by a {@link BundleWriter}.
+ */
+public class OffHeapBundleCache {
+
+    /**
+     * The maximum size of a single segment. Direct buffers are indexed
+     * with an <code>int</code>, so larger caches use more segments.
+     */
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    /**
+     * The minimum number of segments, to limit lock contention in small
+     * caches.
+     */
+    private static final int MIN_SEGMENTS = 16;
+
+    /**
+     * Index entry of a cached bundle.
+     */
+    private static class Entry {
+
+        private final NodeId id;
+
+        private final int offset;
+
+        private final int length;
+
+        private boolean removed;
+
+        public Entry(NodeId id, int offset, int length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * A ring buffer of serialized bundles in a single direct byte buffer.
+     */
+    private static class Segment {
+
+        private final ByteBuffer buffer;
+
+        private final Map<NodeId, Entry> index = new HashMap<NodeId, Entry>();
+
+        /** All entries in write order, including removed ones. */
+        private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+
+        private int position;
+
+        private long used;
+
+        public Segment(int size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        public synchronized byte[] get(NodeId id) {
+            Entry entry = index.get(id);
+            if (entry == null) {
+                return null;
+            }
+            byte[] data = new byte[entry.length];
+            buffer.position(entry.offset);
+            buffer.get(data);
+            return data;
+        }
+
+        /**
+         * Stores the given data, overwriting the oldest entries if needed.
+         *
+         * @return number of evicted entries
+         */
+        public synchronized int put(NodeId id, byte[] data) {
+            remove(id);
+
+            int evicted = 0;
+            int length = data.length;
+            if (position + length > buffer.capacity()) {
+                // not enough space at the end, drop the entries
+                // located there and wrap around to the beginning
+                while (!entries.isEmpty()
+                        && entries.peekFirst().offset >= position) {
+                    evicted += evict(entries.removeFirst());
+                }
+                position = 0;
+            }
+            while (!entries.isEmpty()) {
+                Entry oldest = entries.peekFirst();
+                if (oldest.offset < position + length
+                        && oldest.offset + oldest.length > position) {
+                    evicted += evict(entries.removeFirst());
+                } else {
+                    break;
+                }
+            }
+
+            buffer.position(position);
+            buffer.put(data);
+            Entry entry = new Entry(id, position, length);
+            entries.addLast(entry);
+            index.put(id, entry);
+            position += length;
+            used += length;
+            return evicted;
+        }
+
+        public synchronized boolean remove(NodeId id) {
+            Entry entry = index.remove(id);
+            if (entry != null) {
+                entry.removed = true;
+                used -= entry.length;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        public synchronized void clear() {
+            index.clear();
+            entries.clear();
+            position = 0;
+            used = 0;
+        }
+
+        private int evict(Entry entry) {
+            if (entry.removed) {
+                return 0;
+            }
+            index.remove(entry.id);
+            used -= entry.length;
+            return 1;
+        }
+
+        public synchronized long getMemoryUsed() {
+            return used;
+        }
+
+        public synchronized long getElementCount() {
+            return index.size();
+        }
+
+    }
+
+    private final String name;
+
+    private final Segment[] segments;
+
+    /** The maximum size of a single cached bundle. */
+    private final int maxEntrySize;
+
+    /**
+     * Creates a new off-heap cache. The memory for the given size is
+     * allocated immediately.
+     *
+     * @param name cache name, used for logging
+     * @param size total size of the cache in bytes
+     */
+    public OffHeapBundleCache(String name, long size) {
+        this.name = name;
+        int count = (int) Math.max(
+                MIN_SEGMENTS, (size + MAX_SEGMENT_SIZE - 1) / MAX_SEGMENT_SIZE);
+        int segmentSize = (int) Math.min(size / count, MAX_SEGMENT_SIZE);
+        this.segments = new Segment[count];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+        // avoid a single large bundle flushing a whole segment
+        this.maxEntrySize = segmentSize / 4;
+    }
+
+    private Segment getSegment(NodeId id) {
+        return segments[(id.hashCode() >>> 1) % segments.length];
+    }
+
+    /**
+     * Returns a copy of the serialized bundle with the given id.
+     *
+     * @param id node id
+     * @return serialized bundle, or <code>null</code> if not cached
+     */
+    public byte[] get(NodeId id) {
+        return getSegment(id).get(id);
+    }
+
+    /**
+     * Adds a serialized bundle to the cache. Bundles larger than a quarter
+     * of a cache segment are not cached.
+     *
+     * @param id node id
+     * @param data serialized bundle
+     * @return number of entries evicted to make room for the bundle
+     */
+    public int put(NodeId id, byte[] data) {
+        Segment segment = getSegment(id);
+        if (data.length > maxEntrySize) {
+            segment.remove(id);
+            return 0;
+        }
+        return segment.put(id, data);
+    }
+
+    /**
+     * Removes the identified bundle from the cache.
+     *
+     * @param id node id
+     * @return <code>true</code> if the bundle was cached
+     */
+    public boolean remove(NodeId id) {
+        return getSegment(id).remove(id);
+    }
+
+    /**
+     * Removes all bundles from the cache. The off-heap memory stays
+     * allocated until this cache is garbage collected.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Returns the number of bytes used by the cached bundles.
+     *
+     * @return the size in bytes
+     */
+    public long getMemoryUsed() {
+        long used = 0;
+        for (Segment segment : segments) {
+            used += segment.getMemoryUsed();
+        }
+        return used;
+    }
+
+    /**
+     * Returns the number of cached bundles.
+     *
+     * @return the number of bundles
+     */
+    public long getElementCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.getElementCount();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + getClass().getSimpleName() + "@"
+                + Integer.toHexString(hashCode()) + "]";
+    }
+
+}
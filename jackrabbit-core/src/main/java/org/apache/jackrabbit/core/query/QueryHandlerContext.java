@@ -28,6 +28,7 @@ import org.apache.jackrabbit.core.nodetype.NodeTypeRegistry;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
 import org.apache.jackrabbit.core.state.ItemStateManager;
 import org.apache.jackrabbit.core.state.SharedItemStateManager;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
 
 /**
  * Acts as an argument for the {@link QueryHandler} to keep the interface
@@ -211,6 +212,15 @@ public class QueryHandlerContext {
         return repositoryContext.getExecutor();
     }
 
+    /**
+     * Returns the statistics of the repository.
+     *
+     * @return repository statistics
+     */
+    public RepositoryStatisticsImpl getRepositoryStatistics() {
+        return repositoryContext.getRepositoryStatistics();
+    }
+
     /**
      * Returns the cluster node instance of this repository, or
      * <code>null</code> if clustering is not enabled.
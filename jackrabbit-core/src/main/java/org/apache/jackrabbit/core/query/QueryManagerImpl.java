@@ -27,16 +27,22 @@ import java.io.IOException;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
+import javax.jcr.ValueFactory;
 import javax.jcr.query.InvalidQueryException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.qom.QueryObjectModel;
 import javax.jcr.query.qom.QueryObjectModelFactory;
 
+import org.apache.jackrabbit.commons.query.QueryObjectModelBuilderRegistry;
 import org.apache.jackrabbit.core.SearchManager;
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.query.lucene.SearchIndex;
 import org.apache.jackrabbit.core.session.SessionContext;
 import org.apache.jackrabbit.core.session.SessionOperation;
+import org.apache.jackrabbit.core.value.ValueFactoryImpl;
+import org.apache.jackrabbit.spi.commons.conversion.DefaultNamePathResolver;
+import org.apache.jackrabbit.spi.commons.conversion.NamePathResolver;
 import org.apache.jackrabbit.spi.commons.query.qom.QueryObjectModelFactoryImpl;
 import org.apache.jackrabbit.spi.commons.query.qom.QueryObjectModelTree;
 
@@ -189,6 +195,79 @@ public class QueryManagerImpl implements QueryManager {
 
     //---------------------------< internal >-----------------------------------
 
+    /**
+     * Creates a query object model from a statement and adds the parsed
+     * tree to the query plan cache, or creates it from the cached tree.
+     *
+     * @param cache     the query plan cache.
+     * @param statement the query statement.
+     * @param language  the query language.
+     * @param node      the nt:query node where the query was read from or
+     *                  <code>null</code>.
+     * @return the query object model.
+     * @throws RepositoryException if the statement is invalid or another
+     *                             error occurs.
+     */
+    private Query createQueryObjectModel(
+            QueryPlanCache cache, String statement,
+            final String language, final Node node)
+            throws RepositoryException {
+        String key = QueryPlanCache.getKey(sessionContext, statement, language);
+        ParsedStatement parsed = (ParsedStatement) cache.get(sessionContext, key);
+        if (parsed != null) {
+            return searchMgr.createQueryObjectModel(sessionContext,
+                    parsed.qomTree, language, node, parsed.statement);
+        }
+        // parse with a copy of the namespace mappings, the cached tree
+        // must not refer to this session
+        NamePathResolver resolver = new DefaultNamePathResolver(
+                QueryPlanCache.getNamespaceMappings(sessionContext));
+        final QueryObjectModelTree[] qomTree = new QueryObjectModelTree[1];
+        QueryObjectModelFactory qf = new QueryObjectModelFactoryImpl(resolver) {
+            @Override
+            protected QueryObjectModel createQuery(QueryObjectModelTree tree)
+                    throws RepositoryException {
+                qomTree[0] = tree;
+                return searchMgr.createQueryObjectModel(
+                        sessionContext, tree, language, node);
+            }
+        };
+        ValueFactory vf = new ValueFactoryImpl(
+                resolver, sessionContext.getRepositoryContext().getDataStore());
+        Query query = QueryObjectModelBuilderRegistry.getQueryObjectModelBuilder(
+                language).createQueryObjectModel(statement, qf, vf);
+        cache.put(key, new ParsedStatement(qomTree[0], query.getStatement()));
+        return query;
+    }
+
+    /**
+     * A query object model tree in the query plan cache together with its
+     * serialized statement.
+     */
+    private static final class ParsedStatement {
+
+        private final QueryObjectModelTree qomTree;
+
+        private final String statement;
+
+        private ParsedStatement(QueryObjectModelTree qomTree, String statement) {
+            this.qomTree = qomTree;
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * @return the query plan cache of the search index or <code>null</code>
+     *         if the query handler does not have one.
+     */
+    private QueryPlanCache getQueryPlanCache() {
+        QueryHandler handler = searchMgr.getQueryHandler();
+        if (handler instanceof SearchIndex) {
+            return ((SearchIndex) handler).getQueryPlanCache();
+        }
+        return null;
+    }
+
     /**
      * Performs the given session operation.
      */
@@ -215,10 +294,21 @@ public class QueryManagerImpl implements QueryManager {
                                 sessionContext, qomTree, language, node);
                     }
                 },
-                sessionContext.getSessionImpl().getValueFactory()),
-                new AQTQueryFactory() {
+                sessionContext.getSessionImpl().getValueFactory()) {
+                    @Override
                     public Query createQuery(String statement, String language)
                             throws RepositoryException {
+                        QueryPlanCache cache = getQueryPlanCache();
+                        if (cache == null) {
+                            return super.createQuery(statement, language);
+                        }
+                        return createQueryObjectModel(
+                                cache, statement, language, node);
+                    }
+                },
+                new AQTQueryFactory() {
+                    public Query createQuery(String statement, final String language)
+                            throws RepositoryException {
                         return searchMgr.createQuery(
                                 sessionContext, statement, language, node);
                     }
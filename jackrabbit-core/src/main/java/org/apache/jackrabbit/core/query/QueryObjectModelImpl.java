@@ -94,13 +94,43 @@ public class QueryObjectModelImpl extends QueryImpl implements QueryObjectModel
             SessionContext sessionContext, QueryHandler handler,
             QueryObjectModelTree qomTree, String language, Node node)
             throws InvalidQueryException, RepositoryException {
+        init(sessionContext, handler, qomTree, language, node, null);
+    }
+
+    /**
+     * Initializes a query instance from a query object model and the
+     * statement it was serialized to before.
+     *
+     * @param sessionContext component context of the current session
+     * @param handler   the query handler of the search index.
+     * @param qomTree   the query object model tree.
+     * @param language  the original query syntax from where the JQOM was
+     *                  created.
+     * @param node      a nt:query node where the query was read from or
+     *                  <code>null</code> if it is not a stored query.
+     * @param statement the qom tree serialized according to the given
+     *                  language or <code>null</code> if it should be
+     *                  serialized now.
+     * @throws InvalidQueryException if the qom tree cannot be serialized
+     *                               according to the given language.
+     * @throws RepositoryException   if another error occurs
+     */
+    public void init(
+            SessionContext sessionContext, QueryHandler handler,
+            QueryObjectModelTree qomTree, String language, Node node,
+            String statement)
+            throws InvalidQueryException, RepositoryException {
         checkNotInitialized();
         this.sessionContext = sessionContext;
         this.language = language;
         this.handler = handler;
         this.qomTree = qomTree;
         this.node = node;
-        this.statement = QueryObjectModelBuilderRegistry.getQueryObjectModelBuilder(language).toString(this);
+        if (statement != null) {
+            this.statement = statement;
+        } else {
+            this.statement = QueryObjectModelBuilderRegistry.getQueryObjectModelBuilder(language).toString(this);
+        }
 
         try {
             qomTree.accept(new DefaultTraversingQOMTreeVisitor() {
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query;
+
+import java.util.Arrays;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.collections.map.LRUMap;
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.session.SessionContext;
+import org.apache.jackrabbit.spi.commons.namespace.NamespaceMapping;
+import org.apache.jackrabbit.stats.QueryStatCore;
+
+/**
+ * <code>QueryPlanCache</code> keeps the parsed trees of recently created
+ * queries in a LRU map with a fixed size. A tree is looked up by its query
+ * statement, the query language and the namespace mappings of the session,
+ * because the tree contains the names the prefixes of the statement were
+ * resolved to. The trees must not be modified after they were added to the
+ * cache, they are shared by all queries with the same key.
+ * <p>
+ * Cache hits and misses are logged to the {@link QueryStatCore} of the
+ * repository.
+ */
+public class QueryPlanCache {
+
+    /**
+     * LRU map where key=language, namespace mappings and statement
+     * value=query tree
+     */
+    private final LRUMap plans;
+
+    /**
+     * Creates a new <code>QueryPlanCache</code>.
+     *
+     * @param size the maximum number of query trees to keep.
+     */
+    public QueryPlanCache(int size) {
+        plans = new LRUMap(Math.max(1, size));
+    }
+
+    /**
+     * Returns the key of a query statement.
+     *
+     * @param sessionContext component context of the current session.
+     * @param statement      the query statement.
+     * @param language       the query language.
+     * @return the key.
+     * @throws RepositoryException if the namespace mappings of the session
+     *                             cannot be read.
+     */
+    public static String getKey(SessionContext sessionContext,
+                                String statement, String language)
+            throws RepositoryException {
+        SessionImpl session = sessionContext.getSessionImpl();
+        String[] prefixes = session.getNamespacePrefixes();
+        Arrays.sort(prefixes);
+        StringBuilder key = new StringBuilder(language);
+        for (String prefix : prefixes) {
+            key.append(' ').append(prefix).append('=');
+            key.append(session.getNamespaceURI(prefix));
+        }
+        return key.append('\n').append(statement).toString();
+    }
+
+    /**
+     * Returns a copy of the namespace mappings of a session. Query trees
+     * that are added to the cache should resolve names with these mappings
+     * instead of the session, so that the cache does not keep a reference
+     * to the session.
+     *
+     * @param sessionContext component context of the current session.
+     * @return the namespace mappings.
+     * @throws RepositoryException if the namespace mappings of the session
+     *                             cannot be read.
+     */
+    public static NamespaceMapping getNamespaceMappings(
+            SessionContext sessionContext) throws RepositoryException {
+        SessionImpl session = sessionContext.getSessionImpl();
+        NamespaceMapping mappings = new NamespaceMapping();
+        for (String prefix : session.getNamespacePrefixes()) {
+            mappings.setMapping(prefix, session.getNamespaceURI(prefix));
+        }
+        return mappings;
+    }
+
+    /**
+     * Returns the query tree with the given key.
+     *
+     * @param sessionContext component context of the current session.
+     * @param key            the key as returned by {@link #getKey}.
+     * @return the query tree or <code>null</code> if there is none in the
+     *         cache.
+     */
+    public Object get(SessionContext sessionContext, String key) {
+        Object plan;
+        synchronized (plans) {
+            plan = plans.get(key);
+        }
+        QueryStatCore stat = sessionContext.getRepositoryContext()
+                .getStatManager().getQueryStat();
+        if (plan != null) {
+            stat.logPlanCacheHit();
+        } else {
+            stat.logPlanCacheMiss();
+        }
+        return plan;
+    }
+
+    /**
+     * Adds a query tree to the cache.
+     *
+     * @param key  the key as returned by {@link #getKey}.
+     * @param plan the query tree.
+     */
+    public void put(String key, Object plan) {
+        synchronized (plans) {
+            plans.put(key, plan);
+        }
+    }
+
+    /**
+     * @return the number of query trees in the cache.
+     */
+    public int size() {
+        synchronized (plans) {
+            return plans.size();
+        }
+    }
+
+    /**
+     * Removes all query trees from the cache.
+     */
+    public void clear() {
+        synchronized (plans) {
+            plans.clear();
+        }
+    }
+}
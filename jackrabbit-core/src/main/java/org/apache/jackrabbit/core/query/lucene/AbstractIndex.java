@@ -117,6 +117,12 @@ abstract class AbstractIndex {
      */
     private boolean isExisting;
 
+    /**
+     * Limits the rate at which the index writer writes to the directory or
+     * <code>null</code> if writes are not limited.
+     */
+    private MergeRateLimiter writeRateLimiter;
+
     /**
      * Constructs an index with an <code>analyzer</code> and a
      * <code>directory</code>.
@@ -353,12 +359,33 @@ abstract class AbstractIndex {
             mergePolicy.setNoCFSRatio(1.0);
             config.setMergePolicy(mergePolicy);
 
-            indexWriter = new IndexWriter(getDirectory(), config);
+            Directory dir = getDirectory();
+            if (writeRateLimiter != null) {
+                dir = new RateLimitedDirectory(dir, writeRateLimiter);
+            }
+            indexWriter = new IndexWriter(dir, config);
             indexWriter.setInfoStream(STREAM_LOGGER);
         }
         return indexWriter;
     }
 
+    /**
+     * Sets the rate limiter for the writes of the index writer. A currently
+     * open index writer is closed, the next one uses the new limiter.
+     *
+     * @param limiter the rate limiter or <code>null</code> to write
+     *                without limit.
+     * @throws IOException if the current index writer cannot be closed.
+     */
+    synchronized void setWriteRateLimiter(MergeRateLimiter limiter)
+            throws IOException {
+        if (indexWriter != null) {
+            indexWriter.close();
+            indexWriter = null;
+        }
+        writeRateLimiter = limiter;
+    }
+
     /**
      * Commits all pending changes to the underlying <code>Directory</code>.
      * @throws IOException if an error occurs while commiting changes.
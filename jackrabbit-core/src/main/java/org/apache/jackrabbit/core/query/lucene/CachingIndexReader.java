@@ -16,13 +16,10 @@
  */
 package org.apache.jackrabbit.core.query.lucene;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -36,9 +33,6 @@ import org.apache.lucene.index.FilterIndexReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
-import org.apache.lucene.index.TermEnum;
-import org.apache.lucene.store.IndexInput;
-import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.util.ReaderUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,14 +49,6 @@ class CachingIndexReader extends FilterIndexReader {
      */
     private static final Logger log = LoggerFactory.getLogger(CachingIndexReader.class);
 
-    /**
-     * The number of nodes that are processed in a batch when the hierarchy
-     * cache is initialized. The value is 400'000, which will limit the
-     * temporary memory usage to initialize the hierarchy cache of a segment
-     * to 64MB (-> 170B * 400k)
-     */
-    private static final int MAX_CACHE_INIT_BATCH_SIZE = 400 * 1000;
-
     /**
      * The current value of the global creation tick counter.
      */
@@ -77,7 +63,8 @@ class CachingIndexReader extends FilterIndexReader {
     /**
      * Cache of nodes parent relation. If an entry in the array is >= 0,
      * then that means the node with the document number = array-index has the
-     * node with the value at that position as parent.
+     * node with the value at that position as parent. Negative entries are
+     * resolved with the {@link #hierarchy}, see {@link HierarchyCacheFile}.
      */
     private final int[] inSegmentParents;
 
@@ -87,8 +74,14 @@ class CachingIndexReader extends FilterIndexReader {
     private final Map<Integer, DocId> foreignParentDocIds = new ConcurrentHashMap<Integer, DocId>();
 
     /**
-     * Initializes the {@link #inSegmentParents} and {@link #foreignParentDocIds}
-     * caches.
+     * The persisted hierarchy of the index segment or <code>null</code> if
+     * the cache was not initialized.
+     */
+    private volatile HierarchyCacheFile hierarchy;
+
+    /**
+     * Initializes the {@link #inSegmentParents} cache and the
+     * {@link #hierarchy}.
      */
     private final CacheInitializer cacheInitializer;
 
@@ -131,7 +124,7 @@ class CachingIndexReader extends FilterIndexReader {
         super(delegatee);
         this.cache = cache;
         this.inSegmentParents = new int[delegatee.maxDoc()];
-        Arrays.fill(this.inSegmentParents, -1);
+        Arrays.fill(this.inSegmentParents, HierarchyCacheFile.UNKNOWN);
         this.shareableNodes = initShareableNodes(delegatee);
         this.cacheInitializer = new CacheInitializer(delegatee);
         if (initCache) {
@@ -171,10 +164,17 @@ class CachingIndexReader extends FilterIndexReader {
         DocId parent;
         boolean existing = false;
         int parentDocNum = inSegmentParents[n];
-        if (parentDocNum != -1) {
+        if (parentDocNum >= 0) {
             parent = DocId.create(parentDocNum);
         } else {
             parent = foreignParentDocIds.get(n);
+            HierarchyCacheFile h = hierarchy;
+            if (parent == null && h != null) {
+                parent = h.getParent(parentDocNum);
+                if (parent != null) {
+                    foreignParentDocIds.put(n, parent);
+                }
+            }
         }
 
         if (parent != null) {
@@ -235,7 +235,7 @@ class CachingIndexReader extends FilterIndexReader {
                     // inSegmentParents, which was invalid and is replaced
                     // with a UUIDDocId (points to a foreign segment).
                     // mark as unknown
-                    inSegmentParents[n] = -1;
+                    inSegmentParents[n] = HierarchyCacheFile.UNKNOWN;
                 }
             }
         }
@@ -264,8 +264,9 @@ class CachingIndexReader extends FilterIndexReader {
     }
 
     /**
-     * Uses the {@link #docNumber2id} cache for document lookups that are only
-     * interested in the {@link FieldSelectors#UUID}.
+     * Uses the {@link #hierarchy} or the {@link #docNumber2id} cache for
+     * document lookups that are only interested in the
+     * {@link FieldSelectors#UUID}.
      *
      * @param n the document number.
      * @param fieldSelector the field selector.
@@ -277,7 +278,11 @@ class CachingIndexReader extends FilterIndexReader {
             throws CorruptIndexException, IOException {
         if (fieldSelector == FieldSelectors.UUID) {
             Document doc;
-            NodeId id = docNumber2id.get(n);
+            HierarchyCacheFile h = hierarchy;
+            NodeId id = h != null ? h.getNodeId(n) : null;
+            if (id == null) {
+                id = docNumber2id.get(n);
+            }
             if (id == null) {
                 doc = super.document(n, fieldSelector);
                 id = new NodeId(doc.get(FieldNames.UUID));
@@ -351,7 +356,15 @@ class CachingIndexReader extends FilterIndexReader {
         } catch (InterruptedException e) {
             // ignore
         }
-        super.doClose();
+        HierarchyCacheFile h = hierarchy;
+        hierarchy = null;
+        try {
+            if (h != null) {
+                h.close();
+            }
+        } finally {
+            super.doClose();
+        }
     }
 
     //----------------------< internal >----------------------------------------
@@ -368,16 +381,13 @@ class CachingIndexReader extends FilterIndexReader {
     }
 
     /**
-     * Initializes the {@link CachingIndexReader#inSegmentParents} and
-     * {@link CachingIndexReader#foreignParentDocIds} caches.
+     * Initializes the {@link CachingIndexReader#inSegmentParents} cache and
+     * the {@link CachingIndexReader#hierarchy} from the
+     * {@link HierarchyCacheFile} of the index segment. If the segment does
+     * not have a hierarchy cache file yet, it is written first.
      */
     private class CacheInitializer implements Runnable {
 
-        /**
-         * The {@link #inSegmentParents} is persisted using this filename.
-         */
-        private static final String FILE_CACHE_NAME_ARRAY = "cache.inSegmentParents";
-
         /**
          * From where to read.
          */
@@ -414,13 +424,21 @@ class CachingIndexReader extends FilterIndexReader {
                     // immediately return when stop is requested
                     return;
                 }
-                boolean initCacheFromFile = loadCacheFromFile();
-                if (!initCacheFromFile) {
-                    // file-based cache is not available, load from the
-                    // repository
+                HierarchyCacheFile file = openCacheFile();
+                if (file == null) {
+                    // segment was created without a hierarchy cache file
                     log.debug("persisted cache is not available, will load directly from the repository.");
-                    initializeParents(reader);
+                    HierarchyCacheFile.Writer writer = new HierarchyCacheFile.Writer() {
+                        @Override
+                        protected boolean isStopRequested() {
+                            return stopRequested;
+                        }
+                    };
+                    if (writer.write(reader)) {
+                        file = openCacheFile();
+                    }
                 }
+                hierarchy = file;
             } catch (Exception e) {
                 // only log warn message during regular operation
                 if (!stopRequested) {
@@ -449,273 +467,35 @@ class CachingIndexReader extends FilterIndexReader {
         }
 
         /**
-         * Initializes the {@link CachingIndexReader#inSegmentParents} and
-         * {@link CachingIndexReader#foreignParentDocIds} caches.
+         * Opens the hierarchy cache file and reads the parents into
+         * {@link CachingIndexReader#inSegmentParents}.
          *
-         * @param reader the underlying index reader.
-         * @throws IOException if an error occurs while reading from the index.
+         * @return the hierarchy cache file or <code>null</code> if the index
+         *         segment does not have one or it is corrupt.
+         * @throws IOException if a corrupt file cannot be removed.
          */
-        private void initializeParents(IndexReader reader) throws IOException {
-            double foreignParents = 0;
-            long time = System.currentTimeMillis();
-
-            // initialize in multiple passes with
-            // a fixed number of nodes at a time
-            final Term[] startUUID = new Term[]{TermFactory.createUUIDTerm("")};
-
-            for (;;) {
-                final Map<Object, NodeInfo> docs = new HashMap<Object, NodeInfo>();
-                final Map<NodeId, Integer> parents = new HashMap<NodeId, Integer>();
-
-                if (startUUID[0].text().length() != 0) {
-                    // force reading the next uuid after startUUID
-                    startUUID[0] = TermFactory.createUUIDTerm(startUUID[0].text() + "_");
-                }
-                // read UUIDs
-                collectTermDocs(reader, startUUID[0], new TermDocsCollector() {
-                    public boolean collect(Term term, TermDocs tDocs) throws IOException {
-                        // remember start term for next batch
-                        startUUID[0] = term;
-                        if (docs.size() >= MAX_CACHE_INIT_BATCH_SIZE) {
-                            return false;
-                        }
-                        NodeId id = new NodeId(term.text());
-                        while (tDocs.next()) {
-                            int doc = tDocs.doc();
-                            // skip shareable nodes
-                            if (!shareableNodes.get(doc)) {
-                                NodeInfo info = new NodeInfo(doc, id);
-                                docs.put(doc, info);
-                            }
-                        }
-                        return true;
-                    }
-                });
-
-                if (docs.isEmpty()) {
-                    // no more nodes to initialize, persist cache to file
-                    saveCacheToFile();
-                    break;
-                }
-
-                // read PARENTs (full scan)
-                collectTermDocs(reader, new Term(FieldNames.PARENT, "0"), new TermDocsCollector() {
-                    public boolean collect(Term term, TermDocs tDocs) throws IOException {
-                        NodeId id = new NodeId(term.text());
-                        while (tDocs.next()) {
-                            Integer docId = tDocs.doc();
-                            NodeInfo info = docs.get(docId);
-                            if (info == null) {
-                                // shareable node, see above
-                                // or cache init is batched
-                            } else {
-                                info.parent = id;
-                                docs.remove(docId);
-                                docs.put(info.id, info);
-                                parents.put(id, null);
-                            }
-                        }
-                        return true;
-                    }
-                });
-
-                // scan UUIDs again to get document numbers for parents
-                collectTermDocs(reader, TermFactory.createUUIDTerm(""), new TermDocsCollector() {
-                    public boolean collect(Term term, TermDocs tDocs) throws IOException {
-                        NodeId id = new NodeId(term.text());
-                        while (tDocs.next()) {
-                            int doc = tDocs.doc();
-                            if (parents.containsKey(id)) {
-                                parents.put(id, doc);
-                            }
-                        }
-                        return true;
-                    }
-                });
-
-                if (stopRequested) {
-                    return;
-                }
-
-                for (NodeInfo info : docs.values()) {
-                    int parentDocId = -1;
-                    NodeInfo parent = docs.get(info.parent);
-                    if (parent != null) {
-                        parentDocId = parent.docId;
-                    } else {
-                        Integer docId = parents.get(info.parent);
-                        if (docId != null) {
-                            parentDocId = docId;
-                        }
-                    }
-                    if (parentDocId != -1) {
-                        inSegmentParents[info.docId] = parentDocId;
-                    } else if (info.parent != null) {
-                        foreignParents++;
-                        foreignParentDocIds.put(info.docId, DocId.create(info.parent));
-                    } else if (shareableNodes.get(info.docId)) {
-                        Document doc = reader.document(info.docId, FieldSelectors.UUID_AND_PARENT);
-                        foreignParentDocIds.put(info.docId, DocId.create(doc.getValues(FieldNames.PARENT)));
-                    } else {
-                        // no parent -> root node
-                        foreignParentDocIds.put(info.docId, DocId.NULL);
-                    }
-                }
-            }
-
-            if (log.isDebugEnabled()) {
-                NumberFormat nf = NumberFormat.getPercentInstance();
-                nf.setMaximumFractionDigits(1);
-                time = System.currentTimeMillis() - time;
-                if (inSegmentParents.length > 0) {
-                    foreignParents /= inSegmentParents.length;
-                }
-                log.debug("initialized {} DocIds in {} ms, {} foreign parents",
-                        new Object[]{
-                            inSegmentParents.length,
-                            time,
-                            nf.format(foreignParents)
-                        });
-            }
-        }
-
-        /**
-         * Collects term docs for a given start term. All terms with the same
-         * field as <code>start</code> are enumerated.
-         *
-         * @param reader the index reader.
-         * @param start the term where to start the term enumeration.
-         * @param collector collects the term docs for each term.
-         * @throws IOException if an error occurs while reading from the index.
-         */
-        private void collectTermDocs(IndexReader reader,
-                                     Term start,
-                                     TermDocsCollector collector)
-                throws IOException {
-            TermDocs tDocs = reader.termDocs();
-            try {
-                TermEnum terms = reader.terms(start);
-                try {
-                    int count = 0;
-                    do {
-                        Term t = terms.term();
-                        if (t != null && t.field() == start.field()) {
-                            tDocs.seek(terms);
-                            if (!collector.collect(t, tDocs)) {
-                                // collector indicated break
-                                break;
-                            }
-                        } else {
-                            break;
-                        }
-                        // once in a while check if we should quit
-                        if (++count % 10000 == 0) {
-                            if (stopRequested) {
-                                break;
-                            }
-                        }
-                    } while (terms.next());
-                } finally {
-                    terms.close();
-                }
-            } finally {
-                tDocs.close();
-            }
-        }
-
-        /**
-         * Persists the cache info {@link #inSegmentParents} to a file:
-         * {@link #FILE_CACHE_NAME_ARRAY}, for faster init times on startup.
-         * 
-         * see https://issues.apache.org/jira/browse/JCR-3107
-         */
-        public void saveCacheToFile() throws IOException {
-            IndexOutput io = null;
-            try {
-                io = reader.directory().createOutput(FILE_CACHE_NAME_ARRAY);
-                for (int parent : inSegmentParents) {
-                    io.writeInt(parent);
-                }
-            } catch (Exception e) {
-                log.error(
-                        "Error saving " + FILE_CACHE_NAME_ARRAY + ": "
-                                + e.getMessage(), e);
-            } finally {
-                if (io != null) {
-                    io.close();
-                }
-            }
-        }
-
-        /**
-         * Loads the cache info {@link #inSegmentParents} from the file
-         * {@link #FILE_CACHE_NAME_ARRAY}.
-         * 
-         * see https://issues.apache.org/jira/browse/JCR-3107
-         * 
-         * @return true if the cache has been initialized of false if the cache
-         *         file does not exist yet, or an error happened
-         */
-        private boolean loadCacheFromFile() throws IOException {
-            IndexInput ii = null;
+        private HierarchyCacheFile openCacheFile() throws IOException {
             try {
                 long time = System.currentTimeMillis();
-                ii = reader.directory().openInput(FILE_CACHE_NAME_ARRAY);
-                for (int i = 0; i < inSegmentParents.length; i++) {
-                    inSegmentParents[i] = ii.readInt();
+                HierarchyCacheFile file = HierarchyCacheFile.open(
+                        reader.directory(), inSegmentParents);
+                if (file != null) {
+                    log.debug(
+                            "persisted cache initialized {} DocIds in {} ms",
+                            new Object[] { inSegmentParents.length,
+                                    System.currentTimeMillis() - time });
                 }
-                log.debug(
-                        "persisted cache initialized {} DocIds in {} ms",
-                        new Object[] { inSegmentParents.length,
-                                System.currentTimeMillis() - time });
-                return true;
-            } catch (FileNotFoundException ignore) {
-                // expected in the case where the file-based cache has not been
-                // initialized yet
-            } catch (IOException ignore) {
+                return file;
+            } catch (IOException e) {
                 log.warn(
                         "Saved state of CachingIndexReader is corrupt, will try to remove offending file "
-                                + FILE_CACHE_NAME_ARRAY, ignore);
+                                + HierarchyCacheFile.FILE_NAME, e);
                 // In the case where is a read error, the cache file is removed
-                // so it can be recreated after
-                // the cache loads the data from the repository directly
-                reader.directory().deleteFile(FILE_CACHE_NAME_ARRAY);
-            } finally {
-                if (ii != null) {
-                    ii.close();
-                }
+                // so it can be recreated from the index
+                Arrays.fill(inSegmentParents, HierarchyCacheFile.UNKNOWN);
+                reader.directory().deleteFile(HierarchyCacheFile.FILE_NAME);
+                return null;
             }
-            return false;
-        }
-    }
-
-    /**
-     * Simple interface to collect a term and its term docs.
-     */
-    private interface TermDocsCollector {
-
-        /**
-         * Called for each term encountered.
-         *
-         * @param term the term.
-         * @param tDocs the term docs of <code>term</code>.
-         * @return false if the collector does not wish to collect more TermDocs.
-         * @throws IOException if an error occurs while reading from the index.
-         */
-        boolean collect(Term term, TermDocs tDocs) throws IOException;
-    }
-
-    private final static class NodeInfo {
-
-        final int docId;
-
-        final NodeId id;
-
-        NodeId parent;
-
-        public NodeInfo(int docId, NodeId id) {
-            this.docId = docId;
-            this.id = id;
         }
     }
 }
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>DefaultIndexMergePolicy</code> puts the segments into buckets by
+ * their number of documents. The first bucket holds segments with up to
+ * {@link SearchIndex#getMinMergeDocs()} documents, the limit of each
+ * further bucket is {@link SearchIndex#getMergeFactor()} times the limit of
+ * the previous one. Once a bucket contains <code>mergeFactor</code>
+ * segments they are merged. Segments with more than
+ * {@link SearchIndex#getMaxMergeDocs()} documents are not merged.
+ */
+public class DefaultIndexMergePolicy implements IndexMergePolicy {
+
+    /**
+     * minMergeDocs config parameter.
+     */
+    private int minMergeDocs = SearchIndex.DEFAULT_MIN_MERGE_DOCS;
+
+    /**
+     * maxMergeDocs config parameter
+     */
+    private int maxMergeDocs = SearchIndex.DEFAULT_MAX_MERGE_DOCS;
+
+    /**
+     * mergeFactor config parameter
+     */
+    private int mergeFactor = SearchIndex.DEFAULT_MERGE_FACTOR;
+
+    /**
+     * @inheritDoc
+     */
+    public void init(SearchIndex handler) {
+        minMergeDocs = handler.getMinMergeDocs();
+        maxMergeDocs = handler.getMaxMergeDocs();
+        mergeFactor = handler.getMergeFactor();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public List<List<Segment>> findMerges(List<Segment> segments) {
+        List<IndexBucket> buckets = createBuckets();
+        for (Segment segment : segments) {
+            IndexBucket bucket = buckets.get(buckets.size() - 1);
+            for (IndexBucket indexBucket : buckets) {
+                bucket = indexBucket;
+                if (bucket.fits(segment.getNumDocs())) {
+                    break;
+                }
+            }
+            bucket.add(segment);
+        }
+
+        List<List<Segment>> merges = new ArrayList<List<Segment>>();
+        for (IndexBucket bucket : buckets) {
+            if (bucket.allowsMerge()
+                    && bucket.size() >= mergeFactor && bucket.size() > 2) {
+                merges.add(bucket);
+            }
+        }
+        return merges;
+    }
+
+    /**
+     * @return the empty buckets in ascending document limit.
+     */
+    private List<IndexBucket> createBuckets() {
+        List<IndexBucket> buckets = new ArrayList<IndexBucket>();
+        long lower = 0;
+        long upper = minMergeDocs;
+        while (upper < maxMergeDocs) {
+            buckets.add(new IndexBucket(lower, upper, true));
+            lower = upper + 1;
+            upper *= mergeFactor;
+        }
+        // one with upper = maxMergeDocs
+        buckets.add(new IndexBucket(lower, maxMergeDocs, false));
+        // and another one as overflow, just in case...
+        buckets.add(new IndexBucket(maxMergeDocs + 1, Long.MAX_VALUE, false));
+        return buckets;
+    }
+
+    /**
+     * Implements a <code>List</code> with a document limit value. An
+     * <code>IndexBucket</code> contains {@link Segment}s with documents less
+     * or equal the document limit of the bucket.
+     */
+    private static final class IndexBucket extends ArrayList<Segment> {
+
+        private static final long serialVersionUID = 2985514550083374904L;
+
+        /**
+         * The lower document limit.
+         */
+        private final long lower;
+
+        /**
+         * The upper document limit.
+         */
+        private final long upper;
+
+        /**
+         * Flag indicating if indexes in this bucket can be merged.
+         */
+        private final boolean allowMerge;
+
+        /**
+         * Creates a new <code>IndexBucket</code>. Limits are both inclusive.
+         *
+         * @param lower document limit.
+         * @param upper document limit.
+         * @param allowMerge if indexes in this bucket can be merged.
+         */
+        IndexBucket(long lower, long upper, boolean allowMerge) {
+            this.lower = lower;
+            this.upper = upper;
+            this.allowMerge = allowMerge;
+        }
+
+        /**
+         * Returns <code>true</code> if the number of documents fit in this
+         * <code>IndexBucket</code>; otherwise <code>false</code>
+         *
+         * @param numDocs the number of documents.
+         * @return <code>true</code> if <code>numDocs</code> fit.
+         */
+        boolean fits(long numDocs) {
+            return numDocs >= lower && numDocs <= upper;
+        }
+
+        /**
+         * Returns <code>true</code> if indexes in this bucket can be merged.
+         *
+         * @return <code>true</code> if indexes in this bucket can be merged.
+         */
+        boolean allowsMerge() {
+            return allowMerge;
+        }
+    }
+}
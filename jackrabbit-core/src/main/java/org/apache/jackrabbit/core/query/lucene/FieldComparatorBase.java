@@ -71,6 +71,17 @@ abstract public class FieldComparatorBase extends FieldComparator {
         bottom = getValue(slot);
     }
 
+    /**
+     * Returns the bottom value. Subclasses that keep their values in typed
+     * arrays use it to compare documents without creating a
+     * <code>Comparable</code> for each document.
+     *
+     * @return  the bottom value
+     */
+    protected Comparable<?> getBottom() {
+        return bottom;
+    }
+
     /**
      * Compare two values
      *
@@ -93,6 +104,16 @@ abstract public class FieldComparatorBase extends FieldComparator {
         return Util.compare(val1, val2);
     }
 
+    /**
+     * Compares two values in the same way as {@link #compare(Comparable, Comparable)},
+     * used to merge the top hits of index segments that were searched
+     * separately.
+     */
+    @Override
+    public int compareValues(Object first, Object second) {
+        return compare((Comparable<?>) first, (Comparable<?>) second);
+    }
+
     @Override
     public void copy(int slot, int doc) throws IOException {
         setValue(slot, sortValue(doc));
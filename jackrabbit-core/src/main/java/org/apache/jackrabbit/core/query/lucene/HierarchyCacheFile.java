@@ -0,0 +1,488 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.CloseableThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <code>HierarchyCacheFile</code> is the persisted hierarchy of an index
+ * segment. The file is written when the segment is created and only read
+ * afterwards: the documents of a persistent index are never renumbered,
+ * documents are only marked as deleted.
+ * <p>
+ * The file contains:
+ * <ul>
+ * <li>the format version and the number of documents of the segment,</li>
+ * <li>the parent of every document: the document number of the parent if
+ * the parent is in the same segment, {@link #NO_PARENT} for the root node,
+ * {@link #UNKNOWN} for shareable and deleted nodes, otherwise a reference
+ * into the table of foreign parents,</li>
+ * <li>the number of foreign parents followed by their node ids and</li>
+ * <li>the node id of every document, 16 bytes per document.</li>
+ * </ul>
+ * The parents and foreign parents are read into memory when the file is
+ * opened, the node ids are read on demand with clones of a single
+ * <code>IndexInput</code>, which is memory mapped if the directory supports
+ * it.
+ */
+final class HierarchyCacheFile {
+
+    /**
+     * The logger instance for this class.
+     */
+    private static final Logger log = LoggerFactory.getLogger(HierarchyCacheFile.class);
+
+    /**
+     * The name of the file in the index directory.
+     */
+    static final String FILE_NAME = "cache.hierarchy";
+
+    /**
+     * The name of the file that only contained the in segment parents of
+     * an index. It is replaced with {@link #FILE_NAME}.
+     */
+    static final String LEGACY_FILE_NAME = "cache.inSegmentParents";
+
+    /**
+     * The parent of a document is not known.
+     */
+    static final int UNKNOWN = -1;
+
+    /**
+     * The document does not have a parent.
+     */
+    static final int NO_PARENT = -2;
+
+    /**
+     * The format version of the file.
+     */
+    private static final int FORMAT = 1;
+
+    /**
+     * Parents with a value less or equal to this value refer to an entry in
+     * the table of foreign parents.
+     */
+    private static final int FOREIGN_PARENT = -3;
+
+    /**
+     * The number of documents whose node ids are collected in one pass
+     * over the id terms while the file is written. 16MB of memory.
+     */
+    private static final int ID_BATCH_SIZE = 1024 * 1024;
+
+    /**
+     * The number of bytes that are read at once.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The node ids of the foreign parents, two longs per node id.
+     */
+    private final long[] foreignParents;
+
+    /**
+     * The input the node ids are read from.
+     */
+    private final IndexInput ids;
+
+    /**
+     * The position of the first node id in {@link #ids}.
+     */
+    private final long idsOffset;
+
+    /**
+     * The clones of {@link #ids} for the threads that read node ids.
+     */
+    private final CloseableThreadLocal<IndexInput> idInputs =
+            new CloseableThreadLocal<IndexInput>() {
+        @Override
+        protected IndexInput initialValue() {
+            return (IndexInput) ids.clone();
+        }
+    };
+
+    private HierarchyCacheFile(IndexInput ids,
+                               long idsOffset,
+                               long[] foreignParents) {
+        this.ids = ids;
+        this.idsOffset = idsOffset;
+        this.foreignParents = foreignParents;
+    }
+
+    /**
+     * Opens the hierarchy cache file of an index segment.
+     *
+     * @param directory the directory of the index segment.
+     * @param parents   the array where the parents are read into, one entry
+     *                  per document in the index segment.
+     * @return the hierarchy cache file or <code>null</code> if the segment
+     *         does not have one.
+     * @throws IOException if the file cannot be read or does not match the
+     *                     index segment.
+     */
+    static HierarchyCacheFile open(Directory directory, int[] parents)
+            throws IOException {
+        if (!directory.fileExists(FILE_NAME)) {
+            return null;
+        }
+        IndexInput in = directory.openInput(FILE_NAME);
+        boolean success = false;
+        try {
+            int format = in.readInt();
+            if (format != FORMAT) {
+                throw new IOException("Unknown format: " + format);
+            }
+            int maxDoc = in.readInt();
+            if (maxDoc != parents.length) {
+                throw new IOException("File contains " + maxDoc
+                        + " documents, index segment " + parents.length);
+            }
+            readInts(in, parents);
+            long[] foreignParents = new long[in.readInt() * 2];
+            for (int i = 0; i < foreignParents.length; i++) {
+                foreignParents[i] = in.readLong();
+            }
+            long idsOffset = in.getFilePointer();
+            if (in.length() != idsOffset + 16L * maxDoc) {
+                throw new IOException("File is truncated");
+            }
+            success = true;
+            return new HierarchyCacheFile(in, idsOffset, foreignParents);
+        } finally {
+            if (!success) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the parent of a document.
+     *
+     * @param parent the parent of the document as read into the array that
+     *               was passed to {@link #open(Directory, int[])}.
+     * @return the parent or <code>null</code> if the parent is not known.
+     *         Parents within the segment are not resolved by this method.
+     */
+    DocId getParent(int parent) {
+        if (parent == NO_PARENT) {
+            return DocId.NULL;
+        } else if (parent <= FOREIGN_PARENT) {
+            int i = (FOREIGN_PARENT - parent) * 2;
+            return DocId.create(new NodeId(
+                    foreignParents[i], foreignParents[i + 1]));
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the node id of a document.
+     *
+     * @param n the document number.
+     * @return the node id or <code>null</code> if the document was already
+     *         deleted when the file was written.
+     * @throws IOException if an error occurs while reading from the file.
+     */
+    NodeId getNodeId(int n) throws IOException {
+        IndexInput in = idInputs.get();
+        in.seek(idsOffset + 16L * n);
+        long msb = in.readLong();
+        long lsb = in.readLong();
+        if (msb == 0 && lsb == 0) {
+            return null;
+        }
+        return new NodeId(msb, lsb);
+    }
+
+    /**
+     * Closes this file.
+     *
+     * @throws IOException if an error occurs while closing the file.
+     */
+    void close() throws IOException {
+        idInputs.close();
+        ids.close();
+    }
+
+    //----------------------------< internal >----------------------------------
+
+    /**
+     * Reads big endian integers into an array.
+     *
+     * @param in     the input.
+     * @param values the array to fill.
+     * @throws IOException if an error occurs while reading.
+     */
+    private static void readInts(IndexInput in, int[] values)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteBuffer bytes = ByteBuffer.wrap(buffer);
+        int offset = 0;
+        while (offset < values.length) {
+            int num = Math.min(values.length - offset, BUFFER_SIZE / 4);
+            in.readBytes(buffer, 0, num * 4);
+            bytes.clear();
+            bytes.asIntBuffer().get(values, offset, num);
+            offset += num;
+        }
+    }
+
+    //-----------------------------< Writer >-----------------------------------
+
+    /**
+     * Writes the hierarchy cache file of an index segment. The parents are
+     * resolved by enumerating the parent and the id terms of the segment
+     * side by side, both are sorted by node id.
+     */
+    static class Writer {
+
+        /**
+         * Writes the hierarchy cache file of an index segment into the
+         * directory of the segment. An existing file is overwritten.
+         *
+         * @param reader the reader on the index segment.
+         * @return <code>true</code> if the file was written,
+         *         <code>false</code> if writing was stopped.
+         * @throws IOException if an error occurs while reading from the index
+         *                     or writing the file.
+         */
+        boolean write(IndexReader reader) throws IOException {
+            long time = System.currentTimeMillis();
+            Directory directory = reader.directory();
+            int[] parents = new int[reader.maxDoc()];
+            Arrays.fill(parents, UNKNOWN);
+            long[] foreignParents = resolveParents(reader, parents);
+            if (foreignParents == null) {
+                return false;
+            }
+            boolean success = false;
+            IndexOutput out = directory.createOutput(FILE_NAME);
+            try {
+                out.writeInt(FORMAT);
+                out.writeInt(parents.length);
+                for (int parent : parents) {
+                    out.writeInt(parent);
+                }
+                out.writeInt(foreignParents.length / 2);
+                for (long value : foreignParents) {
+                    out.writeLong(value);
+                }
+                success = writeIds(reader, out);
+            } finally {
+                out.close();
+                if (!success) {
+                    directory.deleteFile(FILE_NAME);
+                }
+            }
+            if (!success) {
+                return false;
+            }
+            if (directory.fileExists(LEGACY_FILE_NAME)) {
+                directory.deleteFile(LEGACY_FILE_NAME);
+            }
+            log.debug("wrote hierarchy of {} documents in {} ms",
+                    parents.length, System.currentTimeMillis() - time);
+            return true;
+        }
+
+        /**
+         * Called once in a while when the file is written.
+         *
+         * @return <code>true</code> if writing the file should be stopped.
+         *         This implementation always returns <code>false</code>.
+         */
+        protected boolean isStopRequested() {
+            return false;
+        }
+
+        /**
+         * Resolves the parents of the documents in a segment.
+         *
+         * @param reader  the reader on the index segment.
+         * @param parents the array to fill with the parents.
+         * @return the node ids of the foreign parents, two longs per node id
+         *         or <code>null</code> if stop was requested.
+         * @throws IOException if an error occurs while reading from the index.
+         */
+        private long[] resolveParents(IndexReader reader, int[] parents)
+                throws IOException {
+            BitSet shareableNodes = new BitSet();
+            TermDocs tDocs = reader.termDocs(
+                    new Term(FieldNames.SHAREABLE_NODE, ""));
+            try {
+                while (tDocs.next()) {
+                    shareableNodes.set(tDocs.doc());
+                }
+            } finally {
+                tDocs.close();
+            }
+
+            long[] foreignParents = new long[16];
+            int numForeign = 0;
+            tDocs = reader.termDocs();
+            TermEnum uuids = reader.terms(TermFactory.createUUIDTerm(""));
+            TermEnum parentTerms = reader.terms(new Term(FieldNames.PARENT, ""));
+            try {
+                int count = 0;
+                do {
+                    Term parentTerm = parentTerms.term();
+                    if (parentTerm == null
+                            || parentTerm.field() != FieldNames.PARENT) {
+                        break;
+                    }
+                    if (++count % 10000 == 0 && isStopRequested()) {
+                        return null;
+                    }
+                    String parentUUID = parentTerm.text();
+                    int parent;
+                    if (parentUUID.length() == 0) {
+                        parent = NO_PARENT;
+                    } else {
+                        parent = findDocument(uuids, tDocs, parentUUID);
+                        if (parent == -1) {
+                            if (numForeign * 2 == foreignParents.length) {
+                                foreignParents = Arrays.copyOf(
+                                        foreignParents, foreignParents.length * 2);
+                            }
+                            NodeId id = new NodeId(parentUUID);
+                            foreignParents[numForeign * 2] = id.getMostSignificantBits();
+                            foreignParents[numForeign * 2 + 1] = id.getLeastSignificantBits();
+                            parent = FOREIGN_PARENT - numForeign++;
+                        }
+                    }
+                    tDocs.seek(parentTerms);
+                    while (tDocs.next()) {
+                        int doc = tDocs.doc();
+                        if (!shareableNodes.get(doc)) {
+                            parents[doc] = parent;
+                        }
+                    }
+                } while (parentTerms.next());
+            } finally {
+                parentTerms.close();
+                uuids.close();
+                tDocs.close();
+            }
+
+            // documents without a parent field are root nodes as well
+            for (int i = 0; i < parents.length; i++) {
+                if (parents[i] == UNKNOWN && !shareableNodes.get(i)
+                        && !reader.isDeleted(i)) {
+                    parents[i] = NO_PARENT;
+                }
+            }
+            return Arrays.copyOf(foreignParents, numForeign * 2);
+        }
+
+        /**
+         * Moves the id terms forward to the given node id and returns the
+         * first document with that node id.
+         *
+         * @param uuids the id terms.
+         * @param tDocs term docs to read the documents of a term.
+         * @param uuid  the node id.
+         * @return the document number or -1 if the segment does not contain
+         *         the node.
+         * @throws IOException if an error occurs while reading from the index.
+         */
+        private int findDocument(TermEnum uuids, TermDocs tDocs, String uuid)
+                throws IOException {
+            for (;;) {
+                Term t = uuids.term();
+                if (t == null || t.field() != FieldNames.UUID) {
+                    return -1;
+                }
+                int c = t.text().compareTo(uuid);
+                if (c == 0) {
+                    tDocs.seek(uuids);
+                    return tDocs.next() ? tDocs.doc() : -1;
+                } else if (c > 0) {
+                    return -1;
+                } else if (!uuids.next()) {
+                    return -1;
+                }
+            }
+        }
+
+        /**
+         * Writes the node ids of all documents, in batches of
+         * {@link #ID_BATCH_SIZE} documents.
+         *
+         * @param reader the reader on the index segment.
+         * @param out    the output to write to.
+         * @return <code>false</code> if stop was requested.
+         * @throws IOException if an error occurs while reading from the index
+         *                     or writing the file.
+         */
+        private boolean writeIds(IndexReader reader, IndexOutput out)
+                throws IOException {
+            int maxDoc = reader.maxDoc();
+            for (int start = 0; start < maxDoc; start += ID_BATCH_SIZE) {
+                int end = Math.min(maxDoc, start + ID_BATCH_SIZE);
+                long[] ids = new long[(end - start) * 2];
+                TermDocs tDocs = reader.termDocs();
+                TermEnum uuids = reader.terms(TermFactory.createUUIDTerm(""));
+                try {
+                    int count = 0;
+                    do {
+                        Term t = uuids.term();
+                        if (t == null || t.field() != FieldNames.UUID) {
+                            break;
+                        }
+                        if (++count % 10000 == 0 && isStopRequested()) {
+                            return false;
+                        }
+                        NodeId id = null;
+                        tDocs.seek(uuids);
+                        while (tDocs.next()) {
+                            int doc = tDocs.doc();
+                            if (doc >= start && doc < end) {
+                                if (id == null) {
+                                    id = new NodeId(t.text());
+                                }
+                                ids[(doc - start) * 2] = id.getMostSignificantBits();
+                                ids[(doc - start) * 2 + 1] = id.getLeastSignificantBits();
+                            }
+                        }
+                    } while (uuids.next());
+                } finally {
+                    uuids.close();
+                    tDocs.close();
+                }
+                for (long value : ids) {
+                    out.writeLong(value);
+                }
+            }
+            return true;
+        }
+    }
+}
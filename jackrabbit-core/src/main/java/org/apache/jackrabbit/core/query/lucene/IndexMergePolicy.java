@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.util.List;
+
+/**
+ * <code>IndexMergePolicy</code> selects the persistent index segments that
+ * are merged into a new segment. The policy is asked whenever a segment is
+ * added to the index.
+ */
+public interface IndexMergePolicy {
+
+    /**
+     * Initializes this policy with the configuration of the search index.
+     *
+     * @param handler the search index.
+     */
+    void init(SearchIndex handler);
+
+    /**
+     * Selects the merges among <code>segments</code>. The segments are in
+     * the order they were added and are not part of a running merge. A
+     * segment must not be part of more than one of the returned merges.
+     *
+     * @param segments the segments that can be merged.
+     * @return the merges, each with at least two segments. An empty list if
+     *         no merge is needed.
+     */
+    List<List<Segment>> findMerges(List<Segment> segments);
+
+    /**
+     * An index segment that is a candidate for a merge.
+     */
+    final class Segment {
+
+        /**
+         * The name of the segment.
+         */
+        private final String name;
+
+        /**
+         * The number of documents in the segment.
+         */
+        private final int numDocs;
+
+        /**
+         * The size of the segment in bytes.
+         */
+        private final long size;
+
+        /**
+         * Creates a new segment.
+         *
+         * @param name    the name of the segment.
+         * @param numDocs the number of documents in the segment.
+         * @param size    the size of the segment in bytes.
+         */
+        public Segment(String name, int numDocs, long size) {
+            this.name = name;
+            this.numDocs = numDocs;
+            this.size = size;
+        }
+
+        /**
+         * @return the name of the segment.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of documents in the segment.
+         */
+        public int getNumDocs() {
+            return numDocs;
+        }
+
+        /**
+         * @return the size of the segment in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @inheritDoc
+         */
+        public String toString() {
+            return name + ":" + numDocs;
+        }
+    }
+}
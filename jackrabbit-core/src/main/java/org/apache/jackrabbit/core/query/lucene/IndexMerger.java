@@ -19,22 +19,28 @@ package org.apache.jackrabbit.core.query.lucene;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.apache.jackrabbit.api.stats.RepositoryStatistics.Type;
+import org.apache.jackrabbit.core.query.lucene.IndexMergePolicy.Segment;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Merges indexes in a separate daemon thread.
+ * Merges the indexes selected by an {@link IndexMergePolicy} in background
+ * threads. Up to <code>maxConcurrentMerges</code> merges run at the same
+ * time, further merges are queued.
  */
 class IndexMerger implements IndexListener {
 
@@ -44,24 +50,26 @@ class IndexMerger implements IndexListener {
     private static final Logger log = LoggerFactory.getLogger(IndexMerger.class);
 
     /**
-     * minMergeDocs config parameter.
+     * The policy that selects the indexes to merge.
      */
-    private int minMergeDocs = SearchIndex.DEFAULT_MIN_MERGE_DOCS;
+    private final IndexMergePolicy policy;
 
     /**
-     * maxMergeDocs config parameter
+     * The indexes that are not part of a scheduled merge, in the order they
+     * were added.
      */
-    private int maxMergeDocs = SearchIndex.DEFAULT_MAX_MERGE_DOCS;
+    private final List<Segment> idleIndexes = new ArrayList<Segment>();
 
     /**
-     * mergeFactor config parameter
+     * The maximum number of merges that run at the same time.
      */
-    private int mergeFactor = SearchIndex.DEFAULT_MERGE_FACTOR;
+    private int maxConcurrentMerges = SearchIndex.DEFAULT_MAX_CONCURRENT_MERGES;
 
     /**
-     * List of <code>IndexBucket</code>s in ascending document limit.
+     * Limits the rate at which merged indexes are written or
+     * <code>null</code> if merges are not throttled.
      */
-    private final List<IndexBucket> indexBuckets = new ArrayList<IndexBucket>();
+    private MergeRateLimiter rateLimiter;
 
     /**
      * The <code>MultiIndex</code> this index merger is working on.
@@ -103,15 +111,57 @@ class IndexMerger implements IndexListener {
      */
     private final List<Worker> busyMergers = new ArrayList<Worker>();
 
+    /**
+     * Workers that wait for a free merge slot. They are also contained in
+     * {@link #busyMergers}.
+     */
+    private final LinkedList<Worker> queuedMergers = new LinkedList<Worker>();
+
+    /**
+     * The number of workers that were passed to the executor and did not
+     * finish yet.
+     */
+    private int runningMergers = 0;
+
+    /**
+     * Number of completed merges.
+     */
+    private final AtomicLong mergeCounter;
+
+    /**
+     * Total time spent merging, in milliseconds.
+     */
+    private final AtomicLong mergeDuration;
+
+    /**
+     * Total number of bytes written by merges.
+     */
+    private final AtomicLong mergeSize;
+
+    /**
+     * Number of merges that are scheduled or running.
+     */
+    private final AtomicLong mergeBacklog;
+
     /**
      * Creates an <code>IndexMerger</code>.
      *
      * @param multiIndex the <code>MultiIndex</code>.
      * @param executor   the executor of the repository.
+     * @param policy     the policy that selects the indexes to merge.
+     * @param statistics the repository statistics.
      */
-    IndexMerger(MultiIndex multiIndex, Executor executor) {
+    IndexMerger(MultiIndex multiIndex,
+                Executor executor,
+                IndexMergePolicy policy,
+                RepositoryStatisticsImpl statistics) {
         this.multiIndex = multiIndex;
         this.executor = executor;
+        this.policy = policy;
+        this.mergeCounter = statistics.getCounter(Type.INDEX_MERGE_COUNTER);
+        this.mergeDuration = statistics.getCounter(Type.INDEX_MERGE_DURATION);
+        this.mergeSize = statistics.getCounter(Type.INDEX_MERGE_SIZE);
+        this.mergeBacklog = statistics.getCounter(Type.INDEX_MERGE_BACKLOG);
     }
 
     /**
@@ -131,78 +181,46 @@ class IndexMerger implements IndexListener {
      *
      * @param name the name of the index.
      * @param numDocs the number of documents it contains.
+     * @param size the size of the index in bytes.
      */
-    void indexAdded(String name, int numDocs) {
+    void indexAdded(String name, int numDocs, long size) {
         if (numDocs < 0) {
             throw new IllegalArgumentException("numDocs must be positive");
         }
         // multiple threads may enter this method:
-        // - the background thread of this IndexMerger, when it replaces indexes
-        //   after a successful merge
+        // - the background threads of this IndexMerger, when they replace
+        //   indexes after a successful merge
         // - a regular thread that updates the workspace
         //
         // therefore we have to synchronize this block
         synchronized (lock) {
-            // initially create buckets
-            if (indexBuckets.size() == 0) {
-                long lower = 0;
-                long upper = minMergeDocs;
-                while (upper < maxMergeDocs) {
-                    indexBuckets.add(new IndexBucket(lower, upper, true));
-                    lower = upper + 1;
-                    upper *= mergeFactor;
-                }
-                // one with upper = maxMergeDocs
-                indexBuckets.add(new IndexBucket(lower, maxMergeDocs, false));
-                // and another one as overflow, just in case...
-                indexBuckets.add(new IndexBucket(maxMergeDocs + 1, Long.MAX_VALUE, false));
-            }
-
-            // put index in bucket
-            IndexBucket bucket = indexBuckets.get(indexBuckets.size() - 1);
-            for (IndexBucket indexBucket : indexBuckets) {
-                bucket = indexBucket;
-                if (bucket.fits(numDocs)) {
-                    break;
-                }
-            }
-            bucket.add(new Index(name, numDocs));
+            idleIndexes.add(new Segment(name, numDocs, size));
 
             if (log.isDebugEnabled()) {
-                log.debug("index added: name=" + name + ", numDocs=" + numDocs);
-            }
-
-            // if bucket does not allow merge, we don't have to continue
-            if (!bucket.allowsMerge()) {
-                return;
+                log.debug("index added: name=" + name + ", numDocs=" + numDocs
+                        + ", size=" + size);
             }
 
-            // check if we need a merge
-            if (bucket.size() >= mergeFactor) {
-                long targetMergeDocs = bucket.upper;
-                targetMergeDocs = Math.min(targetMergeDocs * mergeFactor, maxMergeDocs);
-                // sum up docs in bucket
-                List<Index> indexesToMerge = new ArrayList<Index>();
-                int mergeDocs = 0;
-                for (Iterator<Index> it = bucket.iterator(); it.hasNext() && mergeDocs <= targetMergeDocs;) {
-                    indexesToMerge.add(it.next());
+            List<List<Segment>> merges = policy.findMerges(
+                    Collections.unmodifiableList(idleIndexes));
+            for (List<Segment> segments : merges) {
+                if (segments.size() < 2 || !idleIndexes.containsAll(segments)) {
+                    log.warn("ignoring invalid merge " + segments);
+                    continue;
                 }
-                if (indexesToMerge.size() > 2) {
-                    // found merge
-                    Index[] idxs = indexesToMerge.toArray(new Index[indexesToMerge.size()]);
-                    bucket.removeAll(indexesToMerge);
-                    if (log.isDebugEnabled()) {
-                        log.debug("requesting merge for " + indexesToMerge);
-                    }
-                    addMergeTask(new Merge(idxs));
-                    if (log.isDebugEnabled()) {
-                        int numBusy;
-                        synchronized (busyMergers) {
-                            numBusy = busyMergers.size();
-                        }
-                        log.debug("# of busy merge workers: " + numBusy);
-                    }
+                idleIndexes.removeAll(segments);
+                if (log.isDebugEnabled()) {
+                    log.debug("requesting merge for " + segments);
+                }
+                mergeBacklog.incrementAndGet();
+                addMergeTask(new Merge(segments));
+            }
+            if (!merges.isEmpty() && log.isDebugEnabled()) {
+                int numBusy;
+                synchronized (busyMergers) {
+                    numBusy = busyMergers.size();
                 }
+                log.debug("# of busy merge workers: " + numBusy);
             }
         }
     }
@@ -262,6 +280,14 @@ class IndexMerger implements IndexListener {
             // on the MultiIndex because we hold all indexReplacement permits.
             Worker[] workers;
             synchronized (busyMergers) {
+                // queued workers never start
+                for (Worker w : queuedMergers) {
+                    busyMergers.remove(w);
+                    w.terminate();
+                    mergeBacklog.decrementAndGet();
+                }
+                queuedMergers.clear();
+                busyMergers.notifyAll();
                 workers = busyMergers.toArray(new Worker[busyMergers.size()]);
             }
             for (Worker w : workers) {
@@ -280,31 +306,22 @@ class IndexMerger implements IndexListener {
     //-----------------------< merge properties >-------------------------------
 
     /**
-     * The merge factor.
-     *
-     * @param mergeFactor the merge factor.
-     */
-    public void setMergeFactor(int mergeFactor) {
-        this.mergeFactor = mergeFactor;
-    }
-
-
-    /**
-     * The initial threshold for number of documents to merge to a new index.
+     * The maximum number of merges that run at the same time.
      *
-     * @param minMergeDocs the min merge docs number.
+     * @param maxConcurrentMerges the maximum number of concurrent merges.
      */
-    public void setMinMergeDocs(int minMergeDocs) {
-        this.minMergeDocs = minMergeDocs;
+    public void setMaxConcurrentMerges(int maxConcurrentMerges) {
+        this.maxConcurrentMerges = Math.max(1, maxConcurrentMerges);
     }
 
     /**
-     * The maximum number of document to merge.
+     * The rate limiter shared by all merges.
      *
-     * @param maxMergeDocs the max merge docs number.
+     * @param rateLimiter the rate limiter or <code>null</code> if merges are
+     *                    not throttled.
      */
-    public void setMaxMergeDocs(int maxMergeDocs) {
-        this.maxMergeDocs = maxMergeDocs;
+    public void setRateLimiter(MergeRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
     }
 
     //------------------------------< internal >--------------------------------
@@ -319,62 +336,35 @@ class IndexMerger implements IndexListener {
             }
             synchronized (busyMergers) {
                 busyMergers.add(worker);
+                if (runningMergers >= maxConcurrentMerges) {
+                    queuedMergers.add(worker);
+                    return;
+                }
+                runningMergers++;
             }
             executor.execute(worker);
         }
     }
 
     /**
-     * Implements a simple struct that holds the name of an index and how
-     * many document it contains. <code>Index</code> is comparable using the
-     * number of documents it contains.
+     * Called when a worker finished. Removes the worker from the busy list
+     * and starts the next queued worker, if there is one.
+     *
+     * @param worker the worker that finished.
      */
-    private static final class Index implements Comparable<Index> {
-
-        /**
-         * The name of the index.
-         */
-        private final String name;
-
-        /**
-         * The number of documents the index contains.
-         */
-        private final int numDocs;
-
-        /**
-         * Creates a new index struct.
-         *
-         * @param name name of an index.
-         * @param numDocs number of documents it contains.
-         */
-        Index(String name, int numDocs) {
-            this.name = name;
-            this.numDocs = numDocs;
-        }
-
-        /**
-         * Indexes are first ordered by {@link #numDocs} and then by {@link
-         * #name}.
-         *
-         * @param o the other <code>Index</code>.
-         * @return a negative integer, zero, or a positive integer as this
-         *         Index is less than, equal to, or greater than the specified
-         *         Index.
-         */
-        public int compareTo(Index other) {
-            int val = numDocs < other.numDocs ? -1 : (numDocs == other.numDocs ? 0 : 1);
-            if (val != 0) {
-                return val;
-            } else {
-                return name.compareTo(other.name);
+    private void workerFinished(Worker worker) {
+        Worker next = null;
+        synchronized (busyMergers) {
+            busyMergers.remove(worker);
+            runningMergers--;
+            if (!quit.get() && !queuedMergers.isEmpty()) {
+                next = queuedMergers.removeFirst();
+                runningMergers++;
             }
+            busyMergers.notifyAll();
         }
-
-        /**
-         * @inheritDoc
-         */
-        public String toString() {
-            return name + ":" + numDocs;
+        if (next != null) {
+            executor.execute(next);
         }
     }
 
@@ -383,7 +373,7 @@ class IndexMerger implements IndexListener {
      */
     private static final class Merge {
 
-        private final Index[] indexes;
+        private final Segment[] indexes;
 
         /**
          * Merge task, to merge <code>indexes</code> into a new index with
@@ -391,68 +381,18 @@ class IndexMerger implements IndexListener {
          *
          * @param indexes the indexes to merge.
          */
-        Merge(Index[] indexes) {
-            this.indexes = new Index[indexes.length];
-            System.arraycopy(indexes, 0, this.indexes, 0, indexes.length);
+        Merge(List<Segment> indexes) {
+            this.indexes = indexes.toArray(new Segment[indexes.size()]);
         }
     }
 
     /**
-     * Implements a <code>List</code> with a document limit value. An
-     * <code>IndexBucket</code> contains {@link Index}es with documents less
-     * or equal the document limit of the bucket.
+     * @param bytes the number of bytes written.
+     * @param time  the time in milliseconds.
+     * @return the rate in kilo bytes per second.
      */
-    private static final class IndexBucket extends ArrayList<Index> {
-
-        private static final long serialVersionUID = 2985514550083374904L;
-
-        /**
-         * The lower document limit.
-         */
-        private final long lower;
-
-        /**
-         * The upper document limit.
-         */
-        private final long upper;
-
-        /**
-         * Flag indicating if indexes in this bucket can be merged.
-         */
-        private final boolean allowMerge;
-
-        /**
-         * Creates a new <code>IndexBucket</code>. Limits are both inclusive.
-         *
-         * @param lower document limit.
-         * @param upper document limit.
-         * @param allowMerge if indexes in this bucket can be merged.
-         */
-        IndexBucket(long lower, long upper, boolean allowMerge) {
-            this.lower = lower;
-            this.upper = upper;
-            this.allowMerge = allowMerge;
-        }
-
-        /**
-         * Returns <code>true</code> if the number of documents fit in this
-         * <code>IndexBucket</code>; otherwise <code>false</code>
-         *
-         * @param numDocs the number of documents.
-         * @return <code>true</code> if <code>numDocs</code> fit.
-         */
-        boolean fits(long numDocs) {
-            return numDocs >= lower && numDocs <= upper;
-        }
-
-        /**
-         * Returns <code>true</code> if indexes in this bucket can be merged.
-         *
-         * @return <code>true</code> if indexes in this bucket can be merged.
-         */
-        boolean allowsMerge() {
-            return allowMerge;
-        }
+    private static long kbPerSec(long bytes, long time) {
+        return bytes * 1000 / (Math.max(1, time) * 1024);
     }
 
     private class Worker implements Runnable, IndexListener {
@@ -500,6 +440,7 @@ class IndexMerger implements IndexListener {
                     // check if we should quit
                     if (!quit.get()) {
                         // enqueue task again and retry with another thread
+                        mergeBacklog.incrementAndGet();
                         addMergeTask(task);
                     }
                     return;
@@ -510,7 +451,7 @@ class IndexMerger implements IndexListener {
                 // get readers
                 String[] names = new String[task.indexes.length];
                 for (int i = 0; i < task.indexes.length; i++) {
-                    names[i] = task.indexes[i].name;
+                    names[i] = task.indexes[i].getName();
                 }
                 try {
                     log.debug("create new index");
@@ -523,13 +464,20 @@ class IndexMerger implements IndexListener {
                         try {
                             // do the merge
                             long time = System.currentTimeMillis();
-                            index.addIndexes(readers);
+                            index.addIndexes(readers, rateLimiter);
                             time = System.currentTimeMillis() - time;
                             int docCount = 0;
                             for (IndexReader reader : readers) {
                                 docCount += reader.numDocs();
                             }
-                            log.info("merged " + docCount + " documents in " + time + " ms into " + index.getName() + ".");
+                            long size = index.getSizeInBytes();
+                            mergeCounter.incrementAndGet();
+                            mergeDuration.addAndGet(time);
+                            mergeSize.addAndGet(size);
+                            log.info("merged " + docCount + " documents in "
+                                    + time + " ms into " + index.getName()
+                                    + " (" + (size / 1024) + " KB, "
+                                    + kbPerSec(size, time) + " KB/s).");
                         } finally {
                             for (IndexReader reader : readers) {
                                 try {
@@ -562,25 +510,33 @@ class IndexMerger implements IndexListener {
                             log.debug("deleting index " + index.getName());
                             multiIndex.deleteIndex(index);
                             // add task again and retry
-                            addMergeTask(task);
+                            if (!quit.get()) {
+                                mergeBacklog.incrementAndGet();
+                                addMergeTask(task);
+                            }
                         }
                     }
                 } catch (Throwable e) {
                     log.error("Error while merging indexes: ", e);
                 }
             } finally {
-                synchronized (terminated) {
-                    terminated.set(true);
-                    terminated.notifyAll();
-                }
-                synchronized (busyMergers) {
-                    busyMergers.remove(this);
-                    busyMergers.notifyAll();
-                }
+                mergeBacklog.decrementAndGet();
+                terminate();
+                workerFinished(this);
                 log.debug("Worker finished");
             }
         }
 
+        /**
+         * Marks this worker as terminated.
+         */
+        void terminate() {
+            synchronized (terminated) {
+                terminated.set(true);
+                terminated.notifyAll();
+            }
+        }
+
         /**
          * @inheritDoc
          */
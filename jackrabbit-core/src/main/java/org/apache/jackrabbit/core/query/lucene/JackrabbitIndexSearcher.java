@@ -17,6 +17,11 @@
 package org.apache.jackrabbit.core.query.lucene;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import org.apache.jackrabbit.core.id.NodeId;
 
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.query.lucene.constraint.EvaluationContext;
@@ -24,8 +29,10 @@ import org.apache.jackrabbit.core.state.ItemStateManager;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Sort;
 
 /**
@@ -51,6 +58,17 @@ public class JackrabbitIndexSearcher
      */
     private final ItemStateManager ism;
 
+    /**
+     * The executor that scores index segments concurrently, or
+     * <code>null</code> if the segments are scored sequentially.
+     */
+    private Executor segmentExecutor;
+
+    /**
+     * The maximum number of threads that score a query.
+     */
+    private int threadsPerQuery;
+
     /**
      * Creates a new jackrabbit index searcher.
      *
@@ -67,6 +85,19 @@ public class JackrabbitIndexSearcher
         this.ism = ism;
     }
 
+    /**
+     * Enables the concurrent scoring of the index segments for sorted
+     * queries that are scored per segment.
+     *
+     * @param executor the executor that scores the segments.
+     * @param threadsPerQuery the maximum number of threads that score a
+     *                        query, including the calling thread.
+     */
+    public void setSegmentExecutor(Executor executor, int threadsPerQuery) {
+        this.segmentExecutor = executor;
+        this.threadsPerQuery = threadsPerQuery;
+    }
+
     /**
      * Executes the query and returns the hits that match the query.
      *
@@ -107,12 +138,112 @@ public class JackrabbitIndexSearcher
                 hits = new LuceneQueryHits(reader, this, query);
             } else {
                 hits = new SortedLuceneQueryHits(this, query, sort,
-                        resultFetchHint);
+                        resultFetchHint, getSegmentSearcher(query));
             }
         }
         return hits;
     }
 
+    /**
+     * Counts the hits of the query. Unlike {@link #evaluate(Query)} this
+     * method does not read the node ids of the hits from the index, except
+     * for a uniformly distributed random sample of up to
+     * <code>sampleSize</code> hits, which is added to <code>sample</code>.
+     *
+     * @param query      the query to count.
+     * @param sampleSize the maximum number of hits in the sample.
+     * @param sample     where the node ids of the sampled hits are added.
+     * @return the number of hits.
+     * @throws IOException if an error occurs while executing the query.
+     */
+    public int count(Query query, int sampleSize, List<NodeId> sample)
+            throws IOException {
+        query = query.rewrite(reader);
+        if (query instanceof JackrabbitQuery) {
+            QueryHits hits = ((JackrabbitQuery) query).execute(
+                    this, session, new Sort());
+            if (hits != null) {
+                try {
+                    return count(hits, sampleSize, sample);
+                } finally {
+                    hits.close();
+                }
+            }
+        }
+        Scorer scorer = query.createWeight(this).scorer(reader, true, false);
+        if (scorer == null) {
+            return 0;
+        }
+        // reservoir sampling of the document numbers
+        Random random = new Random();
+        int[] docs = new int[sampleSize];
+        int count = 0;
+        int doc;
+        while ((doc = scorer.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            if (count < sampleSize) {
+                docs[count] = doc;
+            } else if (sampleSize > 0) {
+                int i = random.nextInt(count + 1);
+                if (i < sampleSize) {
+                    docs[i] = doc;
+                }
+            }
+            count++;
+        }
+        for (int i = 0; i < Math.min(count, sampleSize); i++) {
+            sample.add(new NodeId(reader.document(
+                    docs[i], FieldSelectors.UUID).get(FieldNames.UUID)));
+        }
+        return count;
+    }
+
+    /**
+     * Counts <code>hits</code> and samples their node ids like
+     * {@link #count(Query, int, List)}.
+     */
+    private static int count(QueryHits hits, int sampleSize, List<NodeId> sample)
+            throws IOException {
+        Random random = new Random();
+        NodeId[] ids = new NodeId[sampleSize];
+        int count = 0;
+        ScoreNode sn;
+        while ((sn = hits.nextScoreNode()) != null) {
+            if (count < sampleSize) {
+                ids[count] = sn.getNodeId();
+            } else if (sampleSize > 0) {
+                int i = random.nextInt(count + 1);
+                if (i < sampleSize) {
+                    ids[i] = sn.getNodeId();
+                }
+            }
+            count++;
+        }
+        for (int i = 0; i < Math.min(count, sampleSize); i++) {
+            sample.add(ids[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Returns a searcher that scores the index segments concurrently, or
+     * <code>null</code> if the query should be scored sequentially.
+     *
+     * @param query the rewritten query.
+     * @return the segment searcher or <code>null</code>.
+     */
+    private ParallelSegmentSearcher getSegmentSearcher(Query query) {
+        if (segmentExecutor == null || threadsPerQuery < 2) {
+            return null;
+        }
+        Query local = ParallelSegmentSearcher.getSegmentLocalQuery(query);
+        if (local == null) {
+            return null;
+        }
+        ParallelSegmentSearcher segments = new ParallelSegmentSearcher(
+                reader, local, segmentExecutor, threadsPerQuery);
+        return segments.getSliceCount() > 1 ? segments : null;
+    }
+
     //---------------------------< IndexSearcher >------------------------------
 
     @Override
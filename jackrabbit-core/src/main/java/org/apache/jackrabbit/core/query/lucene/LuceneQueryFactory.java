@@ -24,6 +24,7 @@ import static javax.jcr.PropertyType.NAME;
 import static javax.jcr.PropertyType.PATH;
 import static javax.jcr.PropertyType.STRING;
 import static javax.jcr.PropertyType.UNDEFINED;
+import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_JOIN_TYPE_INNER;
 import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_OPERATOR_EQUAL_TO;
 import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_OPERATOR_GREATER_THAN;
 import static javax.jcr.query.qom.QueryObjectModelConstants.JCR_OPERATOR_GREATER_THAN_OR_EQUAL_TO;
@@ -48,10 +49,12 @@ import static org.apache.lucene.search.BooleanClause.Occur.SHOULD;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
@@ -75,6 +78,7 @@ import javax.jcr.query.qom.DescendantNode;
 import javax.jcr.query.qom.DynamicOperand;
 import javax.jcr.query.qom.FullTextSearch;
 import javax.jcr.query.qom.FullTextSearchScore;
+import javax.jcr.query.qom.Join;
 import javax.jcr.query.qom.Length;
 import javax.jcr.query.qom.LowerCase;
 import javax.jcr.query.qom.NodeLocalName;
@@ -93,13 +97,17 @@ import org.apache.jackrabbit.commons.predicate.Predicates;
 import org.apache.jackrabbit.commons.predicate.RowPredicate;
 import org.apache.jackrabbit.commons.query.qom.OperandEvaluator;
 import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.query.lucene.join.JoinPlanner;
+import org.apache.jackrabbit.core.query.lucene.join.JoinRow;
 import org.apache.jackrabbit.core.query.lucene.join.SelectorRow;
 import org.apache.jackrabbit.core.query.lucene.join.ValueComparator;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.commons.conversion.IllegalNameException;
 import org.apache.jackrabbit.spi.commons.conversion.NamePathResolver;
 import org.apache.jackrabbit.spi.commons.query.qom.FullTextSearchImpl;
+import org.apache.jackrabbit.spi.commons.query.qom.JoinConditionImpl;
 import org.apache.jackrabbit.spi.commons.query.qom.PropertyExistenceImpl;
+import org.apache.jackrabbit.spi.commons.query.qom.SelectorImpl;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
@@ -108,6 +116,7 @@ import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 
 /**
  * Factory that creates Lucene queries from QOM elements.
@@ -197,26 +206,17 @@ public class LuceneQueryFactory {
                     session, reader, index.getContext().getItemStateManager());
             searcher.setSimilarity(index.getSimilarity());
 
-            Predicate filter = Predicate.TRUE;
-            BooleanQuery query = new BooleanQuery();
-
-            QueryPair qp = new QueryPair(query);
-
-            query.add(create(selector), MUST);
-            if (constraint != null) {
-                String name = selector.getSelectorName();
-                NodeType type =
-                    ntManager.getNodeType(selector.getNodeTypeName());
-                filter = mapConstraintToQueryAndFilter(qp,
-                        constraint, Collections.singletonMap(name, type),
-                        searcher, reader);
-            }
+            QueryPair qp = new QueryPair(new BooleanQuery());
+            Predicate filter = mapSelectorToQueryAndFilter(
+                    qp, selector, constraint, searcher, reader);
 
             List<Row> rows = new ArrayList<Row>();
 
             // TODO depending on the filters, we could push the offset info
             // into the searcher
-            hits = searcher.evaluate(qp.mainQuery, sort, offset + limit);
+            hits = searcher.evaluate(
+                    index.restrictToReadScope(session, qp.mainQuery),
+                    sort, offset + limit);
             int currentNode = 0;
             int addedNodes = 0;
 
@@ -260,6 +260,175 @@ public class LuceneQueryFactory {
         }
     }
 
+    /**
+     * Executes a join of two selectors on the document numbers of the
+     * selected nodes. The nodes are only loaded for the returned rows and,
+     * unless <code>externalSort</code> is set, the join stops as soon as
+     * <code>offset + limit</code> rows have been found.
+     *
+     * @param columns         the columns of the query.
+     * @param join            the join, with selectors as left and right
+     *                        source and a left outer or inner join type.
+     * @param leftConstraint  the constraint on the left selector or
+     *                        <code>null</code>.
+     * @param rightConstraint the constraint on the right selector or
+     *                        <code>null</code>. Must be <code>null</code>
+     *                        for a left outer join.
+     * @param externalSort    if <code>true</code> all rows are returned and
+     *                        the caller applies the offset and limit.
+     * @param offsetIn        used in pagination
+     * @param limitIn         used in pagination
+     * @return a list of rows or <code>null</code> if the join cannot be
+     *         evaluated on the index alone.
+     * @throws RepositoryException if an error occurs while creating the
+     *                             queries or the rows.
+     * @throws IOException if an error occurs while reading from the index.
+     */
+    public List<Row> execute(Map<String, PropertyValue> columns, Join join,
+            Constraint leftConstraint, Constraint rightConstraint,
+            boolean externalSort, long offsetIn, long limitIn)
+            throws RepositoryException, IOException {
+        if (!(join.getLeft() instanceof SelectorImpl)
+                || !(join.getRight() instanceof SelectorImpl)
+                || !(join.getJoinCondition() instanceof JoinConditionImpl)) {
+            return null;
+        }
+        SelectorImpl left = (SelectorImpl) join.getLeft();
+        SelectorImpl right = (SelectorImpl) join.getRight();
+        boolean innerJoin = JCR_JOIN_TYPE_INNER.equalsIgnoreCase(join.getJoinType());
+        final int offset = offsetIn < 0 ? 0 : (int) offsetIn;
+        final int limit = limitIn < 0 ? Integer.MAX_VALUE : (int) limitIn;
+
+        final IndexReader reader = index.getIndexReader(true);
+        QueryHits leftHits = null;
+        QueryHits rightHits = null;
+        MultiColumnQueryHits hits = null;
+        try {
+            JackrabbitIndexSearcher searcher = new JackrabbitIndexSearcher(
+                    session, reader, index.getContext().getItemStateManager());
+            searcher.setSimilarity(index.getSimilarity());
+
+            QueryPair leftQuery = new QueryPair(new BooleanQuery());
+            QueryPair rightQuery = new QueryPair(new BooleanQuery());
+            if (mapSelectorToQueryAndFilter(leftQuery, left, leftConstraint,
+                    searcher, reader) != Predicate.TRUE
+                    || mapSelectorToQueryAndFilter(rightQuery, right,
+                            rightConstraint, searcher, reader) != Predicate.TRUE) {
+                // the constraints need the nodes to be evaluated
+                return null;
+            }
+            // an empty sort returns the hits in document order, without
+            // collecting them first
+            Sort unsorted = new Sort(new SortField[0]);
+            leftHits = searcher.evaluate(index.restrictToReadScope(
+                    session, leftQuery.mainQuery), unsorted, Integer.MAX_VALUE);
+            rightHits = searcher.evaluate(index.restrictToReadScope(
+                    session, rightQuery.mainQuery), unsorted, Integer.MAX_VALUE);
+            if (!innerJoin) {
+                // a right node that is not readable must not hide the
+                // null row of a left outer join
+                rightHits = new ReadableQueryHits(rightHits);
+            }
+            hits = JoinPlanner.join(
+                    leftHits, left.getSelectorQName(),
+                    rightHits, right.getSelectorQName(),
+                    innerJoin, (JoinConditionImpl) join.getJoinCondition(),
+                    reader, (HierarchyResolver) reader, nsMappings,
+                    index.getContext().getHierarchyManager());
+            leftHits = null;
+            rightHits = null;
+
+            List<Name> names = Arrays.asList(hits.getSelectorNames());
+            int leftIdx = names.indexOf(left.getSelectorQName());
+            int rightIdx = names.indexOf(right.getSelectorQName());
+            Set<String> leftSelectors =
+                Collections.singleton(left.getSelectorName());
+            Set<String> rightSelectors =
+                Collections.singleton(right.getSelectorName());
+
+            List<Row> rows = new ArrayList<Row>();
+            int currentRow = 0;
+            ScoreNode[] sn;
+            while ((externalSort || rows.size() < limit)
+                    && (sn = hits.nextScoreNodes()) != null) {
+                Row leftRow = createRow(columns, left, sn[leftIdx]);
+                if (leftRow == null) {
+                    continue;
+                }
+                Row rightRow = null;
+                if (sn[rightIdx] != null) {
+                    rightRow = createRow(columns, right, sn[rightIdx]);
+                    if (rightRow == null) {
+                        continue;
+                    }
+                }
+                Row row = new JoinRow(columns, evaluator,
+                        leftRow, leftSelectors, rightRow, rightSelectors);
+                if (externalSort || currentRow >= offset) {
+                    rows.add(row);
+                }
+                currentRow++;
+            }
+            return rows;
+        } finally {
+            if (hits != null) {
+                hits.close();
+            }
+            if (leftHits != null) {
+                leftHits.close();
+            }
+            if (rightHits != null) {
+                rightHits.close();
+            }
+            Util.closeOrRelease(reader);
+        }
+    }
+
+    /**
+     * Creates a row for the node of the given score node.
+     *
+     * @return the row or <code>null</code> if the node does not exist
+     *         anymore or is not readable.
+     */
+    private Row createRow(Map<String, PropertyValue> columns,
+            Selector selector, ScoreNode sn) throws RepositoryException {
+        try {
+            return new SelectorRow(columns, evaluator,
+                    selector.getSelectorName(),
+                    session.getNodeById(sn.getNodeId()), sn.getScore());
+        } catch (ItemNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Maps the given selector and constraint to a lucene query.
+     *
+     * @param qp         the query pair that receives the query clauses.
+     * @param selector   the selector.
+     * @param constraint the constraint on the selector or <code>null</code>.
+     * @param searcher   the index searcher.
+     * @param reader     the index reader.
+     * @return the filter for the parts of the constraint that cannot be
+     *         mapped to the query, or {@link Predicate#TRUE}.
+     * @throws RepositoryException if an error occurs while creating the query.
+     * @throws IOException if an error occurs while reading from the index.
+     */
+    private Predicate mapSelectorToQueryAndFilter(QueryPair qp,
+            Selector selector, Constraint constraint,
+            JackrabbitIndexSearcher searcher, IndexReader reader)
+            throws RepositoryException, IOException {
+        ((BooleanQuery) qp.mainQuery).add(create(selector), MUST);
+        if (constraint == null) {
+            return Predicate.TRUE;
+        }
+        String name = selector.getSelectorName();
+        NodeType type = ntManager.getNodeType(selector.getNodeTypeName());
+        return mapConstraintToQueryAndFilter(qp,
+                constraint, Collections.singletonMap(name, type),
+                searcher, reader);
+    }
+
     /**
      * Creates a lucene query for the given QOM selector.
      *
@@ -767,6 +936,40 @@ public class LuceneQueryFactory {
         }
     }
 
+    /**
+     * Query hits that skip the nodes that cannot be read by the session.
+     */
+    private class ReadableQueryHits extends AbstractQueryHits {
+
+        private final QueryHits hits;
+
+        ReadableQueryHits(QueryHits hits) {
+            this.hits = hits;
+        }
+
+        public ScoreNode nextScoreNode() throws IOException {
+            ScoreNode sn;
+            while ((sn = hits.nextScoreNode()) != null) {
+                try {
+                    if (session.getAccessManager().canRead(
+                            null, sn.getNodeId())) {
+                        return sn;
+                    }
+                } catch (ItemNotFoundException e) {
+                    // skip the node
+                } catch (RepositoryException e) {
+                    throw Util.createIOException(e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            hits.close();
+        }
+    }
+
     protected static class QueryPair {
         Query mainQuery;
         BooleanQuery subQuery;
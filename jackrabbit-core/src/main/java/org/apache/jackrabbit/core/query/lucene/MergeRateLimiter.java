@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * <code>MergeRateLimiter</code> limits the rate at which index merges write
+ * bytes. The limit is shared by all merges that use the same instance.
+ */
+final class MergeRateLimiter {
+
+    /**
+     * Nano seconds per byte at the configured rate.
+     */
+    private final double nanosPerByte;
+
+    /**
+     * The time in nano seconds until which the bytes written so far are
+     * paid for.
+     */
+    private long paidUntil;
+
+    /**
+     * Creates a new rate limiter.
+     *
+     * @param mbPerSec the rate in mega bytes per second.
+     */
+    MergeRateLimiter(double mbPerSec) {
+        if (mbPerSec <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        this.nanosPerByte = 1000000000d / (mbPerSec * 1024 * 1024);
+        this.paidUntil = System.nanoTime();
+    }
+
+    /**
+     * Blocks the calling thread as long as needed to keep the rate after
+     * <code>bytes</code> were written.
+     *
+     * @param bytes the number of bytes written.
+     * @throws IOException if the thread is interrupted while waiting.
+     */
+    void pause(long bytes) throws IOException {
+        long target;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // do not accumulate credit while idle
+            paidUntil = Math.max(paidUntil, now) + (long) (bytes * nanosPerByte);
+            target = paidUntil;
+        }
+        long wait = target - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttling index merge");
+            }
+        }
+    }
+}
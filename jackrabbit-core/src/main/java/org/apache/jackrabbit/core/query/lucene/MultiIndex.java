@@ -29,6 +29,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -36,6 +37,8 @@ import java.util.concurrent.TimeUnit;
 import javax.jcr.RepositoryException;
 
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
 import org.apache.jackrabbit.core.query.lucene.directory.DirectoryManager;
 import org.apache.jackrabbit.core.state.ChildNodeEntry;
 import org.apache.jackrabbit.core.state.ItemStateException;
@@ -233,6 +236,76 @@ public class MultiIndex {
      */
     private final IndexFormatVersion version;
 
+    /**
+     * Full volatile indexes that are persisted in the background, oldest
+     * first. Queries read these indexes until they are persisted.
+     */
+    private final List<PendingIndex> pendingIndexes =
+        new ArrayList<PendingIndex>();
+
+    /**
+     * Flag indicating whether the background task that persists the
+     * {@link #pendingIndexes} is scheduled or running.
+     */
+    private boolean pendingIndexesScheduled = false;
+
+    /**
+     * Flag indicating whether the background task that persists the
+     * {@link #pendingIndexes} is currently writing an index.
+     */
+    private boolean persistingPendingIndexes = false;
+
+    /**
+     * Flag indicating whether this index is closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Task that periodically flushes the redo log if the entries are
+     * flushed together in an interval.
+     */
+    private ScheduledFuture<?> redoLogFlushTask = null;
+
+    /**
+     * <code>true</code> if the redo log contains committed entries that
+     * are not yet flushed to disk.
+     */
+    private boolean redoLogDirty = false;
+
+    /**
+     * Number of transactions committed to the redo log.
+     */
+    private long redoLogCommits = 0;
+
+    /**
+     * Monitor on which committers wait until their transaction is flushed
+     * to disk with the redo log.
+     */
+    private final Object redoLogFlushMonitor = new Object();
+
+    /**
+     * Number of committed transactions that are flushed to disk. Guarded by
+     * {@link #redoLogFlushMonitor}.
+     */
+    private long flushedRedoLogCommits = 0;
+
+    /**
+     * Number of committed transactions whose flush failed with
+     * {@link #redoLogFlushException}. Guarded by {@link #redoLogFlushMonitor}.
+     */
+    private long failedRedoLogCommits = 0;
+
+    /**
+     * The exception of the last failed redo log flush. Guarded by
+     * {@link #redoLogFlushMonitor}.
+     */
+    private IOException redoLogFlushException;
+
+    /**
+     * The time the redo log was last flushed.
+     */
+    private long lastRedoLogFlushTime = 0;
+
     /**
      * Creates a new MultiIndex.
      *
@@ -261,10 +334,14 @@ public class MultiIndex {
         this.redoLog = redoLogFactory.createRedoLog(this);
 
         // initialize IndexMerger
-        merger = new IndexMerger(this, handler.getContext().getExecutor());
-        merger.setMaxMergeDocs(handler.getMaxMergeDocs());
-        merger.setMergeFactor(handler.getMergeFactor());
-        merger.setMinMergeDocs(handler.getMinMergeDocs());
+        merger = new IndexMerger(this, handler.getContext().getExecutor(),
+                handler.getIndexMergePolicy(),
+                handler.getContext().getRepositoryStatistics());
+        merger.setMaxConcurrentMerges(handler.getMaxConcurrentMerges());
+        if (handler.getMergeRateLimit() > 0) {
+            merger.setRateLimiter(
+                    new MergeRateLimiter(handler.getMergeRateLimit()));
+        }
 
         // initialize indexing queue
         this.indexingQueue = new IndexingQueue(new IndexingQueueStore(indexDir));
@@ -290,7 +367,8 @@ public class MultiIndex {
             index.setUseCompoundFile(handler.getUseCompoundFile());
             index.setTermInfosIndexDivisor(handler.getTermInfosIndexDivisor());
             indexes.add(index);
-            merger.indexAdded(index.getName(), index.getNumDocuments());
+            merger.indexAdded(index.getName(), index.getNumDocuments(),
+                    index.getSizeInBytes());
         }
 
         // init volatile index
@@ -341,7 +419,7 @@ public class MultiIndex {
      * @throws IOException if an error occurs while reading from the index.
      */
     int numDocs() throws IOException {
-        if (indexNames.size() == 0) {
+        if (indexNames.size() == 0 && pendingIndexes.isEmpty()) {
             return volatileIndex.getNumDocuments();
         } else {
             CachingMultiIndexReader reader = getIndexReader();
@@ -383,7 +461,12 @@ public class MultiIndex {
                 // traverse and index workspace
                 executeAndLog(new Start(Action.INTERNAL_TRANSACTION));
                 NodeState rootState = (NodeState) stateMgr.getItemState(rootId);
-                count = createIndex(rootState, rootPath, stateMgr, count);
+                if (handler.getInitialIndexThreads() > 0) {
+                    count = createIndex(rootState, rootPath, stateMgr,
+                            handler.getInitialIndexThreads());
+                } else {
+                    count = createIndex(rootState, rootPath, stateMgr, count);
+                }
                 checkIndexingQueue(true);
                 executeAndLog(new Commit(getTransactionId()));
                 log.debug("Created initial index for {} nodes", count);
@@ -414,7 +497,21 @@ public class MultiIndex {
      *               indicate that a node could not be indexed successfully.
      * @throws IOException if an error occurs while updating the index.
      */
-    synchronized void update(
+    void update(Collection<NodeId> remove, Collection<Document> add)
+            throws IOException {
+        waitForRedoLogFlush(updateAndLog(remove, add));
+    }
+
+    /**
+     * Updates the index and logs the update to the redo log.
+     *
+     * @param remove ids of the documents to remove
+     * @param add    the documents to add
+     * @return the number of committed transactions once the update is
+     *         committed
+     * @throws IOException if an error occurs while updating the index.
+     */
+    private synchronized long updateAndLog(
             Collection<NodeId> remove, Collection<Document> add)
             throws IOException {
         // make sure a reader is available during long updates
@@ -454,6 +551,7 @@ public class MultiIndex {
                 releaseMultiReader();
             }
         }
+        return redoLogCommits;
     }
 
     /**
@@ -498,6 +596,13 @@ public class MultiIndex {
             if (num > 0) {
                 redoLog.append(new DeleteNode(getTransactionId(), id));
             }
+            for (PendingIndex pending : pendingIndexes) {
+                int removed = pending.removeDocument(idTerm);
+                if (removed > 0) {
+                    redoLog.append(new DeleteNode(getTransactionId(), id));
+                }
+                num += removed;
+            }
             for (PersistentIndex index : indexes) {
                 // only remove documents from registered indexes
                 if (indexNames.contains(index.getName())) {
@@ -748,6 +853,9 @@ public class MultiIndex {
                         readerList.add(pIdx.getReadOnlyIndexReader(initCache));
                     }
                 }
+                for (PendingIndex pending : pendingIndexes) {
+                    readerList.add(pending.index.getReadOnlyIndexReader());
+                }
                 readerList.add(volatileIndex.getReadOnlyIndexReader());
                 ReadOnlyIndexReader[] readers =
                     readerList.toArray(new ReadOnlyIndexReader[readerList.size()]);
@@ -791,6 +899,15 @@ public class MultiIndex {
             // stop timer
             unscheduleFlushTask();
 
+            // let a running background task finish, the remaining
+            // pending indexes are persisted with the flush below
+            closed = true;
+            try {
+                waitForPendingIndexes();
+            } catch (IOException e) {
+                log.error("Exception while closing search index.", e);
+            }
+
             // commit / close indexes
             try {
                 releaseMultiReader();
@@ -802,6 +919,9 @@ public class MultiIndex {
             } catch (IOException e) {
                 log.error("Exception while closing search index.", e);
             }
+            if (redoLogDirty) {
+                redoLogFlushFailed(new IOException("Search index closed"));
+            }
             volatileIndex.close();
             for (PersistentIndex index : indexes) {
                 index.close();
@@ -919,6 +1039,13 @@ public class MultiIndex {
     private void flush() throws IOException {
         synchronized (this) {
 
+            // persist full volatile indexes first, the redo log must only
+            // be reset when they are part of the index infos
+            waitForPendingIndexes();
+            while (!pendingIndexes.isEmpty()) {
+                persistPendingIndex(pendingIndexes.get(0));
+            }
+
             // only start transaction when there is something to commit
             boolean transactionStarted = false;
 
@@ -969,6 +1096,7 @@ public class MultiIndex {
                 // on the new indexNames generation
                 redoLog.close();
                 redoLog = redoLogFactory.createRedoLog(this);
+                redoLogFlushed();
             }
 
             lastFlushTime = System.currentTimeMillis();
@@ -1080,6 +1208,14 @@ public class MultiIndex {
                 checkFlush();
             }
         }, 1, 1, TimeUnit.SECONDS);
+        long interval = handler.getRedoLogFlushInterval();
+        if (interval > 0) {
+            redoLogFlushTask = executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    checkRedoLogFlush();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -1090,6 +1226,10 @@ public class MultiIndex {
             flushTask.cancel(false);
             flushTask = null;
         }
+        if (redoLogFlushTask != null) {
+            redoLogFlushTask.cancel(false);
+            redoLogFlushTask = null;
+        }
     }
 
     /**
@@ -1102,10 +1242,19 @@ public class MultiIndex {
         if (volatileIndex != null) {
             volatileIndex.close();
         }
-        volatileIndex = new VolatileIndex(handler.getTextAnalyzer(),
+        volatileIndex = createVolatileIndex();
+    }
+
+    /**
+     * @return a new empty volatile index.
+     * @throws IOException if the volatile index cannot be created.
+     */
+    private VolatileIndex createVolatileIndex() throws IOException {
+        VolatileIndex index = new VolatileIndex(handler.getTextAnalyzer(),
                 handler.getSimilarity(), indexingQueue);
-        volatileIndex.setUseCompoundFile(handler.getUseCompoundFile());
-        volatileIndex.setBufferSize(handler.getBufferSize());
+        index.setUseCompoundFile(handler.getUseCompoundFile());
+        index.setBufferSize(handler.getBufferSize());
+        return index;
     }
 
     /**
@@ -1134,12 +1283,105 @@ public class MultiIndex {
         // commit, but we also want to keep track of new indexes for sure.
         // otherwise it might happen that unused index folders are orphaned
         // after a crash.
-        if (a.getType() == Action.TYPE_COMMIT || a.getType() == Action.TYPE_ADD_INDEX) {
-            redoLog.flush();
+        if (a.getType() == Action.TYPE_ADD_INDEX) {
+            flushRedoLog();
+        } else if (a.getType() == Action.TYPE_COMMIT) {
+            redoLogCommits++;
+            long interval = handler.getRedoLogFlushInterval();
+            if (interval > 0
+                    && System.currentTimeMillis() - lastRedoLogFlushTime < interval) {
+                // flushed together with the following commits, see
+                // waitForRedoLogFlush()
+                redoLogDirty = true;
+            } else {
+                flushRedoLog();
+            }
         }
         return a;
     }
 
+    /**
+     * Flushes the redo log to disk.
+     *
+     * @throws IOException if the redo log cannot be flushed.
+     */
+    private void flushRedoLog() throws IOException {
+        redoLog.flush();
+        redoLogFlushed();
+    }
+
+    /**
+     * Marks all committed transactions as flushed to disk and wakes up the
+     * threads that wait for them. Must be called while this index is
+     * locked.
+     */
+    private void redoLogFlushed() {
+        redoLogDirty = false;
+        lastRedoLogFlushTime = System.currentTimeMillis();
+        synchronized (redoLogFlushMonitor) {
+            flushedRedoLogCommits = redoLogCommits;
+            redoLogFlushMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Flushes the redo log if it contains committed entries that are not
+     * yet on disk. If the flush fails, the threads that wait for these
+     * entries fail as well.
+     */
+    private synchronized void checkRedoLogFlush() {
+        if (redoLogDirty) {
+            try {
+                flushRedoLog();
+            } catch (IOException e) {
+                log.error("Unable to flush redo log", e);
+                redoLogFlushFailed(e);
+            }
+        }
+    }
+
+    /**
+     * Lets the threads that wait for the committed transactions which are
+     * not yet flushed fail with the given exception. Must be called while
+     * this index is locked.
+     *
+     * @param e the exception of the failed flush
+     */
+    private void redoLogFlushFailed(IOException e) {
+        synchronized (redoLogFlushMonitor) {
+            failedRedoLogCommits = redoLogCommits;
+            redoLogFlushException = e;
+            redoLogFlushMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the given number of committed transactions is flushed to
+     * disk with the redo log. Committers call this method without locking
+     * this index, so that the redo log entries of all transactions that are
+     * committed in the meantime are flushed together.
+     *
+     * @param commits the number of committed transactions to wait for
+     * @throws IOException if the redo log could not be flushed, or the
+     *                     thread is interrupted while waiting.
+     */
+    private void waitForRedoLogFlush(long commits) throws IOException {
+        synchronized (redoLogFlushMonitor) {
+            while (flushedRedoLogCommits < commits) {
+                if (failedRedoLogCommits >= commits) {
+                    IOException e = new IOException("Unable to flush redo log");
+                    e.initCause(redoLogFlushException);
+                    throw e;
+                }
+                try {
+                    redoLogFlushMonitor.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for the redo log flush");
+                }
+            }
+        }
+    }
+
     /**
      * Checks if it is needed to commit the volatile index according to {@link
      * SearchIndex#getMaxVolatileIndexSize()}.
@@ -1151,12 +1393,172 @@ public class MultiIndex {
      */
     private boolean checkVolatileCommit() throws IOException {
         if (volatileIndex.getRamSizeInBytes() >= handler.getMaxVolatileIndexSize()) {
-            commitVolatileIndex();
+            if (handler.isNearRealTime() && !reindexing) {
+                addPendingIndex();
+            } else {
+                commitVolatileIndex();
+            }
             return true;
         }
         return false;
     }
 
+    /**
+     * Replaces the volatile index with a new one and schedules the
+     * persisting of the full volatile index in the background. The actions
+     * are written to the redo log as if the volatile index was committed
+     * right away, a recovery therefore creates the same index.
+     *
+     * @throws IOException if an error occurs while writing to the redo log.
+     */
+    private void addPendingIndex() throws IOException {
+        int volatileIndexDocuments = volatileIndex.getNumDocuments();
+        if (volatileIndexDocuments > 0) {
+            CreateIndex create = new CreateIndex(getTransactionId(), null);
+            executeAndLog(create);
+            redoLog.append(new VolatileCommit(getTransactionId(), create.getIndexName()));
+            AddIndex add = new AddIndex(getTransactionId(), create.getIndexName());
+            redoLog.append(add);
+            flushRedoLog();
+
+            pendingIndexes.add(new PendingIndex(volatileIndex,
+                    getOrCreateIndex(create.getIndexName()), add));
+            volatileIndex = createVolatileIndex();
+            log.debug("Persisting in-memory index containing {} documents in background.",
+                    volatileIndexDocuments);
+
+            if (!pendingIndexesScheduled && !closed) {
+                pendingIndexesScheduled = true;
+                try {
+                    handler.getContext().getExecutor().execute(new Runnable() {
+                        public void run() {
+                            persistPendingIndexes();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // persisted with the next flush
+                    pendingIndexesScheduled = false;
+                    log.warn("Unable to persist in-memory index in background", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Persists the {@link #pendingIndexes} until there are no more or this
+     * index is closed. Runs in the background.
+     */
+    private void persistPendingIndexes() {
+        for (;;) {
+            PendingIndex pending;
+            synchronized (this) {
+                persistingPendingIndexes = false;
+                notifyAll();
+                if (closed || pendingIndexes.isEmpty()) {
+                    pendingIndexesScheduled = false;
+                    return;
+                }
+                persistingPendingIndexes = true;
+                pending = pendingIndexes.get(0);
+            }
+            boolean persisted = false;
+            try {
+                persistPendingIndex(pending);
+                persisted = true;
+            } catch (IOException e) {
+                log.error("Unable to persist in-memory index, will retry on next flush", e);
+            } finally {
+                if (!persisted) {
+                    synchronized (this) {
+                        persistingPendingIndexes = false;
+                        pendingIndexesScheduled = false;
+                        notifyAll();
+                    }
+                }
+            }
+            if (!persisted) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits until the background task that persists the
+     * {@link #pendingIndexes} finished writing the current index. A task
+     * that did not start yet is not waited for. The caller must hold the
+     * lock on this <code>MultiIndex</code>.
+     *
+     * @throws IOException if interrupted while waiting.
+     */
+    private void waitForPendingIndexes() throws IOException {
+        while (persistingPendingIndexes) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for in-memory indexes");
+            }
+        }
+    }
+
+    /**
+     * Writes the documents of a pending volatile index to its target index
+     * and then adds the target index to the active persistent indexes. Only
+     * taking the snapshot of the volatile index and activating the target
+     * index requires the lock on this <code>MultiIndex</code>, the documents
+     * are written while the index is updated and queried.
+     *
+     * @param pending the pending index.
+     * @throws IOException if an error occurs while writing the index.
+     */
+    private void persistPendingIndex(PendingIndex pending) throws IOException {
+        long time = System.currentTimeMillis();
+        try {
+            IndexReader snapshot;
+            synchronized (this) {
+                snapshot = pending.openSnapshot();
+            }
+            try {
+                pending.target.addIndexes(new IndexReader[]{snapshot});
+            } finally {
+                snapshot.close();
+            }
+            synchronized (this) {
+                synchronized (updateMonitor) {
+                    updateInProgress = true;
+                }
+                try {
+                    // documents deleted after the snapshot was taken
+                    for (Term idTerm : pending.deleted) {
+                        pending.target.removeDocument(idTerm);
+                    }
+                    pending.target.commit();
+                    pending.add.execute(this);
+                    pendingIndexes.remove(pending);
+                    pending.index.close();
+                } finally {
+                    synchronized (updateMonitor) {
+                        updateInProgress = false;
+                        updateMonitor.notifyAll();
+                        releaseMultiReader();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                // start over with a new target index
+                pending.target.close();
+                deleteIndex(pending.target);
+                PersistentIndex target = getOrCreateIndex(null);
+                pending.target = target;
+                pending.add = new AddIndex(
+                        pending.add.getTransactionId(), target.getName());
+            }
+            throw e;
+        }
+        time = System.currentTimeMillis() - time;
+        log.debug("Persisted in-memory index in {}ms.", time);
+    }
+
     /**
      * Commits the volatile index to a persistent index. The new persistent
      * index is added to the list of indexes but not written to disk. When this
@@ -1245,6 +1647,52 @@ public class MultiIndex {
         return count;
     }
 
+    /**
+     * Adds the nodes below <code>rootState</code> to the index, the
+     * documents are created by a pool of threads. If the root node is the
+     * root of the workspace and the persistence manager can iterate over
+     * its node ids, the ids are read from the persistence manager instead
+     * of traversing the tree.
+     *
+     * @param rootState the root node of the nodes to index.
+     * @param rootPath  the path of the root node.
+     * @param stateMgr  the item state manager of the workspace.
+     * @param threads   the number of threads that create documents.
+     * @return the number of nodes added to the index.
+     * @throws IOException if an error occurs while reading the nodes or
+     *                     writing to the index.
+     */
+    private long createIndex(NodeState rootState,
+                             Path rootPath,
+                             ItemStateManager stateMgr,
+                             int threads) throws IOException {
+        IterablePersistenceManager pm = null;
+        PersistenceManager persistMgr =
+            handler.getContext().getPersistenceManager();
+        if (rootState.getParentId() == null
+                && persistMgr instanceof IterablePersistenceManager) {
+            pm = (IterablePersistenceManager) persistMgr;
+        }
+        ParallelDocumentCreator creator = new ParallelDocumentCreator(
+                this, handler, stateMgr, rootState, rootPath,
+                excludedIDs, pm, threads);
+        long count = 0;
+        try {
+            creator.start();
+            Document doc;
+            while ((doc = creator.next()) != null) {
+                executeAndLog(new AddNode(getTransactionId(), doc));
+                if (++count % 10 == 0) {
+                    checkIndexingQueue(true);
+                }
+                checkVolatileCommit();
+            }
+        } finally {
+            creator.close();
+        }
+        return count;
+    }
+
     /**
      * Attempts to delete all files that are older than
      *{@link SearchIndex#getMaxHistoryAge()}.
@@ -1378,6 +1826,68 @@ public class MultiIndex {
         }
     }
 
+    /**
+     * A full volatile index that is persisted in the background.
+     */
+    private static final class PendingIndex {
+
+        /**
+         * The volatile index.
+         */
+        private final VolatileIndex index;
+
+        /**
+         * The index where the documents are written to.
+         */
+        private PersistentIndex target;
+
+        /**
+         * The action that adds the target index to the active indexes.
+         */
+        private AddIndex add;
+
+        /**
+         * Terms of the documents deleted from the volatile index after it
+         * was handed over.
+         */
+        private final List<Term> deleted = new ArrayList<Term>();
+
+        PendingIndex(VolatileIndex index, PersistentIndex target, AddIndex add) {
+            this.index = index;
+            this.target = target;
+            this.add = add;
+        }
+
+        /**
+         * Deletes the documents that match <code>idTerm</code> and remembers
+         * the term for the target index.
+         *
+         * @param idTerm the uuid term of the documents to delete.
+         * @return the number of deleted documents.
+         * @throws IOException if an error occurs while deleting.
+         */
+        int removeDocument(Term idTerm) throws IOException {
+            int num = index.removeDocument(idTerm);
+            if (num > 0) {
+                deleted.add(idTerm);
+            }
+            return num;
+        }
+
+        /**
+         * Commits the volatile index and opens a reader on the committed
+         * state. Later deletes are not visible through the reader.
+         *
+         * @return a reader on the current state of the volatile index.
+         * @throws IOException if an error occurs while committing.
+         */
+        IndexReader openSnapshot() throws IOException {
+            index.commit(false);
+            deleted.clear();
+            return IndexReader.open(index.getDirectory());
+        }
+    }
+
     //------------------------< Actions >---------------------------------------
 
     /**
@@ -1642,7 +2152,8 @@ public class MultiIndex {
             if (!index.indexNames.contains(indexName)) {
                 index.indexNames.addName(indexName, idx.getCurrentGeneration());
                 // now that the index is in the active list let the merger know about it
-                index.merger.indexAdded(indexName, idx.getNumDocuments());
+                index.merger.indexAdded(indexName, idx.getNumDocuments(),
+                        idx.getSizeInBytes());
             }
         }
 
@@ -2003,6 +2514,9 @@ public class MultiIndex {
             // if the document cannot be deleted from the volatile index
             // delete it from one of the persistent indexes.
             int num = index.volatileIndex.removeDocument(idTerm);
+            for (int i = index.pendingIndexes.size() - 1; num == 0 && i >= 0; i--) {
+                num = index.pendingIndexes.get(i).removeDocument(idTerm);
+            }
             if (num == 0) {
                 for (int i = index.indexes.size() - 1; i >= 0; i--) {
                     // only look in registered indexes
@@ -0,0 +1,590 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.state.ChildNodeEntry;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.ItemStateManager;
+import org.apache.jackrabbit.core.state.NoSuchItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.spi.Path;
+import org.apache.jackrabbit.spi.PathFactory;
+import org.apache.jackrabbit.spi.commons.name.PathFactoryImpl;
+import org.apache.lucene.document.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <code>ParallelDocumentCreator</code> creates the index documents of all
+ * nodes below a root node with a pool of threads while the initial index
+ * of a workspace is built. Creating a document reads the node state and
+ * hands the binary properties to the text extractor, which is the bulk of
+ * the work; the caller only adds the documents to the index.
+ * <p>
+ * If the persistence manager can iterate over its node ids, the ids are
+ * read in storage order instead of traversing the tree and a worker checks
+ * the ancestors of a node before it creates the document: nodes below an
+ * excluded node and nodes that are not connected to the root node are not
+ * indexed. As the ids of missing child nodes are not returned by the
+ * persistence manager, a worker checks the child node entries of every
+ * indexed node and reports missing child nodes to the
+ * {@link org.apache.jackrabbit.core.query.OnWorkspaceInconsistency} handler,
+ * like the traversal does. Otherwise one thread traverses the tree and hands
+ * the node ids to the workers.
+ * <p>
+ * The progress is logged every ten seconds, with the estimated remaining
+ * time if the number of nodes is known in advance.
+ */
+class ParallelDocumentCreator {
+
+    /**
+     * The logger instance for this class.
+     */
+    private static final Logger log =
+            LoggerFactory.getLogger(ParallelDocumentCreator.class);
+
+    /**
+     * Log the progress at most every 10 seconds.
+     */
+    private static final long LOG_INTERVAL = 10 * 1000;
+
+    /**
+     * The number of node ids read from the persistence manager at once.
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * The number of node ids and documents per worker that are queued.
+     */
+    private static final int QUEUE_SIZE_PER_WORKER = 100;
+
+    /**
+     * The path factory.
+     */
+    private static final PathFactory PATH_FACTORY = PathFactoryImpl.getInstance();
+
+    /**
+     * Marks the end of the node ids for a worker.
+     */
+    private static final NodeId END_OF_IDS = new NodeId(0, 0);
+
+    /**
+     * Marks that a worker does not create any more documents.
+     */
+    private static final Document END_OF_DOCUMENTS = new Document();
+
+    /**
+     * The index the documents are created for.
+     */
+    private final MultiIndex index;
+
+    /**
+     * The query handler.
+     */
+    private final SearchIndex handler;
+
+    /**
+     * The item state manager of the workspace.
+     */
+    private final ItemStateManager stateMgr;
+
+    /**
+     * The root node of the nodes to index.
+     */
+    private final NodeState rootState;
+
+    /**
+     * The path of the root node.
+     */
+    private final Path rootPath;
+
+    /**
+     * The nodes that are not indexed, together with their descendants.
+     */
+    private final Set<NodeId> excludedIDs;
+
+    /**
+     * The persistence manager that returns the node ids or <code>null</code>
+     * if the tree is traversed.
+     */
+    private final IterablePersistenceManager pm;
+
+    /**
+     * The number of workers.
+     */
+    private final int workers;
+
+    /**
+     * The ids of the nodes to index.
+     */
+    private final BlockingQueue<NodeId> ids;
+
+    /**
+     * The documents created by the workers.
+     */
+    private final BlockingQueue<Document> documents;
+
+    /**
+     * The first unexpected exception of the producer or a worker.
+     */
+    private final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+
+    /**
+     * Runs the producer and the workers.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The number of workers that still create documents.
+     */
+    private int running;
+
+    /**
+     * The number of nodes to index or -1 if unknown.
+     */
+    private long total = -1;
+
+    /**
+     * The number of documents returned so far.
+     */
+    private long count;
+
+    /**
+     * The time when the documents are started to be created.
+     */
+    private long startTime;
+
+    /**
+     * The time when the progress was last logged.
+     */
+    private long lastLog;
+
+    /**
+     * Creates a new document creator.
+     *
+     * @param index       the index the documents are created for.
+     * @param handler     the query handler.
+     * @param stateMgr    the item state manager of the workspace.
+     * @param rootState   the root node of the nodes to index.
+     * @param rootPath    the path of the root node.
+     * @param excludedIDs the nodes that are not indexed, together with their
+     *                    descendants.
+     * @param pm          the persistence manager that returns the node ids
+     *                    or <code>null</code> if the tree is traversed.
+     * @param workers     the number of threads that create documents.
+     */
+    ParallelDocumentCreator(MultiIndex index,
+                            SearchIndex handler,
+                            ItemStateManager stateMgr,
+                            NodeState rootState,
+                            Path rootPath,
+                            Set<NodeId> excludedIDs,
+                            IterablePersistenceManager pm,
+                            int workers) {
+        this.index = index;
+        this.handler = handler;
+        this.stateMgr = stateMgr;
+        this.rootState = rootState;
+        this.rootPath = rootPath;
+        this.excludedIDs = excludedIDs;
+        this.pm = pm;
+        this.workers = Math.max(1, workers);
+        this.ids = new ArrayBlockingQueue<NodeId>(
+                this.workers * QUEUE_SIZE_PER_WORKER);
+        this.documents = new ArrayBlockingQueue<Document>(
+                this.workers * QUEUE_SIZE_PER_WORKER);
+    }
+
+    /**
+     * Starts to create the documents. If the node ids are read from the
+     * persistence manager, they are counted first.
+     *
+     * @throws IOException if the node ids cannot be counted.
+     */
+    void start() throws IOException {
+        if (pm != null) {
+            total = countNodes();
+            log.info("Creating initial index for {} nodes with {} threads",
+                    total, workers);
+        } else {
+            log.info("Creating initial index with {} threads", workers);
+        }
+        executor = Executors.newFixedThreadPool(
+                workers + 1, new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "MultiIndex-initial-index-"
+                                + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        startTime = System.currentTimeMillis();
+        lastLog = startTime;
+        running = workers;
+        executor.execute(new Runnable() {
+            public void run() {
+                produce();
+            }
+        });
+        for (int i = 0; i < workers; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    work();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the next document in the order the workers created them.
+     *
+     * @return the next document or <code>null</code> if the documents of
+     *         all nodes have been returned.
+     * @throws IOException if the node ids cannot be read or a document
+     *                     cannot be created.
+     */
+    Document next() throws IOException {
+        while (running > 0) {
+            Document doc;
+            try {
+                doc = documents.take();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while creating documents");
+            }
+            checkFailure();
+            if (doc == END_OF_DOCUMENTS) {
+                running--;
+            } else {
+                count++;
+                logProgress();
+                return doc;
+            }
+        }
+        checkFailure();
+        return null;
+    }
+
+    /**
+     * Stops the producer and the workers.
+     */
+    void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    //-----------------------------------------------------------< internal >
+
+    /**
+     * Counts the node ids of the persistence manager.
+     *
+     * @return the number of node ids.
+     * @throws IOException if the node ids cannot be read.
+     */
+    private long countNodes() throws IOException {
+        long n = 0;
+        try {
+            NodeId after = null;
+            for (;;) {
+                List<NodeId> batch = pm.getAllNodeIds(after, BATCH_SIZE);
+                if (batch.isEmpty()) {
+                    return n;
+                }
+                n += batch.size();
+                after = batch.get(batch.size() - 1);
+            }
+        } catch (ItemStateException e) {
+            throw Util.createIOException(e);
+        } catch (RepositoryException e) {
+            throw Util.createIOException(e);
+        }
+    }
+
+    /**
+     * Puts the ids of the nodes to index into the queue, followed by an end
+     * marker for every worker.
+     */
+    private void produce() {
+        try {
+            if (pm != null) {
+                NodeId after = null;
+                for (;;) {
+                    List<NodeId> batch = pm.getAllNodeIds(after, BATCH_SIZE);
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    for (NodeId id : batch) {
+                        ids.put(id);
+                    }
+                    after = batch.get(batch.size() - 1);
+                }
+            } else {
+                traverse(rootState, rootPath);
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+        try {
+            for (int i = 0; i < workers; i++) {
+                ids.put(END_OF_IDS);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Puts the ids of a node and its descendants into the queue.
+     *
+     * @param node the node.
+     * @param path the path of the node.
+     * @throws InterruptedException if the creator is closed.
+     * @throws ItemStateException   if a child node is missing and the query
+     *                              handler is configured to fail.
+     * @throws RepositoryException  if any other error occurs.
+     */
+    private void traverse(NodeState node, Path path)
+            throws InterruptedException, ItemStateException,
+            RepositoryException {
+        if (excludedIDs.contains(node.getNodeId())) {
+            return;
+        }
+        ids.put(node.getNodeId());
+        for (ChildNodeEntry child : node.getChildNodeEntries()) {
+            Path childPath = PATH_FACTORY.create(path, child.getName(),
+                    child.getIndex(), false);
+            NodeState childState = null;
+            try {
+                childState = (NodeState) stateMgr.getItemState(child.getId());
+            } catch (NoSuchItemStateException e) {
+                handler.getOnWorkspaceInconsistencyHandler().handleMissingChildNode(
+                        e, handler, path, node, child);
+            } catch (ItemStateException e) {
+                // JCR-3268 log bundle corruption and continue
+                handler.getOnWorkspaceInconsistencyHandler().logError(e,
+                        handler, childPath, node, child);
+            }
+            if (childState != null) {
+                traverse(childState, childPath);
+            }
+        }
+    }
+
+    /**
+     * Creates the documents of the nodes in the queue until the end marker
+     * is taken.
+     */
+    private void work() {
+        try {
+            for (;;) {
+                NodeId id = ids.take();
+                if (id == END_OF_IDS) {
+                    break;
+                }
+                Document doc = createDocument(id);
+                if (doc != null) {
+                    documents.put(doc);
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+        try {
+            documents.put(END_OF_DOCUMENTS);
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Creates the document of a node.
+     *
+     * @param id the id of the node.
+     * @return the document or <code>null</code> if the node is not indexed.
+     * @throws ItemStateException  if a child node is missing and the query
+     *                             handler is configured to fail.
+     * @throws RepositoryException if the missing child node cannot be
+     *                             reported.
+     */
+    private Document createDocument(NodeId id)
+            throws ItemStateException, RepositoryException {
+        NodeState state;
+        try {
+            state = (NodeState) stateMgr.getItemState(id);
+            if (pm != null && !isIndexed(state)) {
+                return null;
+            }
+        } catch (NoSuchItemStateException e) {
+            // a missing node is reported by its parent
+            log.debug("Node {} does not exist", id);
+            return null;
+        } catch (ItemStateException e) {
+            log.error("Workspace inconsistency error on node " + id, e);
+            return null;
+        }
+        if (pm != null) {
+            checkChildNodes(state);
+        }
+        try {
+            return index.createDocument(state);
+        } catch (RepositoryException e) {
+            log.warn("Exception while creating document for node: " + id, e);
+        }
+        return null;
+    }
+
+    /**
+     * Reports the child node entries of a node that refer to a missing node
+     * to the workspace inconsistency handler.
+     *
+     * @param node the node.
+     * @throws ItemStateException  if a child node is missing and the query
+     *                             handler is configured to fail.
+     * @throws RepositoryException if the missing child node cannot be
+     *                             reported.
+     */
+    private void checkChildNodes(NodeState node)
+            throws ItemStateException, RepositoryException {
+        for (ChildNodeEntry child : node.getChildNodeEntries()) {
+            if (!stateMgr.hasItemState(child.getId())) {
+                handler.getOnWorkspaceInconsistencyHandler().handleMissingChildNode(
+                        new NoSuchItemStateException(child.getId().toString()),
+                        handler, getPath(node), node, child);
+            }
+        }
+    }
+
+    /**
+     * Returns the path of an indexed node. Only used to report missing child
+     * nodes, when the ancestors of the node are cached.
+     *
+     * @param state the node.
+     * @return the path of the node.
+     * @throws ItemStateException  if an ancestor cannot be read.
+     * @throws RepositoryException if the path cannot be created.
+     */
+    private Path getPath(NodeState state)
+            throws ItemStateException, RepositoryException {
+        if (state.getNodeId().equals(rootState.getNodeId())) {
+            return rootPath;
+        }
+        NodeState parent = (NodeState) stateMgr.getItemState(state.getParentId());
+        Path parentPath = getPath(parent);
+        ChildNodeEntry entry = parent.getChildNodeEntry(state.getNodeId());
+        if (entry == null) {
+            // not linked from its parent, report the parent instead
+            return parentPath;
+        }
+        return PATH_FACTORY.create(parentPath, entry.getName(),
+                entry.getIndex(), false);
+    }
+
+    /**
+     * Checks whether a node is a descendant of the root node, or the root
+     * node itself, and neither the node nor one of its ancestors is
+     * excluded.
+     *
+     * @param state the node.
+     * @return <code>true</code> if the node is indexed.
+     * @throws ItemStateException if an ancestor cannot be read.
+     */
+    private boolean isIndexed(NodeState state) throws ItemStateException {
+        NodeId rootId = rootState.getNodeId();
+        for (;;) {
+            NodeId id = state.getNodeId();
+            if (excludedIDs.contains(id)) {
+                return false;
+            } else if (id.equals(rootId)) {
+                return true;
+            }
+            NodeId parentId = state.getParentId();
+            if (parentId == null) {
+                return false;
+            }
+            try {
+                state = (NodeState) stateMgr.getItemState(parentId);
+            } catch (NoSuchItemStateException e) {
+                log.warn("Node {} is not indexed, its ancestor {} does not exist",
+                        id, parentId);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Throws the first exception of the producer or a worker.
+     *
+     * @throws IOException if the producer or a worker failed.
+     */
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            throw Util.createIOException(t);
+        }
+    }
+
+    /**
+     * Logs the number of documents created so far, the rate and the
+     * estimated remaining time, at most every {@link #LOG_INTERVAL} ms.
+     */
+    private void logProgress() {
+        long now = System.currentTimeMillis();
+        if (now - lastLog < LOG_INTERVAL) {
+            return;
+        }
+        lastLog = now;
+        long rate = count * 1000 / Math.max(1, now - startTime);
+        if (total > 0) {
+            long remaining = Math.max(0, total - count);
+            log.info("indexing... {} of {} nodes ({}%), {} nodes/s, {} remaining",
+                    new Object[]{count, total, count * 100 / total, rate,
+                    rate > 0 ? formatSeconds(remaining / rate) : "unknown time"});
+        } else {
+            log.info("indexing... {} nodes, {} nodes/s", count, rate);
+        }
+    }
+
+    /**
+     * @param seconds a number of seconds.
+     * @return the seconds formatted as h:mm:ss.
+     */
+    private static String formatSeconds(long seconds) {
+        return String.format("%d:%02d:%02d",
+                seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.MultiTermQueryWrapperFilter;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Scores a sorted query on the index segments of a {@link MultiIndexReader}
+ * concurrently. The segments are split into contiguous slices of about the
+ * same number of documents, one slice per thread of the per query budget.
+ * The calling thread scores the first slice and the executor the others.
+ * Slices that the executor did not start yet when the calling thread is
+ * done are scored by the calling thread as well, so a busy executor never
+ * makes a query slower than sequential scoring.
+ * <p>
+ * Unsorted queries are not scored this way, because their hits are read
+ * lazily in document order and the first hits are available without
+ * scoring all segments.
+ * <p>
+ * Only queries whose scorers are computed per segment can be scored this
+ * way, see {@link #getSegmentLocalQuery(Query)}. Hierarchical queries resolve
+ * documents across segments and are always scored sequentially.
+ */
+class ParallelSegmentSearcher {
+
+    /**
+     * The segment local query.
+     */
+    private final Query query;
+
+    /**
+     * The executor that scores the slices.
+     */
+    private final Executor executor;
+
+    /**
+     * The index segments.
+     */
+    private final IndexReader[] segments;
+
+    /**
+     * The document number starts of the {@link #segments}.
+     */
+    private final int[] starts;
+
+    /**
+     * The index of the first segment of each slice, followed by the number
+     * of segments.
+     */
+    private final int[] slices;
+
+    /**
+     * Creates a searcher for the segments of the given reader.
+     *
+     * @param reader the index reader.
+     * @param query the query, as returned by
+     *              {@link #getSegmentLocalQuery(Query)}.
+     * @param executor the executor that scores the slices.
+     * @param threads the maximum number of threads that score a query,
+     *                including the calling thread.
+     */
+    ParallelSegmentSearcher(
+            IndexReader reader, Query query, Executor executor, int threads) {
+        this.query = query;
+        this.executor = executor;
+        List<IndexReader> readers = new ArrayList<IndexReader>();
+        getIndexReaders(readers, reader);
+        this.segments = readers.toArray(new IndexReader[readers.size()]);
+        this.starts = new int[segments.length + 1];
+        for (int i = 0; i < segments.length; i++) {
+            starts[i + 1] = starts[i] + segments[i].maxDoc();
+        }
+        this.slices = createSlices(starts, Math.max(1, threads));
+    }
+
+    /**
+     * Returns the number of slices that are scored concurrently.
+     *
+     * @return the number of slices.
+     */
+    int getSliceCount() {
+        return slices.length - 1;
+    }
+
+    /**
+     * Returns a query that matches the same documents with the same scores
+     * as the given query and whose scorer on a {@link MultiIndexReader} only
+     * combines the scorers on the individual segments. Returns
+     * <code>null</code> if there is no such query.
+     * <p>
+     * The lucene term queries, for example those created when multi term
+     * queries are rewritten, only score the readers known to the searcher,
+     * that is, not the individual segments. They are replaced with
+     * {@link JackrabbitTermQuery} instances.
+     *
+     * @param query a rewritten query.
+     * @return the query to score per segment, or <code>null</code>.
+     */
+    static Query getSegmentLocalQuery(Query query) {
+        if (query instanceof BooleanQuery) {
+            BooleanQuery bq = (BooleanQuery) query;
+            BooleanQuery local = new BooleanQuery(bq.isCoordDisabled());
+            local.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+            local.setBoost(bq.getBoost());
+            for (BooleanClause clause : bq.getClauses()) {
+                Query q = getSegmentLocalQuery(clause.getQuery());
+                if (q == null) {
+                    return null;
+                }
+                local.add(q, clause.getOccur());
+            }
+            return local;
+        } else if (query instanceof ConstantScoreQuery) {
+            ConstantScoreQuery csq = (ConstantScoreQuery) query;
+            if (csq.getQuery() != null) {
+                Query q = getSegmentLocalQuery(csq.getQuery());
+                if (q == null) {
+                    return null;
+                }
+                ConstantScoreQuery local = new ConstantScoreQuery(q);
+                local.setBoost(csq.getBoost());
+                return local;
+            }
+            return csq.getFilter() instanceof MultiTermQueryWrapperFilter
+                    ? query : null;
+        } else if (query.getClass() == TermQuery.class) {
+            TermQuery local = new JackrabbitTermQuery(((TermQuery) query).getTerm());
+            local.setBoost(query.getBoost());
+            return local;
+        } else if (query instanceof TermQuery
+                || query instanceof PhraseQuery
+                || query instanceof MultiPhraseQuery
+                || query instanceof MultiTermQuery
+                || query instanceof RangeQuery
+                || query instanceof WildcardQuery
+                || query instanceof MatchAllQuery
+                || query instanceof org.apache.lucene.search.MatchAllDocsQuery) {
+            return query;
+        }
+        return null;
+    }
+
+    /**
+     * Scores the query and returns the top hits according to the given sort.
+     *
+     * @param searcher the searcher.
+     * @param sort the sort criteria.
+     * @param numHits the number of top hits to return.
+     * @return the top hits.
+     * @throws IOException if an error occurs while scoring the query.
+     */
+    TopDocs search(Searcher searcher, final Sort sort, final int numHits)
+            throws IOException {
+        final Weight weight = searcher.createNormalizedWeight(query);
+        List<TopFieldDocs> results = execute(new SliceSearch<TopFieldDocs>() {
+            public TopFieldDocs search(int first, int last) throws IOException {
+                TopFieldCollector collector = TopFieldCollector.create(
+                        sort, numHits, true, true, false, false);
+                for (int i = first; i < last; i++) {
+                    Scorer scorer = weight.scorer(segments[i],
+                            !collector.acceptsDocsOutOfOrder(), true);
+                    if (scorer != null) {
+                        collector.setNextReader(segments[i], starts[i]);
+                        scorer.score(collector);
+                    }
+                }
+                return (TopFieldDocs) collector.topDocs();
+            }
+        });
+        return TopDocs.merge(sort, numHits,
+                results.toArray(new TopFieldDocs[results.size()]));
+    }
+
+    //-------------------------------< internal >-------------------------------
+
+    /**
+     * Runs the search on all slices and returns the results in slice order.
+     */
+    private <T> List<T> execute(final SliceSearch<T> search)
+            throws IOException {
+        List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>();
+        for (int i = 0; i < getSliceCount(); i++) {
+            final int first = slices[i];
+            final int last = slices[i + 1];
+            FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+                public T call() throws IOException {
+                    return search.search(first, last);
+                }
+            });
+            tasks.add(task);
+            if (i > 0) {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // scored by the calling thread below
+                }
+            }
+        }
+        List<T> results = new ArrayList<T>(tasks.size());
+        for (FutureTask<T> task : tasks) {
+            // does nothing if the executor already started the task
+            task.run();
+        }
+        for (FutureTask<T> task : tasks) {
+            try {
+                results.add(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while scoring a query");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw Util.createIOException((Exception) cause);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Splits the segments into at most <code>count</code> contiguous slices
+     * with about the same number of documents.
+     */
+    private static int[] createSlices(int[] starts, int count) {
+        int segments = starts.length - 1;
+        int[] slices = new int[Math.min(count, Math.max(segments, 1)) + 1];
+        int n = 1;
+        long maxDoc = starts[segments];
+        for (int i = 1; i < segments && n < slices.length - 1; i++) {
+            // start a new slice once the current one has its share
+            if (starts[i] >= maxDoc * n / (slices.length - 1)) {
+                slices[n++] = i;
+            }
+        }
+        slices[n] = segments;
+        return Arrays.copyOf(slices, n + 1);
+    }
+
+    private static void getIndexReaders(List<IndexReader> readers, IndexReader reader) {
+        if (reader instanceof MultiIndexReader) {
+            for (IndexReader r : ((MultiIndexReader) reader).getIndexReaders()) {
+                getIndexReaders(readers, r);
+            }
+        } else {
+            readers.add(reader);
+        }
+    }
+
+    /**
+     * Searches the segments <code>first</code> (inclusive) to
+     * <code>last</code> (exclusive).
+     */
+    private interface SliceSearch<T> {
+
+        T search(int first, int last) throws IOException;
+
+    }
+
+}
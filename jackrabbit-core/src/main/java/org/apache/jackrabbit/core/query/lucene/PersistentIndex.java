@@ -22,11 +22,14 @@ import org.apache.jackrabbit.core.query.lucene.directory.DirectoryManager;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexDeletionPolicy;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Implements a lucene index which is based on a
@@ -34,6 +37,11 @@ import org.apache.lucene.store.IndexOutput;
  */
 class PersistentIndex extends AbstractIndex {
 
+    /**
+     * The logger instance for this class.
+     */
+    private static final Logger log = LoggerFactory.getLogger(PersistentIndex.class);
+
     /** The name of this persistent index */
     private final String name;
 
@@ -103,7 +111,8 @@ class PersistentIndex extends AbstractIndex {
 
     /**
      * Merges the provided indexes into this index. After this completes, the
-     * index is optimized.
+     * index is optimized, committed and the {@link HierarchyCacheFile} is
+     * written.
      * <p>
      * The provided IndexReaders are not closed.
      *
@@ -113,12 +122,52 @@ class PersistentIndex extends AbstractIndex {
     void addIndexes(IndexReader[] readers) throws IOException {
         getIndexWriter().addIndexes(readers);
         getIndexWriter().optimize();
+        commit();
+        writeHierarchyCache();
     }
 
     /**
-     * Copies <code>index</code> into this persistent index. This method should
-     * only be called when <code>this</code> index is empty otherwise the
-     * behaviour is undefined.
+     * Merges the provided indexes into this index like
+     * {@link #addIndexes(IndexReader[])}, but limits the rate at which the
+     * merged index is written.
+     *
+     * @param readers the readers of indexes to add.
+     * @param limiter the rate limiter or <code>null</code> to write without
+     *                limit.
+     * @throws IOException if an error occurs while adding indexes.
+     */
+    void addIndexes(IndexReader[] readers, MergeRateLimiter limiter)
+            throws IOException {
+        if (limiter == null) {
+            addIndexes(readers);
+            return;
+        }
+        setWriteRateLimiter(limiter);
+        try {
+            addIndexes(readers);
+        } finally {
+            setWriteRateLimiter(null);
+        }
+    }
+
+    /**
+     * @return the size in bytes of the files of this index.
+     * @throws IOException if the size cannot be determined.
+     */
+    long getSizeInBytes() throws IOException {
+        Directory dir = getDirectory();
+        long size = 0;
+        for (String file : dir.listAll()) {
+            size += dir.fileLength(file);
+        }
+        return size;
+    }
+
+    /**
+     * Copies <code>index</code> into this persistent index and writes the
+     * {@link HierarchyCacheFile}. This method should only be called when
+     * <code>this</code> index is empty or not yet opened, files that are
+     * already present are replaced.
      *
      * @param index the index to copy from.
      * @throws IOException if an error occurs while copying.
@@ -130,8 +179,20 @@ class PersistentIndex extends AbstractIndex {
         byte[] buffer = new byte[1024];
         Directory dir = index.getDirectory();
         Directory dest = getDirectory();
+        // the index may already have been written by a background task
+        // when the volatile commit is recovered from the redo log
+        for (String file : dest.listAll()) {
+            if (!file.equals(IndexWriter.WRITE_LOCK_NAME)) {
+                dest.deleteFile(file);
+            }
+        }
         String[] files = dir.listAll();
         for (String file : files) {
+            if (file.equals(HierarchyCacheFile.FILE_NAME)
+                    || file.equals(HierarchyCacheFile.LEGACY_FILE_NAME)) {
+                // written for the copy below
+                continue;
+            }
             IndexInput in = dir.openInput(file);
             try {
                 IndexOutput out = dest.createOutput(file);
@@ -152,6 +213,25 @@ class PersistentIndex extends AbstractIndex {
         }
         // refresh current generation
         indexDelPolicy.readCurrentGeneration();
+        writeHierarchyCache();
+    }
+
+    /**
+     * Writes the {@link HierarchyCacheFile} of this index. A failure is only
+     * logged, the file is then written when the hierarchy cache of this
+     * index is initialized.
+     */
+    private void writeHierarchyCache() {
+        try {
+            IndexReader reader = IndexReader.open(getDirectory());
+            try {
+                new HierarchyCacheFile.Writer().write(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to write hierarchy cache of index " + name, e);
+        }
     }
 
     /**
@@ -92,6 +92,23 @@ public class QueryImpl extends AbstractQueryImpl {
                 statement, language, sessionContext, factory);
     }
 
+    /**
+     * Creates a new query instance from an already parsed query tree. The
+     * tree is not modified by the query and may be shared with other query
+     * instances.
+     *
+     * @param sessionContext component context of the current session
+     * @param index     the search index.
+     * @param propReg   the property type registry.
+     * @param root      the root node of the query tree.
+     */
+    public QueryImpl(
+            SessionContext sessionContext, SearchIndex index,
+            PropertyTypeRegistry propReg, QueryRootNode root) {
+        super(sessionContext, index, propReg);
+        this.root = root;
+    }
+
     /**
      * Executes this query and returns a <code>{@link QueryResult}</code>.
      *
@@ -122,6 +122,23 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
     
     private final boolean sizeEstimate;
 
+    /**
+     * If <code>true</code> the total size is counted on the index when it is
+     * not known otherwise.
+     */
+    private final boolean countTotalSize;
+
+    /**
+     * The counted total size, <code>-1</code> if it could not be counted.
+     * Only valid if {@link #counted} is <code>true</code>.
+     */
+    private int countedResults = -1;
+
+    /**
+     * Flag that indicates whether the total size was already counted.
+     */
+    private boolean counted = false;
+
     /**
      * Creates a new query result. The concrete sub class is responsible for
      * calling {@link #getResults(long)} after this constructor had been called.
@@ -149,6 +166,7 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
             long offset, long limit) throws RepositoryException {
         this.index = index;
         this.sizeEstimate = index.getSizeEstimate();
+        this.countTotalSize = index.getCountTotalSize();
         this.sessionContext = sessionContext;
         this.queryImpl = queryImpl;
         this.spellSuggestion = spellSuggestion;
@@ -230,6 +248,19 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
     protected abstract ExcerptProvider createExcerptProvider()
             throws IOException;
 
+    /**
+     * Counts the results of the query on the index, without limit and offset
+     * and without loading the result nodes. This default implementation
+     * returns <code>-1</code>.
+     *
+     * @return the number of results, or <code>-1</code> if the results
+     *         cannot be counted.
+     * @throws IOException if an error occurs while counting the results.
+     */
+    protected int countQuery() throws IOException {
+        return -1;
+    }
+
     //--------------------------------< internal >------------------------------
 
     /**
@@ -411,6 +442,10 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
      * Keep in mind that this number may get smaller if nodes are found in
      * the result set which the current session has no permission to access.
      * This might be a security problem.
+     * <p>
+     * If the "countTotalSize" option is enabled and the total size is not
+     * known yet, the results are counted on the index. The count is an
+     * estimate unless the session is an admin or system session.
      *
      * @return the total number of hits.
      */
@@ -421,11 +456,33 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
             } else {
                 return numResults - invalid;
             }
+        } else if (totalResults == -1 && countTotalSize) {
+            return count();
         } else {
             return totalResults;
         }
     }
 
+    /**
+     * Counts the results on the index once.
+     *
+     * @return the counted total size or <code>-1</code>.
+     */
+    private int count() {
+        if (!counted) {
+            counted = true;
+            try {
+                long time = System.currentTimeMillis();
+                countedResults = countQuery();
+                log.debug("query counted in {} ms",
+                        System.currentTimeMillis() - time);
+            } catch (IOException e) {
+                log.warn("Unable to count query results: " + e);
+            }
+        }
+        return countedResults;
+    }
+
     private final class LazyScoreNodeIteratorImpl implements ScoreNodeIterator {
 
         private int position = -1;
@@ -491,6 +548,13 @@ public abstract class QueryResultImpl implements JackrabbitQueryResult {
                 } else {
                     return size;
                 }                
+            } else if (numResults == -1 && countTotalSize) {
+                int total = getTotalSize();
+                if (total == -1) {
+                    return -1;
+                }
+                long size = offset > total ? 0 : total - offset;
+                return limit >= 0 ? Math.min(size, limit) : size;
             } else {
                 return numResults;
             }
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+
+/**
+ * <code>RateLimitedDirectory</code> wraps a directory and throttles the
+ * bytes written to it with a {@link MergeRateLimiter}. Reads are not
+ * throttled. Closing this directory does not close the wrapped directory.
+ */
+class RateLimitedDirectory extends Directory {
+
+    /**
+     * Number of bytes written before the rate limiter is asked to pause.
+     */
+    private static final int PAUSE_INTERVAL = 64 * 1024;
+
+    /**
+     * The wrapped directory.
+     */
+    private final Directory directory;
+
+    /**
+     * The rate limiter.
+     */
+    private final MergeRateLimiter limiter;
+
+    /**
+     * Creates a new rate limited directory.
+     *
+     * @param directory the directory to wrap.
+     * @param limiter   the rate limiter.
+     */
+    RateLimitedDirectory(Directory directory, MergeRateLimiter limiter) {
+        this.directory = directory;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public String[] listAll() throws IOException {
+        return directory.listAll();
+    }
+
+    @Override
+    public boolean fileExists(String name) throws IOException {
+        return directory.fileExists(name);
+    }
+
+    @Override
+    public long fileModified(String name) throws IOException {
+        return directory.fileModified(name);
+    }
+
+    @Override
+    public void touchFile(String name) throws IOException {
+        directory.touchFile(name);
+    }
+
+    @Override
+    public void deleteFile(String name) throws IOException {
+        directory.deleteFile(name);
+    }
+
+    @Override
+    public long fileLength(String name) throws IOException {
+        return directory.fileLength(name);
+    }
+
+    @Override
+    public IndexOutput createOutput(String name) throws IOException {
+        return new RateLimitedIndexOutput(directory.createOutput(name));
+    }
+
+    @Override
+    public void sync(Collection<String> names) throws IOException {
+        directory.sync(names);
+    }
+
+    @Override
+    public IndexInput openInput(String name) throws IOException {
+        return directory.openInput(name);
+    }
+
+    @Override
+    public IndexInput openInput(String name, int bufferSize)
+            throws IOException {
+        return directory.openInput(name, bufferSize);
+    }
+
+    @Override
+    public Lock makeLock(String name) {
+        return directory.makeLock(name);
+    }
+
+    @Override
+    public void clearLock(String name) throws IOException {
+        directory.clearLock(name);
+    }
+
+    @Override
+    public void setLockFactory(LockFactory lockFactory) throws IOException {
+        directory.setLockFactory(lockFactory);
+    }
+
+    @Override
+    public LockFactory getLockFactory() {
+        return directory.getLockFactory();
+    }
+
+    @Override
+    public String getLockID() {
+        return directory.getLockID();
+    }
+
+    @Override
+    public void close() {
+        // the wrapped directory is closed by its owner
+    }
+
+    public String toString() {
+        return getClass().getName() + '@' + directory;
+    }
+
+    /**
+     * Pauses after every {@link #PAUSE_INTERVAL} bytes written.
+     */
+    private final class RateLimitedIndexOutput extends IndexOutput {
+
+        private final IndexOutput out;
+
+        private int unpaid = 0;
+
+        RateLimitedIndexOutput(IndexOutput out) {
+            this.out = out;
+        }
+
+        @Override
+        public void writeByte(byte b) throws IOException {
+            out.writeByte(b);
+            written(1);
+        }
+
+        @Override
+        public void writeBytes(byte[] b, int offset, int length)
+                throws IOException {
+            out.writeBytes(b, offset, length);
+            written(length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public long getFilePointer() {
+            return out.getFilePointer();
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            out.seek(pos);
+        }
+
+        @Override
+        public long length() throws IOException {
+            return out.length();
+        }
+
+        @Override
+        public void setLength(long length) throws IOException {
+            out.setLength(length);
+        }
+
+        private void written(int bytes) throws IOException {
+            unpaid += bytes;
+            if (unpaid >= PAUSE_INTERVAL) {
+                limiter.pause(unpaid);
+                unpaid = 0;
+            }
+        }
+    }
+}
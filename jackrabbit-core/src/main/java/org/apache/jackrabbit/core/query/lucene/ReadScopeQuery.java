@@ -0,0 +1,369 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Set;
+
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.Similarity;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Implements a query that restricts the matches of a wrapped query to the
+ * subtrees, which contain the items that the session may read. The scores
+ * of the wrapped query are preserved. Matches outside of the subtrees are
+ * skipped while the index is evaluated, instead of being loaded and
+ * rejected by the access check on the query result.
+ */
+@SuppressWarnings("serial")
+class ReadScopeQuery extends Query implements JackrabbitQuery {
+
+    /**
+     * The wrapped query.
+     */
+    private final Query query;
+
+    /**
+     * The ids of the root nodes of the readable subtrees.
+     */
+    private final Set<NodeId> roots;
+
+    /**
+     * Creates a new <code>ReadScopeQuery</code>.
+     *
+     * @param query the query to restrict.
+     * @param roots the ids of the root nodes of the readable subtrees.
+     */
+    ReadScopeQuery(Query query, Set<NodeId> roots) {
+        this.query = query;
+        this.roots = roots;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Weight createWeight(Searcher searcher) throws IOException {
+        return new ReadScopeWeight(searcher, query.createWeight(searcher));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString(String field) {
+        return "ReadScopeQuery(" + query.toString(field) + ", " + roots + ")";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void extractTerms(Set<Term> terms) {
+        query.extractTerms(terms);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Query rewrite(IndexReader reader) throws IOException {
+        Query q = query.rewrite(reader);
+        if (q == query) {
+            return this;
+        } else {
+            return new ReadScopeQuery(q, roots);
+        }
+    }
+
+    //------------------------< JackrabbitQuery >-------------------------------
+
+    /**
+     * Executes the wrapped query if it is a {@link JackrabbitQuery} and
+     * filters its hits. Otherwise returns <code>null</code>.
+     *
+     * {@inheritDoc}
+     */
+    public QueryHits execute(JackrabbitIndexSearcher searcher,
+                             SessionImpl session,
+                             Sort sort) throws IOException {
+        if (!(query instanceof JackrabbitQuery)) {
+            return null;
+        }
+        final QueryHits hits =
+            ((JackrabbitQuery) query).execute(searcher, session, sort);
+        if (hits == null) {
+            return null;
+        }
+        final IndexReader reader = searcher.getIndexReader();
+        final ScopeFilter filter = new ScopeFilter(reader);
+        return new AbstractQueryHits() {
+
+            public ScoreNode nextScoreNode() throws IOException {
+                ScoreNode sn;
+                do {
+                    sn = hits.nextScoreNode();
+                } while (sn != null && !filter.includes(sn.getDoc(reader)));
+                return sn;
+            }
+
+            public void close() throws IOException {
+                hits.close();
+            }
+        };
+    }
+
+    //------------------------< ReadScopeWeight >-------------------------------
+
+    /**
+     * The <code>Weight</code> implementation for this
+     * <code>ReadScopeQuery</code>. It delegates to the weight of the wrapped
+     * query.
+     */
+    private class ReadScopeWeight extends Weight {
+
+        /**
+         * The searcher in use.
+         */
+        private final Searcher searcher;
+
+        /**
+         * The weight of the wrapped query.
+         */
+        private final Weight weight;
+
+        /**
+         * Creates a new <code>ReadScopeWeight</code>.
+         *
+         * @param searcher the searcher in use.
+         * @param weight the weight of the wrapped query.
+         */
+        private ReadScopeWeight(Searcher searcher, Weight weight) {
+            this.searcher = searcher;
+            this.weight = weight;
+        }
+
+        /**
+         * Returns this <code>ReadScopeQuery</code>.
+         *
+         * @return this <code>ReadScopeQuery</code>.
+         */
+        public Query getQuery() {
+            return ReadScopeQuery.this;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public float getValue() {
+            return weight.getValue();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public float sumOfSquaredWeights() throws IOException {
+            return weight.sumOfSquaredWeights();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void normalize(float norm) {
+            weight.normalize(norm);
+        }
+
+        /**
+         * Creates a scorer, which skips the documents of the wrapped scorer
+         * that are outside of the readable subtrees.
+         *
+         * {@inheritDoc}
+         */
+        public Scorer scorer(IndexReader reader, boolean scoreDocsInOrder,
+                boolean topScorer) throws IOException {
+            Scorer scorer = weight.scorer(reader, true, false);
+            if (scorer == null) {
+                return null;
+            }
+            return new ReadScopeScorer(searcher.getSimilarity(),
+                    scorer, new ScopeFilter(reader));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Explanation explain(IndexReader reader, int doc)
+                throws IOException {
+            return weight.explain(reader, doc);
+        }
+    }
+
+    //------------------------< ReadScopeScorer >-------------------------------
+
+    /**
+     * Implements a <code>Scorer</code> for this <code>ReadScopeQuery</code>.
+     */
+    private static final class ReadScopeScorer extends Scorer {
+
+        /**
+         * The scorer of the wrapped query.
+         */
+        private final Scorer scorer;
+
+        /**
+         * Decides whether a document is in the readable subtrees.
+         */
+        private final ScopeFilter filter;
+
+        private ReadScopeScorer(Similarity similarity,
+                                Scorer scorer,
+                                ScopeFilter filter) {
+            super(similarity);
+            this.scorer = scorer;
+            this.filter = filter;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return skipExcluded(scorer.nextDoc());
+        }
+
+        @Override
+        public int docID() {
+            return scorer.docID();
+        }
+
+        @Override
+        public float score() throws IOException {
+            return scorer.score();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return skipExcluded(scorer.advance(target));
+        }
+
+        private int skipExcluded(int doc) throws IOException {
+            while (doc != NO_MORE_DOCS && !filter.includes(doc)) {
+                doc = scorer.nextDoc();
+            }
+            return doc;
+        }
+    }
+
+    //------------------------< ScopeFilter >-----------------------------------
+
+    /**
+     * Decides whether a document is a root of a readable subtree or a
+     * descendant of one. The decision is remembered for the document and
+     * all ancestors that were looked at, so that the hierarchy is resolved
+     * at most once per document.
+     */
+    private class ScopeFilter {
+
+        /**
+         * Resolves the parents of a document.
+         */
+        private final HierarchyResolver resolver;
+
+        /**
+         * The documents that are in the readable subtrees.
+         */
+        private final BitSet included;
+
+        /**
+         * The documents that are outside of the readable subtrees.
+         */
+        private final BitSet excluded;
+
+        /**
+         * Array of document numbers for reuse.
+         */
+        private int[] parents = new int[1];
+
+        private ScopeFilter(IndexReader reader) throws IOException {
+            this.resolver = (HierarchyResolver) reader;
+            this.included = new BitSet(reader.maxDoc());
+            this.excluded = new BitSet(reader.maxDoc());
+            for (NodeId id : roots) {
+                TermDocs docs = reader.termDocs(
+                        TermFactory.createUUIDTerm(id.toString()));
+                try {
+                    while (docs.next()) {
+                        included.set(docs.doc());
+                    }
+                } finally {
+                    docs.close();
+                }
+            }
+        }
+
+        /**
+         * Returns <code>true</code> if <code>doc</code> is in the readable
+         * subtrees.
+         *
+         * @param doc the document number.
+         * @return whether the document is in the readable subtrees.
+         * @throws IOException if an error occurs while reading from the index.
+         */
+        boolean includes(int doc) throws IOException {
+            int[] ancestors = new int[8];
+            int length = 0;
+            boolean result = false;
+            int current = doc;
+            for (;;) {
+                if (included.get(current)) {
+                    result = true;
+                    break;
+                } else if (excluded.get(current)) {
+                    break;
+                }
+                if (length == ancestors.length) {
+                    int[] tmp = new int[length * 2];
+                    System.arraycopy(ancestors, 0, tmp, 0, length);
+                    ancestors = tmp;
+                }
+                ancestors[length++] = current;
+                parents = resolver.getParents(current, parents);
+                if (parents.length == 1) {
+                    current = parents[0];
+                } else {
+                    // the root node, or a shared node with several parents
+                    for (int parent : parents.clone()) {
+                        if (includes(parent)) {
+                            result = true;
+                            break;
+                        }
+                    }
+                    break;
+                }
+            }
+            BitSet decided = result ? included : excluded;
+            for (int i = 0; i < length; i++) {
+                decided.set(ancestors[i]);
+            }
+            return result;
+        }
+    }
+}
@@ -32,7 +32,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.query.InvalidQueryException;
@@ -65,9 +70,12 @@ import org.apache.jackrabbit.core.query.AbstractQueryHandler;
 import org.apache.jackrabbit.core.query.ExecutableQuery;
 import org.apache.jackrabbit.core.query.QueryHandler;
 import org.apache.jackrabbit.core.query.QueryHandlerContext;
+import org.apache.jackrabbit.core.query.QueryPlanCache;
 import org.apache.jackrabbit.core.query.lucene.directory.DirectoryManager;
 import org.apache.jackrabbit.core.query.lucene.directory.FSDirectoryManager;
 import org.apache.jackrabbit.core.query.lucene.hits.AbstractHitCollector;
+import org.apache.jackrabbit.core.security.AccessManager;
+import org.apache.jackrabbit.core.security.authorization.ReadScope;
 import org.apache.jackrabbit.core.session.SessionContext;
 import org.apache.jackrabbit.core.state.ItemState;
 import org.apache.jackrabbit.core.state.ItemStateException;
@@ -81,6 +89,8 @@ import org.apache.jackrabbit.spi.PathFactory;
 import org.apache.jackrabbit.spi.commons.name.NameConstants;
 import org.apache.jackrabbit.spi.commons.name.PathFactoryImpl;
 import org.apache.jackrabbit.spi.commons.query.DefaultQueryNodeFactory;
+import org.apache.jackrabbit.spi.commons.query.QueryParser;
+import org.apache.jackrabbit.spi.commons.query.QueryRootNode;
 import org.apache.jackrabbit.spi.commons.query.qom.OrderingImpl;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.LimitTokenCountAnalyzer;
@@ -167,6 +177,11 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     public static final int DEFAULT_MERGE_FACTOR = 10;
 
+    /**
+     * The default value for property {@link #maxConcurrentMerges}.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_MERGES = 2;
+
     /**
      * the default value for property {@link #maxFieldLength}.
      */
@@ -293,6 +308,29 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     private int mergeFactor = DEFAULT_MERGE_FACTOR;
 
+    /**
+     * The maximum number of index merges that run at the same time.
+     */
+    private int maxConcurrentMerges = DEFAULT_MAX_CONCURRENT_MERGES;
+
+    /**
+     * The rate in MB per second at which index merges write. The default
+     * value 0 does not limit the rate.
+     */
+    private double mergeRateLimit = 0;
+
+    /**
+     * The maximum size in MB of an index created by the
+     * {@link TieredIndexMergePolicy}.
+     */
+    private int maxMergedIndexSize = 5 * 1024;
+
+    /**
+     * Indexes smaller than this size in MB are treated by the
+     * {@link TieredIndexMergePolicy} as if they had this size.
+     */
+    private int floorIndexSize = 2;
+
     /**
      * maxFieldLength config parameter
      */
@@ -395,6 +433,73 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     private boolean sizeEstimate = false;
 
+    /**
+     * If enabled, the total size of a query result that is not yet known is
+     * counted on the index, without loading the nodes of the result.
+     */
+    private boolean countTotalSize = false;
+
+    /**
+     * The number of hits that are checked for read access when the total
+     * size of a query result is estimated for a session that is neither an
+     * admin nor a system session. The value 0 disables estimates.
+     */
+    private int countSampleSize = 100;
+
+    /**
+     * The number of threads that score the index segments of a sorted query
+     * concurrently. The default value 0 scores the segments sequentially
+     * with the thread that executes the query.
+     */
+    private int searchThreads = 0;
+
+    /**
+     * The maximum number of threads that score a single query, including
+     * the thread that executes the query. Values below 1 mean the number of
+     * {@link #searchThreads}.
+     */
+    private int searchThreadsPerQuery = 0;
+
+    /**
+     * The executor that scores index segments concurrently, or
+     * <code>null</code> if the segments are scored sequentially.
+     */
+    private ExecutorService searchExecutor;
+
+    /**
+     * The number of threads that create the documents of the initial index.
+     * The default value 0 creates them with the thread that builds the
+     * index.
+     */
+    private int initialIndexThreads = 0;
+
+    /**
+     * The maximum number of parsed query statements that are kept in the
+     * {@link #queryPlanCache}. The value 0 disables the cache.
+     */
+    private int queryPlanCacheSize = 256;
+
+    /**
+     * If <code>true</code> a full volatile index is persisted in the
+     * background while queries already see its documents. The default value
+     * <code>false</code> persists it synchronously with the index update.
+     */
+    private boolean nearRealTime = false;
+
+    /**
+     * The interval in milliseconds within which the redo log entries of
+     * index updates are flushed to disk together. Updates wait until their
+     * entries are flushed. The default value 0 flushes the redo log with
+     * every update.
+     */
+    private int redoLogFlushInterval = 0;
+
+    /**
+     * The cache of parsed query statements or <code>null</code> if the
+     * cache is disabled.
+     */
+    private QueryPlanCache queryPlanCache;
+
     /**
      * The excerpt provider class. Implements {@link ExcerptProvider}.
      */
@@ -514,6 +619,16 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     private RedoLogFactory redoLogFactory;
 
+    /**
+     * The name of the index merge policy class implementation.
+     */
+    private String indexMergePolicyClass = DefaultIndexMergePolicy.class.getName();
+
+    /**
+     * The index merge policy.
+     */
+    private IndexMergePolicy indexMergePolicy;
+
     /**
      * Indicates if this <code>SearchIndex</code> is closed and cannot be used
      * anymore.
@@ -541,6 +656,8 @@ public class SearchIndex extends AbstractQueryHandler {
         synProvider = createSynonymProvider();
         directoryManager = createDirectoryManager();
         redoLogFactory = createRedoLogFactory();
+        indexMergePolicy = createIndexMergePolicy();
+        indexMergePolicy.init(this);
 
         if (context.getParentHandler() instanceof SearchIndex) {
             // use system namespace mappings
@@ -607,6 +724,23 @@ public class SearchIndex extends AbstractQueryHandler {
         // initialize spell checker
         spellChecker = createSpellChecker();
 
+        if (queryPlanCacheSize > 0) {
+            queryPlanCache = new QueryPlanCache(queryPlanCacheSize);
+        }
+
+        if (searchThreads > 0) {
+            searchExecutor = Executors.newFixedThreadPool(
+                    searchThreads, new ThreadFactory() {
+                        private final AtomicInteger counter = new AtomicInteger();
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "SearchIndex-search-"
+                                    + counter.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+
         log.info("Index initialized: {} Version: {}",
                 new Object[]{path, index.getIndexFormatVersion()});
         if (!index.getIndexFormatVersion().equals(getIndexFormatVersion())) {
@@ -728,13 +862,44 @@ public class SearchIndex extends AbstractQueryHandler {
     public ExecutableQuery createExecutableQuery(
             SessionContext sessionContext, String statement, String language)
             throws InvalidQueryException {
-        QueryImpl query = new QueryImpl(
-                sessionContext, this, getContext().getPropertyTypeRegistry(),
-                statement, language, getQueryNodeFactory());
+        QueryImpl query;
+        if (queryPlanCache == null) {
+            query = new QueryImpl(
+                    sessionContext, this, getContext().getPropertyTypeRegistry(),
+                    statement, language, getQueryNodeFactory());
+        } else {
+            QueryRootNode root;
+            try {
+                String key = QueryPlanCache.getKey(
+                        sessionContext, statement, language);
+                root = (QueryRootNode) queryPlanCache.get(sessionContext, key);
+                if (root == null) {
+                    root = QueryParser.parse(statement, language,
+                            sessionContext, getQueryNodeFactory());
+                    queryPlanCache.put(key, root);
+                }
+            } catch (InvalidQueryException e) {
+                throw e;
+            } catch (RepositoryException e) {
+                throw new InvalidQueryException(e.getMessage(), e);
+            }
+            query = new QueryImpl(
+                    sessionContext, this, getContext().getPropertyTypeRegistry(),
+                    root);
+        }
         query.setRespectDocumentOrder(documentOrder);
         return query;
     }
 
+    /**
+     * Returns the cache of parsed query statements.
+     *
+     * @return the query plan cache or <code>null</code> if it is disabled.
+     */
+    public QueryPlanCache getQueryPlanCache() {
+        return queryPlanCache;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -836,6 +1001,9 @@ public class SearchIndex extends AbstractQueryHandler {
         if (spellChecker != null) {
             spellChecker.close();
         }
+        if (searchExecutor != null) {
+            searchExecutor.shutdown();
+        }
         index.close();
         getContext().destroy();
         super.close();
@@ -872,9 +1040,13 @@ public class SearchIndex extends AbstractQueryHandler {
         JackrabbitIndexSearcher searcher = new JackrabbitIndexSearcher(
                 session, reader, getContext().getItemStateManager());
         searcher.setSimilarity(getSimilarity());
+        if (searchExecutor != null) {
+            searcher.setSegmentExecutor(
+                    searchExecutor, getSearchThreadsPerQuery());
+        }
         return new FilterMultiColumnQueryHits(
-                searcher.execute(query, sort, resultFetchHint,
-                        QueryImpl.DEFAULT_SELECTOR_NAME)) {
+                searcher.execute(restrictToReadScope(session, query), sort,
+                        resultFetchHint, QueryImpl.DEFAULT_SELECTOR_NAME)) {
             public void close() throws IOException {
                 try {
                     super.close();
@@ -906,6 +1078,10 @@ public class SearchIndex extends AbstractQueryHandler {
         JackrabbitIndexSearcher searcher = new JackrabbitIndexSearcher(
                 session, reader, getContext().getItemStateManager());
         searcher.setSimilarity(getSimilarity());
+        if (searchExecutor != null) {
+            searcher.setSegmentExecutor(
+                    searchExecutor, getSearchThreadsPerQuery());
+        }
         return new FilterMultiColumnQueryHits(
                 query.execute(searcher, orderings, resultFetchHint)) {
             public void close() throws IOException {
@@ -918,6 +1094,106 @@ public class SearchIndex extends AbstractQueryHandler {
         };
     }
 
+    /**
+     * Counts the hits of the query on the search index without loading the
+     * nodes of the hits. The count is exact if the session is an admin or
+     * system session. For other sessions the count of the hits in the
+     * readable subtrees is scaled by the share of readable nodes in a random
+     * sample of {@link #getCountSampleSize()} hits.
+     *
+     * @param session   the session that executes the query.
+     * @param queryImpl the query impl.
+     * @param query     the lucene query.
+     * @return the number of hits the session may read, or <code>-1</code>
+     *         if the number cannot be determined.
+     * @throws IOException if an error occurs while searching the index.
+     */
+    public int countQuery(SessionImpl session,
+                          AbstractQueryImpl queryImpl,
+                          Query query) throws IOException {
+        checkOpen();
+
+        boolean exact = session.isSystem() || session.isAdmin();
+        if (!exact && countSampleSize == 0) {
+            return -1;
+        }
+
+        IndexReader reader = getIndexReader(queryImpl.needsSystemTree());
+        try {
+            JackrabbitIndexSearcher searcher = new JackrabbitIndexSearcher(
+                    session, reader, getContext().getItemStateManager());
+            searcher.setSimilarity(getSimilarity());
+            List<NodeId> sample = new ArrayList<NodeId>();
+            int count = searcher.count(restrictToReadScope(session, query),
+                    exact ? 0 : countSampleSize, sample);
+            if (exact || sample.isEmpty()) {
+                return count;
+            }
+            AccessManager accessMgr = session.getAccessManager();
+            int granted = 0;
+            for (NodeId id : sample) {
+                try {
+                    if (accessMgr.canRead(null, id)) {
+                        granted++;
+                    }
+                } catch (ItemNotFoundException e) {
+                    // node deleted while query was executed
+                }
+            }
+            if (sample.size() == count) {
+                // all hits were checked
+                return granted;
+            }
+            return (int) Math.round((double) count * granted / sample.size());
+        } catch (RepositoryException e) {
+            IOException ex = new IOException("Unable to check read access");
+            ex.initCause(e);
+            throw ex;
+        } finally {
+            Util.closeOrRelease(reader);
+        }
+    }
+
+    /**
+     * Restricts the matches of <code>query</code> to the subtrees that
+     * contain the items the session may read, if the access manager of the
+     * session is a {@link ReadScope}. The result still has to be checked for
+     * read access, this only avoids loading nodes that cannot be read.
+     *
+     * @param session the session that executes the query.
+     * @param query   the query.
+     * @return the restricted query, or <code>query</code> if read access of
+     *         the session is not restricted to subtrees.
+     */
+    protected Query restrictToReadScope(SessionImpl session, Query query) {
+        AccessManager accessMgr = session.getAccessManager();
+        if (!(accessMgr instanceof ReadScope)) {
+            return query;
+        }
+        try {
+            Collection<Path> paths = ((ReadScope) accessMgr).getReadableSubtrees();
+            if (paths == null) {
+                return query;
+            }
+            HierarchyManager hmgr = getContext().getHierarchyManager();
+            Set<NodeId> roots = new HashSet<NodeId>();
+            for (Path path : paths) {
+                if (path.denotesRoot()) {
+                    return query;
+                }
+                NodeId id = hmgr.resolveNodePath(path);
+                if (id != null) {
+                    roots.add(id);
+                }
+            }
+            return new ReadScopeQuery(query, roots);
+        } catch (RepositoryException e) {
+            log.warn("Unable to determine readable subtrees, "
+                    + "executing query without restriction: " + e);
+            return query;
+        }
+    }
+
     /**
      * Creates an excerpt provider for the given <code>query</code>.
      *
@@ -1137,6 +1413,13 @@ public class SearchIndex extends AbstractQueryHandler {
         return redoLogFactory;
     }
 
+    /**
+     * @return the index merge policy for this search index.
+     */
+    public IndexMergePolicy getIndexMergePolicy() {
+        return indexMergePolicy;
+    }
+
     /**
      * Runs a consistency check on this search index.
      *
@@ -1360,6 +1643,28 @@ public class SearchIndex extends AbstractQueryHandler {
         }
     }
 
+    /**
+     * Creates an index merge policy based on
+     * {@link #getIndexMergePolicyClass()}.
+     *
+     * @return the index merge policy.
+     * @throws IOException if an error occurs while creating the policy.
+     */
+    protected IndexMergePolicy createIndexMergePolicy() throws IOException {
+        try {
+            Class<?> clazz = Class.forName(indexMergePolicyClass);
+            if (!IndexMergePolicy.class.isAssignableFrom(clazz)) {
+                throw new IOException(indexMergePolicyClass +
+                        " is not a IndexMergePolicy implementation");
+            }
+            return (IndexMergePolicy) clazz.newInstance();
+        } catch (Exception e) {
+            IOException ex = new IOException();
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
     /**
      * Creates a file system resource to the synonym provider configuration.
      *
@@ -2019,6 +2324,79 @@ public class SearchIndex extends AbstractQueryHandler {
         return mergeFactor;
     }
 
+    /**
+     * Sets the maximum number of index merges that run at the same time.
+     * Further merges wait until a running merge finished. The default value
+     * is 2.
+     *
+     * @param maxConcurrentMerges the maximum number of concurrent merges.
+     */
+    public void setMaxConcurrentMerges(int maxConcurrentMerges) {
+        this.maxConcurrentMerges = Math.max(1, maxConcurrentMerges);
+    }
+
+    /**
+     * @return the maximum number of index merges that run at the same time.
+     */
+    public int getMaxConcurrentMerges() {
+        return maxConcurrentMerges;
+    }
+
+    /**
+     * Sets the rate in MB per second at which all index merges together
+     * write the merged indexes. This limits the disk I/O merges take away
+     * from index updates and queries. The default value 0 does not limit
+     * the rate.
+     *
+     * @param mergeRateLimit the rate in MB per second.
+     */
+    public void setMergeRateLimit(double mergeRateLimit) {
+        this.mergeRateLimit = Math.max(0, mergeRateLimit);
+    }
+
+    /**
+     * @return the rate in MB per second at which index merges write.
+     */
+    public double getMergeRateLimit() {
+        return mergeRateLimit;
+    }
+
+    /**
+     * Sets the maximum size in MB of an index created by the
+     * {@link TieredIndexMergePolicy}. The default value is 5120.
+     *
+     * @param maxMergedIndexSize the maximum size in MB.
+     */
+    public void setMaxMergedIndexSize(int maxMergedIndexSize) {
+        this.maxMergedIndexSize = maxMergedIndexSize;
+    }
+
+    /**
+     * @return the maximum size in MB of an index created by the
+     *         {@link TieredIndexMergePolicy}.
+     */
+    public int getMaxMergedIndexSize() {
+        return maxMergedIndexSize;
+    }
+
+    /**
+     * Sets the size in MB below which the {@link TieredIndexMergePolicy}
+     * treats all indexes as equally sized. The default value is 2.
+     *
+     * @param floorIndexSize the floor size in MB.
+     */
+    public void setFloorIndexSize(int floorIndexSize) {
+        this.floorIndexSize = floorIndexSize;
+    }
+
+    /**
+     * @return the size in MB below which the {@link TieredIndexMergePolicy}
+     *         treats all indexes as equally sized.
+     */
+    public int getFloorIndexSize() {
+        return floorIndexSize;
+    }
+
     /**
      * @see VolatileIndex#setBufferSize(int)
      */
@@ -2153,6 +2531,134 @@ public class SearchIndex extends AbstractQueryHandler {
         return extractorPoolSize;
     }
 
+    /**
+     * Sets the number of threads that score the index segments of queries
+     * concurrently. Only sorted queries that are evaluated per index segment,
+     * like full-text, term and range queries, are scored concurrently. The
+     * hits of unsorted queries are read lazily and never scored ahead. The
+     * default value 0 disables the concurrent scoring.
+     *
+     * @param searchThreads the number of threads.
+     */
+    public void setSearchThreads(int searchThreads) {
+        this.searchThreads = Math.max(0, searchThreads);
+    }
+
+    /**
+     * @return the number of threads that score the index segments of
+     *         queries concurrently.
+     */
+    public int getSearchThreads() {
+        return searchThreads;
+    }
+
+    /**
+     * Sets the number of threads that create the documents while the
+     * initial index of a workspace is built. With more than 0 threads the
+     * node ids are read from the persistence manager instead of traversing
+     * the workspace, if the persistence manager supports it, and the
+     * progress is logged with the estimated remaining time. The default
+     * value 0 traverses the workspace and creates the documents with a
+     * single thread.
+     *
+     * @param initialIndexThreads the number of threads.
+     */
+    public void setInitialIndexThreads(int initialIndexThreads) {
+        this.initialIndexThreads = Math.max(0, initialIndexThreads);
+    }
+
+    /**
+     * @return the number of threads that create the documents while the
+     *         initial index of a workspace is built.
+     */
+    public int getInitialIndexThreads() {
+        return initialIndexThreads;
+    }
+
+    /**
+     * Sets the maximum number of parsed query statements that are kept in
+     * memory. A statement that is created again with the same language and
+     * namespace mappings is not parsed again. The value 0 disables the
+     * cache; the default is 256.
+     *
+     * @param queryPlanCacheSize the number of cached query statements.
+     */
+    public void setQueryPlanCacheSize(int queryPlanCacheSize) {
+        this.queryPlanCacheSize = Math.max(0, queryPlanCacheSize);
+    }
+
+    /**
+     * @return the maximum number of parsed query statements that are kept
+     *         in memory.
+     */
+    public int getQueryPlanCacheSize() {
+        return queryPlanCacheSize;
+    }
+
+    /**
+     * Enables or disables the near real time mode. In this mode a volatile
+     * index that reached {@link #getMaxVolatileIndexSize()} is not written
+     * to disk while the index is updated. Queries keep reading the full
+     * volatile index until a background task has persisted it as a new
+     * index segment. The redo log still contains all changes, a crash
+     * before the segment is persisted is recovered on the next startup.
+     *
+     * @param nearRealTime <code>true</code> to persist full volatile indexes
+     *                     in the background.
+     */
+    public void setNearRealTime(boolean nearRealTime) {
+        this.nearRealTime = nearRealTime;
+    }
+
+    /**
+     * @return <code>true</code> if full volatile indexes are persisted in
+     *         the background.
+     */
+    public boolean isNearRealTime() {
+        return nearRealTime;
+    }
+
+    /**
+     * Sets the interval in milliseconds within which the redo log is flushed
+     * to disk once for all index updates. Updates within the interval are
+     * visible to queries right away, and the update returns once the redo
+     * log is flushed, at most after the interval. Concurrent updates are
+     * therefore flushed together, but a single update may take up to the
+     * interval longer. The default value 0 flushes the redo log with every
+     * update.
+     *
+     * @param redoLogFlushInterval the interval in milliseconds.
+     */
+    public void setRedoLogFlushInterval(int redoLogFlushInterval) {
+        this.redoLogFlushInterval = Math.max(0, redoLogFlushInterval);
+    }
+
+    /**
+     * @return the interval in milliseconds within which the redo log is
+     *         flushed to disk once for all index updates.
+     */
+    public int getRedoLogFlushInterval() {
+        return redoLogFlushInterval;
+    }
+
+    /**
+     * Sets the maximum number of threads that score a single query,
+     * including the thread that executes the query. The default is the
+     * number of {@link #setSearchThreads(int) search threads}.
+     *
+     * @param searchThreadsPerQuery the number of threads per query.
+     */
+    public void setSearchThreadsPerQuery(int searchThreadsPerQuery) {
+        this.searchThreadsPerQuery = searchThreadsPerQuery;
+    }
+
+    /**
+     * @return the maximum number of threads that score a single query.
+     */
+    public int getSearchThreadsPerQuery() {
+        return searchThreadsPerQuery > 0 ? searchThreadsPerQuery : searchThreads;
+    }
+
     /**
      * The number of extractor jobs that are queued until a new job is executed
      * with the current thread instead of using the thread pool.
@@ -2211,6 +2717,51 @@ public class SearchIndex extends AbstractQueryHandler {
         return sizeEstimate;
     }
 
+    /**
+     * If enabled, <code>QueryResult.getTotalSize()</code> and
+     * <code>NodeIterator.getSize()</code> count the hits of a query on the
+     * index when the size of the result is not yet known, instead of
+     * returning -1. The nodes of the hits are not loaded. The count is exact
+     * for admin and system sessions and estimated from a sample of
+     * {@link #getCountSampleSize()} hits for other sessions. The default
+     * value is <code>false</code>.
+     *
+     * @param b <code>true</code> to enable
+     */
+    public void setCountTotalSize(boolean b) {
+        this.countTotalSize = b;
+    }
+
+    /**
+     * @return <code>true</code> if the total size of a query result is
+     *         counted on the index.
+     */
+    public boolean getCountTotalSize() {
+        return countTotalSize;
+    }
+
+    /**
+     * Sets the number of randomly selected hits that are checked for read
+     * access when the total size of a query result is estimated. The
+     * standard error of the estimate is at most
+     * <code>1 / (2 * sqrt(countSampleSize))</code> of the number of hits,
+     * 5% with the default value 100. The value 0 disables estimates, the
+     * total size is then only counted for admin and system sessions.
+     *
+     * @param countSampleSize the sample size.
+     */
+    public void setCountSampleSize(int countSampleSize) {
+        this.countSampleSize = Math.max(0, countSampleSize);
+    }
+
+    /**
+     * @return the number of hits that are checked for read access when the
+     *         total size of a query result is estimated.
+     */
+    public int getCountSampleSize() {
+        return countSampleSize;
+    }
+
     /**
      * If set to <code>true</code> additional information is stored in the index
      * to support highlighting using the rep:excerpt pseudo property.
@@ -2552,6 +3103,24 @@ public class SearchIndex extends AbstractQueryHandler {
         this.redoLogFactoryClass = className;
     }
 
+    /**
+     * @return the name of the index merge policy class.
+     */
+    public String getIndexMergePolicyClass() {
+        return indexMergePolicyClass;
+    }
+
+    /**
+     * Sets the name of the index merge policy class. Must implement
+     * {@link IndexMergePolicy}. The default is {@link DefaultIndexMergePolicy},
+     * {@link TieredIndexMergePolicy} selects merges by index size.
+     *
+     * @param className the name of the index merge policy class.
+     */
+    public void setIndexMergePolicyClass(String className) {
+        this.indexMergePolicyClass = className;
+    }
+
     /**
      * In the case of an initial index build operation, this checks if there are
      * some new nodes pending in the journal and tries to preemptively delete
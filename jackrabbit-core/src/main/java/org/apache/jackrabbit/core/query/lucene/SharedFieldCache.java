@@ -17,8 +17,11 @@
 package org.apache.jackrabbit.core.query.lucene;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 
@@ -35,6 +38,16 @@ import org.apache.lucene.index.TermPositions;
  * The lucene FieldCache class has some sort of support for custom comparators
  * but it only works on the basis of a field name. There is no further control
  * over the terms to iterate, that's why we use our own implementation.
+ * <p>
+ * The values are cached per index segment. If all values of a property in a
+ * segment are single valued and of the same kind, they are kept in primitive
+ * arrays: long and date values in a {@link LongValueIndex}, double values in
+ * a {@link DoubleValueIndex} and string values as ordinals into a sorted term
+ * array in a {@link StringValueIndex}. Other values are kept as
+ * <code>Comparable</code>s in a {@link ValueIndex}. The cache is keyed by
+ * the shared reader of a segment, which is kept until documents are added to
+ * the segment, so the values of segments that were not merged are retained
+ * when the index is reopened.
  */
 public class SharedFieldCache {
 
@@ -84,6 +97,15 @@ public class SharedFieldCache {
             }
         }
 
+        /**
+         * Constructor for subclasses that keep their values in typed arrays.
+         */
+        protected ValueIndex() {
+            this.sparse = false;
+            this.values = null;
+            this.valuesMap = null;
+        }
+
         public Comparable<?> getValue(int i) {
             if (sparse) {
                 return valuesMap == null ? null : valuesMap.get(i);
@@ -113,6 +135,130 @@ public class SharedFieldCache {
         }
     }
 
+    /**
+     * Stores long and date values of documents in a primitive array.
+     */
+    public static final class LongValueIndex extends ValueIndex {
+
+        private final long[] values;
+
+        private final BitSet docs;
+
+        LongValueIndex(long[] values, BitSet docs) {
+            this.values = values;
+            this.docs = docs;
+        }
+
+        /**
+         * @param doc document number.
+         * @return <code>true</code> if the document has a value.
+         */
+        public boolean hasValue(int doc) {
+            return docs.get(doc);
+        }
+
+        /**
+         * @param doc document number.
+         * @return the value of the document, or 0 if it has no value.
+         */
+        public long getLong(int doc) {
+            return values[doc];
+        }
+
+        @Override
+        public Comparable<?> getValue(int doc) {
+            return docs.get(doc) ? Long.valueOf(values[doc]) : null;
+        }
+    }
+
+    /**
+     * Stores double values of documents in a primitive array.
+     */
+    public static final class DoubleValueIndex extends ValueIndex {
+
+        private final double[] values;
+
+        private final BitSet docs;
+
+        DoubleValueIndex(double[] values, BitSet docs) {
+            this.values = values;
+            this.docs = docs;
+        }
+
+        /**
+         * @param doc document number.
+         * @return <code>true</code> if the document has a value.
+         */
+        public boolean hasValue(int doc) {
+            return docs.get(doc);
+        }
+
+        /**
+         * @param doc document number.
+         * @return the value of the document, or 0 if it has no value.
+         */
+        public double getDouble(int doc) {
+            return values[doc];
+        }
+
+        @Override
+        public Comparable<?> getValue(int doc) {
+            return docs.get(doc) ? Double.valueOf(values[doc]) : null;
+        }
+    }
+
+    /**
+     * Stores string values of documents as ordinals into a sorted array of
+     * the distinct values. Comparing the ordinals of two documents is the
+     * same as comparing their values.
+     */
+    public static final class StringValueIndex extends ValueIndex {
+
+        private final String[] terms;
+
+        private final int[] ords;
+
+        StringValueIndex(String[] terms, int[] ords) {
+            this.terms = terms;
+            this.ords = ords;
+        }
+
+        /**
+         * @param doc document number.
+         * @return the ordinal of the value of the document, or -1 if it has
+         *         no value.
+         */
+        public int getOrdinal(int doc) {
+            return ords[doc];
+        }
+
+        /**
+         * @param ord an ordinal.
+         * @return the value with the given ordinal.
+         */
+        public String getTerm(int ord) {
+            return terms[ord];
+        }
+
+        /**
+         * Returns the ordinal of the given value in the same way as
+         * {@link Arrays#binarySearch(Object[], Object)}: the ordinal if the
+         * value is present, or <code>(-(insertion point) - 1)</code>.
+         *
+         * @param value a value.
+         * @return the ordinal or the encoded insertion point of the value.
+         */
+        public int lookup(String value) {
+            return Arrays.binarySearch(terms, value);
+        }
+
+        @Override
+        public Comparable<?> getValue(int doc) {
+            int ord = ords[doc];
+            return ord == -1 ? null : terms[ord];
+        }
+    }
+
     static class ComparableArray implements Comparable<ComparableArray> {
 
         private int offset = 0;
@@ -228,10 +374,7 @@ public class SharedFieldCache {
         ValueIndex ret = lookup(reader, field, prefix);
         if (ret == null) {
             final int maxDocs = reader.maxDoc();
-            Comparable<?>[] retArray = new Comparable<?>[maxDocs];
-            Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
-            boolean usingSimpleComparable = true;
-            int setValues = 0;
+            ValueIndexBuilder builder = new ValueIndexBuilder(maxDocs);
             if (maxDocs > 0) {
                 IndexFormatVersion version = IndexFormatVersion.getVersion(reader);
                 boolean hasPayloads = version.isAtLeast(IndexFormatVersion.V3);
@@ -267,38 +410,7 @@ public class SharedFieldCache {
                                     type = PropertyMetaData.fromByteArray(payload).getPropertyType();
                                 }
                             }
-                            setValues++;
-                            Comparable<?> v = getValue(value, type);
-                            int doc = termDocs.doc();
-                            Comparable<?> ca = retArray[doc];
-                            if (ca == null) {
-                                if (usingSimpleComparable) {
-                                    // put simple value on the queue
-                                    positions.put(doc, termPosition);
-                                    retArray[doc] = v;
-                                } else {
-                                    retArray[doc] = new ComparableArray(v,
-                                            termPosition);
-                                }
-                            } else {
-                                if (ca instanceof ComparableArray) {
-                                    ((ComparableArray) ca).insert(v,
-                                            termPosition);
-                                } else {
-                                    // transform all of the existing values from
-                                    // Comparable to ComparableArray
-                                    for (int pos : positions.keySet()) {
-                                        retArray[pos] = new ComparableArray(
-                                                retArray[pos],
-                                                positions.get(pos));
-                                    }
-                                    positions = null;
-                                    usingSimpleComparable = false;
-                                    ComparableArray caNew = (ComparableArray) retArray[doc];
-                                    retArray[doc] = caNew.insert(v,
-                                            termPosition);
-                                }
-                            }
+                            builder.add(termDocs.doc(), termPosition, value, type);
                         }
                     } while (termEnum.next());
                 } finally {
@@ -306,7 +418,7 @@ public class SharedFieldCache {
                     termEnum.close();
                 }
             }
-            ValueIndex value = new ValueIndex(retArray, setValues);
+            ValueIndex value = builder.build();
             store(reader, field, prefix, value);
             return value;
         }
@@ -364,7 +476,7 @@ public class SharedFieldCache {
      * @param type the property type.
      * @return a comparable for the <code>value</code>.
      */
-    private Comparable<?> getValue(String value, int type) {
+    private static Comparable<?> getValue(String value, int type) {
         switch (type) {
             case PropertyType.BOOLEAN:
                 return Boolean.valueOf(value);
@@ -419,4 +531,226 @@ public class SharedFieldCache {
         }
     }
 
+    /**
+     * Collects the values of the documents in a segment. The values are
+     * kept in primitive arrays as long as they are single valued and of the
+     * same kind, and are converted to <code>Comparable</code>s otherwise.
+     */
+    private static final class ValueIndexBuilder {
+
+        private static final int NONE = 0;
+        private static final int LONG = 1;
+        private static final int DOUBLE = 2;
+        private static final int STRING = 3;
+        private static final int OBJECT = 4;
+
+        private final int maxDocs;
+
+        private int kind = NONE;
+
+        private int setValues;
+
+        private long[] longs;
+
+        private double[] doubles;
+
+        private int[] ords;
+
+        private List<String> terms;
+
+        private BitSet docs;
+
+        private int[] termPositions;
+
+        private Comparable<?>[] objects;
+
+        private Map<Integer, Integer> positions;
+
+        private boolean usingSimpleComparable = true;
+
+        ValueIndexBuilder(int maxDocs) {
+            this.maxDocs = maxDocs;
+        }
+
+        void add(int doc, int termPosition, String value, int type) {
+            setValues++;
+            if (kind != OBJECT) {
+                int k = getKind(type);
+                if (kind == NONE) {
+                    init(k);
+                }
+                if (k != OBJECT && k == kind && !hasValue(doc)) {
+                    termPositions[doc] = termPosition;
+                    switch (kind) {
+                        case LONG:
+                            longs[doc] = type == PropertyType.DATE
+                                    ? DateField.stringToTime(value)
+                                    : LongField.stringToLong(value);
+                            docs.set(doc);
+                            break;
+                        case DOUBLE:
+                            doubles[doc] = DoubleField.stringToDouble(value);
+                            docs.set(doc);
+                            break;
+                        default:
+                            // all documents of a term share the same value
+                            int last = terms.size() - 1;
+                            if (last == -1 || terms.get(last) != value) {
+                                terms.add(value);
+                                last++;
+                            }
+                            ords[doc] = last;
+                    }
+                    return;
+                }
+                toObjects();
+            }
+
+            Comparable<?> v = getValue(value, type);
+            Comparable<?> ca = objects[doc];
+            if (ca == null) {
+                if (usingSimpleComparable) {
+                    // put simple value on the queue
+                    positions.put(doc, termPosition);
+                    objects[doc] = v;
+                } else {
+                    objects[doc] = new ComparableArray(v, termPosition);
+                }
+            } else {
+                if (ca instanceof ComparableArray) {
+                    ((ComparableArray) ca).insert(v, termPosition);
+                } else {
+                    // transform all of the existing values from
+                    // Comparable to ComparableArray
+                    for (int pos : positions.keySet()) {
+                        objects[pos] = new ComparableArray(
+                                objects[pos], positions.get(pos));
+                    }
+                    positions = null;
+                    usingSimpleComparable = false;
+                    ComparableArray caNew = (ComparableArray) objects[doc];
+                    objects[doc] = caNew.insert(v, termPosition);
+                }
+            }
+        }
+
+        ValueIndex build() {
+            if (kind == LONG || kind == DOUBLE || kind == STRING) {
+                if (setValues * ValueIndex.SPARSE_FACTOR < maxDocs) {
+                    // a map of the few values uses less memory
+                    toObjects();
+                } else if (kind == LONG) {
+                    return new LongValueIndex(longs, docs);
+                } else if (kind == DOUBLE) {
+                    return new DoubleValueIndex(doubles, docs);
+                } else {
+                    return createStringValueIndex();
+                }
+            }
+            if (objects == null) {
+                objects = new Comparable<?>[maxDocs];
+            }
+            return new ValueIndex(objects, setValues);
+        }
+
+        private ValueIndex createStringValueIndex() {
+            String[] sorted = terms.toArray(new String[terms.size()]);
+            for (int i = 1; i < sorted.length; i++) {
+                if (sorted[i - 1].compareTo(sorted[i]) > 0) {
+                    // the term order differs from the value order,
+                    // sort the values and remap the ordinals
+                    Arrays.sort(sorted);
+                    Map<String, Integer> ordinals =
+                        new HashMap<String, Integer>(sorted.length * 2);
+                    for (int j = 0; j < sorted.length; j++) {
+                        ordinals.put(sorted[j], j);
+                    }
+                    for (int doc = 0; doc < ords.length; doc++) {
+                        if (ords[doc] != -1) {
+                            ords[doc] = ordinals.get(terms.get(ords[doc]));
+                        }
+                    }
+                    break;
+                }
+            }
+            return new StringValueIndex(sorted, ords);
+        }
+
+        private static int getKind(int type) {
+            switch (type) {
+                case PropertyType.DATE:
+                case PropertyType.LONG:
+                    return LONG;
+                case PropertyType.DOUBLE:
+                    return DOUBLE;
+                case PropertyType.BOOLEAN:
+                case PropertyType.DECIMAL:
+                    return OBJECT;
+                default:
+                    return STRING;
+            }
+        }
+
+        private void init(int k) {
+            kind = k;
+            switch (k) {
+                case LONG:
+                    longs = new long[maxDocs];
+                    docs = new BitSet(maxDocs);
+                    break;
+                case DOUBLE:
+                    doubles = new double[maxDocs];
+                    docs = new BitSet(maxDocs);
+                    break;
+                case STRING:
+                    ords = new int[maxDocs];
+                    Arrays.fill(ords, -1);
+                    terms = new ArrayList<String>();
+                    break;
+                default:
+                    return;
+            }
+            termPositions = new int[maxDocs];
+        }
+
+        private boolean hasValue(int doc) {
+            return kind == STRING ? ords[doc] != -1 : docs.get(doc);
+        }
+
+        /**
+         * Converts the values collected so far to <code>Comparable</code>s.
+         */
+        private void toObjects() {
+            objects = new Comparable<?>[maxDocs];
+            positions = new HashMap<Integer, Integer>();
+            for (int doc = 0; doc < maxDocs; doc++) {
+                Comparable<?> v = null;
+                switch (kind) {
+                    case LONG:
+                        v = docs.get(doc) ? Long.valueOf(longs[doc]) : null;
+                        break;
+                    case DOUBLE:
+                        v = docs.get(doc) ? Double.valueOf(doubles[doc]) : null;
+                        break;
+                    case STRING:
+                        v = ords[doc] != -1 ? terms.get(ords[doc]) : null;
+                        break;
+                    default:
+                        // no values yet
+                }
+                if (v != null) {
+                    objects[doc] = v;
+                    positions.put(doc, termPositions[doc]);
+                }
+            }
+            kind = OBJECT;
+            longs = null;
+            doubles = null;
+            ords = null;
+            terms = null;
+            docs = null;
+            termPositions = null;
+        }
+    }
+
 }
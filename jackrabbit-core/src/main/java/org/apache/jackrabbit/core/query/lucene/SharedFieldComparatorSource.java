@@ -18,10 +18,14 @@
 package org.apache.jackrabbit.core.query.lucene;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.jackrabbit.core.HierarchyManager;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.query.lucene.SharedFieldCache.DoubleValueIndex;
+import org.apache.jackrabbit.core.query.lucene.SharedFieldCache.LongValueIndex;
+import org.apache.jackrabbit.core.query.lucene.SharedFieldCache.StringValueIndex;
 import org.apache.jackrabbit.core.query.lucene.sort.AbstractFieldComparator;
 import org.apache.jackrabbit.core.state.ItemStateManager;
 import org.apache.jackrabbit.core.state.PropertyState;
@@ -111,15 +115,29 @@ public class SharedFieldComparatorSource extends FieldComparatorSource {
 
     /**
      * A <code>FieldComparator</code> which works for order by clauses with properties
-     * directly on the result nodes.
+     * directly on the result nodes. Documents of index segments with typed
+     * value indexes are compared with the bottom value without creating a
+     * <code>Comparable</code> for each document.
      */
     static final class SimpleFieldComparator extends AbstractFieldComparator {
 
+        /**
+         * Marks a bottom ordinal that was not looked up yet.
+         */
+        private static final int UNKNOWN = Integer.MIN_VALUE;
+
         /**
          * The term look ups of the index segments.
          */
         protected SharedFieldCache.ValueIndex[] indexes;
 
+        /**
+         * The ordinals of the bottom value in the {@link StringValueIndex}es
+         * of the segments, as returned by
+         * {@link StringValueIndex#lookup(String)}.
+         */
+        private int[] bottomOrds;
+
         /**
          * The name of the property
          */
@@ -155,6 +173,57 @@ public class SharedFieldComparatorSource extends FieldComparatorSource {
                 indexes[i] = SharedFieldCache.INSTANCE.getValueIndex(r,
                         fieldName, namedValue);
             }
+            bottomOrds = new int[readers.size()];
+            Arrays.fill(bottomOrds, UNKNOWN);
+        }
+
+        @Override
+        public void setBottom(int slot) {
+            super.setBottom(slot);
+            if (bottomOrds != null) {
+                Arrays.fill(bottomOrds, UNKNOWN);
+            }
+        }
+
+        @Override
+        public int compareBottom(int doc) throws IOException {
+            int idx = readerIndex(doc);
+            SharedFieldCache.ValueIndex index = indexes[idx];
+            int n = doc - starts[idx];
+            Comparable<?> bottom = getBottom();
+            if (bottom instanceof Long && index instanceof LongValueIndex) {
+                LongValueIndex longs = (LongValueIndex) index;
+                if (!longs.hasValue(n)) {
+                    return 1;
+                }
+                long b = (Long) bottom;
+                long v = longs.getLong(n);
+                return b < v ? -1 : (b == v ? 0 : 1);
+            } else if (bottom instanceof Double && index instanceof DoubleValueIndex) {
+                DoubleValueIndex doubles = (DoubleValueIndex) index;
+                if (!doubles.hasValue(n)) {
+                    return 1;
+                }
+                return Double.compare((Double) bottom, doubles.getDouble(n));
+            } else if (bottom instanceof String && index instanceof StringValueIndex) {
+                StringValueIndex strings = (StringValueIndex) index;
+                int ord = strings.getOrdinal(n);
+                if (ord == -1) {
+                    return 1;
+                }
+                int bottomOrd = bottomOrds[idx];
+                if (bottomOrd == UNKNOWN) {
+                    bottomOrd = strings.lookup((String) bottom);
+                    bottomOrds[idx] = bottomOrd;
+                }
+                if (bottomOrd >= 0) {
+                    return bottomOrd < ord ? -1 : (bottomOrd == ord ? 0 : 1);
+                }
+                // the bottom value is not in this segment and sorts
+                // right before the value at the insertion point
+                return ord < -bottomOrd - 1 ? 1 : -1;
+            }
+            return super.compareBottom(doc);
         }
 
         @Override
@@ -76,6 +76,14 @@ public class SingleColumnQueryResult extends QueryResultImpl {
                 orderProps, orderSpecs, orderFuncs, resultFetchHint);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    protected int countQuery() throws IOException {
+        return index.countQuery(
+                sessionContext.getSessionImpl(), queryImpl, query);
+    }
+
     /**
      * {@inheritDoc}
      */
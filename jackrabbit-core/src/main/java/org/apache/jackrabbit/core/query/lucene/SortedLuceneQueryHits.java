@@ -17,12 +17,14 @@
 package org.apache.jackrabbit.core.query.lucene;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopFieldCollector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,6 +66,11 @@ public final class SortedLuceneQueryHits extends AbstractQueryHits {
      */
     private final Sort sort;
 
+    /**
+     * Scores the index segments concurrently, or <code>null</code>.
+     */
+    private final ParallelSegmentSearcher segments;
+
     /**
      * The index of the current hit. Initially invalid.
      */
@@ -104,7 +111,32 @@ public final class SortedLuceneQueryHits extends AbstractQueryHits {
      */
     public SortedLuceneQueryHits(IndexSearcher searcher, Query query,
             Sort sort, long resultFetchHint) throws IOException {
+        this(searcher, query, sort, resultFetchHint, null);
+    }
+
+    /**
+     * Creates a new <code>QueryHits</code> instance wrapping <code>hits</code>
+     * that scores the index segments with the given segment searcher.
+     *
+     * @param searcher
+     *            the index searcher.
+     * @param query
+     *            the query to execute.
+     * @param sort
+     *            the sort criteria.
+     * @param resultFetchHint
+     *            a hint on how many results should be fetched.
+     * @param segments
+     *            scores the index segments concurrently, or
+     *            <code>null</code> to score them sequentially.
+     * @throws IOException
+     *             if an error occurs while executing the query.
+     */
+    SortedLuceneQueryHits(IndexSearcher searcher, Query query, Sort sort,
+            long resultFetchHint, ParallelSegmentSearcher segments)
+            throws IOException {
         this.searcher = searcher;
+        this.segments = segments;
         this.query = query;
         this.sort = sort;
         this.numHits = (int) Math.min(
@@ -152,11 +184,19 @@ public final class SortedLuceneQueryHits extends AbstractQueryHits {
     //-------------------------------< internal >-------------------------------
 
     private void getHits() throws IOException {
-        TopFieldCollector collector = TopFieldCollector.create(sort, numHits, false, true, false, false);
-        searcher.search(query, collector);
-        size = collector.getTotalHits();
         offset += scoreDocs.length;
-        scoreDocs = collector.topDocs(offset, numHits).scoreDocs;
+        if (segments != null) {
+            TopDocs docs = segments.search(searcher, sort, numHits);
+            size = docs.totalHits;
+            scoreDocs = Arrays.copyOfRange(docs.scoreDocs,
+                    Math.min(offset, docs.scoreDocs.length),
+                    docs.scoreDocs.length);
+        } else {
+            TopFieldCollector collector = TopFieldCollector.create(sort, numHits, false, true, false, false);
+            searcher.search(query, collector);
+            size = collector.getTotalHits();
+            scoreDocs = collector.topDocs(offset, numHits).scoreDocs;
+        }
         log.debug("getHits() {}/{}", scoreDocs.length, numHits);
         // double hits for next round
         numHits *= 2;
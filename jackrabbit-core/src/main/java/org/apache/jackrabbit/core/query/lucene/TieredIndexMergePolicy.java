@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <code>TieredIndexMergePolicy</code> selects merges by the size of the
+ * segments in bytes. Segments of a similar size form a tier, each tier may
+ * hold up to {@link SearchIndex#getMergeFactor()} segments. Segments
+ * smaller than {@link SearchIndex#getFloorIndexSize()} count as segments of
+ * that size. If there are more segments than the tiers allow, the policy
+ * merges up to <code>mergeFactor</code> segments of a similar size, without
+ * creating a segment larger than {@link SearchIndex#getMaxMergedIndexSize()}.
+ * Unlike the {@link DefaultIndexMergePolicy} the merges do not depend on the
+ * order in which segments were added.
+ */
+public class TieredIndexMergePolicy implements IndexMergePolicy {
+
+    /**
+     * Orders segments by descending size.
+     */
+    private static final Comparator<Segment> BY_SIZE_DESCENDING =
+        new Comparator<Segment>() {
+            public int compare(Segment s1, Segment s2) {
+                return s1.getSize() > s2.getSize() ? -1
+                        : (s1.getSize() == s2.getSize() ? 0 : 1);
+            }
+        };
+
+    /**
+     * The number of segments per tier and the maximum number of segments
+     * that are merged at once.
+     */
+    private int mergeFactor = SearchIndex.DEFAULT_MERGE_FACTOR;
+
+    /**
+     * The maximum size in bytes of a merged segment.
+     */
+    private long maxMergedSize = 5L * 1024 * 1024 * 1024;
+
+    /**
+     * Segments smaller than this size in bytes are treated as if they had
+     * this size.
+     */
+    private long floorSize = 2L * 1024 * 1024;
+
+    /**
+     * @inheritDoc
+     */
+    public void init(SearchIndex handler) {
+        setMergeFactor(handler.getMergeFactor());
+        setMaxMergedSize(handler.getMaxMergedIndexSize() * 1024L * 1024L);
+        setFloorSize(handler.getFloorIndexSize() * 1024L * 1024L);
+    }
+
+    /**
+     * @param mergeFactor the number of segments per tier and the maximum
+     *                    number of segments merged at once.
+     */
+    public void setMergeFactor(int mergeFactor) {
+        this.mergeFactor = Math.max(2, mergeFactor);
+    }
+
+    /**
+     * @param maxMergedSize the maximum size in bytes of a merged segment.
+     */
+    public void setMaxMergedSize(long maxMergedSize) {
+        this.maxMergedSize = maxMergedSize;
+    }
+
+    /**
+     * @param floorSize the size in bytes small segments are rounded up to.
+     */
+    public void setFloorSize(long floorSize) {
+        this.floorSize = Math.max(1, floorSize);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public List<List<Segment>> findMerges(List<Segment> segments) {
+        // segments that are large enough are not merged anymore
+        List<Segment> eligible = new ArrayList<Segment>();
+        long totalSize = 0;
+        long minSize = Long.MAX_VALUE;
+        for (Segment segment : segments) {
+            if (segment.getSize() <= maxMergedSize / 2) {
+                eligible.add(segment);
+                totalSize += floor(segment.getSize());
+                minSize = Math.min(minSize, floor(segment.getSize()));
+            }
+        }
+        Collections.sort(eligible, BY_SIZE_DESCENDING);
+
+        List<List<Segment>> merges = new ArrayList<List<Segment>>();
+        if (eligible.isEmpty()) {
+            return merges;
+        }
+
+        // number of segments the tiers allow for the total size
+        long levelSize = minSize;
+        long sizeLeft = totalSize;
+        double allowed = 0;
+        for (;;) {
+            double levelCount = (double) sizeLeft / levelSize;
+            if (levelCount < mergeFactor) {
+                allowed += Math.ceil(levelCount);
+                break;
+            }
+            allowed += mergeFactor;
+            sizeLeft -= mergeFactor * levelSize;
+            levelSize *= mergeFactor;
+        }
+
+        int count = eligible.size();
+        while (count > allowed && eligible.size() >= 2) {
+            List<Segment> best = null;
+            double bestScore = Double.MAX_VALUE;
+            for (int start = 0; start < eligible.size() - 1; start++) {
+                List<Segment> candidate = new ArrayList<Segment>();
+                long mergedSize = 0;
+                long flooredSize = 0;
+                for (int i = start; i < eligible.size()
+                        && candidate.size() < mergeFactor; i++) {
+                    Segment segment = eligible.get(i);
+                    if (mergedSize + segment.getSize() > maxMergedSize) {
+                        continue;
+                    }
+                    candidate.add(segment);
+                    mergedSize += segment.getSize();
+                    flooredSize += floor(segment.getSize());
+                }
+                if (candidate.size() < 2) {
+                    continue;
+                }
+                // prefer merges of equally sized segments and small merges
+                double skew = (double) floor(candidate.get(0).getSize()) / flooredSize;
+                double score = skew * Math.pow(mergedSize, 0.05);
+                if (score < bestScore) {
+                    best = candidate;
+                    bestScore = score;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            merges.add(best);
+            eligible.removeAll(best);
+            // the merge results in a new segment
+            count = count - best.size() + 1;
+        }
+        return merges;
+    }
+
+    /**
+     * @param size the size of a segment.
+     * @return the size, at least {@link #floorSize}.
+     */
+    private long floor(long size) {
+        return Math.max(size, floorSize);
+    }
+}
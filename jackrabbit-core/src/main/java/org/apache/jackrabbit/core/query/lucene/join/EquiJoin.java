@@ -141,6 +141,10 @@ public class EquiJoin extends AbstractCondition {
             }
         }
 
+        if (list.isEmpty()) {
+            // no match, the outer row is preserved in an outer join
+            return null;
+        }
         return list.toArray(new ScoreNode[list.size()][]);
     }
 
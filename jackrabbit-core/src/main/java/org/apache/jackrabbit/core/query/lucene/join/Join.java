@@ -127,57 +127,84 @@ public class Join implements MultiColumnQueryHits {
                               final NamespaceMappings nsMappings,
                               final HierarchyManager hmgr)
             throws IOException {
+        MultiColumnQueryHits outer;
+        if (JoinType.LEFT == joinType) {
+            outer = left;
+        } else if (JoinType.RIGHT == joinType) {
+            outer = right;
+        } else {
+            // inner join: pick the outer source from the join condition
+            // assumption: DescendantNodeJoin is more efficient than
+            // AncestorNodeJoin and ParentNodeJoin is more efficient than
+            // ChildNodeJoin, TODO: verify
+            outer = getSourceWithName(getDefaultOuterSelectorName(condition), left, right);
+        }
+        MultiColumnQueryHits inner = outer == left ? right : left;
+        return create(outer, inner, JoinType.INNER == joinType,
+                condition, reader, resolver, nsMappings, hmgr);
+    }
+
+    /**
+     * Creates a new join result that iterates over the given
+     * <code>outer</code> query hits and looks up the matching rows of the
+     * <code>inner</code> query hits. The inner query hits are read
+     * completely when the join is created, while the outer query hits are
+     * only read as the join result is consumed.
+     *
+     * @param outer      the outer query hits.
+     * @param inner      the inner query hits.
+     * @param innerJoin  whether this is an inner join. Otherwise all rows of
+     *                   the outer query hits are preserved.
+     * @param condition  the QOM join condition.
+     * @param reader     the index reader.
+     * @param resolver   the hierarchy resolver.
+     * @param nsMappings namespace mappings of this index
+     * @param hmgr       the hierarchy manager of the workspace.
+     * @return the join result.
+     * @throws IOException if an error occurs while executing the join.
+     */
+    public static Join create(final MultiColumnQueryHits outer,
+                              final MultiColumnQueryHits inner,
+                              final boolean innerJoin,
+                              final JoinConditionImpl condition,
+                              final IndexReader reader,
+                              final HierarchyResolver resolver,
+                              final NamespaceMappings nsMappings,
+                              final HierarchyManager hmgr)
+            throws IOException {
         try {
             return (Join) condition.accept(new DefaultQOMTreeVisitor() {
 
-                private boolean isInner = JoinType.INNER == joinType;
-                private MultiColumnQueryHits outer;
-                private int outerIdx;
-
                 public Object visit(DescendantNodeJoinConditionImpl node, Object data)
                         throws Exception {
-                    MultiColumnQueryHits ancestor = getSourceWithName(node.getAncestorSelectorQName(), left, right);
-                    MultiColumnQueryHits descendant = getSourceWithName(node.getDescendantSelectorQName(), left, right);
+                    MultiColumnQueryHits ancestor = getSourceWithName(node.getAncestorSelectorQName(), outer, inner);
+                    MultiColumnQueryHits descendant = getSourceWithName(node.getDescendantSelectorQName(), outer, inner);
                     Condition c;
-                    if (isInner
-                            || descendant == left && JoinType.LEFT == joinType
-                            || descendant == right && JoinType.RIGHT == joinType) {
-                        // also applies to inner join
-                        // assumption: DescendantNodeJoin is more
-                        // efficient than AncestorNodeJoin, TODO: verify
-                        outer = descendant;
+                    int outerIdx;
+                    if (descendant == outer) {
                         outerIdx = getIndex(outer, node.getDescendantSelectorQName());
                         c = new DescendantNodeJoin(ancestor, node.getAncestorSelectorQName(), reader, resolver);
                     } else {
-                        // left == ancestor
-                        outer = ancestor;
                         outerIdx = getIndex(outer, node.getAncestorSelectorQName());
                         c = new AncestorNodeJoin(descendant, node.getDescendantSelectorQName(), reader, resolver);
                     }
-                    return new Join(outer, outerIdx, isInner, c);
+                    return new Join(outer, outerIdx, innerJoin, c);
                 }
 
                 public Object visit(EquiJoinConditionImpl node, Object data)
                         throws Exception {
-                    MultiColumnQueryHits src1 = getSourceWithName(node.getSelector1QName(), left, right);
-                    MultiColumnQueryHits src2 = getSourceWithName(node.getSelector2QName(), left, right);
-                    MultiColumnQueryHits inner;
+                    MultiColumnQueryHits src1 = getSourceWithName(node.getSelector1QName(), outer, inner);
+                    int outerIdx;
                     Name innerName;
                     Name innerPropName;
                     Name outerPropName;
-                    if (isInner
-                            || src1 == left && JoinType.LEFT == joinType
-                            || src1 == right && JoinType.RIGHT == joinType) {
-                        outer = src1;
+                    if (src1 == outer) {
                         outerIdx = getIndex(outer, node.getSelector1QName());
-                        inner = src2;
                         innerName = node.getSelector2QName();
                         innerPropName = node.getProperty2QName();
                         outerPropName = node.getProperty1QName();
                     } else {
-                        outer = src2;
                         outerIdx = getIndex(outer, node.getSelector2QName());
-                        inner = src1;
                         innerName = node.getSelector1QName();
                         innerPropName = node.getProperty1QName();
                         outerPropName = node.getProperty2QName();
@@ -186,59 +213,51 @@ public class Join implements MultiColumnQueryHits {
                     Condition c = new EquiJoin(
                             inner, getIndex(inner, innerName), nsMappings,
                             reader, innerPropName, outerPropName);
-                    return new Join(outer, outerIdx, isInner, c);
+                    return new Join(outer, outerIdx, innerJoin, c);
                 }
 
                 public Object visit(ChildNodeJoinConditionImpl node, Object data)
                         throws Exception {
-                    MultiColumnQueryHits child = getSourceWithName(node.getChildSelectorQName(), left, right);
-                    MultiColumnQueryHits parent = getSourceWithName(node.getParentSelectorQName(), left, right);
+                    MultiColumnQueryHits child = getSourceWithName(node.getChildSelectorQName(), outer, inner);
+                    MultiColumnQueryHits parent = getSourceWithName(node.getParentSelectorQName(), outer, inner);
                     Condition c;
-                    if (child == left && JoinType.LEFT == joinType
-                            || child == right && JoinType.RIGHT == joinType) {
-                        outer = child;
+                    int outerIdx;
+                    if (child == outer) {
                         outerIdx = getIndex(outer, node.getChildSelectorQName());
                         c = new ChildNodeJoin(parent, reader, resolver, node);
                     } else {
-                        // also applies to inner joins
-                        // assumption: ParentNodeJoin is more efficient than
-                        // ChildNodeJoin, TODO: verify
-                        outer = parent;
                         outerIdx = getIndex(outer, node.getParentSelectorQName());
                         c = new ParentNodeJoin(child, reader, resolver, node);
                     }
-                    return new Join(outer, outerIdx, isInner, c);
+                    return new Join(outer, outerIdx, innerJoin, c);
                 }
 
                 public Object visit(SameNodeJoinConditionImpl node, Object data)
                         throws Exception {
-                    MultiColumnQueryHits src1 = getSourceWithName(node.getSelector1QName(), left, right);
-                    MultiColumnQueryHits src2 = getSourceWithName(node.getSelector2QName(), left, right);
+                    MultiColumnQueryHits src1 = getSourceWithName(node.getSelector1QName(), outer, inner);
+                    Path selector2Path = node.getSelector2QPath();
+                    boolean samePath = selector2Path == null
+                            || (selector2Path.getLength() == 1 && selector2Path.denotesCurrent());
                     Condition c;
-                    if (isInner
-                            || src1 == left && JoinType.LEFT == joinType
-                            || src1 == right && JoinType.RIGHT == joinType) {
-                        outer = src1;
+                    int outerIdx;
+                    if (src1 == outer) {
                         outerIdx = getIndex(outer, node.getSelector1QName());
-                        Path selector2Path = node.getSelector2QPath();
-                        if (selector2Path == null || (selector2Path.getLength() == 1 && selector2Path.denotesCurrent())) {
-                            c = new SameNodeJoin(src2, node.getSelector2QName(), reader);
+                        if (samePath) {
+                            c = new SameNodeJoin(inner, node.getSelector2QName(), reader);
                         } else {
-                            c = new DescendantPathNodeJoin(src2, node.getSelector2QName(),
+                            c = new DescendantPathNodeJoin(inner, node.getSelector2QName(),
                                     node.getSelector2QPath(), hmgr);
                         }
                     } else {
-                        outer = src2;
                         outerIdx = getIndex(outer, node.getSelector2QName());
-                        Path selector2Path = node.getSelector2QPath();
-                        if (selector2Path == null || (selector2Path.getLength() == 1 && selector2Path.denotesCurrent())) {
-                            c = new SameNodeJoin(src1, node.getSelector1QName(), reader);
+                        if (samePath) {
+                            c = new SameNodeJoin(inner, node.getSelector1QName(), reader);
                         } else {
-                            c = new AncestorPathNodeJoin(src1, node.getSelector1QName(),
+                            c = new AncestorPathNodeJoin(inner, node.getSelector1QName(),
                                     node.getSelector2QPath(), hmgr);
                         }
                     }
-                    return new Join(outer, outerIdx, isInner, c);
+                    return new Join(outer, outerIdx, innerJoin, c);
                 }
             }, null);
         } catch (IOException e) {
@@ -250,6 +269,27 @@ public class Join implements MultiColumnQueryHits {
         }
     }
 
+    /**
+     * Returns the name of the selector that is used as the outer source of
+     * an inner join when no other information is available.
+     *
+     * @param condition the join condition.
+     * @return the descendant selector of a descendant node join, the parent
+     *         selector of a child node join and the first selector of any
+     *         other join.
+     */
+    static Name getDefaultOuterSelectorName(JoinConditionImpl condition) {
+        if (condition instanceof DescendantNodeJoinConditionImpl) {
+            return ((DescendantNodeJoinConditionImpl) condition).getDescendantSelectorQName();
+        } else if (condition instanceof ChildNodeJoinConditionImpl) {
+            return ((ChildNodeJoinConditionImpl) condition).getParentSelectorQName();
+        } else if (condition instanceof EquiJoinConditionImpl) {
+            return ((EquiJoinConditionImpl) condition).getSelector1QName();
+        } else {
+            return ((SameNodeJoinConditionImpl) condition).getSelector1QName();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
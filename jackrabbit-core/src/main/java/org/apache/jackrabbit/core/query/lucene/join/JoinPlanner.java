@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene.join;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.jackrabbit.core.HierarchyManager;
+import org.apache.jackrabbit.core.query.lucene.AbstractQueryHits;
+import org.apache.jackrabbit.core.query.lucene.DefaultQueryHits;
+import org.apache.jackrabbit.core.query.lucene.HierarchyResolver;
+import org.apache.jackrabbit.core.query.lucene.LuceneQueryHits;
+import org.apache.jackrabbit.core.query.lucene.MultiColumnQueryHits;
+import org.apache.jackrabbit.core.query.lucene.NamespaceMappings;
+import org.apache.jackrabbit.core.query.lucene.QueryHits;
+import org.apache.jackrabbit.core.query.lucene.QueryHitsAdapter;
+import org.apache.jackrabbit.core.query.lucene.ScoreNode;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.Path;
+import org.apache.jackrabbit.spi.commons.query.qom.JoinConditionImpl;
+import org.apache.jackrabbit.spi.commons.query.qom.SameNodeJoinConditionImpl;
+import org.apache.lucene.index.IndexReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <code>JoinPlanner</code> joins the query hits of two selectors on their
+ * document numbers and picks the join strategy:
+ * <ul>
+ * <li>a same node join of two sources that are both in document order is
+ * executed as a merge join, which reads the sources side by side and does
+ * not keep any hits in memory.</li>
+ * <li>any other join is executed as a hash join, which indexes the hits of
+ * one source (the build side) and streams the hits of the other source
+ * (the probe side) through the index. The smaller source is used as build
+ * side. The sizes are compared by reading the sources alternately until
+ * one of them is exhausted, which costs at most twice the reads needed to
+ * build the index anyway. If the left source of a left outer join is the
+ * build side, the left rows without a match are returned after the probe
+ * side is exhausted.</li>
+ * </ul>
+ * In both cases the joined rows are only computed while the result is
+ * consumed, so that a caller can stop early.
+ */
+public class JoinPlanner {
+
+    /**
+     * The logger instance for this class.
+     */
+    private static final Logger log = LoggerFactory.getLogger(JoinPlanner.class);
+
+    private JoinPlanner() {
+    }
+
+    /**
+     * Joins the given query hits. The selector names of the returned hits
+     * are in the order probe side, build side. The score node of the right
+     * source is <code>null</code> in the rows of a left outer join without
+     * a match.
+     *
+     * @param left       the hits of the left selector.
+     * @param leftName   the name of the left selector.
+     * @param right      the hits of the right selector.
+     * @param rightName  the name of the right selector.
+     * @param innerJoin  <code>true</code> for an inner join,
+     *                   <code>false</code> for a left outer join.
+     * @param condition  the join condition.
+     * @param reader     the index reader.
+     * @param resolver   the hierarchy resolver.
+     * @param nsMappings namespace mappings of the index.
+     * @param hmgr       the hierarchy manager of the workspace.
+     * @return the joined hits.
+     * @throws IOException if an error occurs while reading from the index.
+     */
+    public static MultiColumnQueryHits join(QueryHits left, Name leftName,
+                                            QueryHits right, Name rightName,
+                                            boolean innerJoin,
+                                            JoinConditionImpl condition,
+                                            IndexReader reader,
+                                            HierarchyResolver resolver,
+                                            NamespaceMappings nsMappings,
+                                            HierarchyManager hmgr)
+            throws IOException {
+        if (isSameNodeJoin(condition)
+                && left instanceof LuceneQueryHits
+                && right instanceof LuceneQueryHits) {
+            log.debug("Executing {} as merge join", condition);
+            return new SameNodeMergeJoin(
+                    left, leftName, right, rightName, innerJoin, reader);
+        }
+
+        BufferedHits l = new BufferedHits(left);
+        BufferedHits r = new BufferedHits(right);
+        while (l.prefetch() && r.prefetch()) {
+            // read until the smaller source is exhausted
+        }
+        BufferedHits probe = l;
+        Name probeName = leftName;
+        BufferedHits build = r;
+        Name buildName = rightName;
+        if (l.isExhausted()) {
+            probe = r;
+            probeName = rightName;
+            build = l;
+            buildName = leftName;
+        }
+        if (build.size() == 0 && (innerJoin || build == l)) {
+            // nothing to join with, skip the probe side
+            probe.close();
+            return Join.create(
+                    new QueryHitsAdapter(new DefaultQueryHits(
+                            Collections.<ScoreNode>emptyList()), probeName),
+                    new QueryHitsAdapter(build, buildName),
+                    innerJoin, condition, reader, resolver, nsMappings, hmgr);
+        }
+        if (!innerJoin && build == l) {
+            // the left source is smaller, probe the right source and
+            // add the left rows without match at the end
+            log.debug("Executing {} as hash join with build side {}"
+                    + " and unmatched rows", condition, buildName);
+            List<ScoreNode> nodes = new ArrayList<ScoreNode>(l.buffer);
+            Join join = Join.create(
+                    new QueryHitsAdapter(probe, probeName),
+                    new QueryHitsAdapter(build, buildName),
+                    true, condition, reader, resolver, nsMappings, hmgr);
+            return new LeftOuterJoin(join, leftName, nodes, reader);
+        }
+        log.debug("Executing {} as hash join with build side {}",
+                condition, buildName);
+        return Join.create(
+                new QueryHitsAdapter(probe, probeName),
+                new QueryHitsAdapter(build, buildName),
+                innerJoin, condition, reader, resolver, nsMappings, hmgr);
+    }
+
+    /**
+     * @param condition a join condition.
+     * @return <code>true</code> if the condition matches two selectors on
+     *         the same node, without a relative path.
+     */
+    private static boolean isSameNodeJoin(JoinConditionImpl condition) {
+        if (condition instanceof SameNodeJoinConditionImpl) {
+            Path path = ((SameNodeJoinConditionImpl) condition).getSelector2QPath();
+            return path == null
+                    || (path.getLength() == 1 && path.denotesCurrent());
+        }
+        return false;
+    }
+
+    /**
+     * Query hits that can read ahead from the underlying hits into a buffer.
+     */
+    private static final class BufferedHits extends AbstractQueryHits {
+
+        private final QueryHits hits;
+
+        private final List<ScoreNode> buffer = new LinkedList<ScoreNode>();
+
+        private int size;
+
+        private boolean exhausted;
+
+        BufferedHits(QueryHits hits) {
+            this.hits = hits;
+        }
+
+        /**
+         * Reads the next score node into the buffer.
+         *
+         * @return <code>false</code> if the underlying hits are exhausted.
+         * @throws IOException if an error occurs while reading from the
+         *                     underlying hits.
+         */
+        boolean prefetch() throws IOException {
+            ScoreNode sn = hits.nextScoreNode();
+            if (sn == null) {
+                exhausted = true;
+                return false;
+            }
+            buffer.add(sn);
+            size++;
+            return true;
+        }
+
+        boolean isExhausted() {
+            return exhausted;
+        }
+
+        /**
+         * @return the number of score nodes read ahead so far.
+         */
+        int size() {
+            return size;
+        }
+
+        public ScoreNode nextScoreNode() throws IOException {
+            if (!buffer.isEmpty()) {
+                return buffer.remove(0);
+            } else if (exhausted) {
+                return null;
+            }
+            return hits.nextScoreNode();
+        }
+
+        @Override
+        public void close() throws IOException {
+            hits.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene.join;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.jackrabbit.core.query.lucene.MultiColumnQueryHits;
+import org.apache.jackrabbit.core.query.lucene.ScoreNode;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * <code>LeftOuterJoin</code> turns the inner join of a right and a left
+ * source into a left outer join. It returns the rows of the inner join and
+ * then a row without right score node for every left score node that did
+ * not match. This allows to build the join index from the left source when
+ * it is smaller than the right source.
+ */
+class LeftOuterJoin implements MultiColumnQueryHits {
+
+    /**
+     * The inner join with the right source as outer and the left source as
+     * inner query hits.
+     */
+    private final Join join;
+
+    /**
+     * The score node index of the left source in the joined rows.
+     */
+    private final int leftIndex;
+
+    /**
+     * The score nodes of the left source.
+     */
+    private final List<ScoreNode> left;
+
+    /**
+     * The index reader.
+     */
+    private final IndexReader reader;
+
+    /**
+     * The document numbers of the left score nodes with a match.
+     */
+    private final BitSet matched = new BitSet();
+
+    /**
+     * Iterates over the left score nodes after the inner join is exhausted.
+     */
+    private Iterator<ScoreNode> unmatched;
+
+    /**
+     * Creates a new left outer join.
+     *
+     * @param join     the inner join of the right and the left source.
+     * @param leftName the selector name of the left source.
+     * @param left     all score nodes of the left source.
+     * @param reader   the index reader.
+     */
+    LeftOuterJoin(Join join, Name leftName,
+                  List<ScoreNode> left, IndexReader reader) {
+        this.join = join;
+        this.leftIndex = Join.getIndex(join, leftName);
+        this.left = left;
+        this.reader = reader;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ScoreNode[] nextScoreNodes() throws IOException {
+        if (unmatched == null) {
+            ScoreNode[] sn = join.nextScoreNodes();
+            if (sn != null) {
+                matched.set(sn[leftIndex].getDoc(reader));
+                return sn;
+            }
+            unmatched = left.iterator();
+        }
+        while (unmatched.hasNext()) {
+            ScoreNode sn = unmatched.next();
+            if (!matched.get(sn.getDoc(reader))) {
+                ScoreNode[] row = new ScoreNode[join.getSelectorNames().length];
+                row[leftIndex] = sn;
+                return row;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Name[] getSelectorNames() {
+        return join.getSelectorNames();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException {
+        join.close();
+    }
+
+    /**
+     * @return always <code>-1</code>.
+     */
+    public int getSize() {
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void skip(int n) throws IOException {
+        while (n-- > 0) {
+            if (nextScoreNodes() == null) {
+                return;
+            }
+        }
+    }
+}
@@ -82,6 +82,16 @@ public class QueryEngine {
     private static final boolean NATIVE_SORT = Boolean.valueOf(System
             .getProperty(NATIVE_SORT_SYSTEM_PROPERTY, "false"));
 
+    /**
+     * Set this system property to <code>false</code> to join two selectors
+     * by merging the rows of both selectors instead of joining their hits
+     * on the query index.
+     */
+    public static final String INDEX_JOIN_SYSTEM_PROPERTY = "useIndexJoin";
+
+    private static final boolean INDEX_JOIN = Boolean.valueOf(System
+            .getProperty(INDEX_JOIN_SYSTEM_PROPERTY, "true"));
+
     private static final int printIndentStep = 4;
     
     private final Session session;
@@ -159,6 +169,16 @@ public class QueryEngine {
 
         boolean isOuterJoin = JCR_JOIN_TYPE_LEFT_OUTER.equalsIgnoreCase(join
                 .getJoinType());
+        if (INDEX_JOIN && !csInfo.isMultiple()
+                && join.getLeft() instanceof Selector
+                && join.getRight() instanceof Selector
+                && (!isOuterJoin || csInfo.getRightConstraint() == null)) {
+            QueryResult result = executeOnIndex(columns, join, merger,
+                    csInfo, orderings, offset, limit, printIndentation);
+            if (result != null) {
+                return result;
+            }
+        }
         QueryResult result = execute(merger, csInfo, isOuterJoin,
                 printIndentation);
 
@@ -170,6 +190,46 @@ public class QueryEngine {
         return sortedResult;
     }
 
+    /**
+     * Executes a join of two selectors on the query index, without
+     * materializing the rows of the two selectors. If there are no
+     * orderings, the join stops as soon as <code>offset + limit</code> rows
+     * are found.
+     *
+     * @return the query result or <code>null</code> if the join cannot be
+     *         executed on the query index.
+     * @throws RepositoryException if the join fails.
+     */
+    protected QueryResult executeOnIndex(Column[] columns, Join join,
+            JoinMerger merger, ConstraintSplitInfo csInfo,
+            Ordering[] orderings, long offset, long limit,
+            int printIndentation) throws RepositoryException {
+        long time = System.currentTimeMillis();
+        boolean externalSort = orderings != null && orderings.length > 0;
+        List<Row> rows;
+        try {
+            rows = lqf.execute(getColumnMap(columns, getSelectorNames(join)),
+                    join, csInfo.getLeftConstraint(),
+                    csInfo.getRightConstraint(), externalSort, offset, limit);
+        } catch (IOException e) {
+            throw new RepositoryException("Failed to access the query index", e);
+        }
+        if (rows == null) {
+            log.debug("{}SQL2 JOIN cannot be executed on the index.",
+                    genString(printIndentation));
+            return null;
+        }
+        log.debug("{}SQL2 JOIN on the index took {} ms. fetched {} rows.",
+                new Object[] { genString(printIndentation),
+                        System.currentTimeMillis() - time, rows.size() });
+        QueryResult result = new SimpleQueryResult(merger.getColumnNames(),
+                merger.getSelectorNames(), new RowIteratorAdapter(rows));
+        if (!externalSort) {
+            return result;
+        }
+        return sort(result, orderings, evaluator, offset, limit);
+    }
+
     protected QueryResult execute(JoinMerger merger,
             ConstraintSplitInfo csInfo, boolean isOuterJoin,
             int printIndentation) throws RepositoryException {
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene.join;
+
+import java.io.IOException;
+
+import org.apache.jackrabbit.core.query.lucene.MultiColumnQueryHits;
+import org.apache.jackrabbit.core.query.lucene.QueryHits;
+import org.apache.jackrabbit.core.query.lucene.ScoreNode;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * <code>SameNodeMergeJoin</code> implements a same node join of two query
+ * hits that both return their score nodes in increasing document order.
+ * Unlike {@link SameNodeJoin} it does not keep any of the hits in memory,
+ * the two sources are advanced side by side.
+ */
+class SameNodeMergeJoin implements MultiColumnQueryHits {
+
+    /**
+     * The outer query hits.
+     */
+    private final QueryHits outer;
+
+    /**
+     * The inner query hits.
+     */
+    private final QueryHits inner;
+
+    /**
+     * Whether this is an inner join.
+     */
+    private final boolean innerJoin;
+
+    /**
+     * The index reader.
+     */
+    private final IndexReader reader;
+
+    /**
+     * The outer and the inner selector name.
+     */
+    private final Name[] selectorNames;
+
+    /**
+     * The current inner score node or <code>null</code> if the inner query
+     * hits are exhausted.
+     */
+    private ScoreNode current;
+
+    /**
+     * Whether the first inner score node has been read.
+     */
+    private boolean started;
+
+    /**
+     * Creates a new same node merge join.
+     *
+     * @param outer     the outer query hits.
+     * @param outerName the selector name of the outer query hits.
+     * @param inner     the inner query hits.
+     * @param innerName the selector name of the inner query hits.
+     * @param innerJoin whether this is an inner join.
+     * @param reader    the index reader.
+     */
+    SameNodeMergeJoin(QueryHits outer, Name outerName,
+                      QueryHits inner, Name innerName,
+                      boolean innerJoin, IndexReader reader) {
+        this.outer = outer;
+        this.inner = inner;
+        this.innerJoin = innerJoin;
+        this.reader = reader;
+        this.selectorNames = new Name[]{outerName, innerName};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ScoreNode[] nextScoreNodes() throws IOException {
+        if (!started) {
+            current = inner.nextScoreNode();
+            started = true;
+        }
+        for (;;) {
+            if (current == null && innerJoin) {
+                // no more matches possible
+                return null;
+            }
+            ScoreNode sn = outer.nextScoreNode();
+            if (sn == null) {
+                return null;
+            }
+            int doc = sn.getDoc(reader);
+            while (current != null && current.getDoc(reader) < doc) {
+                current = inner.nextScoreNode();
+            }
+            if (current != null && current.getDoc(reader) == doc) {
+                return new ScoreNode[]{sn, current};
+            } else if (!innerJoin) {
+                return new ScoreNode[]{sn, null};
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Name[] getSelectorNames() {
+        return selectorNames;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Closes the outer and the inner query hits.
+     */
+    public void close() throws IOException {
+        try {
+            outer.close();
+        } finally {
+            inner.close();
+        }
+    }
+
+    /**
+     * @return always <code>-1</code>.
+     */
+    public int getSize() {
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void skip(int n) throws IOException {
+        while (n-- > 0) {
+            if (nextScoreNodes() == null) {
+                return;
+            }
+        }
+    }
+}
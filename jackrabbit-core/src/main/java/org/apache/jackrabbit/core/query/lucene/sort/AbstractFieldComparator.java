@@ -109,6 +109,7 @@ public abstract class AbstractFieldComparator extends FieldComparatorBase {
 
     @Override
     public void setNextReader(IndexReader reader, int docBase) throws IOException {
+        readers.clear();
         getIndexReaders(readers, reader);
 
         int maxDoc = 0;
@@ -26,6 +26,7 @@ import org.apache.jackrabbit.core.security.authorization.AccessControlEditor;
 import org.apache.jackrabbit.core.security.authorization.AccessControlProvider;
 import org.apache.jackrabbit.core.security.authorization.CompiledPermissions;
 import org.apache.jackrabbit.core.security.authorization.Permission;
+import org.apache.jackrabbit.core.security.authorization.ReadScope;
 import org.apache.jackrabbit.core.security.authorization.WorkspaceAccessManager;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.Path;
@@ -48,6 +49,7 @@ import javax.security.auth.Subject;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -74,7 +76,7 @@ import java.util.Set;
  * @see AccessManager
  * @see javax.jcr.security.AccessControlManager
  */
-public class DefaultAccessManager extends AbstractAccessControlManager implements AccessManager {
+public class DefaultAccessManager extends AbstractAccessControlManager implements AccessManager, ReadScope {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultAccessManager.class);
 
@@ -274,6 +276,20 @@ public class DefaultAccessManager extends AbstractAccessControlManager implement
         return wspAccess.canAccess(workspaceName);
     }
 
+    //----------------------------------------------------------< ReadScope >---
+    /**
+     * @see ReadScope#getReadableSubtrees()
+     */
+    public Collection<Path> getReadableSubtrees() throws RepositoryException {
+        checkInitialized();
+        if (!compiledPermissions.canReadAll()
+                && compiledPermissions instanceof ReadScope) {
+            return ((ReadScope) compiledPermissions).getReadableSubtrees();
+        } else {
+            return null;
+        }
+    }
+
     //-----------------------------------------------< AccessControlManager >---
     /**
      * @see javax.jcr.security.AccessControlManager#hasPrivileges(String, Privilege[])
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.authorization;
+
+import java.util.Collection;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.spi.Path;
+
+/**
+ * <code>ReadScope</code> is an optional extension of
+ * <code>CompiledPermissions</code> (and of the access managers built upon
+ * them) that describes where readable items may be located. The query
+ * handler uses it to skip hits outside of these subtrees while it is still
+ * evaluating the index. It does not replace the read access check on the
+ * individual hits.
+ */
+public interface ReadScope {
+
+    /**
+     * Returns the absolute paths of the subtrees that contain all items
+     * that may be read. The subtrees may contain items that cannot be read,
+     * but no item outside of them must be readable.
+     *
+     * @return the root paths of the readable subtrees, or <code>null</code>
+     * if read access is not restricted to a set of subtrees.
+     * @throws RepositoryException if an error occurs.
+     */
+    Collection<Path> getReadableSubtrees() throws RepositoryException;
+}
@@ -24,6 +24,7 @@ import org.apache.jackrabbit.core.security.authorization.Permission;
 import org.apache.jackrabbit.core.security.authorization.AccessControlUtils;
 import org.apache.jackrabbit.core.security.authorization.AbstractCompiledPermissions;
 import org.apache.jackrabbit.core.security.authorization.PrivilegeManagerImpl;
+import org.apache.jackrabbit.core.security.authorization.ReadScope;
 import org.apache.jackrabbit.core.security.authorization.principalbased.ACLProvider;
 import org.apache.jackrabbit.core.ItemImpl;
 import org.apache.jackrabbit.core.id.ItemId;
@@ -37,6 +38,8 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.ItemNotFoundException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -198,7 +201,8 @@ public class CombinedProvider extends AbstractAccessControlProvider {
     /**
      *
      */
-    private class CompiledPermissionImpl extends AbstractCompiledPermissions  {
+    private class CompiledPermissionImpl extends AbstractCompiledPermissions
+            implements ReadScope {
 
         private final List<AbstractCompiledPermissions> cPermissions;
 
@@ -283,5 +287,31 @@ public class CombinedProvider extends AbstractAccessControlProvider {
             Path p = (path == null) ? session.getItemManager().getItem(itemId).getPrimaryPath() : path;
             return grants(p, Permission.READ);
         }
+
+        //------------------------------------------------------< ReadScope >---
+        /**
+         * An item may be read if one of the underlying permissions allows
+         * it. The readable subtrees are therefore the union of those of all
+         * underlying permissions.
+         *
+         * @see ReadScope#getReadableSubtrees()
+         */
+        public Collection<Path> getReadableSubtrees() throws RepositoryException {
+            if (cPermissions.isEmpty()) {
+                return null;
+            }
+            Collection<Path> subtrees = new LinkedHashSet<Path>();
+            for (AbstractCompiledPermissions acp : cPermissions) {
+                if (!(acp instanceof ReadScope)) {
+                    return null;
+                }
+                Collection<Path> paths = ((ReadScope) acp).getReadableSubtrees();
+                if (paths == null) {
+                    return null;
+                }
+                subtrees.addAll(paths);
+            }
+            return subtrees;
+        }
     }
 }
\ No newline at end of file
@@ -34,6 +34,7 @@ import org.apache.jackrabbit.core.security.authorization.Permission;
 import org.apache.jackrabbit.core.security.authorization.PrivilegeBits;
 import org.apache.jackrabbit.core.security.authorization.PrivilegeManagerImpl;
 import org.apache.jackrabbit.core.security.authorization.PrivilegeRegistry;
+import org.apache.jackrabbit.core.security.authorization.ReadScope;
 import org.apache.jackrabbit.core.security.authorization.UnmodifiableAccessControlList;
 import org.apache.jackrabbit.spi.Path;
 import org.apache.jackrabbit.util.ISO9075;
@@ -60,6 +61,8 @@ import javax.jcr.security.AccessControlPolicy;
 import javax.jcr.security.Privilege;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -307,7 +310,7 @@ public class ACLProvider extends AbstractAccessControlProvider implements Access
      *
      */
     private class CompiledPermissionImpl extends AbstractCompiledPermissions
-            implements AccessControlListener {
+            implements AccessControlListener, ReadScope {
 
         private final Set<Principal> principals;
         private final Set<String> acPaths;
@@ -320,6 +323,12 @@ public class ACLProvider extends AbstractAccessControlProvider implements Access
 
         private final Object monitor = new Object();
 
+        /**
+         * The readable subtrees, calculated upon the first call to
+         * {@link #getReadableSubtrees()}.
+         */
+        private Collection<Path> readableSubtrees;
+
         /**
          * @param principals the underlying principals
          * @throws RepositoryException if an error occurs
@@ -360,6 +369,9 @@ public class ACLProvider extends AbstractAccessControlProvider implements Access
 
             // and retrieve the entries from the entry-collector.
             entries = entriesCache.getEntries(principals);
+            synchronized (monitor) {
+                readableSubtrees = null;
+            }
             
             // in addition: trivial check if read access is denied somewhere
             canReadAll = canRead(session.getQPath("/"));            
@@ -502,6 +514,35 @@ public class ACLProvider extends AbstractAccessControlProvider implements Access
             return (canReadAll && !isAcItem(path)) || grants(path, Permission.READ);
         }
 
+        //------------------------------------------------------< ReadScope >---
+        /**
+         * Items can only be read below the nodes of entries that allow
+         * some privilege, as the principal-based entries do not have an
+         * effect outside of their node path.
+         *
+         * @see ReadScope#getReadableSubtrees()
+         */
+        public Collection<Path> getReadableSubtrees() throws RepositoryException {
+            if (canReadAll) {
+                return null;
+            }
+            synchronized (monitor) {
+                if (readableSubtrees == null) {
+                    Set<Path> paths = new LinkedHashSet<Path>();
+                    for (AccessControlEntry entry : entries) {
+                        if (entry instanceof ACLTemplate.Entry) {
+                            ACLTemplate.Entry entr = (ACLTemplate.Entry) entry;
+                            if (entr.isAllow() && !entr.getPrivilegeBits().isEmpty()) {
+                                paths.add(session.getQPath(entr.getSubtreePath()));
+                            }
+                        }
+                    }
+                    readableSubtrees = Collections.unmodifiableSet(paths);
+                }
+                return readableSubtrees;
+            }
+        }
+
         //------------------------------------------< AccessControlListener >---
         /**
          * @see AccessControlListener#acModified(org.apache.jackrabbit.core.security.authorization.AccessControlModifications)
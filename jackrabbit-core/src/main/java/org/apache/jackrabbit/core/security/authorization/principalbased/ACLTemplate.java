@@ -30,6 +30,7 @@ import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.commons.conversion.NamePathResolver;
 import org.apache.jackrabbit.spi.commons.conversion.NameResolver;
 import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.util.Text;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -348,6 +349,23 @@ class ACLTemplate extends AbstractACLTemplate {
             return pattern.matches(item);
         }
 
+        /**
+         * Returns the path of the subtree that contains all items matched by
+         * this entry. A non-empty glob is appended to the node path as is,
+         * so it may match siblings of the node (e.g. "/a/b*" matches "/a/bc").
+         *
+         * @return the root path of the subtree affected by this entry.
+         * @throws RepositoryException if an error occurs
+         */
+        String getSubtreePath() throws RepositoryException {
+            Value glob = getRestriction(P_GLOB);
+            if (glob == null || glob.getString().length() == 0) {
+                return nodePath;
+            }
+            String parentPath = Text.getRelativeParent(nodePath, 1);
+            return (parentPath.length() == 0) ? "/" : parentPath;
+        }
+
         @Override
         protected NameResolver getResolver() {
             return resolver;
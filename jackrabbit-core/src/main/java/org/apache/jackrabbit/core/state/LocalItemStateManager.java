@@ -16,6 +16,9 @@
  */
 package org.apache.jackrabbit.core.state;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.jcr.InvalidItemStateException;
 import javax.jcr.ReferentialIntegrityException;
 import javax.jcr.RepositoryException;
@@ -143,6 +146,26 @@ public class LocalItemStateManager
         return state;
     }
 
+    /**
+     * Prefetches the given node states from the shared item state manager,
+     * skipping the ones that are already present in this item state manager.
+     *
+     * @param ids the ids of the node states to prefetch
+     * @see SharedItemStateManager#prefetch(java.util.Collection)
+     */
+    public void prefetch(List<NodeId> ids) {
+        List<NodeId> missing = new ArrayList<NodeId>(ids.size());
+        for (NodeId id : ids) {
+            if (!changeLog.has(id) && !changeLog.deleted(id)
+                    && !cache.isCached(id)) {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            sharedStateMgr.prefetch(missing);
+        }
+    }
+
     /**
      * Returns the change log that contains the current changes in this local
      * item state manager.
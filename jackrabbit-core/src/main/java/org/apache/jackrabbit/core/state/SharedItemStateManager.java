@@ -16,11 +16,15 @@
  */
 package org.apache.jackrabbit.core.state;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.PropertyType;
 import javax.jcr.ReferentialIntegrityException;
@@ -40,6 +44,7 @@ import org.apache.jackrabbit.core.nodetype.NodeTypeRegistry;
 import org.apache.jackrabbit.core.observation.EventState;
 import org.apache.jackrabbit.core.observation.EventStateCollection;
 import org.apache.jackrabbit.core.observation.EventStateCollectionFactory;
+import org.apache.jackrabbit.core.persistence.BulkLoadingPersistenceManager;
 import org.apache.jackrabbit.core.persistence.CachingPersistenceManager;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
 import org.apache.jackrabbit.core.value.InternalValue;
@@ -1755,6 +1760,88 @@ public class SharedItemStateManager
      */
     private final Set<ItemId> currentlyLoading = new HashSet<ItemId>();
 
+    /**
+     * Number of write locks acquired and released (or downgraded) so far.
+     * Used by {@link #prefetch(Collection)} to detect concurrent writes,
+     * since it loads item states without holding read locks.
+     */
+    private final AtomicLong writesStarted = new AtomicLong();
+
+    private final AtomicLong writesFinished = new AtomicLong();
+
+    /**
+     * Loads the given node states into the cache, if the persistence
+     * manager supports bulk loading. This is used to prefetch the child
+     * nodes of a node that is being iterated, so that they can be loaded
+     * with a few bulk reads instead of one read per child.
+     * <p>
+     * Node states that are already cached or currently being loaded are
+     * skipped. The loaded states are discarded if a write happened during
+     * the load, in that case they will be loaded individually on access.
+     *
+     * @param ids the ids of the node states to prefetch
+     */
+    public void prefetch(Collection<NodeId> ids) {
+        if (!(persistMgr instanceof BulkLoadingPersistenceManager)) {
+            return;
+        }
+        long writes = writesStarted.get();
+        if (writes != writesFinished.get()) {
+            // a write is in progress
+            return;
+        }
+
+        List<NodeId> missing = new ArrayList<NodeId>(ids.size());
+        synchronized (this) {
+            for (NodeId id : ids) {
+                if (!cache.isCached(id) && !currentlyLoading.contains(id)
+                        && !isVirtualRoot(id)) {
+                    missing.add(id);
+                }
+            }
+            currentlyLoading.addAll(missing);
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        try {
+            Map<NodeId, NodeState> states =
+                ((BulkLoadingPersistenceManager) persistMgr).load(missing);
+            // writers increment writesStarted while holding this monitor,
+            // so a write either is detected here or starts after the
+            // states are cached, and then updates the cached states
+            synchronized (this) {
+                if (writesStarted.get() == writes) {
+                    for (NodeState state : states.values()) {
+                        if (!cache.isCached(state.getNodeId())) {
+                            state.setStatus(ItemState.STATUS_EXISTING);
+                            state.setContainer(this);
+                            cache.cache(state);
+                        }
+                    }
+                }
+            }
+        } catch (ItemStateException e) {
+            // not fatal, the states will be loaded individually
+            log.warn("Unable to prefetch node states", e);
+        } finally {
+            synchronized (this) {
+                currentlyLoading.removeAll(missing);
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean isVirtualRoot(ItemId id) {
+        for (VirtualItemStateProvider virtualProvider : virtualProviders) {
+            if (virtualProvider.isVirtualRoot(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Returns the item state for the given id without considering virtual
      * item state providers.
@@ -1899,7 +1986,21 @@ public class SharedItemStateManager
      */
     private ISMLocking.WriteLock acquireWriteLock(ChangeLog changeLog) throws ItemStateException {
         try {
-            return ismLocking.acquireWriteLock(changeLog);
+            final ISMLocking.WriteLock writeLock =
+                ismLocking.acquireWriteLock(changeLog);
+            synchronized (this) {
+                writesStarted.incrementAndGet();
+            }
+            return new ISMLocking.WriteLock() {
+                public ISMLocking.ReadLock downgrade() {
+                    writesFinished.incrementAndGet();
+                    return writeLock.downgrade();
+                }
+                public void release() {
+                    writesFinished.incrementAndGet();
+                    writeLock.release();
+                }
+            };
         } catch (InterruptedException e) {
             throw new ItemStateException("Interrupted while acquiring write lock");
         }
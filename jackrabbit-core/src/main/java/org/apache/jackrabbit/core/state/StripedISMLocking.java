@@ -0,0 +1,377 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import static org.apache.jackrabbit.data.core.TransactionContext.getCurrentThreadId;
+import static org.apache.jackrabbit.data.core.TransactionContext.isSameThreadId;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Item state locking strategy that allows concurrent writers as long as
+ * their change logs are disjoint. The workspace is divided into a fixed
+ * number of lock stripes, and each item is mapped to a stripe based on the
+ * hash code of its node id (properties use the id of their parent node).
+ * Every stripe is a read-write lock with the same semantics as the
+ * {@link DefaultISMLocking} (without writer preference).
+ * <p>
+ * A write lock acquires the stripes of all the items and node references
+ * contained in the change log, in ascending stripe order so that two
+ * writers can never deadlock while acquiring their write locks. A
+ * <code>null</code> change log locks all stripes. A downgraded write lock
+ * keeps the stripes read locked until released.
+ * <p>
+ * While holding a write lock, a thread may still need to read items
+ * outside of its change log, which can be write locked by another writer.
+ * Such waits are tracked, and if two or more writers end up waiting for
+ * each other, the write operation that closes the cycle is aborted with an
+ * {@link InterruptedException} instead of blocking forever.
+ * <p>
+ * This locking strategy can be enabled with the following workspace
+ * configuration:
+ * <pre>
+ * &lt;ISMLocking class="org.apache.jackrabbit.core.state.StripedISMLocking"&gt;
+ *   &lt;param name="stripes" value="1024"/&gt;
+ * &lt;/ISMLocking&gt;
+ * </pre>
+ * Note that concurrent writes only make a difference when the persistence
+ * manager also supports concurrent stores, see the
+ * <code>concurrentStore</code> option of the bundle database persistence
+ * managers.
+ */
+public class StripedISMLocking implements ISMLocking {
+
+    /**
+     * The logger instance for this class.
+     */
+    private static final Logger log =
+        LoggerFactory.getLogger(StripedISMLocking.class);
+
+    /**
+     * The default number of stripes.
+     */
+    private static final int DEFAULT_STRIPES = 1024;
+
+    /**
+     * The lock stripes.
+     */
+    private Stripe[] stripes;
+
+    /**
+     * Maps the thread identifiers of writers that are currently blocked to
+     * the stripe they are waiting for. Used to detect deadlocks between
+     * writers that read outside of their change logs.
+     */
+    private final Map<Object, Stripe> waiting = new HashMap<Object, Stripe>();
+
+    public StripedISMLocking() {
+        setStripes(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Returns the number of lock stripes.
+     *
+     * @return number of stripes
+     */
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Sets the number of lock stripes. Must not be called while locks
+     * are being held.
+     *
+     * @param count number of stripes
+     */
+    public void setStripes(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException(
+                    "The number of stripes must be positive: " + count);
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadLock acquireReadLock(ItemId id) throws InterruptedException {
+        BitSet set = new BitSet(stripes.length);
+        if (id != null) {
+            set.set(getStripeIndex(id));
+        } else {
+            set.set(0, stripes.length);
+        }
+        Object currentId = getCurrentThreadId();
+        acquire(set, false, currentId);
+        return new StripedReadLock(set);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WriteLock acquireWriteLock(ChangeLog changeLog)
+            throws InterruptedException {
+        BitSet set = new BitSet(stripes.length);
+        if (changeLog != null) {
+            for (ItemState state : changeLog.addedStates()) {
+                set.set(getStripeIndex(state.getId()));
+            }
+            for (ItemState state : changeLog.modifiedStates()) {
+                set.set(getStripeIndex(state.getId()));
+            }
+            for (ItemState state : changeLog.deletedStates()) {
+                set.set(getStripeIndex(state.getId()));
+            }
+            for (NodeReferences refs : changeLog.modifiedRefs()) {
+                set.set(getStripeIndex(refs.getTargetId()));
+            }
+        } else {
+            set.set(0, stripes.length);
+        }
+        Object currentId = getCurrentThreadId();
+        acquire(set, true, currentId);
+        return new StripedWriteLock(set, currentId);
+    }
+
+    /**
+     * Returns the index of the stripe that guards the given item.
+     *
+     * @param id item id
+     * @return stripe index
+     */
+    private int getStripeIndex(ItemId id) {
+        NodeId nodeId;
+        if (id.denotesNode()) {
+            nodeId = (NodeId) id;
+        } else {
+            nodeId = ((PropertyId) id).getParentId();
+        }
+        return (nodeId.hashCode() >>> 1) % stripes.length;
+    }
+
+    /**
+     * Acquires the given stripes in ascending order. If interrupted, the
+     * stripes acquired so far are released again.
+     *
+     * @param set indexes of the stripes to acquire
+     * @param write whether to acquire write or read locks
+     * @param currentId thread identifier of the current thread
+     * @throws InterruptedException if interrupted or a deadlock was detected
+     */
+    private void acquire(BitSet set, boolean write, Object currentId)
+            throws InterruptedException {
+        int i = set.nextSetBit(0);
+        try {
+            while (i >= 0) {
+                if (write) {
+                    stripes[i].acquireWrite(currentId);
+                } else {
+                    stripes[i].acquireRead(currentId);
+                }
+                i = set.nextSetBit(i + 1);
+            }
+        } catch (InterruptedException e) {
+            for (int j = set.nextSetBit(0); j >= 0 && j < i;
+                    j = set.nextSetBit(j + 1)) {
+                if (write) {
+                    stripes[j].releaseWrite(false);
+                } else {
+                    stripes[j].releaseRead();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Registers the current thread as waiting for the given stripe and
+     * checks whether this closes a cycle of writers waiting for each
+     * other. Called while holding the monitor of the stripe.
+     *
+     * @param currentId thread identifier of the current thread
+     * @param stripe the stripe the current thread is about to wait for
+     * @return <code>true</code> if waiting would cause a deadlock
+     */
+    private boolean startWaiting(Object currentId, Stripe stripe) {
+        synchronized (waiting) {
+            Object owner = stripe.writerId;
+            for (int i = 0; owner != null && i <= waiting.size(); i++) {
+                if (isSameThreadId(owner, currentId)) {
+                    return true;
+                }
+                Stripe next = waiting.get(owner);
+                owner = next != null ? next.writerId : null;
+            }
+            waiting.put(currentId, stripe);
+            return false;
+        }
+    }
+
+    /**
+     * Removes the waiting mark of the current thread.
+     *
+     * @param currentId thread identifier of the current thread
+     */
+    private void stopWaiting(Object currentId) {
+        synchronized (waiting) {
+            waiting.remove(currentId);
+        }
+    }
+
+    /**
+     * A single lock stripe, with the same semantics as the
+     * {@link DefaultISMLocking} without writer preference.
+     */
+    private final class Stripe {
+
+        /**
+         * The thread identifier of the current (or downgraded) writer, or
+         * <code>null</code>. Volatile as it is also read by the deadlock
+         * detection without holding the monitor of this stripe.
+         */
+        private volatile Object writerId = null;
+
+        /**
+         * Number of acquired write locks.
+         */
+        private int writerCount = 0;
+
+        /**
+         * Number of acquired read locks.
+         */
+        private int readerCount = 0;
+
+        public synchronized void acquireRead(Object currentId)
+                throws InterruptedException {
+            while (writerCount > 0 && !isSameThreadId(writerId, currentId)) {
+                await(currentId);
+            }
+            readerCount++;
+        }
+
+        public synchronized void releaseRead() {
+            readerCount--;
+            if (readerCount == 0 && writerCount == 0) {
+                writerId = null;
+                notifyAll();
+            }
+        }
+
+        public synchronized void acquireWrite(Object currentId)
+                throws InterruptedException {
+            while (writerId != null
+                    ? !isSameThreadId(writerId, currentId) : readerCount > 0) {
+                await(currentId);
+            }
+            if (writerCount++ == 0) {
+                writerId = currentId;
+            }
+        }
+
+        public synchronized void releaseWrite(boolean downgrade) {
+            writerCount--;
+            if (downgrade) {
+                readerCount++;
+            }
+            if (writerCount == 0) {
+                if (readerCount == 0) {
+                    writerId = null;
+                }
+                notifyAll();
+            }
+        }
+
+        private void await(Object currentId) throws InterruptedException {
+            if (startWaiting(currentId, this)) {
+                log.warn("Deadlock detected between concurrent writers,"
+                        + " aborting the operation of thread " + currentId);
+                throw new InterruptedException(
+                        "Deadlock detected between concurrent writers");
+            }
+            try {
+                wait();
+            } finally {
+                stopWaiting(currentId);
+            }
+        }
+
+    }
+
+    /**
+     * Read lock on a set of stripes.
+     */
+    private final class StripedReadLock implements ReadLock {
+
+        private final BitSet set;
+
+        public StripedReadLock(BitSet set) {
+            this.set = set;
+        }
+
+        public void release() {
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                stripes[i].releaseRead();
+            }
+        }
+
+    }
+
+    /**
+     * Write lock on a set of stripes.
+     */
+    private final class StripedWriteLock implements WriteLock {
+
+        private final BitSet set;
+
+        private final Object writerId;
+
+        public StripedWriteLock(BitSet set, Object writerId) {
+            this.set = set;
+            this.writerId = writerId;
+        }
+
+        public void release() {
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                stripes[i].releaseWrite(false);
+            }
+        }
+
+        public ReadLock downgrade() {
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                stripes[i].releaseWrite(true);
+            }
+            return new StripedReadLock(set);
+        }
+
+        public String toString() {
+            return "StripedWriteLock[" + writerId + ", " + set + "]";
+        }
+
+    }
+
+}
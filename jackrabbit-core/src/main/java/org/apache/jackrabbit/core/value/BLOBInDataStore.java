@@ -24,6 +24,7 @@ import org.apache.jackrabbit.core.data.DataStoreException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.InputStream;
 
 import javax.jcr.RepositoryException;
@@ -104,6 +105,21 @@ class BLOBInDataStore extends BLOBFileValue implements ReferenceBinary {
         return getDataRecord().getStream();
     }
 
+    /**
+     * Reads only the requested range from the data store instead of
+     * skipping to the position.
+     */
+    @Override
+    public int read(byte[] b, long position)
+            throws IOException, RepositoryException {
+        InputStream in = getDataRecord().getStream(position, b.length);
+        try {
+            return in.read(b);
+        } finally {
+            in.close();
+        }
+    }
+
     @Override
     public String getReference() {
         try {
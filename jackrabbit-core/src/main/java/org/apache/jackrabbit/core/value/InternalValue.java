@@ -644,6 +644,19 @@ public class InternalValue extends AbstractQValue {
         return val instanceof BLOBInDataStore;
     }
 
+    /**
+     * Returns the data store identifier of this binary value.
+     *
+     * @return the data identifier, or <code>null</code> if this value is
+     *         not stored in the data store
+     */
+    public DataIdentifier getDataIdentifier() {
+        if (val instanceof BLOBInDataStore) {
+            return ((BLOBInDataStore) val).getDataIdentifier();
+        }
+        return null;
+    }
+
     //-------------------------------------------------------------< QValue >---
     /**
      * @see org.apache.jackrabbit.spi.QValue#getLength()
@@ -119,6 +119,12 @@ public class RepositoryCopierTest extends TestCase {
                 properties.setProperty("multiple", "a,b,c".split(","));
                 session.save();
 
+                Node locked = root.addNode("locked", "test:unstructured");
+                locked.addMixin(NodeType.MIX_LOCKABLE);
+                session.save();
+                session.getWorkspace().getLockManager().lock(
+                        "/locked", false, false, Long.MAX_VALUE, "test");
+
                 binary = properties.getProperty("binary").getBinary();
                 try {
                     InputStream stream = binary.getStream();
@@ -158,6 +164,8 @@ public class RepositoryCopierTest extends TestCase {
                 assertFalse(type.isMixin());
                 assertTrue(type.isNodeType("nt:unstructured"));
 
+                assertTrue(session.getNode("/locked").isLocked());
+
                 assertTrue(session.nodeExists("/properties"));
                 Node properties = session.getNode("/properties");
                 assertEquals(
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.cache;
+
+import java.util.Random;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the {@link TinyLFUCache} class.
+ */
+public class TinyLFUCacheTest extends TestCase {
+
+    /**
+     * Tests the cache by adding lots of random items to it and checking
+     * that the excess items have automatically been evicted while
+     * frequently accessed items are still present.
+     */
+    public void testTinyLFUCache() {
+        NodeId[] ids = new NodeId[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = NodeId.randomId();
+        }
+
+        TinyLFUCache<NodeId, NodeId> cache =
+            new TinyLFUCache<NodeId, NodeId>("test");
+        cache.setMaxMemorySize(ids.length / 2);
+
+        for (int i = 0; i < ids.length; i++) {
+            for (int j = 0; j < i; j += 3) {
+                cache.get(ids[j]);
+            }
+            cache.put(ids[i], ids[i], 1);
+        }
+
+        assertTrue(cache.getMemoryUsed() <= ids.length / 2);
+        assertEquals(cache.getMemoryUsed(), cache.getElementCount());
+
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (cache.containsKey(ids[i])) {
+                n++;
+            }
+        }
+        assertTrue(n <= ids.length / 2);
+
+        n = 0;
+        for (int i = 0; i < ids.length; i += 3) {
+            if (cache.containsKey(ids[i])) {
+                n++;
+            }
+        }
+        // most of the frequently accessed entries should still be cached
+        assertTrue(n > ids.length / 4);
+    }
+
+    /**
+     * Checks that a scan over many rarely used entries does not flush
+     * a small set of frequently used entries out of the cache.
+     */
+    public void testScanResistance() {
+        TinyLFUCache<Integer, Integer> cache =
+            new TinyLFUCache<Integer, Integer>("test", 1);
+        cache.setMaxMemorySize(100);
+
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (cache.get(i) == null) {
+                    cache.put(i, i, 1);
+                }
+            }
+        }
+        for (int i = 1000; i < 10000; i++) {
+            cache.put(i, i, 1);
+        }
+
+        int n = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.containsKey(i)) {
+                n++;
+            }
+        }
+        assertTrue("Hot entries evicted by scan: " + n, n >= 45);
+        assertTrue(cache.getMemoryUsed() <= 100);
+    }
+
+    /**
+     * Tests the memory accounting when entries are replaced, removed
+     * and the cache is resized or cleared.
+     */
+    public void testMemoryAccounting() {
+        TinyLFUCache<String, String> cache =
+            new TinyLFUCache<String, String>("test");
+        cache.setMaxMemorySize(1000);
+
+        assertNull(cache.put("a", "a", 100));
+        assertNull(cache.put("b", "b", 200));
+        assertEquals(300, cache.getMemoryUsed());
+
+        assertEquals("a", cache.put("a", "x", 50));
+        assertEquals(250, cache.getMemoryUsed());
+        assertEquals("x", cache.get("a"));
+
+        assertEquals("b", cache.remove("b"));
+        assertNull(cache.remove("b"));
+        assertEquals(50, cache.getMemoryUsed());
+        assertEquals(1, cache.getElementCount());
+
+        for (int i = 0; i < 20; i++) {
+            cache.put("k" + i, "v" + i, 100);
+        }
+        assertTrue(cache.getMemoryUsed() <= 1000);
+
+        cache.setMaxMemorySize(300);
+        assertTrue(cache.getMemoryUsed() <= 300);
+        assertEquals(cache.values().size(), cache.getElementCount());
+
+        cache.clear();
+        assertTrue(cache.isEmpty());
+        assertEquals(0, cache.getElementCount());
+        assertNull(cache.get("a"));
+    }
+
+    /**
+     * Runs concurrent readers and writers and verifies that the memory
+     * accounting stays consistent with the cache contents.
+     */
+    public void testConcurrentAccess() throws Exception {
+        final TinyLFUCache<Integer, Integer> cache =
+            new TinyLFUCache<Integer, Integer>("test");
+        cache.setMaxMemorySize(500);
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int j = 0; j < 20000; j++) {
+                        Integer key = random.nextInt(2000);
+                        if (cache.get(key) == null) {
+                            cache.put(key, key, 1);
+                        } else if (j % 100 == 0) {
+                            cache.remove(key);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(cache.getMemoryUsed() <= 500);
+        assertEquals(cache.getMemoryUsed(), cache.getElementCount());
+        assertEquals(8 * 20000, cache.getTotalAccessCount());
+    }
+
+}
@@ -83,6 +83,83 @@ public class DBDataStoreTest extends JUnitTest {
         }
     }
 
+    public void testGetRange() throws Exception {
+        DataRecord record = store.getRecord(identifier);
+        assertRange(record, 0, 10);
+        assertRange(record, 100, 200);
+        assertRange(record, data.length - 10, 100);
+        assertRange(record, 500, Long.MAX_VALUE);
+        assertRange(record, data.length, 10);
+        assertRange(record, data.length + 10, 10);
+    }
+
+    public void testDeleteUnreferenced() throws Exception {
+        byte[] other = new byte[2000];
+        new Random(1234567890).nextBytes(other);
+        DataIdentifier unreferenced =
+            store.addRecord(new ByteArrayInputStream(other)).getIdentifier();
+        other[0]++;
+        DataIdentifier used =
+            store.addRecord(new ByteArrayInputStream(other)).getIdentifier();
+        Thread.sleep(50);
+        long min = System.currentTimeMillis();
+        store.clearInUse();
+        store.getRecord(used);
+        store.updateModifiedDateOnAccess(min);
+
+        store.deleteAllOlderThan(min, new DataReferences() {
+            public boolean isReferenced(DataIdentifier id) {
+                return id.equals(identifier);
+            }
+        });
+        assertNotNull(store.getRecordIfStored(identifier));
+        assertNotNull(store.getRecordIfStored(used));
+        assertNull(store.getRecordIfStored(unreferenced));
+    }
+
+    public void testAddDuplicate() throws Exception {
+        assertEquals(identifier,
+            store.addRecord(new ByteArrayInputStream(data)).getIdentifier());
+
+        // larger than the in memory digest
+        byte[] large = new byte[store.getIngestBufferSize() + 1000];
+        new Random(1234567890).nextBytes(large);
+        DataIdentifier id =
+            store.addRecord(new ByteArrayInputStream(large)).getIdentifier();
+        assertEquals(id,
+            store.addRecord(new ByteArrayInputStream(large)).getIdentifier());
+
+        // same head, different tail
+        large[large.length - 1]++;
+        DataRecord record = store.addRecord(new ByteArrayInputStream(large));
+        assertFalse(id.equals(record.getIdentifier()));
+        assertEquals(large.length, record.getLength());
+        InputStream stream = record.getStream();
+        try {
+            for (int j = 0; j < large.length; j++) {
+                assertEquals((large[j]) & 0xff, stream.read());
+            }
+            assertEquals(-1, stream.read());
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void assertRange(DataRecord record, long offset, long length)
+            throws Exception {
+        int from = (int) Math.min(offset, data.length);
+        int to = (int) Math.min(from + Math.min(length, data.length), data.length);
+        InputStream stream = record.getStream(offset, length);
+        try {
+            for (int j = from; j < to; j++) {
+                assertEquals((data[j]) & 0xff, stream.read());
+            }
+            assertEquals(-1, stream.read());
+        } finally {
+            stream.close();
+        }
+    }
+
     public void testDbInputStreamReset() throws Exception {
         DataRecord record = store.getRecord(identifier);
         InputStream in = record.getStream();
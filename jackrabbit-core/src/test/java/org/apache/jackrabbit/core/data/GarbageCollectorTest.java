@@ -25,9 +25,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import EDU.oswego.cs.dl.util.concurrent.SynchronousChannel;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.jcr.Binary;
 import javax.jcr.Credentials;
 import javax.jcr.Node;
@@ -185,6 +187,64 @@ public class GarbageCollectorTest extends AbstractJCRTest implements ScanEventLi
         gc.close();
     }
     
+    /**
+     * Test the persistence manager scan with multiple mark threads.
+     */
+    public void testParallelMark() throws Exception {
+        Node root = testRootNode;
+        Session session = root.getSession();
+
+        deleteMyNodes();
+        runGC(session, true);
+
+        ValueFactory vf = session.getValueFactory();
+        for (int i = 0; i < 20; i++) {
+            Node n = root.addNode("node" + i);
+            n.setProperty("test", vf.createBinary(new RandomInputStream(i, 1000)));
+        }
+        session.save();
+        root.getNode("node0").remove();
+        session.save();
+
+        GarbageCollector gc = ((SessionImpl) session).createDataStoreGarbageCollector();
+        if (!gc.isPersistenceManagerScan()) {
+            gc.close();
+            return;
+        }
+        gc.getDataStore().clearInUse();
+        gc.setMarkThreads(4);
+        final AtomicInteger scanned = new AtomicInteger();
+        gc.setMarkEventListener(new MarkEventListener() {
+            public void beforeScanning(Node n) {
+                scanned.incrementAndGet();
+            }
+        });
+
+        if (gc.getDataStore() instanceof FileDataStore) {
+            // make sure the files are old, without sleeping past the
+            // maximum idle time of the workspaces
+            setLastModified(
+                    new File(((FileDataStore) gc.getDataStore()).getPath()),
+                    System.currentTimeMillis() - 60 * 1000);
+        }
+
+        gc.mark();
+        assertTrue(scanned.get() > 20);
+        int count = listIdentifiers(gc);
+        gc.getDataStore().clearInUse();
+        assertEquals(1, gc.sweep());
+        assertEquals(count - 1, listIdentifiers(gc));
+
+        for (int i = 1; i < 20; i++) {
+            Binary b = root.getNode("node" + i).getProperty("test").getBinary();
+            verifyInputStream(b.getStream(), new RandomInputStream(i, 1000));
+        }
+
+        deleteMyNodes();
+
+        gc.close();
+    }
+
     /**
      *  Test to validate that two  GC cannot run simulatenously. one 
      *  exits throwing exception  
@@ -193,6 +253,10 @@ public class GarbageCollectorTest extends AbstractJCRTest implements ScanEventLi
         Node root = testRootNode;
         Session session = root.getSession();
 
+        // initialize all workspaces first, otherwise the first collector
+        // may finish a run before the second one is created
+        ((SessionImpl) session).createDataStoreGarbageCollector().close();
+
         GCThread gct1 = new GCThread(session);
         GCThread gct2 = new GCThread(session);
         Thread gcThread1 = new Thread(gct1, "Datastore Garbage Collector 1");
@@ -232,6 +296,17 @@ public class GarbageCollectorTest extends AbstractJCRTest implements ScanEventLi
         gc.close();
     }
 
+    private static void setLastModified(File file, long time) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                setLastModified(child, time);
+            }
+        } else {
+            file.setLastModified(time);
+        }
+    }
+
     private static int listIdentifiers(GarbageCollector gc) throws DataStoreException {
         LOG.debug("identifiers:");
         int count = 0;
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 import org.apache.jackrabbit.test.JUnitTest;
 
@@ -140,4 +141,24 @@ public class LazyFileInputStreamTest extends JUnitTest {
         
     }
 
+    public void testChannel() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {1, 2, 3, 4});
+        out.close();
+
+        // the channel is positioned at the next byte of the stream
+        LazyFileInputStream in = new LazyFileInputStream(file, 1);
+        assertEquals(2, in.read());
+        FileChannel channel = in.getChannel();
+        assertNotNull(channel);
+        assertEquals(2, channel.position());
+        channel.position(3);
+        assertEquals(4, in.read());
+        assertEquals(-1, in.read());
+
+        // no channel once the end of the stream was reached
+        assertNull(in.getChannel());
+        in.close();
+    }
+
 }
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.integration.benchmark;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.NamespaceRegistryImpl;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.PMContext;
+import org.apache.jackrabbit.core.persistence.pool.BundleDbPersistenceManager;
+import org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager;
+import org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.util.db.ConnectionFactory;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
+
+/**
+ * A benchmark that measures how fast large change logs, like the ones
+ * created by an import, are written by the H2 and Derby bundle persistence
+ * managers with different <code>batchSize</code> settings. Run it as a Java
+ * application; the optional argument is the number of nodes per change log.
+ */
+public class BundleBatchWriteBench {
+
+    private static final int CHANGE_LOGS = 10;
+
+    private static final Name TEST =
+        NameFactoryImpl.getInstance().create("", "test");
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        for (int run = 0; run < 2; run++) {
+            // the first run is a warm-up
+            for (String batchSize : new String[] { "0", "100", "1000" }) {
+                run(run, "h2", batchSize, nodes);
+                run(run, "derby", batchSize, nodes);
+            }
+        }
+    }
+
+    private static void run(
+            int run, String database, String batchSize, int nodes)
+            throws Exception {
+        File directory = File.createTempFile("jackrabbit-bench-", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            BundleDbPersistenceManager manager;
+            if ("h2".equals(database)) {
+                manager = new H2PersistenceManager();
+                manager.setDriver("org.h2.Driver");
+                manager.setUrl("jdbc:h2:" + new File(directory, "db").getPath());
+            } else {
+                manager = new DerbyPersistenceManager();
+                manager.setDriver("org.apache.derby.jdbc.EmbeddedDriver");
+                manager.setUrl("jdbc:derby:"
+                        + new File(directory, "db").getPath() + ";create=true");
+            }
+            manager.setConnectionFactory(new ConnectionFactory());
+            manager.setBatchSize(batchSize);
+            manager.init(new PMContext(
+                    directory,
+                    new MemoryFileSystem(),
+                    RepositoryImpl.ROOT_NODE_ID,
+                    new NamespaceRegistryImpl(new MemoryFileSystem()),
+                    null,
+                    null,
+                    new RepositoryStatisticsImpl()));
+            try {
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < CHANGE_LOGS; i++) {
+                    manager.store(createChangeLog(nodes));
+                }
+                long time = Math.max(System.currentTimeMillis() - start, 1);
+                if (run > 0) {
+                    System.out.println(
+                            "database: " + database
+                            + "; batchSize: " + batchSize
+                            + "; nodes/s: " + CHANGE_LOGS * nodes * 1000L / time);
+                }
+            } finally {
+                manager.close();
+            }
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Creates a change log that adds a parent node with the given number
+     * of child nodes.
+     */
+    private static ChangeLog createChangeLog(int nodes) {
+        ChangeLog changes = new ChangeLog();
+        NodeId parentId = NodeId.randomId();
+        NodeState parent = new NodeState(
+                parentId, NameConstants.NT_UNSTRUCTURED,
+                RepositoryImpl.ROOT_NODE_ID, ItemState.STATUS_NEW, true);
+        for (int i = 0; i < nodes; i++) {
+            NodeId childId = NodeId.randomId();
+            parent.addChildNodeEntry(TEST, childId);
+            changes.added(new NodeState(
+                    childId, NameConstants.NT_UNSTRUCTURED, parentId,
+                    ItemState.STATUS_NEW, true));
+        }
+        changes.added(parent);
+        return changes;
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.integration.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jackrabbit.core.cache.AbstractCache;
+import org.apache.jackrabbit.core.cache.ConcurrentCache;
+import org.apache.jackrabbit.core.cache.TinyLFUCache;
+import org.apache.jackrabbit.core.id.NodeId;
+
+/**
+ * A micro benchmark that compares the throughput and hit rate of the
+ * {@link ConcurrentCache} and {@link TinyLFUCache} implementations under
+ * a read-heavy load with Zipf distributed keys. Run it as a Java
+ * application; the optional arguments are the number of threads, the
+ * number of distinct keys and the Zipf exponent.
+ */
+public class CacheBench {
+
+    private static final int DURATION = 5000;
+
+    private static final int ENTRY_SIZE = 1024;
+
+    /**
+     * Minimal adapter so that both cache classes can be driven by the
+     * same benchmark loop.
+     */
+    private interface Target {
+
+        AbstractCache getCache();
+
+        NodeId get(NodeId key);
+
+        void put(NodeId key, NodeId value);
+
+    }
+
+    /**
+     * Generates Zipf distributed ranks using a precomputed cumulative
+     * distribution and binary search.
+     */
+    private static class Zipf {
+
+        private final double[] cdf;
+
+        Zipf(int n, double exponent) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, exponent);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cdf[i] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            double p = random.nextDouble();
+            int low = 0;
+            int high = cdf.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cdf[mid] < p) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0
+            ? Integer.parseInt(args[0])
+            : Runtime.getRuntime().availableProcessors();
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        double exponent = args.length > 2 ? Double.parseDouble(args[2]) : 0.9;
+
+        NodeId[] ids = new NodeId[keys];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = NodeId.randomId();
+        }
+        Zipf zipf = new Zipf(keys, exponent);
+
+        for (int run = 0; run < 3; run++) {
+            // the first run is a warm-up
+            for (int t = 1; t <= threads; t *= 2) {
+                run(run, "ConcurrentCache", newConcurrentCache(), ids, zipf, t);
+                run(run, "TinyLFUCache", newTinyLFUCache(), ids, zipf, t);
+            }
+        }
+    }
+
+    private static Target newConcurrentCache() {
+        final ConcurrentCache<NodeId, NodeId> cache =
+            new ConcurrentCache<NodeId, NodeId>("bench");
+        return new Target() {
+            public AbstractCache getCache() {
+                return cache;
+            }
+            public NodeId get(NodeId key) {
+                return cache.get(key);
+            }
+            public void put(NodeId key, NodeId value) {
+                cache.put(key, value, ENTRY_SIZE);
+            }
+        };
+    }
+
+    private static Target newTinyLFUCache() {
+        final TinyLFUCache<NodeId, NodeId> cache =
+            new TinyLFUCache<NodeId, NodeId>("bench");
+        return new Target() {
+            public AbstractCache getCache() {
+                return cache;
+            }
+            public NodeId get(NodeId key) {
+                return cache.get(key);
+            }
+            public void put(NodeId key, NodeId value) {
+                cache.put(key, value, ENTRY_SIZE);
+            }
+        };
+    }
+
+    private static void run(
+            int run, String name, final Target target, final NodeId[] ids,
+            final Zipf zipf, int threadCount) throws InterruptedException {
+        // room for 10% of the keys
+        target.getCache().setMaxMemorySize((long) ids.length * ENTRY_SIZE / 10);
+
+        final AtomicLong operations = new AtomicLong();
+        final long stop = System.currentTimeMillis() + DURATION;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    long count = 0;
+                    while ((count & 0xff) != 0
+                            || System.currentTimeMillis() < stop) {
+                        NodeId key = ids[zipf.next(random)];
+                        if (target.get(key) == null) {
+                            target.put(key, key);
+                        }
+                        count++;
+                    }
+                    operations.addAndGet(count);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (run > 0) {
+            AbstractCache cache = target.getCache();
+            long total = cache.getTotalAccessCount();
+            long hits = total - cache.getMissCount();
+            System.out.println(
+                    "run: " + run + "; cache: " + name
+                    + "; threads: " + threadCount
+                    + "; ops/s: " + operations.get() * 1000 / DURATION
+                    + "; hit rate: " + (hits * 100 / Math.max(total, 1)) + "%");
+        }
+    }
+
+}
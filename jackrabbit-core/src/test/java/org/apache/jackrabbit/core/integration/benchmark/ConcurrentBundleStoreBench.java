@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.integration.benchmark;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.NamespaceRegistryImpl;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.PMContext;
+import org.apache.jackrabbit.core.persistence.pool.BundleDbPersistenceManager;
+import org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager;
+import org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.util.db.ConnectionFactory;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
+
+/**
+ * A benchmark that measures the throughput of multiple threads storing
+ * disjoint change logs in the H2 and Derby bundle persistence managers,
+ * with and without the <code>concurrentStore</code> option. Run it as a
+ * Java application; the optional argument is the maximum number of threads.
+ */
+public class ConcurrentBundleStoreBench {
+
+    private static final int DURATION = 5000;
+
+    private static final Name TEST =
+        NameFactoryImpl.getInstance().create("", "test");
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        for (int run = 0; run < 2; run++) {
+            // the first run is a warm-up
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                for (String concurrent : new String[] { "false", "true" }) {
+                    run(run, "h2", concurrent, threads);
+                    run(run, "derby", concurrent, threads);
+                }
+            }
+        }
+    }
+
+    private static void run(
+            int run, String database, String concurrent, int threadCount)
+            throws Exception {
+        File directory = File.createTempFile("jackrabbit-bench-", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            BundleDbPersistenceManager manager;
+            if ("h2".equals(database)) {
+                manager = new H2PersistenceManager();
+                manager.setDriver("org.h2.Driver");
+                manager.setUrl("jdbc:h2:" + new File(directory, "db").getPath());
+            } else {
+                manager = new DerbyPersistenceManager();
+                manager.setDriver("org.apache.derby.jdbc.EmbeddedDriver");
+                manager.setUrl("jdbc:derby:"
+                        + new File(directory, "db").getPath() + ";create=true");
+            }
+            manager.setConnectionFactory(new ConnectionFactory());
+            manager.setConcurrentStore(concurrent);
+            manager.init(new PMContext(
+                    directory,
+                    new MemoryFileSystem(),
+                    RepositoryImpl.ROOT_NODE_ID,
+                    new NamespaceRegistryImpl(new MemoryFileSystem()),
+                    null,
+                    null,
+                    new RepositoryStatisticsImpl()));
+            try {
+                long saves = store(manager, threadCount);
+                if (run > 0) {
+                    System.out.println(
+                            "database: " + database
+                            + "; concurrentStore: " + concurrent
+                            + "; threads: " + threadCount
+                            + "; saves/s: " + saves * 1000 / DURATION);
+                }
+            } finally {
+                manager.close();
+            }
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Lets each thread repeatedly store a change log that adds a parent
+     * node with ten child nodes.
+     *
+     * @return number of stored change logs
+     */
+    private static long store(
+            final BundleDbPersistenceManager manager, int threadCount)
+            throws Exception {
+        final AtomicLong saves = new AtomicLong();
+        final long stop = System.currentTimeMillis() + DURATION;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < stop) {
+                            manager.store(createChangeLog());
+                            saves.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return saves.get();
+    }
+
+    private static ChangeLog createChangeLog() {
+        ChangeLog changes = new ChangeLog();
+        NodeId parentId = NodeId.randomId();
+        NodeState parent = new NodeState(
+                parentId, NameConstants.NT_UNSTRUCTURED,
+                RepositoryImpl.ROOT_NODE_ID, ItemState.STATUS_NEW, true);
+        for (int i = 0; i < 10; i++) {
+            NodeId childId = NodeId.randomId();
+            parent.addChildNodeEntry(TEST, childId);
+            changes.added(new NodeState(
+                    childId, NameConstants.NT_UNSTRUCTURED, parentId,
+                    ItemState.STATUS_NEW, true));
+        }
+        changes.added(parent);
+        return changes;
+    }
+
+}
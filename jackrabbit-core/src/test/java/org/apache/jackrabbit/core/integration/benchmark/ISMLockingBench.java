@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.integration.benchmark;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+import org.apache.jackrabbit.core.state.DefaultISMLocking;
+import org.apache.jackrabbit.core.state.FineGrainedISMLocking;
+import org.apache.jackrabbit.core.state.StripedISMLocking;
+
+/**
+ * A benchmark that measures the write throughput of a repository with the
+ * different item state locking strategies. Each thread uses its own
+ * session to repeatedly add nodes to its own subtree, so the change logs
+ * of the threads never intersect. Run it as a Java application; the
+ * optional argument is the maximum number of threads.
+ */
+public class ISMLockingBench {
+
+    private static final int DURATION = 5000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        String[] lockings = new String[] {
+                DefaultISMLocking.class.getName(),
+                FineGrainedISMLocking.class.getName(),
+                StripedISMLocking.class.getName() };
+        for (int run = 0; run < 2; run++) {
+            // the first run is a warm-up
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                for (String locking : lockings) {
+                    run(run, locking, threads);
+                }
+            }
+        }
+    }
+
+    private static void run(int run, String locking, int threadCount)
+            throws Exception {
+        File directory = File.createTempFile("jackrabbit-bench-", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            RepositoryImpl repository =
+                RepositoryImpl.create(createConfig(directory, locking));
+            try {
+                // initialize the security workspace before the concurrent logins
+                login(repository).logout();
+                long saves = write(repository, threadCount);
+                if (run > 0) {
+                    System.out.println(
+                            "locking: " + locking.substring(
+                                    locking.lastIndexOf('.') + 1)
+                            + "; threads: " + threadCount
+                            + "; saves/s: " + saves * 1000 / DURATION);
+                }
+            } finally {
+                repository.shutdown();
+            }
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Creates a configuration based on the default repository
+     * configuration, with the given locking strategy and concurrent
+     * stores enabled in the workspace persistence manager.
+     */
+    private static RepositoryConfig createConfig(
+            File directory, String locking) throws Exception {
+        InputStream input =
+            RepositoryImpl.class.getResourceAsStream("repository.xml");
+        String xml;
+        try {
+            xml = IOUtils.toString(input, "UTF-8");
+        } finally {
+            input.close();
+        }
+        xml = xml.replace(
+                "<Workspace name=\"${wsp.name}\">",
+                "<Workspace name=\"${wsp.name}\">"
+                + "<ISMLocking class=\"" + locking + "\"/>");
+        xml = xml.replaceFirst(
+                "<param name=\"schemaObjectPrefix\" value=\"\\$\\{wsp.name\\}_\"/>",
+                "$0<param name=\"concurrentStore\" value=\"true\"/>");
+        File file = new File(directory, "repository.xml");
+        FileUtils.writeStringToFile(file, xml, "UTF-8");
+        return RepositoryConfig.create(file, directory);
+    }
+
+    private static Session login(RepositoryImpl repository)
+            throws RepositoryException {
+        return repository.login(
+                new SimpleCredentials("admin", "admin".toCharArray()));
+    }
+
+    /**
+     * Lets each thread repeatedly save ten new nodes below its own
+     * subtree.
+     *
+     * @return number of saves
+     */
+    private static long write(final RepositoryImpl repository, int threadCount)
+            throws Exception {
+        final AtomicLong saves = new AtomicLong();
+        final long stop = System.currentTimeMillis() + DURATION;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            final String name = "thread" + i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Session session = login(repository);
+                        try {
+                            Node root = session.getRootNode().addNode(name);
+                            session.save();
+                            int n = 0;
+                            while (System.currentTimeMillis() < stop) {
+                                Node parent = root.addNode("node" + n++);
+                                for (int j = 0; j < 10; j++) {
+                                    parent.addNode("child" + j);
+                                }
+                                session.save();
+                                saves.incrementAndGet();
+                            }
+                        } finally {
+                            session.logout();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return saves.get();
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.integration.benchmark;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.RowIterator;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+import org.apache.jackrabbit.core.query.lucene.join.QueryEngine;
+
+/**
+ * A benchmark that measures the latency of typical two-selector JCR-SQL2
+ * joins, once reading the first ten rows and once reading all rows. Run it
+ * as a Java application; the optional argument is the number of folders,
+ * each of which gets one hundred children. To compare with the joins that
+ * merge the rows of both selectors, run it again with
+ * <code>-D{@value QueryEngine#INDEX_JOIN_SYSTEM_PROPERTY}=false</code>.
+ */
+public class JoinBench {
+
+    private static final String[] QUERIES = {
+        // child node join, selective parent
+        "SELECT * FROM [nt:unstructured] AS p"
+            + " INNER JOIN [nt:unstructured] AS c ON ISCHILDNODE(c, p)"
+            + " WHERE p.[kind] = 'folder' AND p.[number] < 10",
+        // descendant node join, selective descendant
+        "SELECT * FROM [nt:unstructured] AS p"
+            + " INNER JOIN [nt:unstructured] AS c ON ISDESCENDANTNODE(c, p)"
+            + " WHERE p.[kind] = 'folder' AND c.[number] = 42",
+        // equi join on a reference
+        "SELECT * FROM [nt:unstructured] AS c"
+            + " INNER JOIN [mix:referenceable] AS p ON c.[folder] = p.[jcr:uuid]"
+            + " WHERE c.[number] < 100",
+        // same node join
+        "SELECT * FROM [nt:unstructured] AS a"
+            + " INNER JOIN [mix:referenceable] AS b ON ISSAMENODE(a, b)"
+            + " WHERE a.[kind] = 'folder'",
+        // outer join, most rows without a match
+        "SELECT * FROM [nt:unstructured] AS c"
+            + " LEFT OUTER JOIN [nt:unstructured] AS p ON ISCHILDNODE(c, p)"
+            + " WHERE c.[number] = 7" };
+
+    private static final int QUERY_RUNS = 50;
+
+    public static void main(String[] args) throws Exception {
+        int folders = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        File directory = File.createTempFile("jackrabbit-bench-", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            RepositoryImpl repository = RepositoryImpl.create(
+                    RepositoryConfig.install(directory));
+            try {
+                Session session = repository.login(
+                        new SimpleCredentials("admin", "admin".toCharArray()));
+                try {
+                    write(session, folders);
+                    QueryManager qm = session.getWorkspace().getQueryManager();
+                    for (int run = 0; run < 2; run++) {
+                        // the first run is a warm-up
+                        for (String statement : QUERIES) {
+                            for (long limit : new long[] {10, -1}) {
+                                long[] times = query(qm, statement, limit);
+                                if (run > 0) {
+                                    System.out.println(
+                                            "limit: " + limit
+                                            + "; p50: " + percentile(times, 50) + " us"
+                                            + "; p99: " + percentile(times, 99) + " us"
+                                            + "; query: " + statement);
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    session.logout();
+                }
+            } finally {
+                repository.shutdown();
+            }
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Creates the given number of referenceable folders with one hundred
+     * children each. Every child has a random number and a reference to
+     * its folder.
+     */
+    private static void write(Session session, int folders)
+            throws RepositoryException {
+        Random random = new Random(1);
+        Node root = session.getRootNode().addNode("bench");
+        for (int i = 0; i < folders; i++) {
+            Node folder = root.addNode("folder" + i);
+            folder.addMixin(NodeType.MIX_REFERENCEABLE);
+            folder.setProperty("kind", "folder");
+            folder.setProperty("number", i);
+            for (int j = 0; j < 100; j++) {
+                Node node = folder.addNode("node" + j);
+                node.setProperty("number", random.nextInt(1000));
+                node.setProperty("folder", folder);
+            }
+            session.save();
+        }
+    }
+
+    /**
+     * Executes the query repeatedly and reads the rows.
+     *
+     * @return the execution times in microseconds
+     */
+    private static long[] query(QueryManager qm, String statement, long limit)
+            throws RepositoryException {
+        long[] times = new long[QUERY_RUNS];
+        for (int i = 0; i < times.length; i++) {
+            long start = System.nanoTime();
+            Query query = qm.createQuery(statement, Query.JCR_SQL2);
+            if (limit >= 0) {
+                query.setLimit(limit);
+            }
+            RowIterator it = query.execute().getRows();
+            while (it.hasNext()) {
+                it.nextRow();
+            }
+            times[i] = (System.nanoTime() - start) / 1000;
+        }
+        return times;
+    }
+
+    private static long percentile(long[] times, int percentile) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1,
+                sorted.length * percentile / 100)];
+    }
+
+}
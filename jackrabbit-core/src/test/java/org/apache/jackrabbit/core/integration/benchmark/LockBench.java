@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.integration.benchmark;
+
+import java.io.File;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.lock.LockManager;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+
+/**
+ * A benchmark that measures the throughput of open-scoped lock and unlock
+ * operations while a large number of other open-scoped locks is held, and
+ * the time it takes to restart the repository with these locks. Run it as
+ * a Java application; the optional arguments are the numbers of held locks.
+ */
+public class LockBench {
+
+    private static final int OPERATIONS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = new int[] { 10000, 100000 };
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int count : counts) {
+            run(count);
+        }
+    }
+
+    private static void run(int count) throws Exception {
+        File directory = File.createTempFile("jackrabbit-bench-", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            RepositoryImpl repository =
+                RepositoryImpl.create(RepositoryConfig.install(directory));
+            try {
+                Session session = login(repository);
+                Node root = session.getRootNode().addNode("bench");
+                session.save();
+                LockManager manager =
+                    session.getWorkspace().getLockManager();
+
+                for (int i = 0; i < count; i++) {
+                    if (i % 1000 == 0) {
+                        root.addNode("held" + i / 1000);
+                    }
+                    root.getNode("held" + i / 1000).addNode("n" + i)
+                        .addMixin(JcrConstants.MIX_LOCKABLE);
+                    if (i % 1000 == 999) {
+                        session.save();
+                    }
+                }
+                for (int i = 0; i < OPERATIONS; i++) {
+                    root.addNode("test" + i).addMixin(JcrConstants.MIX_LOCKABLE);
+                }
+                session.save();
+
+                for (int i = 0; i < count; i++) {
+                    manager.lock(
+                            "/bench/held" + i / 1000 + "/n" + i,
+                            false, false, Long.MAX_VALUE, null);
+                }
+
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    String path = "/bench/test" + i;
+                    manager.lock(path, false, false, Long.MAX_VALUE, null);
+                    manager.unlock(path);
+                }
+                long time = Math.max(System.currentTimeMillis() - start, 1);
+                System.out.println(
+                        "held locks: " + count
+                        + "; lock+unlock/s: " + OPERATIONS * 1000L / time);
+                session.logout();
+            } finally {
+                repository.shutdown();
+            }
+
+            long start = System.currentTimeMillis();
+            repository = RepositoryImpl.create(RepositoryConfig.install(directory));
+            try {
+                Session session = login(repository);
+                boolean locked = session.getNode("/bench/held0/n0").isLocked();
+                session.logout();
+                System.out.println(
+                        "held locks: " + count
+                        + "; restart with locks (ms): "
+                        + (System.currentTimeMillis() - start)
+                        + "; locks restored: " + locked);
+            } finally {
+                repository.shutdown();
+            }
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    private static Session login(RepositoryImpl repository) throws Exception {
+        return repository.login(
+                new SimpleCredentials("admin", "admin".toCharArray()));
+    }
+
+}
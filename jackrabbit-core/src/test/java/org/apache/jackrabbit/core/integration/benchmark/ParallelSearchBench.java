@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.integration.benchmark;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+
+/**
+ * A benchmark that measures the latency of sorted queries on an index
+ * with many segments, with the segments scored sequentially and
+ * concurrently. The index is not optimized, so that every batch of saved
+ * nodes stays in its own segment. Run it as a Java application; the
+ * optional arguments are the number of search threads and the number of
+ * nodes.
+ */
+public class ParallelSearchBench {
+
+    private static final String[] WORDS = {
+        "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing",
+        "elit", "sed", "do", "eiusmod", "tempor", "incididunt", "labore" };
+
+    private static final String[] QUERIES = {
+        "SELECT * FROM [nt:unstructured] AS n WHERE CONTAINS(n.*, 'lorem') "
+            + "ORDER BY SCORE() DESC",
+        "SELECT * FROM [nt:unstructured] AS n WHERE CONTAINS(n.*, 'dolor OR amet') "
+            + "ORDER BY n.[number]",
+        "SELECT * FROM [nt:unstructured] AS n WHERE n.[number] > 500 "
+            + "ORDER BY n.[text]" };
+
+    private static final int QUERY_RUNS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        for (int run = 0; run < 2; run++) {
+            // the first run is a warm-up
+            run(run, 0, nodes);
+            run(run, threads, nodes);
+        }
+    }
+
+    private static void run(int run, int threads, int nodes) throws Exception {
+        File directory = File.createTempFile("jackrabbit-bench-", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            RepositoryImpl repository =
+                RepositoryImpl.create(createConfig(directory, threads));
+            try {
+                Session session = repository.login(
+                        new SimpleCredentials("admin", "admin".toCharArray()));
+                try {
+                    write(session, nodes);
+                    QueryManager qm = session.getWorkspace().getQueryManager();
+                    for (String statement : QUERIES) {
+                        long[] times = query(qm, statement);
+                        if (run > 0) {
+                            System.out.println(
+                                    "threads: " + threads
+                                    + "; p50: " + percentile(times, 50) + " us"
+                                    + "; p99: " + percentile(times, 99) + " us"
+                                    + "; query: " + statement);
+                        }
+                    }
+                } finally {
+                    session.logout();
+                }
+            } finally {
+                repository.shutdown();
+            }
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Creates a configuration based on the default repository
+     * configuration, with the given number of search threads and a merge
+     * factor that keeps the index segments apart.
+     */
+    private static RepositoryConfig createConfig(File directory, int threads)
+            throws Exception {
+        InputStream input =
+            RepositoryImpl.class.getResourceAsStream("repository.xml");
+        String xml;
+        try {
+            xml = IOUtils.toString(input, "UTF-8");
+        } finally {
+            input.close();
+        }
+        xml = xml.replace(
+                "<param name=\"path\" value=\"${wsp.home}/index\"/>",
+                "<param name=\"path\" value=\"${wsp.home}/index\"/>"
+                + "<param name=\"searchThreads\" value=\"" + threads + "\"/>"
+                + "<param name=\"mergeFactor\" value=\"1000\"/>"
+                + "<param name=\"respectDocumentOrder\" value=\"false\"/>");
+        File file = new File(directory, "repository.xml");
+        FileUtils.writeStringToFile(file, xml, "UTF-8");
+        return RepositoryConfig.create(file, directory);
+    }
+
+    /**
+     * Saves the nodes in batches of one thousand, with random text and a
+     * random number.
+     */
+    private static void write(Session session, int nodes)
+            throws RepositoryException {
+        Random random = new Random(1);
+        Node root = session.getRootNode().addNode("bench");
+        Node parent = root;
+        for (int i = 0; i < nodes; i++) {
+            if (i % 1000 == 0) {
+                session.save();
+                parent = root.addNode("batch" + i);
+            }
+            Node node = parent.addNode("node" + i);
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 20; j++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            node.setProperty("text", text.toString());
+            node.setProperty("number", random.nextInt(1000));
+        }
+        session.save();
+    }
+
+    /**
+     * Executes the query repeatedly and reads the first ten rows.
+     *
+     * @return the execution times in microseconds
+     */
+    private static long[] query(QueryManager qm, String statement)
+            throws RepositoryException {
+        long[] times = new long[QUERY_RUNS];
+        for (int i = 0; i < times.length; i++) {
+            long start = System.nanoTime();
+            Query query = qm.createQuery(statement, Query.JCR_SQL2);
+            query.setLimit(10);
+            NodeIterator it = query.execute().getNodes();
+            while (it.hasNext()) {
+                it.nextNode();
+            }
+            times[i] = (System.nanoTime() - start) / 1000;
+        }
+        return times;
+    }
+
+    private static long percentile(long[] times, int percentile) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1,
+                sorted.length * percentile / 100)];
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.lock;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.id.NodeId;
+
+/**
+ * Test cases for the {@link LockJournal} class.
+ */
+public class LockJournalTest extends TestCase {
+
+    private static class TestLockInfo extends LockInfo {
+
+        public TestLockInfo(long timeoutHint) {
+            super(NodeId.randomId(), false, false, "test", timeoutHint);
+        }
+
+    }
+
+    private FileSystem fs;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        fs = new MemoryFileSystem();
+        fs.init();
+    }
+
+    protected void tearDown() throws Exception {
+        fs.close();
+        super.tearDown();
+    }
+
+    /**
+     * Checks that the journal is replayed on top of the snapshot.
+     */
+    public void testReplay() throws Exception {
+        LockJournal journal = new LockJournal(fs);
+        assertTrue(journal.load().isEmpty());
+
+        LockInfo a = new TestLockInfo(Long.MAX_VALUE);
+        LockInfo b = new TestLockInfo(60);
+        LockInfo c = new TestLockInfo(Long.MAX_VALUE);
+        journal.lockAdded(a);
+        journal.lockAdded(b);
+        journal.save();
+        journal.compact();
+        journal.lockAdded(c);
+        journal.save();
+        journal.lockRemoved(a.getLockToken());
+        journal.save();
+        assertEquals(2, journal.getEntryCount());
+
+        Collection<String> lines = new LockJournal(fs).load();
+        assertEquals(2, lines.size());
+        assertTrue(lines.contains(b.getLockToken() + ",60"));
+        assertTrue(lines.contains(c.getLockToken()));
+
+        // the snapshot alone contains the old state
+        fs.deleteFolder("/locks.journal");
+        lines = new LockJournal(fs).load();
+        assertEquals(2, lines.size());
+        assertTrue(lines.contains(a.getLockToken()));
+    }
+
+    /**
+     * Checks that the snapshot of older versions is read, and that an
+     * interrupted compaction does not lose changes.
+     */
+    public void testCompatibility() throws Exception {
+        LockInfo a = new TestLockInfo(Long.MAX_VALUE);
+        LockInfo b = new TestLockInfo(Long.MAX_VALUE);
+        OutputStream out = fs.getOutputStream("/locks");
+        out.write((a.getLockToken() + "\n" + b.getLockToken() + ",10\n").getBytes());
+        out.close();
+
+        LockJournal journal = new LockJournal(fs);
+        assertEquals(2, journal.load().size());
+        journal.lockRemoved(b.getLockToken());
+        journal.save();
+
+        // compacted snapshot, but the journal entry was not deleted
+        out = fs.getOutputStream("/locks");
+        out.write((a.getLockToken() + "\n").getBytes());
+        out.close();
+
+        Collection<String> lines = new LockJournal(fs).load();
+        assertEquals(1, lines.size());
+        assertTrue(lines.contains(a.getLockToken()));
+    }
+
+    /**
+     * Checks that the journal is compacted once it gets too large.
+     */
+    public void testCompaction() throws Exception {
+        LockJournal journal = new LockJournal(fs);
+        journal.load();
+        List<LockInfo> infos = new ArrayList<LockInfo>();
+        for (int i = 0; i < LockJournal.MIN_COMPACT_ENTRIES - 1; i++) {
+            LockInfo info = new TestLockInfo(Long.MAX_VALUE);
+            infos.add(info);
+            journal.lockAdded(info);
+            journal.save();
+        }
+        assertEquals(LockJournal.MIN_COMPACT_ENTRIES - 1, journal.getEntryCount());
+        journal.lockRemoved(infos.remove(0).getLockToken());
+        journal.save();
+        assertEquals(0, journal.getEntryCount());
+        assertEquals(0, fs.listFiles("/locks.journal").length);
+
+        journal = new LockJournal(fs);
+        Collection<String> lines = journal.load();
+        assertEquals(infos.size(), lines.size());
+        for (LockInfo info : infos) {
+            assertTrue(lines.contains(info.getLockToken()));
+        }
+        assertEquals(0, journal.getEntryCount());
+    }
+
+}
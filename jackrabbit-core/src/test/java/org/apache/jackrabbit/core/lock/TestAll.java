@@ -38,6 +38,7 @@ public class TestAll extends TestCase {
         suite.addTestSuite(ConcurrentLockingTest.class);
         suite.addTestSuite(ConcurrentLockingWithTransactionsTest.class);
         suite.addTestSuite(ExtendedLockingTest.class);
+        suite.addTestSuite(LockJournalTest.class);
         suite.addTestSuite(LockTimeoutTest.class);
 
         return suite;
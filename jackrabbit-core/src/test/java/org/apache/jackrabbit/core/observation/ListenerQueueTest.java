@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.observation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.apache.jackrabbit.api.stats.TimeSeries;
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.spi.commons.name.PathFactoryImpl;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
+import org.apache.jackrabbit.test.AbstractJCRTest;
+
+/**
+ * Tests the delivery of events with per-listener queues.
+ */
+public class ListenerQueueTest extends AbstractJCRTest {
+
+    private static final int EVENTS = 50;
+
+    private RepositoryStatisticsImpl statistics;
+
+    private ObservationDispatcher dispatcher;
+
+    private ObservationManagerImpl obsMgr;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        statistics = new RepositoryStatisticsImpl();
+        dispatcher = new ObservationDispatcher(statistics, 2, 10);
+        obsMgr = new ObservationManagerImpl(
+                dispatcher, (SessionImpl) superuser, null);
+    }
+
+    protected void tearDown() throws Exception {
+        dispatcher.dispose();
+        dispatcher = null;
+        obsMgr = null;
+        statistics = null;
+        super.tearDown();
+    }
+
+    public void testSlowListener() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new SlowListener(release);
+        RecordingListener fast = new RecordingListener();
+        addListener(slow);
+        addListener(fast);
+
+        for (int i = 0; i < EVENTS; i++) {
+            dispatch(i);
+        }
+
+        // the fast listener is not delayed by the blocked one
+        assertTrue(fast.await(EVENTS, 10000));
+        assertOrdered(fast.getNames());
+        assertTrue(slow.getNames().size() < EVENTS);
+
+        assertTrue(getCounter("OBSERVATION_QUEUE_DEPTH", slow) > 0);
+        assertTrue(getCounter("OBSERVATION_QUEUE_OVERFLOW", slow) > 0);
+        assertEquals(0, getCounter("OBSERVATION_QUEUE_DEPTH", fast));
+
+        release.countDown();
+        assertTrue(slow.await(EVENTS, 10000));
+        assertOrdered(slow.getNames());
+        assertEquals(0, getCounter("OBSERVATION_QUEUE_DEPTH", slow));
+    }
+
+    /**
+     * Listeners of the same class have counters of their own.
+     */
+    public void testCountersPerListener() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new SlowListener(release);
+        RecordingListener other = new SlowListener(new CountDownLatch(0));
+        addListener(slow);
+        addListener(other);
+        for (int i = 0; i < EVENTS; i++) {
+            dispatch(i);
+        }
+        assertTrue(other.await(EVENTS, 10000));
+        assertTrue(getCounter("OBSERVATION_QUEUE_DEPTH", slow) > 0);
+        assertEquals(0, getCounter("OBSERVATION_QUEUE_DEPTH", other));
+        release.countDown();
+        assertTrue(slow.await(EVENTS, 10000));
+    }
+
+    /**
+     * Only writers whose events are queued for an overloaded listener are
+     * delayed.
+     */
+    public void testOverloadedListener() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new SlowListener(release);
+        // the events of dispatch() are below the root node
+        obsMgr.addEventListener(
+                slow, Event.NODE_REMOVED, "/other", true, null, null, false);
+        for (int i = 0; i < EVENTS; i++) {
+            dispatch(i);
+        }
+        assertFalse(dispatcher.isEventQueueOverloaded());
+        assertEquals(0, getCounter("OBSERVATION_QUEUE_DEPTH", slow));
+
+        addListener(slow);
+        for (int i = 0; i < EVENTS; i++) {
+            dispatch(i);
+        }
+        assertTrue(dispatcher.isEventQueueOverloaded());
+        release.countDown();
+        assertTrue(slow.await(EVENTS, 10000));
+        assertFalse(dispatcher.isEventQueueOverloaded());
+    }
+
+    public void testRemoveListener() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new SlowListener(release);
+        addListener(slow);
+        dispatch(0);
+        obsMgr.removeEventListener(slow);
+        dispatch(1);
+        release.countDown();
+
+        // events queued before the listener was removed are delivered
+        assertTrue(slow.await(1, 10000));
+        dispatcher.dispose();
+        assertEquals(Collections.singletonList("n0"), slow.getNames());
+
+        // the counters of the listener are removed
+        String name = ObservationDispatcher.getStatisticsName(slow);
+        for (Map.Entry<String, TimeSeries> entry : statistics) {
+            assertFalse(entry.getKey(), entry.getKey().contains(name));
+        }
+    }
+
+    public void testDisposeDeliversQueuedEvents() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        addListener(listener);
+        for (int i = 0; i < EVENTS; i++) {
+            dispatch(i);
+        }
+        dispatcher.dispose();
+        assertEquals(EVENTS, listener.getNames().size());
+        assertOrdered(listener.getNames());
+    }
+
+    private void addListener(EventListener listener)
+            throws RepositoryException {
+        obsMgr.addEventListener(
+                listener, Event.NODE_REMOVED, "/", true, null, null, false);
+    }
+
+    private void dispatch(int i) {
+        Name name = NameFactoryImpl.getInstance().create("", "n" + i);
+        EventStateCollection events = obsMgr.createEventStateCollection();
+        events.addAll(Collections.singletonList(EventState.childNodeRemoved(
+                NodeId.randomId(), PathFactoryImpl.getInstance().getRootPath(),
+                NodeId.randomId(), PathFactoryImpl.getInstance().create(name),
+                NameConstants.NT_UNSTRUCTURED, Collections.<Name>emptySet(),
+                superuser)));
+        events.prepare();
+        events.dispatch();
+    }
+
+    private long getCounter(String type, EventListener listener) {
+        return statistics.getCounter(type + "["
+                + ObservationDispatcher.getStatisticsName(listener) + "]",
+                false).get();
+    }
+
+    private static void assertOrdered(List<String> names) {
+        for (int i = 0; i < names.size(); i++) {
+            assertEquals("n" + i, names.get(i));
+        }
+    }
+
+    private static class RecordingListener implements EventListener {
+
+        private final List<String> names = new ArrayList<String>();
+
+        public void onEvent(EventIterator events) {
+            while (events.hasNext()) {
+                try {
+                    String path = events.nextEvent().getPath();
+                    synchronized (this) {
+                        names.add(path.substring(path.lastIndexOf('/') + 1));
+                        notifyAll();
+                    }
+                } catch (RepositoryException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        synchronized List<String> getNames() {
+            return new ArrayList<String>(names);
+        }
+
+        synchronized boolean await(int count, long timeout)
+                throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            while (names.size() < count) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+            return true;
+        }
+
+    }
+
+    private static class SlowListener extends RecordingListener {
+
+        private final CountDownLatch release;
+
+        SlowListener(CountDownLatch release) {
+            this.release = release;
+        }
+
+        public void onEvent(EventIterator events) {
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            super.onEvent(events);
+        }
+
+    }
+
+}
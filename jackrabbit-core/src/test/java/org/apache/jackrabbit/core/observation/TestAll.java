@@ -42,6 +42,7 @@ public class TestAll extends TestCase {
         suite.addTestSuite(MoveInPlaceTest.class);
         suite.addTestSuite(ShareableNodesTest.class);
         suite.addTestSuite(WarningOnSaveWithNotificationThreadTest.class);
+        suite.addTestSuite(ListenerQueueTest.class);
 
         return suite;
     }
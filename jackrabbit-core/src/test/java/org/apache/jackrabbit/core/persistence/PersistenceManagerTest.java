@@ -16,8 +16,12 @@
  */
 package org.apache.jackrabbit.core.persistence;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import javax.jcr.PropertyType;
 
@@ -26,15 +30,23 @@ import junit.framework.TestCase;
 import org.apache.commons.io.FileUtils;
 import org.apache.jackrabbit.core.NamespaceRegistryImpl;
 import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.data.DataIdentifier;
+import org.apache.jackrabbit.core.data.DataStore;
+import org.apache.jackrabbit.core.data.FileDataStore;
+import org.apache.jackrabbit.core.fs.FileSystem;
 import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.bundle.AbstractBundlePersistenceManager;
 import org.apache.jackrabbit.core.persistence.mem.InMemBundlePersistenceManager;
 import org.apache.jackrabbit.core.persistence.mem.InMemPersistenceManager;
 import org.apache.jackrabbit.core.persistence.obj.ObjectPersistenceManager;
+import org.apache.jackrabbit.core.persistence.util.BinaryReferenceIndex;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
 import org.apache.jackrabbit.core.persistence.xml.XMLPersistenceManager;
 import org.apache.jackrabbit.core.state.ChangeLog;
 import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
 import org.apache.jackrabbit.core.state.NodeReferences;
 import org.apache.jackrabbit.core.state.NodeState;
@@ -57,6 +69,8 @@ public class PersistenceManagerTest extends TestCase {
 
     private static final PropertyId PROPERTY_ID = new PropertyId(NODE_ID, TEST);
 
+    private static final int BINARY_SIZE = 0x2000;
+
     private File directory;
 
     private File database;
@@ -118,16 +132,392 @@ public class PersistenceManagerTest extends TestCase {
         assertPersistenceManager(manager);
     }
 
+    public void testH2PoolPersistenceManagerWithOffHeapCache()
+            throws Exception {
+        org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager();
+        manager.setDriver("org.h2.Driver");
+        manager.setUrl("jdbc:h2:mem:" + database.getPath());
+        manager.setConnectionFactory(new ConnectionFactory());
+        // disable the on-heap cache so that all reads go to the off-heap one
+        manager.setBundleCacheSize("0");
+        manager.setOffHeapBundleCacheSize("16");
+        assertPersistenceManager(manager);
+    }
+
+    public void testDerbyPoolPersistenceManagerWithoutBundleCache()
+            throws Exception {
+        org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager();
+        manager.setDriver("org.apache.derby.jdbc.EmbeddedDriver");
+        manager.setUrl("jdbc:derby:" + database.getPath() + ";create=true");
+        manager.setConnectionFactory(new ConnectionFactory());
+        // make all bundle reads, including bulk loads, go to the database
+        manager.setBundleCacheSize("0");
+        assertPersistenceManager(manager);
+    }
+
+    public void testDerbyPoolPersistenceManagerWithConcurrentStore()
+            throws Exception {
+        org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager();
+        manager.setDriver("org.apache.derby.jdbc.EmbeddedDriver");
+        manager.setUrl("jdbc:derby:" + database.getPath() + ";create=true");
+        manager.setConnectionFactory(new ConnectionFactory());
+        manager.setConcurrentStore("true");
+        assertPersistenceManager(manager);
+        assertConcurrentStore(manager);
+    }
+
+    public void testH2PoolPersistenceManagerWithConcurrentStore()
+            throws Exception {
+        org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager();
+        manager.setDriver("org.h2.Driver");
+        manager.setUrl("jdbc:h2:mem:" + database.getPath());
+        manager.setConnectionFactory(new ConnectionFactory());
+        manager.setConcurrentStore("true");
+        assertPersistenceManager(manager);
+        assertConcurrentStore(manager);
+    }
+
+    public void testDerbyPoolPersistenceManagerWithBatchSize()
+            throws Exception {
+        org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager();
+        manager.setDriver("org.apache.derby.jdbc.EmbeddedDriver");
+        manager.setUrl("jdbc:derby:" + database.getPath() + ";create=true");
+        manager.setConnectionFactory(new ConnectionFactory());
+        manager.setBatchSize("2");
+        assertPersistenceManager(manager);
+    }
+
+    public void testH2PoolPersistenceManagerWithBatchSize()
+            throws Exception {
+        org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.H2PersistenceManager();
+        manager.setDriver("org.h2.Driver");
+        manager.setUrl("jdbc:h2:mem:" + database.getPath());
+        manager.setConnectionFactory(new ConnectionFactory());
+        manager.setBatchSize("2");
+        manager.setConcurrentStore("true");
+        assertPersistenceManager(manager);
+        assertConcurrentStore(manager);
+    }
+
+    public void testDerbyPoolPersistenceManagerWithBinaryReferenceIndex()
+            throws Exception {
+        FileDataStore store = new FileDataStore();
+        store.init(new File(directory, "datastore").getPath());
+        FileSystem fs = new MemoryFileSystem();
+        fs.init();
+        DataIdentifier a = store.addRecord(
+                new ByteArrayInputStream(new byte[200])).getIdentifier();
+        DataIdentifier b = store.addRecord(
+                new ByteArrayInputStream(new byte[300])).getIdentifier();
+
+        NodeState node = new NodeState(
+                NODE_ID, TEST, RepositoryImpl.ROOT_NODE_ID,
+                ItemState.STATUS_NEW, true);
+        node.addPropertyName(TEST);
+        PropertyState property =
+            new PropertyState(PROPERTY_ID, ItemState.STATUS_NEW, true);
+        property.setType(PropertyType.BINARY);
+        property.setMultiValued(true);
+        property.setValues(new InternalValue[] {
+                InternalValue.create(store, "dataStore:" + a),
+                InternalValue.create(store, "dataStore:" + a) });
+
+        AbstractBundlePersistenceManager manager = createBinaryReferenceIndexManager();
+        manager.init(createContext(fs, store));
+        try {
+            ChangeLog create = new ChangeLog();
+            create.added(node);
+            create.added(property);
+            manager.store(create);
+
+            // the index is built on first use
+            BinaryReferenceIndex index = manager.getBinaryReferences();
+            assertTrue(index.isReferenced(a.toString()));
+            assertFalse(index.isReferenced(b.toString()));
+
+            // then maintained incrementally
+            property.setValues(new InternalValue[] {
+                    InternalValue.create(store, "dataStore:" + a),
+                    InternalValue.create(store, "dataStore:" + b) });
+            ChangeLog update = new ChangeLog();
+            update.modified(property);
+            manager.store(update);
+            assertTrue(index.isReferenced(a.toString()));
+            assertTrue(index.isReferenced(b.toString()));
+
+            property.setValues(new InternalValue[] {
+                    InternalValue.create(store, "dataStore:" + b) });
+            update = new ChangeLog();
+            update.modified(property);
+            manager.store(update);
+            assertFalse(index.isReferenced(a.toString()));
+            assertTrue(index.isReferenced(b.toString()));
+        } finally {
+            manager.close();
+        }
+
+        manager = createBinaryReferenceIndexManager();
+        manager.init(createContext(fs, store));
+        try {
+            BinaryReferenceIndex index = manager.getBinaryReferences();
+            assertFalse(index.isReferenced(a.toString()));
+            assertTrue(index.isReferenced(b.toString()));
+
+            node.setStatus(ItemState.STATUS_EXISTING);
+            ChangeLog delete = new ChangeLog();
+            delete.deleted(property);
+            delete.deleted(node);
+            manager.store(delete);
+            assertFalse(index.isReferenced(b.toString()));
+        } finally {
+            manager.close();
+        }
+
+        // disabling the index deletes it
+        manager = createBinaryReferenceIndexManager();
+        manager.setBinaryReferenceIndex("false");
+        manager.init(createContext(fs, store));
+        try {
+            assertNull(manager.getBinaryReferences());
+            assertFalse(new BinaryReferenceIndex(fs).load());
+        } finally {
+            manager.close();
+            store.close();
+        }
+    }
+
+    /**
+     * Checks that the references of a failed attempt to store a change log
+     * are not counted again when the transaction is retried.
+     */
+    public void testBinaryReferenceIndexRetry() throws Exception {
+        FileDataStore store = new FileDataStore();
+        store.init(new File(directory, "datastore").getPath());
+        DataIdentifier a = store.addRecord(
+                new ByteArrayInputStream(new byte[200])).getIdentifier();
+        DataIdentifier b = store.addRecord(
+                new ByteArrayInputStream(new byte[300])).getIdentifier();
+
+        NodeState node = new NodeState(
+                NODE_ID, TEST, RepositoryImpl.ROOT_NODE_ID,
+                ItemState.STATUS_NEW, true);
+        node.addPropertyName(TEST);
+        PropertyState property =
+            new PropertyState(PROPERTY_ID, ItemState.STATUS_NEW, true);
+        property.setType(PropertyType.BINARY);
+        property.setMultiValued(true);
+        property.setValues(new InternalValue[] {
+                InternalValue.create(store, "dataStore:" + a) });
+
+        final int[] failures = new int[1];
+        org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager() {
+                protected void storeBundle(NodePropBundle bundle)
+                        throws ItemStateException {
+                    if (failures[0]-- > 0) {
+                        throw new ItemStateException("simulated failure");
+                    }
+                    super.storeBundle(bundle);
+                }
+            };
+        configureBinaryReferenceIndexManager(manager);
+        FileSystem fs = new MemoryFileSystem();
+        fs.init();
+        manager.init(createContext(fs, store));
+        try {
+            ChangeLog create = new ChangeLog();
+            create.added(node);
+            create.added(property);
+            manager.store(create);
+            BinaryReferenceIndex index = manager.getBinaryReferences();
+
+            // the first attempt fails, the retry succeeds
+            failures[0] = 1;
+            property.setValues(new InternalValue[] {
+                    InternalValue.create(store, "dataStore:" + a),
+                    InternalValue.create(store, "dataStore:" + b) });
+            ChangeLog update = new ChangeLog();
+            update.modified(property);
+            manager.store(update);
+            assertTrue(index.isReferenced(b.toString()));
+
+            property.setValues(new InternalValue[] {
+                    InternalValue.create(store, "dataStore:" + a) });
+            update = new ChangeLog();
+            update.modified(property);
+            manager.store(update);
+            assertTrue(index.isReferenced(a.toString()));
+            assertFalse(index.isReferenced(b.toString()));
+        } finally {
+            manager.close();
+            store.close();
+        }
+    }
+
+    /**
+     * Checks that a name inserted by a transaction that is rolled back is
+     * not cached by the name index, so that later transactions do not refer
+     * to the missing row.
+     */
+    public void testDerbyPoolPersistenceManagerNameIndexRollback()
+            throws Exception {
+        Name name = NameFactoryImpl.getInstance().create("", "rolledBack");
+        NodeState node = new NodeState(
+                NODE_ID, TEST, RepositoryImpl.ROOT_NODE_ID,
+                ItemState.STATUS_NEW, true);
+        // the id of a binary stored in the database includes the name index
+        PropertyState property = createBinaryProperty(node, name);
+
+        final int[] failures = new int[] { 2 };
+        org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager() {
+                protected void storeBundle(NodePropBundle bundle)
+                        throws ItemStateException {
+                    super.storeBundle(bundle);
+                    if (failures[0]-- > 0) {
+                        throw new ItemStateException("simulated failure");
+                    }
+                }
+            };
+        configureDerbyManager(manager);
+        initPersistenceManager(manager);
+        int index;
+        try {
+            ChangeLog changes = new ChangeLog();
+            changes.added(node);
+            changes.added(property);
+            try {
+                manager.store(changes);
+                fail("both attempts to store the change log must fail");
+            } catch (ItemStateException expected) {
+            }
+            manager.store(changes);
+            index = manager.getNameIndex().stringToIndex(name.getLocalName());
+        } finally {
+            manager.close();
+        }
+
+        manager = new org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager();
+        configureDerbyManager(manager);
+        initPersistenceManager(manager);
+        try {
+            assertEquals(name.getLocalName(),
+                    manager.getNameIndex().indexToString(index));
+        } finally {
+            manager.close();
+        }
+    }
+
+    private void configureDerbyManager(
+            org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager manager) {
+        manager.setDriver("org.apache.derby.jdbc.EmbeddedDriver");
+        manager.setUrl("jdbc:derby:" + database.getPath() + ";create=true");
+        manager.setConnectionFactory(new ConnectionFactory());
+    }
+
+    private AbstractBundlePersistenceManager createBinaryReferenceIndexManager() {
+        org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager manager =
+            new org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager();
+        configureBinaryReferenceIndexManager(manager);
+        return manager;
+    }
+
+    private void configureBinaryReferenceIndexManager(
+            org.apache.jackrabbit.core.persistence.pool.DerbyPersistenceManager manager) {
+        configureDerbyManager(manager);
+        manager.setBinaryReferenceIndex("true");
+    }
+
+    /**
+     * Stores disjoint change logs from multiple threads and checks that
+     * all of them have been persisted. The change logs of all threads store
+     * binaries with the same new property names, which are inserted into the
+     * name index concurrently.
+     */
+    private void assertConcurrentStore(final PersistenceManager manager)
+            throws Exception {
+        initPersistenceManager(manager);
+        try {
+            final List<NodeId> ids = new ArrayList<NodeId>();
+            final List<Exception> errors = new ArrayList<Exception>();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                final List<NodeId> created = new ArrayList<NodeId>();
+                for (int j = 0; j < 20; j++) {
+                    created.add(NodeId.randomId());
+                }
+                ids.addAll(created);
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < created.size(); j++) {
+                                NodeState node = new NodeState(
+                                        created.get(j), TEST,
+                                        RepositoryImpl.ROOT_NODE_ID,
+                                        ItemState.STATUS_NEW, true);
+                                ChangeLog changes = new ChangeLog();
+                                changes.added(node);
+                                changes.added(createBinaryProperty(
+                                        node, createPropertyName(j)));
+                                manager.store(changes);
+                            }
+                        } catch (Exception e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        }
+                    }
+                };
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(new ArrayList<Exception>(), errors);
+            for (int i = 0; i < ids.size(); i++) {
+                assertTrue(manager.exists(ids.get(i)));
+                PropertyId id = new PropertyId(
+                        ids.get(i), createPropertyName(i % 20));
+                assertEquals(BINARY_SIZE,
+                        manager.load(id).getValues()[0].getLength());
+            }
+        } finally {
+            manager.close();
+        }
+    }
+
+    private static Name createPropertyName(int index) {
+        return NameFactoryImpl.getInstance().create("", "concurrent" + index);
+    }
+
+    /**
+     * Creates a binary property that is too large to be inlined in the
+     * bundle of the given node.
+     */
+    private static PropertyState createBinaryProperty(NodeState node, Name name)
+            throws Exception {
+        node.addPropertyName(name);
+        PropertyState property = new PropertyState(
+                new PropertyId(node.getNodeId(), name),
+                ItemState.STATUS_NEW, true);
+        property.setType(PropertyType.BINARY);
+        property.setValues(new InternalValue[] {
+                InternalValue.create(new byte[BINARY_SIZE]) });
+        return property;
+    }
+
     private void assertPersistenceManager(PersistenceManager manager)
             throws Exception {
-        manager.init(new PMContext(
-                directory,
-                new MemoryFileSystem(),
-                RepositoryImpl.ROOT_NODE_ID,
-                new NamespaceRegistryImpl(new MemoryFileSystem()),
-                null,
-                null,
-                new RepositoryStatisticsImpl()));
+        initPersistenceManager(manager);
         try {
             assertCreateNewNode(manager);
             assertCreateNewProperty(manager);
@@ -138,6 +528,23 @@ public class PersistenceManagerTest extends TestCase {
         }
     }
 
+    private void initPersistenceManager(PersistenceManager manager)
+            throws Exception {
+        manager.init(createContext(new MemoryFileSystem(), null));
+    }
+
+    private PMContext createContext(FileSystem fs, DataStore store)
+            throws Exception {
+        return new PMContext(
+                directory,
+                fs,
+                RepositoryImpl.ROOT_NODE_ID,
+                new NamespaceRegistryImpl(new MemoryFileSystem()),
+                null,
+                store,
+                new RepositoryStatisticsImpl());
+    }
+
     private void assertCreateNewNode(PersistenceManager manager) {
         NodeState state = manager.createNew(NODE_ID);
         assertNotNull(state);
@@ -230,6 +637,15 @@ public class PersistenceManagerTest extends TestCase {
         assertEquals(property, manager.load(PROPERTY_ID));
         assertEquals(references, manager.loadReferencesTo(CHILD_ID));
 
+        if (manager instanceof BulkLoadingPersistenceManager) {
+            Map<NodeId, NodeState> states =
+                ((BulkLoadingPersistenceManager) manager).load(Arrays.asList(
+                        NODE_ID, NodeId.randomId(), CHILD_ID));
+            assertEquals(2, states.size());
+            assertEquals(node, states.get(NODE_ID));
+            assertEquals(child, states.get(CHILD_ID));
+        }
+
         references.removeReference(PROPERTY_ID);
         node.setStatus(ItemState.STATUS_EXISTING);
         ChangeLog update = new ChangeLog();
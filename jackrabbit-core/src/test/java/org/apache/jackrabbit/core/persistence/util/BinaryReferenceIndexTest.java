@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+
+/**
+ * Test cases for the {@link BinaryReferenceIndex} class.
+ */
+public class BinaryReferenceIndexTest extends TestCase {
+
+    private FileSystem fs;
+
+    protected void setUp() throws Exception {
+        fs = new MemoryFileSystem();
+        fs.init();
+    }
+
+    protected void tearDown() throws Exception {
+        fs.close();
+    }
+
+    public void testIncompleteIndex() throws Exception {
+        BinaryReferenceIndex index = new BinaryReferenceIndex(fs);
+        assertFalse(index.load());
+        assertFalse(index.isComplete());
+        // all records are considered referenced, changes are ignored
+        assertTrue(index.isReferenced("a"));
+        index.addReferences(Arrays.asList("a"));
+        assertEquals(0, index.getCount("a"));
+    }
+
+    public void testReferenceCounts() throws Exception {
+        BinaryReferenceIndex index = build(Arrays.asList("a", "a", "b"));
+        assertTrue(index.isComplete());
+        assertEquals(2, index.getCount("a"));
+        assertEquals(1, index.getCount("b"));
+
+        index.removeReferences(Arrays.asList("a", "b"));
+        assertTrue(index.isReferenced("a"));
+        assertFalse(index.isReferenced("b"));
+
+        index.addReferences(Arrays.asList("c"));
+        index.removeReferences(Arrays.asList("a"));
+        assertFalse(index.isReferenced("a"));
+        assertTrue(index.isReferenced("c"));
+    }
+
+    public void testReload() throws Exception {
+        BinaryReferenceIndex index = build(Arrays.asList("a", "a", "b"));
+        index.addReferences(Arrays.asList("c", "c"));
+        index.removeReferences(Arrays.asList("a", "c"));
+
+        // all changes are persisted immediately
+        index = new BinaryReferenceIndex(fs);
+        assertTrue(index.load());
+        assertEquals(1, index.getCount("a"));
+        assertEquals(1, index.getCount("b"));
+        assertEquals(1, index.getCount("c"));
+    }
+
+    /**
+     * A count file that was not completely written keeps the record
+     * referenced.
+     */
+    public void testInvalidCount() throws Exception {
+        BinaryReferenceIndex index = build(Arrays.asList("a"));
+        String path = findCountFile("a");
+        OutputStream out = fs.getOutputStream(path);
+        out.close();
+
+        index = new BinaryReferenceIndex(fs);
+        assertTrue(index.load());
+        assertEquals(-1, index.getCount("a"));
+        index.removeReferences(Arrays.asList("a"));
+        assertTrue(index.isReferenced("a"));
+    }
+
+    public void testInvalidate() throws Exception {
+        BinaryReferenceIndex index = build(Collections.singletonList("a"));
+        index.addReferences(Collections.singletonList("b"));
+        index.invalidate();
+        assertFalse(index.isComplete());
+        assertTrue(index.isReferenced("x"));
+        assertFalse(new BinaryReferenceIndex(fs).load());
+
+        // building the index again discards the old references
+        index = build(Collections.singletonList("c"));
+        assertFalse(index.isReferenced("a"));
+        assertFalse(index.isReferenced("b"));
+        assertTrue(index.isReferenced("c"));
+    }
+
+    public void testCancelledBuild() throws Exception {
+        BinaryReferenceIndex index = new BinaryReferenceIndex(fs);
+        index.startBuild();
+        index.addReferences(Collections.singletonList("a"));
+        index.cancelBuild();
+        assertFalse(index.isComplete());
+        assertFalse(new BinaryReferenceIndex(fs).load());
+        index.addReferences(Collections.singletonList("b"));
+        assertEquals(0, index.getCount("b"));
+    }
+
+    public void testDelete() throws Exception {
+        build(Collections.singletonList("a"));
+        BinaryReferenceIndex.delete(fs);
+        assertFalse(fs.exists("/" + BinaryReferenceIndex.INDEX_FOLDER));
+        assertFalse(new BinaryReferenceIndex(fs).load());
+    }
+
+    private BinaryReferenceIndex build(List<String> identifiers)
+            throws Exception {
+        BinaryReferenceIndex index = new BinaryReferenceIndex(fs);
+        index.startBuild();
+        index.addReferences(identifiers);
+        index.finishBuild();
+        return index;
+    }
+
+    private String findCountFile(String identifier) throws Exception {
+        List<String> paths = new ArrayList<String>();
+        String root = "/" + BinaryReferenceIndex.INDEX_FOLDER;
+        for (String first : fs.listFolders(root)) {
+            for (String second : fs.listFolders(root + "/" + first)) {
+                String folder = root + "/" + first + "/" + second;
+                for (String name : fs.listFiles(folder)) {
+                    if (name.equals(identifier)) {
+                        paths.add(folder + "/" + name);
+                    }
+                }
+            }
+        }
+        assertEquals(1, paths.size());
+        return paths.get(0);
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.persistence.util;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+/**
+ * Test cases for the {@link OffHeapBundleCache} class.
+ */
+public class OffHeapBundleCacheTest extends TestCase {
+
+    private static byte[] data(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    public void testPutGetRemove() {
+        OffHeapBundleCache cache = new OffHeapBundleCache("test", 1024 * 1024);
+        NodeId a = NodeId.randomId();
+        NodeId b = NodeId.randomId();
+
+        assertNull(cache.get(a));
+        assertEquals(0, cache.put(a, data(100, 1)));
+        assertEquals(0, cache.put(b, data(200, 2)));
+        assertTrue(Arrays.equals(data(100, 1), cache.get(a)));
+        assertTrue(Arrays.equals(data(200, 2), cache.get(b)));
+        assertEquals(300, cache.getMemoryUsed());
+        assertEquals(2, cache.getElementCount());
+
+        // replace
+        cache.put(a, data(50, 3));
+        assertTrue(Arrays.equals(data(50, 3), cache.get(a)));
+        assertEquals(250, cache.getMemoryUsed());
+
+        assertTrue(cache.remove(b));
+        assertFalse(cache.remove(b));
+        assertNull(cache.get(b));
+        assertEquals(50, cache.getMemoryUsed());
+
+        cache.clear();
+        assertNull(cache.get(a));
+        assertEquals(0, cache.getMemoryUsed());
+    }
+
+    /**
+     * Fills the cache many times over and checks that the oldest entries
+     * are evicted while the contents of the remaining ones stay intact.
+     */
+    public void testEviction() {
+        // 16 segments of 4kB each
+        OffHeapBundleCache cache = new OffHeapBundleCache("test", 64 * 1024);
+        NodeId[] ids = new NodeId[2000];
+        long evicted = 0;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = NodeId.randomId();
+            evicted += cache.put(ids[i], data(100 + i % 50, i));
+        }
+        assertTrue(evicted > 0);
+        assertEquals(ids.length - evicted, cache.getElementCount());
+        assertTrue(cache.getMemoryUsed() <= 64 * 1024);
+
+        int found = 0;
+        for (int i = 0; i < ids.length; i++) {
+            byte[] data = cache.get(ids[i]);
+            if (data != null) {
+                assertTrue(Arrays.equals(data(100 + i % 50, i), data));
+                found++;
+            }
+        }
+        assertEquals(cache.getElementCount(), found);
+
+        // the most recently added entries must all be present
+        for (int i = ids.length - 10; i < ids.length; i++) {
+            assertNotNull(cache.get(ids[i]));
+        }
+    }
+
+    public void testLargeEntriesAreNotCached() {
+        OffHeapBundleCache cache = new OffHeapBundleCache("test", 64 * 1024);
+        NodeId id = NodeId.randomId();
+        cache.put(id, data(100, 1));
+        cache.put(id, data(2000, 2));
+        assertNull(cache.get(id));
+        assertEquals(0, cache.getMemoryUsed());
+    }
+
+}
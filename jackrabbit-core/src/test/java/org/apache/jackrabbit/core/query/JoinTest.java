@@ -167,4 +167,33 @@ public class JoinTest extends AbstractQueryTest {
         checkResult(qm.createQuery(join.toString(), Query.JCR_SQL2).execute(),
                 2);
     }
+
+    public void testJoinWithLimit() throws Exception {
+        String join = "SELECT a.*, b.*"
+                + " FROM [nt:unstructured] AS a"
+                + " INNER JOIN [nt:unstructured] AS b ON ISDESCENDANTNODE(b, a)"
+                + " WHERE ISSAMENODE(a, [" + node.getPath() + "])";
+        Query q = qm.createQuery(join, Query.JCR_SQL2);
+        checkResult(q.execute(), 6);
+        q.setLimit(4);
+        checkResult(q.execute(), 4);
+        q.setOffset(3);
+        checkResult(q.execute(), 3);
+    }
+
+    public void testOuterJoinWithoutMatch() throws Exception {
+        String join = "SELECT a.*, b.*"
+                + " FROM [nt:unstructured] AS a"
+                + " LEFT OUTER JOIN [nt:unstructured] AS b ON a.testref = b.[jcr:uuid]"
+                + " WHERE ISCHILDNODE(a, [" + node.getPath() + "])";
+        checkResult(qm.createQuery(join, Query.JCR_SQL2).execute(), 6);
+    }
+
+    public void testSameNodeJoin() throws Exception {
+        String join = "SELECT a.*, b.*"
+                + " FROM [nt:unstructured] AS a"
+                + " INNER JOIN [mix:referenceable] AS b ON ISSAMENODE(a, b)"
+                + " WHERE a.testJoinWithOR4 = 'testJoinWithOR4'";
+        checkResult(qm.createQuery(join, Query.JCR_SQL2).execute(), 2);
+    }
 }
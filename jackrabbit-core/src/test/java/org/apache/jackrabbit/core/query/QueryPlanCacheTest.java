@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+
+import org.apache.jackrabbit.core.query.lucene.SearchIndex;
+import org.apache.jackrabbit.test.NotExecutableException;
+
+/**
+ * Test cases for queries whose parsed statement is taken from the query
+ * plan cache.
+ */
+public class QueryPlanCacheTest extends AbstractQueryTest {
+
+    private QueryPlanCache cache;
+
+    private Node n1;
+
+    private Node n2;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        QueryHandler handler = ((QueryManagerImpl) qm).getQueryHandler();
+        if (!(handler instanceof SearchIndex)
+                || ((SearchIndex) handler).getQueryPlanCache() == null) {
+            throw new NotExecutableException();
+        }
+        cache = ((SearchIndex) handler).getQueryPlanCache();
+        cache.clear();
+
+        n1 = testRootNode.addNode("node1");
+        n1.setProperty("value", "a");
+        n2 = testRootNode.addNode("node2");
+        n2.setProperty("value", "b");
+        superuser.save();
+    }
+
+    protected void tearDown() throws Exception {
+        cache = null;
+        n1 = null;
+        n2 = null;
+        super.tearDown();
+    }
+
+    public void testXPath() throws Exception {
+        String xpath = testPath + "/*[@value = 'a']";
+        executeXPathQuery(xpath, new Node[]{n1});
+        assertEquals(1, cache.size());
+        executeXPathQuery(xpath, new Node[]{n1});
+        assertEquals(1, cache.size());
+        executeXPathQuery(testPath + "/*[@value = 'b']", new Node[]{n2});
+        assertEquals(2, cache.size());
+    }
+
+    public void testSQL2WithBindVariable() throws Exception {
+        String sql2 = "SELECT * FROM [nt:base] AS s WHERE ISCHILDNODE(s, ["
+                + testRoot + "]) AND s.[value] = $value";
+        Query q = qm.createQuery(sql2, Query.JCR_SQL2);
+        q.bindValue("value", vf.createValue("a"));
+        checkResult(q.execute(), new Node[]{n1});
+        assertEquals(1, cache.size());
+
+        q = qm.createQuery(sql2, Query.JCR_SQL2);
+        assertEquals(1, cache.size());
+        assertEquals(1, q.getBindVariableNames().length);
+        q.bindValue("value", vf.createValue("b"));
+        checkResult(q.execute(), new Node[]{n2});
+    }
+
+    public void testSessionNamespaceMappings() throws Exception {
+        String sql2 = "SELECT * FROM [nt:base] AS s WHERE ISCHILDNODE(s, ["
+                + testRoot + "]) AND s.[value] = 'a'";
+        executeSQL2Query(sql2, new Node[]{n1});
+        assertEquals(1, cache.size());
+
+        // the same statement with other session local mappings must not
+        // be taken from the cache
+        String uri = superuser.getNamespaceURI("nt");
+        superuser.setNamespacePrefix("ntx", uri);
+        try {
+            try {
+                qm.createQuery(sql2, Query.JCR_SQL2);
+                fail("prefix nt must not be mapped anymore");
+            } catch (RepositoryException e) {
+                // expected
+            }
+            executeSQL2Query(sql2.replace("[nt:base]", "[ntx:base]"),
+                    new Node[]{n1});
+            assertEquals(2, cache.size());
+        } finally {
+            superuser.setNamespacePrefix("nt", uri);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.apache.jackrabbit.api.query.JackrabbitQueryResult;
+import org.apache.jackrabbit.core.query.AbstractIndexingTest;
+
+/**
+ * <code>CountTotalSizeTest</code> checks that the total size of a query
+ * result is counted on the index when the <code>countTotalSize</code>
+ * option is enabled.
+ */
+public class CountTotalSizeTest extends AbstractIndexingTest {
+
+    private boolean countTotalSize;
+
+    private int countSampleSize;
+
+    private int resultFetchSize;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        SearchIndex index = getSearchIndex();
+        countTotalSize = index.getCountTotalSize();
+        countSampleSize = index.getCountSampleSize();
+        resultFetchSize = index.getResultFetchSize();
+        // the total size is not known after the first fetch
+        index.setResultFetchSize(2);
+
+        for (int i = 0; i < 20; i++) {
+            Node n = testRootNode.addNode("node" + i);
+            n.setProperty("number", i % 2);
+        }
+        session.save();
+        flushSearchIndex();
+    }
+
+    protected void tearDown() throws Exception {
+        SearchIndex index = getSearchIndex();
+        index.setCountTotalSize(countTotalSize);
+        index.setCountSampleSize(countSampleSize);
+        index.setResultFetchSize(resultFetchSize);
+        super.tearDown();
+    }
+
+    public void testDisabled() throws RepositoryException {
+        getSearchIndex().setCountTotalSize(false);
+        JackrabbitQueryResult result = execute(session, "/*", -1, 0);
+        assertEquals(-1, result.getTotalSize());
+        assertEquals(-1, result.getNodes().getSize());
+    }
+
+    public void testExactCount() throws RepositoryException {
+        getSearchIndex().setCountTotalSize(true);
+        JackrabbitQueryResult result = execute(session, "/*", -1, 0);
+        assertEquals(20, result.getTotalSize());
+        NodeIterator nodes = result.getNodes();
+        assertEquals(20, nodes.getSize());
+        assertEquals(20, count(nodes));
+
+        result = execute(session, "/*[@number = 1]", -1, 0);
+        assertEquals(10, result.getTotalSize());
+
+        result = execute(session, "/*", 5, 3);
+        assertEquals(20, result.getTotalSize());
+        assertEquals(5, result.getNodes().getSize());
+
+        result = execute(session, "/*", -1, 18);
+        assertEquals(2, result.getNodes().getSize());
+    }
+
+    public void testEstimatedCount() throws RepositoryException {
+        getSearchIndex().setCountTotalSize(true);
+        Session readOnly = getHelper().getReadOnlySession(getWorkspaceName());
+        try {
+            // the sample covers all hits
+            JackrabbitQueryResult result = execute(readOnly, "/*", -1, 0);
+            assertEquals(20, result.getTotalSize());
+            assertEquals(20, result.getNodes().getSize());
+
+            // all sampled hits are readable
+            getSearchIndex().setCountSampleSize(5);
+            result = execute(readOnly, "/*", -1, 0);
+            assertEquals(20, result.getTotalSize());
+
+            // estimates disabled
+            getSearchIndex().setCountSampleSize(0);
+            result = execute(readOnly, "/*", -1, 0);
+            assertEquals(-1, result.getTotalSize());
+        } finally {
+            readOnly.logout();
+        }
+    }
+
+    private JackrabbitQueryResult execute(Session s, String relPath,
+                                          long limit, long offset)
+            throws RepositoryException {
+        Query q = s.getWorkspace().getQueryManager().createQuery(
+                testPath + relPath, Query.XPATH);
+        if (limit >= 0) {
+            q.setLimit(limit);
+        }
+        q.setOffset(offset);
+        return (JackrabbitQueryResult) q.execute();
+    }
+
+    private static int count(NodeIterator nodes) {
+        int count = 0;
+        while (nodes.hasNext()) {
+            nodes.nextNode();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * <code>HierarchyCacheFileTest</code> checks the parents and node ids that
+ * a {@link CachingIndexReader} reads from the persisted hierarchy cache.
+ */
+public class HierarchyCacheFileTest extends TestCase {
+
+    private final NodeId root = NodeId.randomId();
+
+    private final NodeId child = NodeId.randomId();
+
+    private final NodeId grandChild = NodeId.randomId();
+
+    private final NodeId foreignParent = NodeId.randomId();
+
+    private final NodeId foreignChild = NodeId.randomId();
+
+    private Directory dir;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(
+                Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36)));
+        try {
+            // documents are not in hierarchy order
+            writer.addDocument(createDocument(grandChild, child));
+            writer.addDocument(createDocument(root, null));
+            writer.addDocument(createDocument(foreignChild, foreignParent));
+            writer.addDocument(createDocument(child, root));
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testWrite() throws Exception {
+        assertFalse(dir.fileExists(HierarchyCacheFile.FILE_NAME));
+        IndexReader reader = IndexReader.open(dir);
+        try {
+            assertTrue(new HierarchyCacheFile.Writer().write(reader));
+        } finally {
+            reader.close();
+        }
+        assertTrue(dir.fileExists(HierarchyCacheFile.FILE_NAME));
+        checkHierarchy();
+    }
+
+    public void testWriteStopped() throws Exception {
+        Directory large = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(large, new IndexWriterConfig(
+                Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36)));
+        try {
+            writer.addDocument(createDocument(root, null));
+            // enough node ids to check for a stop request
+            for (int i = 0; i < 10000; i++) {
+                writer.addDocument(createDocument(NodeId.randomId(), root));
+            }
+        } finally {
+            writer.close();
+        }
+        IndexReader reader = IndexReader.open(large);
+        try {
+            assertFalse(new HierarchyCacheFile.Writer() {
+                protected boolean isStopRequested() {
+                    return true;
+                }
+            }.write(reader));
+        } finally {
+            reader.close();
+        }
+        assertFalse(large.fileExists(HierarchyCacheFile.FILE_NAME));
+    }
+
+    public void testInitializeCache() throws Exception {
+        // the file is written when the cache is initialized
+        checkHierarchy();
+        assertTrue(dir.fileExists(HierarchyCacheFile.FILE_NAME));
+    }
+
+    public void testCorruptFile() throws Exception {
+        IndexOutput out = dir.createOutput(HierarchyCacheFile.FILE_NAME);
+        try {
+            out.writeInt(1);
+            out.writeInt(4);
+        } finally {
+            out.close();
+        }
+        checkHierarchy();
+        assertTrue(dir.fileLength(HierarchyCacheFile.FILE_NAME) > 8);
+    }
+
+    private void checkHierarchy() throws Exception {
+        CachingIndexReader reader = new CachingIndexReader(
+                IndexReader.open(dir), null, true);
+        try {
+            BitSet deleted = new BitSet();
+            assertEquals("PlainDocId(3)", reader.getParent(0, deleted).toString());
+            assertSame(DocId.NULL, reader.getParent(1, deleted));
+            assertEquals("UUIDDocId(" + foreignParent + ")",
+                    reader.getParent(2, deleted).toString());
+            assertEquals("PlainDocId(1)", reader.getParent(3, deleted).toString());
+
+            NodeId[] ids = new NodeId[]{grandChild, root, foreignChild, child};
+            for (int i = 0; i < ids.length; i++) {
+                Document doc = reader.document(i, FieldSelectors.UUID);
+                assertEquals(ids[i].toString(), doc.get(FieldNames.UUID));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Document createDocument(NodeId id, NodeId parent) {
+        Document doc = new Document();
+        doc.add(new IDField(id));
+        doc.add(new Field(FieldNames.PARENT, false,
+                parent == null ? "" : parent.toString(), Field.Store.YES,
+                Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
+        return doc;
+    }
+}
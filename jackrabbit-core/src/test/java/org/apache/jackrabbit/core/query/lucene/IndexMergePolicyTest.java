@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jackrabbit.core.query.lucene.IndexMergePolicy.Segment;
+
+import junit.framework.TestCase;
+
+/**
+ * <code>IndexMergePolicyTest</code> checks the merges selected by the
+ * {@link IndexMergePolicy} implementations and the merge rate limiter.
+ */
+public class IndexMergePolicyTest extends TestCase {
+
+    private static final long MB = 1024 * 1024;
+
+    public void testDefaultPolicy() {
+        SearchIndex handler = new SearchIndex();
+        handler.setMinMergeDocs(100);
+        handler.setMergeFactor(10);
+        IndexMergePolicy policy = new DefaultIndexMergePolicy();
+        policy.init(handler);
+
+        List<Segment> segments = createSegments(9, 100, MB);
+        assertTrue(policy.findMerges(segments).isEmpty());
+
+        // a larger segment goes into another bucket
+        segments.add(new Segment("large", 500, 5 * MB));
+        assertTrue(policy.findMerges(segments).isEmpty());
+
+        segments.add(new Segment("small", 50, MB));
+        List<List<Segment>> merges = policy.findMerges(segments);
+        assertEquals(1, merges.size());
+        assertEquals(10, merges.get(0).size());
+        assertFalse(merges.get(0).contains(segments.get(9)));
+    }
+
+    public void testTieredPolicy() {
+        SearchIndex handler = new SearchIndex();
+        handler.setMergeFactor(10);
+        handler.setMaxMergedIndexSize(100);
+        handler.setFloorIndexSize(2);
+        IndexMergePolicy policy = new TieredIndexMergePolicy();
+        policy.init(handler);
+
+        List<Segment> segments = createSegments(10, 100, MB);
+        assertTrue(policy.findMerges(segments).isEmpty());
+
+        segments.addAll(createSegments(10, 100, MB));
+        // too large to be merged again
+        Segment large = new Segment("large", 10000, 60 * MB);
+        segments.add(large);
+
+        List<List<Segment>> merges = policy.findMerges(segments);
+        assertFalse(merges.isEmpty());
+        Set<Segment> merged = new HashSet<Segment>();
+        for (List<Segment> merge : merges) {
+            assertTrue(merge.size() >= 2);
+            assertTrue(merge.size() <= 10);
+            long size = 0;
+            for (Segment segment : merge) {
+                assertTrue("segment in more than one merge", merged.add(segment));
+                size += segment.getSize();
+            }
+            assertTrue(size <= 100 * MB);
+        }
+        assertFalse(merged.contains(large));
+    }
+
+    public void testTieredPolicyPrefersEqualSizes() {
+        TieredIndexMergePolicy policy = new TieredIndexMergePolicy();
+        policy.setMergeFactor(3);
+        policy.setFloorSize(MB);
+
+        List<Segment> segments = new ArrayList<Segment>();
+        segments.add(new Segment("a", 1000, 30 * MB));
+        segments.add(new Segment("b", 1000, 10 * MB));
+        segments.addAll(createSegments(12, 100, MB));
+
+        List<List<Segment>> merges = policy.findMerges(segments);
+        assertFalse(merges.isEmpty());
+        for (Segment segment : merges.get(0)) {
+            assertEquals(MB, segment.getSize());
+        }
+    }
+
+    public void testRateLimiter() throws Exception {
+        MergeRateLimiter limiter = new MergeRateLimiter(100);
+        long time = System.currentTimeMillis();
+        limiter.pause(10 * MB);
+        limiter.pause(10 * MB);
+        time = System.currentTimeMillis() - time;
+        // 20 MB at 100 MB/s
+        assertTrue("took " + time + " ms", time >= 150);
+    }
+
+    private static List<Segment> createSegments(int num, int numDocs, long size) {
+        List<Segment> segments = new ArrayList<Segment>();
+        for (int i = 0; i < num; i++) {
+            segments.add(new Segment("_" + i + "_" + size, numDocs, size));
+        }
+        return segments;
+    }
+}
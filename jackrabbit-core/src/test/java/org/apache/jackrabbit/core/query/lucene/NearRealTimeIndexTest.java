@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+
+import org.apache.jackrabbit.core.query.AbstractIndexingTest;
+
+/**
+ * <code>NearRealTimeIndexTest</code> checks that queries see the documents
+ * of volatile indexes that are persisted in the background.
+ */
+public class NearRealTimeIndexTest extends AbstractIndexingTest {
+
+    private boolean nearRealTime;
+
+    private long maxVolatileIndexSize;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        SearchIndex index = getSearchIndex();
+        nearRealTime = index.isNearRealTime();
+        maxVolatileIndexSize = index.getMaxVolatileIndexSize();
+        index.setNearRealTime(true);
+        // every update fills the volatile index
+        index.setMaxVolatileIndexSize(1);
+    }
+
+    protected void tearDown() throws Exception {
+        SearchIndex index = getSearchIndex();
+        index.setNearRealTime(nearRealTime);
+        index.setMaxVolatileIndexSize(maxVolatileIndexSize);
+        super.tearDown();
+    }
+
+    /*
+     * use default ws
+     */
+    protected String getWorkspaceName() {
+        return null;
+    }
+
+    public void testUpdates() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            Node n = testRootNode.addNode("node" + i);
+            n.setProperty("number", i % 2);
+            session.save();
+        }
+        assertEquals(20, count("/*"));
+        assertEquals(10, count("/*[@number = 1]"));
+
+        for (int i = 0; i < 20; i += 4) {
+            testRootNode.getNode("node" + i).remove();
+            session.save();
+        }
+        testRootNode.getNode("node1").setProperty("number", 0);
+        session.save();
+        assertEquals(15, count("/*"));
+        assertEquals(9, count("/*[@number = 1]"));
+
+        // persists the remaining volatile indexes
+        flushSearchIndex();
+        assertEquals(15, count("/*"));
+        assertEquals(9, count("/*[@number = 1]"));
+        assertTrue(getSearchIndex().runConsistencyCheck().getErrors().isEmpty());
+    }
+
+    private long count(String relPath) throws RepositoryException {
+        // not flushed, the query must see the pending updates
+        String stmt = testPath + relPath;
+        return qm.createQuery(stmt, Query.XPATH).execute().getNodes().getSize();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.jcr.Node;
+import javax.jcr.query.Query;
+
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.TestHelper;
+import org.apache.jackrabbit.core.fs.local.FileUtil;
+import org.apache.jackrabbit.core.query.AbstractIndexingTest;
+
+/**
+ * <code>ParallelInitialIndexTest</code> checks the initial index that is
+ * created with multiple threads from the node ids of the persistence
+ * manager. See the workspace.xml file for the indexing-test-2 workspace.
+ */
+public class ParallelInitialIndexTest extends AbstractIndexingTest {
+
+    @Override
+    protected String getWorkspaceName() {
+        return "indexing-test-2";
+    }
+
+    public void testInitialIndex() throws Exception {
+        assertTrue(getSearchIndex().getInitialIndexThreads() > 0);
+        File indexDir = new File(getSearchIndex().getPath());
+
+        for (int i = 0; i < 10; i++) {
+            Node n = testRootNode.addNode("node" + i);
+            n.setProperty("text", i % 2 == 0 ? "even" : "odd");
+            for (int j = 0; j < 10; j++) {
+                n.addNode("child" + j).setProperty("number", j);
+            }
+        }
+        session.save();
+        // removed nodes must not show up in the new index
+        testRootNode.getNode("node9").remove();
+        session.save();
+
+        String all = "//*";
+        long numAll = getSize(executeQuery(all).getNodes());
+
+        // shutdown workspace
+        RepositoryImpl repo = (RepositoryImpl) session.getRepository();
+        session.logout();
+        session = null;
+        superuser.logout();
+        superuser = null;
+        TestHelper.shutdownWorkspace(getWorkspaceName(), repo);
+
+        // delete index
+        try {
+            FileUtil.delete(indexDir);
+        } catch (IOException e) {
+            fail("Unable to delete index directory");
+        }
+
+        // start workspace again by getting a session
+        session = getHelper().getSuperuserSession(getWorkspaceName());
+        qm = session.getWorkspace().getQueryManager();
+
+        assertEquals(numAll, getSize(executeQuery(all).getNodes()));
+        assertEquals(99, getSize(executeQuery(
+                testPath + "//*").getNodes()));
+        assertEquals(5, getSize(executeQuery(
+                testPath + "/*[jcr:contains(., 'even')]").getNodes()));
+        assertEquals(9, getSize(executeQuery(
+                testPath + "/*/*[@number = 3]").getNodes()));
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.PropertyType;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.FilterIndexReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.FieldComparatorSource;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.ReaderUtil;
+import org.apache.lucene.util.Version;
+
+/**
+ * Tests that scoring the index segments concurrently returns the same hits
+ * as scoring them sequentially.
+ */
+public class ParallelSegmentSearcherTest extends TestCase {
+
+    private static final String[] WORDS = {"foo", "bar", "baz"};
+
+    private ExecutorService executor;
+
+    private IndexReader reader;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newFixedThreadPool(2);
+        Random random = new Random(42);
+        int[] sizes = {30, 5, 50, 1, 0, 20};
+        IndexReader[] segments = new IndexReader[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            segments[i] = createSegment(sizes[i], random);
+        }
+        reader = new JackrabbitIndexReader(new TestMultiIndexReader(segments));
+    }
+
+    protected void tearDown() throws Exception {
+        reader.close();
+        executor.shutdown();
+        super.tearDown();
+    }
+
+    public void testSlices() throws Exception {
+        Query query = createQuery();
+        assertEquals(1, new ParallelSegmentSearcher(
+                reader, query, executor, 1).getSliceCount());
+        assertEquals(3, new ParallelSegmentSearcher(
+                reader, query, executor, 3).getSliceCount());
+        // the empty segment does not get a slice of its own
+        assertEquals(5, new ParallelSegmentSearcher(
+                reader, query, executor, 100).getSliceCount());
+    }
+
+    public void testSegmentLocal() {
+        assertNotNull(ParallelSegmentSearcher.getSegmentLocalQuery(createQuery()));
+        assertNotNull(ParallelSegmentSearcher.getSegmentLocalQuery(
+                new JackrabbitTermQuery(new Term(FieldNames.FULLTEXT, "foo"))));
+        BooleanQuery query = new BooleanQuery();
+        query.add(new TermQuery(new Term(FieldNames.FULLTEXT, "foo")), Occur.MUST);
+        query.add(new DescendantSelfAxisQuery(
+                new MatchAllDocsQuery(), new MatchAllDocsQuery(), false),
+                Occur.MUST);
+        assertNull(ParallelSegmentSearcher.getSegmentLocalQuery(query));
+    }
+
+    /**
+     * Unsorted hits are read lazily and not scored ahead.
+     */
+    public void testUnsorted() throws Exception {
+        JackrabbitIndexSearcher searcher =
+            new JackrabbitIndexSearcher(null, reader, null);
+        searcher.setSegmentExecutor(executor, 4);
+        QueryHits hits = searcher.evaluate(
+                createQuery(), new Sort(new SortField[0]), 1000);
+        try {
+            assertTrue(hits instanceof LuceneQueryHits);
+        } finally {
+            hits.close();
+        }
+    }
+
+    public void testConstantScore() throws Exception {
+        assertSameHits(new ConstantScoreQuery(createQuery()),
+                new Sort(SortField.FIELD_SCORE));
+    }
+
+    /**
+     * Multi term queries are rewritten to term queries with a preset
+     * document frequency.
+     */
+    public void testRewrittenRange() throws Exception {
+        TermRangeQuery range = new TermRangeQuery(
+                FieldNames.FULLTEXT, "bar", "baz", true, true);
+        range.setRewriteMethod(
+                MultiTermQuery.CONSTANT_SCORE_BOOLEAN_QUERY_REWRITE);
+        BooleanQuery query = new BooleanQuery();
+        query.add(range, Occur.MUST);
+        query.add(new TermQuery(new Term(FieldNames.FULLTEXT, "foo")), Occur.MUST);
+        assertFalse(getHits(query, new Sort(), 1000, 0).isEmpty());
+        assertSameHits(query, new Sort(SortField.FIELD_SCORE));
+    }
+
+    public void testSortedByScore() throws Exception {
+        assertSameHits(createQuery(), new Sort(SortField.FIELD_SCORE));
+        assertSameHits(createQuery(),
+                new Sort(new SortField(null, SortField.SCORE, true)));
+    }
+
+    public void testSortedByProperty() throws Exception {
+        for (boolean reverse : new boolean[] {false, true}) {
+            Sort sort = new Sort(new SortField(
+                    "prop", new PropertyComparatorSource(), reverse));
+            assertSameHits(createQuery(), sort);
+            assertSameHits(new MatchAllDocsQuery(), sort);
+        }
+    }
+
+    private void assertSameHits(Query query, Sort sort) throws IOException {
+        for (int fetch : new int[] {1, 7, 1000}) {
+            List<String> expected = getHits(query, sort, fetch, 0);
+            for (int threads = 2; threads <= 4; threads++) {
+                assertEquals(expected, getHits(query, sort, fetch, threads));
+            }
+        }
+    }
+
+    private List<String> getHits(Query query, Sort sort, int fetch, int threads)
+            throws IOException {
+        JackrabbitIndexSearcher searcher =
+            new JackrabbitIndexSearcher(null, reader, null);
+        if (threads > 0) {
+            searcher.setSegmentExecutor(executor, threads);
+        }
+        QueryHits hits = searcher.evaluate(query, sort, fetch);
+        List<String> result = new ArrayList<String>();
+        try {
+            ScoreNode sn;
+            while ((sn = hits.nextScoreNode()) != null) {
+                result.add(sn.getNodeId() + " " + sn.getScore());
+            }
+        } finally {
+            hits.close();
+        }
+        return result;
+    }
+
+    private static Query createQuery() {
+        BooleanQuery query = new BooleanQuery();
+        query.add(new TermQuery(new Term(FieldNames.FULLTEXT, "foo")), Occur.SHOULD);
+        query.add(new TermQuery(new Term(FieldNames.FULLTEXT, "bar")), Occur.SHOULD);
+        return query;
+    }
+
+    private static IndexReader createSegment(int size, Random random)
+            throws IOException {
+        Directory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(
+                Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36)));
+        try {
+            for (int i = 0; i < size; i++) {
+                Document doc = new Document();
+                doc.add(new Field(FieldNames.UUID, NodeId.randomId().toString(),
+                        Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+                doc.add(new Field(FieldNames.LOCAL_NAME, false, "node",
+                        Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS,
+                        Field.TermVector.NO));
+                StringBuilder text = new StringBuilder();
+                for (int j = random.nextInt(10); j >= 0; j--) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                doc.add(new Field(FieldNames.FULLTEXT, text.toString(),
+                        Field.Store.NO, Field.Index.ANALYZED));
+                if (random.nextInt(5) > 0) {
+                    // few distinct values, to have ties
+                    Field field = new Field(FieldNames.PROPERTIES,
+                            new SingletonTokenStream(FieldNames.createNamedValue(
+                                    "prop", LongField.longToString(random.nextInt(10))),
+                                    PropertyType.LONG));
+                    field.setOmitNorms(true);
+                    doc.add(field);
+                }
+                writer.addDocument(doc);
+            }
+        } finally {
+            writer.close();
+        }
+        // like the index segments of a MultiIndex, the reader is atomic
+        return new FilterIndexReader(IndexReader.open(dir)) {
+            @Override
+            public IndexReader[] getSequentialSubReaders() {
+                return null;
+            }
+            @Override
+            public FieldInfos getFieldInfos() {
+                return ReaderUtil.getMergedFieldInfos(in);
+            }
+        };
+    }
+
+    private static class PropertyComparatorSource extends FieldComparatorSource {
+
+        @Override
+        public FieldComparator newComparator(
+                String fieldname, int numHits, int sortPos, boolean reversed) {
+            return new SharedFieldComparatorSource.SimpleFieldComparator(
+                    fieldname, FieldNames.PROPERTIES, numHits);
+        }
+
+    }
+
+    private static class TestMultiIndexReader extends MultiReader
+            implements MultiIndexReader, HierarchyResolver {
+
+        private final IndexReader[] readers;
+
+        TestMultiIndexReader(IndexReader[] readers) {
+            super(readers);
+            this.readers = readers;
+        }
+
+        public IndexReader[] getIndexReaders() {
+            return readers.clone();
+        }
+
+        public ForeignSegmentDocId createDocId(NodeId id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int getDocumentNumber(ForeignSegmentDocId docId) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int[] getParents(int n, int[] docNumbers) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void release() throws IOException {
+            close();
+        }
+
+    }
+
+}
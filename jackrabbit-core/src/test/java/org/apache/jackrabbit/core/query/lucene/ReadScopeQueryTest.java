@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.TestHelper;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.test.AbstractJCRTest;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Tests that the {@link ReadScopeQuery} only matches nodes in the readable
+ * subtrees and preserves the scores of the wrapped query.
+ */
+public class ReadScopeQueryTest extends AbstractJCRTest {
+
+    private SearchIndex index;
+
+    private Node a;
+
+    private Node c;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        index = (SearchIndex) TestHelper.getSearchManager(superuser).getQueryHandler();
+        a = testRootNode.addNode("a");
+        Node a1 = a.addNode("a1");
+        a1.addNode("a11");
+        Node b = testRootNode.addNode("b");
+        b.addNode("b1");
+        c = testRootNode.addNode("c");
+        for (String path : new String[] {"a", "a/a1", "a/a1/a11", "b", "b/b1", "c"}) {
+            Node n = testRootNode.getNode(path);
+            n.setProperty("text", "foo " + path);
+        }
+        superuser.save();
+    }
+
+    protected void tearDown() throws Exception {
+        index = null;
+        a = null;
+        c = null;
+        super.tearDown();
+    }
+
+    public void testScorer() throws Exception {
+        Query query = new TermQuery(new Term(FieldNames.FULLTEXT, "foo"));
+        Map<String, Float> all = getHits(query);
+        Map<String, Float> scoped = getHits(
+                new ReadScopeQuery(query, getIds(a, c)));
+        assertEquals(createSet("a", "a1", "a11", "c"), scoped.keySet());
+        for (Map.Entry<String, Float> entry : scoped.entrySet()) {
+            assertEquals(all.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+    public void testExecute() throws Exception {
+        Query query = new DescendantSelfAxisQuery(
+                new JackrabbitTermQuery(TermFactory.createUUIDTerm(
+                        testRootNode.getIdentifier())),
+                new MatchAllDocsQuery(), false);
+        assertEquals(createSet("a", "a1", "a11", "b", "b1", "c"),
+                getHits(query).keySet());
+        assertEquals(createSet("a", "a1", "a11", "c"), getHits(
+                new ReadScopeQuery(query, getIds(a, c))).keySet());
+    }
+
+    public void testNoRoots() throws Exception {
+        Query query = new TermQuery(new Term(FieldNames.FULLTEXT, "foo"));
+        assertTrue(getHits(new ReadScopeQuery(
+                query, Collections.<NodeId>emptySet())).isEmpty());
+    }
+
+    public void testUnrestrictedSession() throws Exception {
+        Query query = new TermQuery(new Term(FieldNames.FULLTEXT, "foo"));
+        assertSame(query,
+                index.restrictToReadScope((SessionImpl) superuser, query));
+    }
+
+    /**
+     * Returns the scores of the hits below the test root node by node name.
+     */
+    private Map<String, Float> getHits(Query query) throws Exception {
+        IndexReader reader = index.getIndexReader();
+        try {
+            JackrabbitIndexSearcher searcher = new JackrabbitIndexSearcher(
+                    (SessionImpl) superuser, reader,
+                    index.getContext().getItemStateManager());
+            searcher.setSimilarity(index.getSimilarity());
+            QueryHits hits = searcher.evaluate(query, new Sort(), Integer.MAX_VALUE);
+            Map<String, Float> result = new HashMap<String, Float>();
+            try {
+                ScoreNode sn;
+                while ((sn = hits.nextScoreNode()) != null) {
+                    Node n = superuser.getNodeByIdentifier(sn.getNodeId().toString());
+                    if (n.getPath().startsWith(testRoot + "/")) {
+                        result.put(n.getName(), sn.getScore());
+                    }
+                }
+            } finally {
+                hits.close();
+            }
+            return result;
+        } finally {
+            Util.closeOrRelease(reader);
+        }
+    }
+
+    private static Set<NodeId> getIds(Node... nodes) throws Exception {
+        Set<NodeId> ids = new HashSet<NodeId>();
+        for (Node n : nodes) {
+            ids.add(new NodeId(n.getIdentifier()));
+        }
+        return ids;
+    }
+
+    private static Set<String> createSet(String... names) {
+        Set<String> set = new HashSet<String>();
+        Collections.addAll(set, names);
+        return set;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import java.io.IOException;
+
+import javax.jcr.PropertyType;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.query.lucene.SharedFieldCache.ComparableArray;
+import org.apache.jackrabbit.core.query.lucene.SharedFieldCache.DoubleValueIndex;
+import org.apache.jackrabbit.core.query.lucene.SharedFieldCache.LongValueIndex;
+import org.apache.jackrabbit.core.query.lucene.SharedFieldCache.StringValueIndex;
+import org.apache.jackrabbit.core.query.lucene.SharedFieldCache.ValueIndex;
+import org.apache.jackrabbit.core.query.lucene.SharedFieldComparatorSource.SimpleFieldComparator;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Tests the typed value indexes of the {@link SharedFieldCache}.
+ */
+public class SharedFieldCacheTest extends TestCase {
+
+    private static final String PROPERTY = "prop";
+
+    public void testLongValues() throws Exception {
+        IndexReader reader = createReader(
+                new Object[] {3L}, null, new Object[] {-7L}, new Object[] {0L});
+        try {
+            ValueIndex index = getValueIndex(reader);
+            assertTrue(index instanceof LongValueIndex);
+            LongValueIndex longs = (LongValueIndex) index;
+            assertTrue(longs.hasValue(0));
+            assertFalse(longs.hasValue(1));
+            assertEquals(-7L, longs.getLong(2));
+            assertEquals(3L, index.getValue(0));
+            assertNull(index.getValue(1));
+            assertEquals(0L, index.getValue(3));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testDateAndLongValues() throws Exception {
+        IndexReader reader = createReader(
+                new Object[] {new DateValue(1000L)}, new Object[] {5L});
+        try {
+            ValueIndex index = getValueIndex(reader);
+            assertTrue(index instanceof LongValueIndex);
+            assertEquals(1000L, index.getValue(0));
+            assertEquals(5L, index.getValue(1));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testDoubleValues() throws Exception {
+        IndexReader reader = createReader(
+                new Object[] {2.5d}, new Object[] {-1.0d}, null);
+        try {
+            ValueIndex index = getValueIndex(reader);
+            assertTrue(index instanceof DoubleValueIndex);
+            assertEquals(2.5d, index.getValue(0));
+            assertEquals(-1.0d, index.getValue(1));
+            assertNull(index.getValue(2));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testStringValues() throws Exception {
+        IndexReader reader = createReader(
+                new Object[] {"b"}, new Object[] {"a"}, null,
+                new Object[] {"c"}, new Object[] {"a"});
+        try {
+            ValueIndex index = getValueIndex(reader);
+            assertTrue(index instanceof StringValueIndex);
+            StringValueIndex strings = (StringValueIndex) index;
+            assertEquals(1, strings.getOrdinal(0));
+            assertEquals(0, strings.getOrdinal(1));
+            assertEquals(-1, strings.getOrdinal(2));
+            assertEquals(2, strings.getOrdinal(3));
+            assertEquals(0, strings.getOrdinal(4));
+            assertEquals("c", strings.getTerm(2));
+            assertEquals(-2, strings.lookup("aa"));
+            assertEquals("b", index.getValue(0));
+            assertNull(index.getValue(2));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testMixedValues() throws Exception {
+        IndexReader reader = createReader(
+                new Object[] {1L}, new Object[] {"x"}, new Object[] {2L});
+        try {
+            ValueIndex index = getValueIndex(reader);
+            assertFalse(index instanceof LongValueIndex);
+            assertFalse(index instanceof StringValueIndex);
+            assertEquals(1L, index.getValue(0));
+            assertEquals("x", index.getValue(1));
+            assertEquals(2L, index.getValue(2));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testMultiValues() throws Exception {
+        IndexReader reader = createReader(
+                new Object[] {4L}, new Object[] {2L, 1L}, new Object[] {3L});
+        try {
+            ValueIndex index = getValueIndex(reader);
+            assertFalse(index instanceof LongValueIndex);
+            assertTrue(index.getValue(0) instanceof ComparableArray);
+            assertEquals("[2, 1]", index.getValue(1).toString());
+            assertEquals("3", index.getValue(2).toString());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The typed comparison of the bottom value must give the same result as
+     * comparing the <code>Comparable</code>s, also if the bottom value is
+     * taken from another segment.
+     */
+    public void testCompareBottom() throws Exception {
+        assertCompareBottom(
+                createReader(new Object[] {3L}, null, new Object[] {9L}),
+                createReader(new Object[] {3L}, new Object[] {-1L}, null,
+                        new Object[] {5L}, new Object[] {10L}));
+        assertCompareBottom(
+                createReader(new Object[] {1.5d}, new Object[] {-2d}),
+                createReader(new Object[] {1.5d}, null, new Object[] {7d}));
+        assertCompareBottom(
+                createReader(new Object[] {"b"}, new Object[] {"m"}, null),
+                createReader(new Object[] {"a"}, new Object[] {"b"}, null,
+                        new Object[] {"c"}, new Object[] {"n"}));
+        assertCompareBottom(
+                createReader(new Object[] {7L}, new Object[] {"x"}),
+                createReader(new Object[] {"a"}, new Object[] {8L}));
+    }
+
+    private static void assertCompareBottom(IndexReader r1, IndexReader r2)
+            throws IOException {
+        try {
+            for (int i = 0; i < r1.maxDoc(); i++) {
+                SimpleFieldComparator comparator = new SimpleFieldComparator(
+                        PROPERTY, FieldNames.PROPERTIES, 1);
+                comparator.setNextReader(r1, 0);
+                comparator.copy(0, i);
+                comparator.setBottom(0);
+                comparator.setNextReader(r2, 0);
+                for (int j = 0; j < r2.maxDoc(); j++) {
+                    int expected = comparator.compare(
+                            comparator.getValue(0), comparator.sortValue(j));
+                    assertEquals(Integer.signum(expected),
+                            Integer.signum(comparator.compareBottom(j)));
+                }
+            }
+        } finally {
+            r1.close();
+            r2.close();
+        }
+    }
+
+    private static ValueIndex getValueIndex(IndexReader reader)
+            throws IOException {
+        return SharedFieldCache.INSTANCE.getValueIndex(reader,
+                FieldNames.PROPERTIES,
+                FieldNames.createNamedValue(PROPERTY, ""));
+    }
+
+    /**
+     * Creates an index with one document per argument, which contains the
+     * given values of the property, or none if the argument is
+     * <code>null</code>.
+     */
+    private static IndexReader createReader(Object[]... docs)
+            throws IOException {
+        Directory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(
+                Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36)));
+        try {
+            for (Object[] values : docs) {
+                Document doc = new Document();
+                doc.add(new Field(FieldNames.LOCAL_NAME, false, "node",
+                        Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS,
+                        Field.TermVector.NO));
+                if (values != null) {
+                    for (Object value : values) {
+                        doc.add(createField(value));
+                    }
+                }
+                writer.addDocument(doc);
+            }
+        } finally {
+            writer.close();
+        }
+        return IndexReader.open(dir);
+    }
+
+    private static Field createField(Object value) {
+        String text;
+        int type;
+        if (value instanceof Long) {
+            text = LongField.longToString((Long) value);
+            type = PropertyType.LONG;
+        } else if (value instanceof DateValue) {
+            text = DateField.timeToString(((DateValue) value).time);
+            type = PropertyType.DATE;
+        } else if (value instanceof Double) {
+            text = DoubleField.doubleToString((Double) value);
+            type = PropertyType.DOUBLE;
+        } else {
+            text = (String) value;
+            type = PropertyType.STRING;
+        }
+        Field field = new Field(FieldNames.PROPERTIES, new SingletonTokenStream(
+                FieldNames.createNamedValue(PROPERTY, text), type));
+        field.setOmitNorms(true);
+        return field;
+    }
+
+    private static class DateValue {
+
+        private final long time;
+
+        DateValue(long time) {
+            this.time = time;
+        }
+
+    }
+
+}
@@ -43,6 +43,9 @@ public class TestAll extends TestCase {
         suite.addTestSuite(IndexingAggregateTest.class);
         suite.addTestSuite(IndexMigrationTest.class);
         suite.addTestSuite(ChainedTermEnumTest.class);
+        suite.addTestSuite(SharedFieldCacheTest.class);
+        suite.addTestSuite(ParallelSegmentSearcherTest.class);
+        suite.addTestSuite(ReadScopeQueryTest.class);
         suite.addTestSuite(IndexingConfigurationImplTest.class);
         suite.addTestSuite(SQL2IndexingAggregateTest.class);
         suite.addTestSuite(SQL2IndexingAggregateTest2.class);
@@ -53,6 +56,11 @@ public class TestAll extends TestCase {
         suite.addTestSuite(ArrayHitsTest.class);
         suite.addTestSuite(IndexFormatVersionTest.class);
         suite.addTestSuite(SynonymProviderTest.class);
+        suite.addTestSuite(ParallelInitialIndexTest.class);
+        suite.addTestSuite(HierarchyCacheFileTest.class);
+        suite.addTestSuite(NearRealTimeIndexTest.class);
+        suite.addTestSuite(IndexMergePolicyTest.class);
+        suite.addTestSuite(CountTotalSizeTest.class);
 
         return suite;
     }
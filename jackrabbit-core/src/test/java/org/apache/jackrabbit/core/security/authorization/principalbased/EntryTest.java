@@ -135,6 +135,28 @@ public class EntryTest extends AbstractEntryTest {
         assertEquals(PropertyType.STRING, pe.getRestriction(glob).getType());
     }
 
+    public void testGetSubtreePath() throws RepositoryException, NotExecutableException {
+        Privilege[] privs = privilegesFromName(Privilege.JCR_READ);
+
+        // the glob '*' also matches siblings of /a/b/c/d
+        ACLTemplate.Entry entry = (ACLTemplate.Entry) createEntry(testPrincipal, privs, true);
+        assertEquals("/a/b/c", entry.getSubtreePath());
+
+        Map<String, Value> restr = new HashMap<String, Value>();
+        restr.put(nodePath,  restrictions.get(nodePath));
+        entry = (ACLTemplate.Entry) createEntry(testPrincipal, privs, true, restr);
+        assertEquals("/a/b/c/d", entry.getSubtreePath());
+
+        restr.put(glob,  new StringValue(""));
+        entry = (ACLTemplate.Entry) createEntry(testPrincipal, privs, true, restr);
+        assertEquals("/a/b/c/d", entry.getSubtreePath());
+
+        restr.put(nodePath, superuser.getValueFactory().createValue("/", PropertyType.PATH));
+        restr.put(glob,  new StringValue("*"));
+        entry = (ACLTemplate.Entry) createEntry(testPrincipal, privs, true, restr);
+        assertEquals("/", entry.getSubtreePath());
+    }
+
     public void testTypeConversion() throws RepositoryException, NotExecutableException {
         // ACLTemplate impl tries to convert the property types if the don't
         // match the required ones.
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.state;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.state.ISMLocking.WriteLock;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+
+/**
+ * <code>StripedISMLockingTest</code> executes the test cases implemented in
+ * {@link AbstractISMLockingTest} and checks the striping specific behavior.
+ */
+public class StripedISMLockingTest extends AbstractISMLockingTest {
+
+    public ISMLocking createISMLocking() {
+        return new StripedISMLocking();
+    }
+
+    /**
+     * Creates a change log that modifies a node in the given stripe.
+     */
+    private ChangeLog createChangeLog(int stripe) {
+        StripedISMLocking striped = (StripedISMLocking) locking;
+        NodeId id;
+        do {
+            id = NodeId.randomId();
+        } while ((id.hashCode() >>> 1) % striped.getStripes() != stripe);
+        ChangeLog log = new ChangeLog();
+        log.modified(new NodeState(
+                id, NameConstants.NT_BASE, null,
+                ItemState.STATUS_EXISTING, true));
+        return log;
+    }
+
+    /**
+     * Checks that writers with disjoint change logs don't block each other.
+     */
+    public void testDisjointWrites() throws InterruptedException {
+        ((StripedISMLocking) locking).setStripes(16);
+        WriteLock wLock = locking.acquireWriteLock(createChangeLog(1));
+        verifyNotBlocked(startWriterThread(locking, createChangeLog(2)));
+        verifyBlocked(startWriterThread(locking, createChangeLog(1)));
+        wLock.release();
+    }
+
+    /**
+     * Checks that two writers reading each others items are not deadlocked,
+     * but one of them is aborted instead.
+     */
+    public void testDeadlockDetection() throws InterruptedException {
+        ((StripedISMLocking) locking).setStripes(16);
+        final ChangeLog log1 = createChangeLog(1);
+        final ChangeLog log2 = createChangeLog(2);
+        WriteLock wLock = locking.acquireWriteLock(log1);
+        final Exception[] failure = new Exception[1];
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    WriteLock lock = locking.acquireWriteLock(log2);
+                    try {
+                        locking.acquireReadLock(
+                                log1.modifiedStates().iterator().next().getId())
+                                .release();
+                    } finally {
+                        lock.release();
+                    }
+                } catch (InterruptedException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        t.start();
+        Thread.sleep(100);
+        assertTrue(t.isAlive());
+        try {
+            locking.acquireReadLock(
+                    log2.modifiedStates().iterator().next().getId()).release();
+            fail("deadlock not detected");
+        } catch (InterruptedException e) {
+            // expected
+        }
+        wLock.release();
+        verifyNotBlocked(t);
+        assertNull(failure[0]);
+    }
+
+}
@@ -41,6 +41,7 @@ public class TestAll extends TestCase {
         suite.addTestSuite(FineGrainedISMLockingTest.class);
         suite.addTestSuite(NameSetTest.class);
         suite.addTestSuite(NodeStateMergerTest.class);
+        suite.addTestSuite(StripedISMLockingTest.class);
 
         return suite;
     }
@@ -76,4 +76,21 @@ public class QueryStatCoreTest extends AbstractJCRTest {
         queryStat.setPopularQueriesQueueSize(newSize);
         assertEquals(newSize, queryStat.getPopularQueries().length);
     }
+
+    public void testPlanCacheCounters() throws Exception {
+        queryStat.logPlanCacheMiss();
+        queryStat.logPlanCacheHit();
+        queryStat.logPlanCacheHit();
+        assertEquals(2, queryStat.getPlanCacheHitCount());
+        assertEquals(1, queryStat.getPlanCacheMissCount());
+
+        // nothing is counted while disabled
+        queryStat.setEnabled(false);
+        queryStat.logPlanCacheHit();
+        assertEquals(2, queryStat.getPlanCacheHitCount());
+
+        queryStat.reset();
+        assertEquals(0, queryStat.getPlanCacheHitCount());
+        assertEquals(0, queryStat.getPlanCacheMissCount());
+    }
 }
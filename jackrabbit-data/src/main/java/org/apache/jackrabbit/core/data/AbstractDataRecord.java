@@ -17,6 +17,11 @@
 
 package org.apache.jackrabbit.core.data;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
 /**
  * Abstract data record base class. This base class contains only
@@ -60,6 +65,63 @@ public abstract class AbstractDataRecord implements DataRecord {
         return store.getReferenceFromIdentifier(identifier);
     }
 
+    /**
+     * Returns a range of the binary stream. This default implementation
+     * skips the first <code>offset</code> bytes of {@link #getStream()}.
+     * Sub classes override it if they can position the stream directly.
+     *
+     * @param offset the position of the first byte
+     * @param length the maximum number of bytes
+     * @return binary stream of the range
+     * @throws DataStoreException if the record could not be accessed
+     */
+    public InputStream getStream(long offset, long length)
+            throws DataStoreException {
+        checkRange(offset, length);
+        InputStream in = getStream();
+        try {
+            long skipped = in.skip(offset);
+            if (skipped < offset) {
+                // the stream may skip less than requested
+                IOUtils.skip(in, offset - skipped);
+            }
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw new DataStoreException("Error skipping to position " + offset
+                    + " of " + identifier, e);
+        }
+        return limit(in, length);
+    }
+
+    /**
+     * Checks the arguments of {@link #getStream(long, long)}.
+     *
+     * @param offset the position of the first byte
+     * @param length the maximum number of bytes
+     * @throws IllegalArgumentException if the offset or length is negative
+     */
+    protected static void checkRange(long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("offset=" + offset
+                    + ", length=" + length);
+        }
+    }
+
+    /**
+     * Limits a stream to <code>length</code> bytes.
+     *
+     * @param in the stream
+     * @param length the maximum number of bytes, {@link Long#MAX_VALUE} for
+     *               no limit
+     * @return the limited stream
+     */
+    protected static InputStream limit(InputStream in, long length) {
+        if (length == Long.MAX_VALUE) {
+            return in;
+        }
+        return new BoundedInputStream(in, length);
+    }
+
     /**
      * Returns the string representation of the data identifier.
      *
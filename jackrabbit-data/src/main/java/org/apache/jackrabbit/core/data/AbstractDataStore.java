@@ -16,6 +16,7 @@
  */
 package org.apache.jackrabbit.core.data;
 
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -25,6 +26,11 @@ public abstract class AbstractDataStore implements DataStore {
 
     private static final String ALGORITHM = "HmacSHA1";
 
+    /**
+     * The default digest algorithm used to identify new records.
+     */
+    protected static final String DEFAULT_DIGEST = "SHA-1";
+
     /**
      * Array of hexadecimal digits.
      */
@@ -36,6 +42,60 @@ public abstract class AbstractDataStore implements DataStore {
      */
     private byte[] referenceKey = null;
 
+    /**
+     * The digest algorithm used to identify new records.
+     */
+    private String digestAlgorithm = DEFAULT_DIGEST;
+
+    /**
+     * The maximum size of a new record that is digested in memory.
+     */
+    private int ingestBufferSize = IngestStream.DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Recently added records, to detect a large record that already exists.
+     */
+    private final IngestStream.HintCache hints = new IngestStream.HintCache();
+
+    //----------------------------------------------------------< settings >--
+
+    /**
+     * @return the digest algorithm used to identify new records.
+     */
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Set the {@link MessageDigest} algorithm used to identify new records,
+     * for example SHA-256. Existing records keep their identifiers, a
+     * record added again with another algorithm is stored again. The
+     * default is SHA-1.
+     *
+     * @param digestAlgorithm the algorithm name
+     */
+    public void setDigestAlgorithm(String digestAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    /**
+     * @return the maximum size of a new record that is digested in memory.
+     */
+    public int getIngestBufferSize() {
+        return ingestBufferSize;
+    }
+
+    /**
+     * Set the maximum size of a new record that is digested in memory,
+     * without storing it if it already exists. Larger records are written
+     * to a temporary location first. The default is 256 KB.
+     *
+     * @param ingestBufferSize the size in bytes
+     */
+    public void setIngestBufferSize(int ingestBufferSize) {
+        this.ingestBufferSize = ingestBufferSize;
+    }
+
     //---------------------------------------------------------< DataStore >--
 
     public DataRecord getRecord(DataIdentifier identifier)
@@ -81,6 +141,16 @@ public abstract class AbstractDataStore implements DataStore {
         return new String(buffer);
     }
 
+    /**
+     * Returns the recently added records of this data store, to detect a
+     * large record that already exists.
+     *
+     * @return the hint cache
+     */
+    protected IngestStream.HintCache getHints() {
+        return hints;
+    }
+
     protected String getReferenceFromIdentifier(DataIdentifier identifier) {
         try {
             String id = identifier.toString();
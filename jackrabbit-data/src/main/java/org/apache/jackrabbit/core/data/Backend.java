@@ -53,6 +53,25 @@ public interface Backend {
      */
     InputStream read(DataIdentifier identifier) throws DataStoreException;
 
+    /**
+     * Return inputstream of a range of the record identified by identifier.
+     * The backend should transfer only the requested range.
+     * 
+     * @param identifier
+     *            identifier of record.
+     * @param offset
+     *            position of the first byte of the range.
+     * @param length
+     *            maximum number of bytes of the range,
+     *            {@link Long#MAX_VALUE} for the rest of the record.
+     * @return inputstream of the range, which is empty if offset is at or
+     *         after the end of the record.
+     * @throws DataStoreException
+     *             if record not found or any error.
+     */
+    InputStream read(DataIdentifier identifier, long offset, long length)
+            throws DataStoreException;
+
     /**
      * Return length of record identified by identifier.
      * 
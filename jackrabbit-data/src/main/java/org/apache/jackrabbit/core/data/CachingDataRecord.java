@@ -59,4 +59,11 @@ public class CachingDataRecord extends AbstractDataRecord {
         return store.getStream(getIdentifier());
     }
 
+    @Override
+    public InputStream getStream(long offset, long length)
+            throws DataStoreException {
+        checkRange(offset, length);
+        return store.getStream(getIdentifier(), offset, length);
+    }
+
 }
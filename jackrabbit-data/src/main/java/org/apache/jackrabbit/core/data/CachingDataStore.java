@@ -22,12 +22,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
-import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -37,8 +38,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -48,6 +51,8 @@ import javax.jcr.RepositoryException;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.jackrabbit.core.data.db.TempFileInputStream;
 import org.apache.jackrabbit.core.data.util.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -79,21 +84,23 @@ import org.slf4j.LoggerFactory;
  *     &lt;param name="{@link #setTouchAsync(boolean) touchAsync}" value="false"/>
  *     &lt;param name="{@link #setProactiveCaching(boolean) proactiveCaching}" value="true"/>
  *     &lt;param name="{@link #setRecLengthCacheSize(int) recLengthCacheSize}" value="200"/>
+ *     &lt;param name="{@link #setMultipartThreshold(long) multipartThreshold}" value="67108864"/>
+ *     &lt;param name="{@link #setPartSize(long) partSize}" value="16777216"/>
+ *     &lt;param name="{@link #setConcurrentPartsPerRecord(int) concurrentPartsPerRecord}" value="4"/>
+ *     &lt;param name="{@link #setConcurrentParts(int) concurrentParts}" value="16"/>
+ *     &lt;param name="{@link #setDigestAlgorithm(String) digestAlgorithm}" value="SHA-1"/>
+ *     &lt;param name="{@link #setIngestBufferSize(int) ingestBufferSize}" value="262144"/>
  * &lt/DataStore>
  */
 public abstract class CachingDataStore extends AbstractDataStore implements
-        MultiDataStoreAware, AsyncUploadCallback, AsyncTouchCallback {
+        MultiDataStoreAware, ReferenceAwareDataStore, AsyncUploadCallback,
+        AsyncTouchCallback {
 
     /**
      * Logger instance.
      */
     private static final Logger LOG = LoggerFactory.getLogger(CachingDataStore.class);
 
-    /**
-     * The digest algorithm used to uniquely identify records.
-     */
-    private static final String DIGEST = "SHA-1";
-
     private static final String DS_STORE = ".DS_Store";
 
     /**
@@ -102,11 +109,23 @@ public abstract class CachingDataStore extends AbstractDataStore implements
      */
     private static final String TMP = "tmp";
 
+    /**
+     * The maximum number of parts of a record. Larger records are
+     * transferred in larger parts.
+     */
+    private static final int MAX_PARTS = 10000;
+
     /**
      * All data identifiers that are currently in use are in this set until they
      * are garbage collected.
      */
     protected Map<DataIdentifier, WeakReference<DataIdentifier>> inUse = Collections.synchronizedMap(new WeakHashMap<DataIdentifier, WeakReference<DataIdentifier>>());
+
+    /**
+     * The referenced records while
+     * {@link #deleteAllOlderThan(long, DataReferences)} runs, otherwise null.
+     */
+    private volatile DataReferences references;
     
     /**
      * In memory map to hold failed asynchronous upload {@link DataIdentifier}
@@ -251,6 +270,39 @@ public abstract class CachingDataStore extends AbstractDataStore implements
      */
     private int recLengthCacheSize = 200;
 
+    /**
+     * Records of at least this size in bytes are downloaded from
+     * {@link Backend} in ranges, and uploaded in parts if the backend is a
+     * {@link MultipartBackend}. The parts are transferred concurrently. Set
+     * to 0 to transfer all records in a single stream. By default it is
+     * 64 MB.
+     */
+    private long multipartThreshold = 64L * 1024 * 1024;
+
+    /**
+     * Size in bytes of the parts of a record transferred in parts. By
+     * default it is 16 MB.
+     */
+    private long partSize = 16L * 1024 * 1024;
+
+    /**
+     * The maximum number of parts of a single record that are transferred
+     * concurrently. By default it is 4.
+     */
+    private int concurrentPartsPerRecord = 4;
+
+    /**
+     * The maximum number of parts of all records that are transferred
+     * concurrently. This is the number of threads of
+     * {@link #partExecService}. By default it is 16.
+     */
+    private int concurrentParts = 16;
+
+    /**
+     * {@link ExecutorService} to transfer parts of records.
+     */
+    private ExecutorService partExecService;
+
     /**
      * Initialized the data store. If the path is not set, &lt;repository
      * home&gt;/repository/datastore is used. This directory is automatically
@@ -283,6 +335,9 @@ public abstract class CachingDataStore extends AbstractDataStore implements
             }
             backend = createBackend();
             backend.init(this, path, config);
+            partExecService = Executors.newFixedThreadPool(
+                Math.max(1, concurrentParts),
+                new NamedThreadFactory("backend-part-transfer-worker"));
             String markerFileName = getMarkerFile();
             if (markerFileName != null && !"".equals(markerFileName.trim())) {
                 // create marker file in homeDir to avoid deletion in cache
@@ -358,8 +413,10 @@ public abstract class CachingDataStore extends AbstractDataStore implements
             }
             downloadExecService = Executors.newFixedThreadPool(5,
                 new NamedThreadFactory("backend-file-download-worker"));
+            // keep the cache index in homeDir like the async upload cache
             cache = new LocalCache(path, tmpDir.getAbsolutePath(), cacheSize,
-                cachePurgeTrigFactor, cachePurgeResizeFactor, asyncWriteCache);
+                cachePurgeTrigFactor, cachePurgeResizeFactor, asyncWriteCache,
+                homeDir);
             /*
              * Initialize LRU cache of size {@link #recLengthCacheSize}
              */
@@ -386,11 +443,17 @@ public abstract class CachingDataStore extends AbstractDataStore implements
 
     /**
      * Creates a new data record in {@link Backend}. The stream is first
-     * consumed and the contents are saved in a temporary file and the SHA-1
+     * consumed and the contents are saved in a temporary file and the
      * message digest of the stream is calculated. If a record with the same
-     * SHA-1 digest (and length) is found then it is returned. Otherwise new
+     * digest (and length) is found then it is returned. Otherwise new
      * record is created in {@link Backend} and the temporary file is moved in
      * place to {@link LocalCache}.
+     * <p>
+     * No temporary file is written for a record that already exists in
+     * {@link LocalCache}, if the record is small enough to be digested in
+     * memory, or if the record is found by a {@link DataIdentifierHint} of
+     * the stream or among the recently added records and has the same
+     * content.
      * 
      * @param input
      *            binary stream
@@ -404,51 +467,73 @@ public abstract class CachingDataStore extends AbstractDataStore implements
         long startTime = System.currentTimeMillis();
         long length = 0;
         try {
-            temporary = newTemporaryFile();
-            DataIdentifier tempId = new DataIdentifier(temporary.getName());
-            usesIdentifier(tempId);
-            // Copy the stream to the temporary file and calculate the
-            // stream length and the message digest of the stream
-            MessageDigest digest = MessageDigest.getInstance(DIGEST);
-            OutputStream output = new DigestOutputStream(new FileOutputStream(
-                temporary), digest);
-            try {
-                length = IOUtils.copyLarge(input, output);
-            } finally {
-                output.close();
+            IngestStream in = new IngestStream(input,
+                MessageDigest.getInstance(getDigestAlgorithm()), getIngestBufferSize());
+            DataIdentifier identifier = null;
+            DataIdentifier tempId = null;
+            File src = null;
+            if (in.isComplete()) {
+                File cached = cache.getFileIfStored(getFileName(in.getIdentifier()));
+                if (cached != null && cached.length() == in.getLength()) {
+                    identifier = in.getIdentifier();
+                    src = cached;
+                }
+            } else {
+                DataIdentifier hint = getHints().get(in);
+                File cached = hint == null ? null
+                        : cache.getFileIfStored(getFileName(hint));
+                if (cached != null
+                    && in.matches(new CachingDataRecord(this, hint))) {
+                    identifier = hint;
+                    src = cached;
+                }
             }
+            if (identifier == null) {
+                temporary = newTemporaryFile();
+                tempId = new DataIdentifier(temporary.getName());
+                usesIdentifier(tempId);
+                // Copy the stream to the temporary file and calculate the
+                // stream length and the message digest of the stream
+                OutputStream output = new FileOutputStream(temporary);
+                try {
+                    IOUtils.copyLarge(in, output);
+                } finally {
+                    output.close();
+                }
+                identifier = in.getIdentifier();
+                src = temporary;
+            }
+            length = in.getLength();
             long currTime = System.currentTimeMillis();
-            DataIdentifier identifier = new DataIdentifier(
-                encodeHexString(digest.digest()));
-            LOG.debug("SHA1 of [{}], length =[{}] took [{}]ms ",
-                new Object[] { identifier, length, (currTime - startTime) });
+            LOG.debug("{} of [{}], length =[{}] took [{}]ms ",
+                new Object[] { getDigestAlgorithm(), identifier, length,
+                    (currTime - startTime) });
             String fileName = getFileName(identifier);
             AsyncUploadCacheResult result = null;
             synchronized (this) {
                 usesIdentifier(identifier);
                 // check if async upload is already in progress
                 if (!asyncWriteCache.hasEntry(fileName, true)) {
-                    result = cache.store(fileName, temporary, true);
+                    result = cache.store(fileName, src, true);
                 }
             }
             LOG.debug("storing  [{}] in localCache took [{}] ms", identifier,
                 (System.currentTimeMillis() - currTime));
             if (result != null) {
-                if (result.canAsyncUpload()) {
-                    backend.writeAsync(identifier, result.getFile(), this);
-                } else {
-                    backend.write(identifier, result.getFile());
-                }
+                write(identifier, result.getFile(), result.canAsyncUpload());
+            }
+            getHints().put(in, identifier);
+            if (tempId != null) {
+                // this will also make sure that
+                // tempId is not garbage collected until here
+                inUse.remove(tempId);
             }
-            // this will also make sure that
-            // tempId is not garbage collected until here
-            inUse.remove(tempId);
             LOG.debug("addRecord [{}] of length [{}] took [{}]ms.",
                 new Object[] { identifier, length,
                     (System.currentTimeMillis() - startTime) });
             return new CachingDataRecord(this, identifier);
         } catch (NoSuchAlgorithmException e) {
-            throw new DataStoreException(DIGEST + " not available", e);
+            throw new DataStoreException(getDigestAlgorithm() + " not available", e);
         } catch (IOException e) {
             throw new DataStoreException("Could not add record", e);
         } finally {
@@ -596,6 +681,32 @@ public abstract class CachingDataStore extends AbstractDataStore implements
         return diSet.size();
     }
 
+    /**
+     * Deletes the unreferenced records. The {@link Backend} asks
+     * {@link #confirmDelete(DataIdentifier)} before it deletes a record,
+     * which also checks the references. Pending asynchronous uploads that
+     * are referenced or in use are touched, so that they are kept.
+     */
+    public synchronized int deleteAllOlderThan(long min,
+            DataReferences references) throws DataStoreException {
+        try {
+            for (String fileName : asyncWriteCache.getAll()) {
+                DataIdentifier identifier = getIdentifier(fileName);
+                if (isInUse(identifier) || references.isReferenced(identifier)) {
+                    asyncWriteCache.hasEntry(fileName, true);
+                }
+            }
+        } catch (IOException e) {
+            throw new DataStoreException(e);
+        }
+        this.references = references;
+        try {
+            return deleteAllOlderThan(min);
+        } finally {
+            this.references = null;
+        }
+    }
+
     /**
      * Get stream of record from {@link LocalCache}. If record is not available
      * in {@link LocalCache}, this method fetches record from {@link Backend}
@@ -610,6 +721,10 @@ public abstract class CachingDataStore extends AbstractDataStore implements
             if (cached != null) {
                 return cached;
             }
+            if (multipartThreshold > 0
+                && isMultipart(getBackendLength(identifier))) {
+                return downloadInParts(identifier, fileName);
+            }
             in = backend.read(identifier);
             return cache.store(fileName, in);
         } catch (IOException e) {
@@ -619,6 +734,29 @@ public abstract class CachingDataStore extends AbstractDataStore implements
         }
     }
 
+    /**
+     * Get stream of a range of a record. If the record is available in
+     * {@link LocalCache}, the cached file is positioned at the offset.
+     * Otherwise only the range is read from {@link Backend} and the whole
+     * record is cached asynchronously, if proactive caching is enabled.
+     */
+    InputStream getStream(DataIdentifier identifier, long offset, long length)
+            throws DataStoreException {
+        try {
+            File cached = cache.getFileIfStored(getFileName(identifier));
+            if (cached != null) {
+                InputStream in = new LazyFileInputStream(cached, offset);
+                return length == Long.MAX_VALUE
+                    ? in : new BoundedInputStream(in, length);
+            }
+        } catch (IOException e) {
+            throw new DataStoreException("IO Exception: " + identifier, e);
+        }
+        InputStream in = backend.read(identifier, offset, length);
+        asyncDownload(identifier);
+        return in;
+    }
+
     /**
      * Return lastModified of record from {@link Backend} assuming
      * {@link Backend} as a single source of truth.
@@ -711,14 +849,18 @@ public abstract class CachingDataStore extends AbstractDataStore implements
             LOG.debug("Upload completed for [{}]", identifier);
             // remove from failed upload map if any.
             uploadRetryMap.remove(identifier);
-            AsyncUploadCacheResult cachedResult = asyncWriteCache.remove(fileName);
-            if (cachedResult.doRequiresDelete()) {
-                // added record already marked for delete
-                deleteRecord(identifier);
-            } else {
-                // async upload took lot of time.
-                // getRecord to touch if required.
-                getRecord(identifier);
+            // synchronized like deleteRecord, so that a concurrent delete
+            // is either seen here or happens after the record is touched
+            synchronized (this) {
+                AsyncUploadCacheResult cachedResult = asyncWriteCache.remove(fileName);
+                if (cachedResult.doRequiresDelete()) {
+                    // added record already marked for delete
+                    deleteRecord(identifier);
+                } else {
+                    // async upload took lot of time.
+                    // getRecord to touch if required.
+                    getRecord(identifier);
+                }
             }
         } catch (IOException ie) {
             LOG.warn("Cannot remove pending file upload. Dataidentifer [ "
@@ -758,7 +900,7 @@ public abstract class CachingDataStore extends AbstractDataStore implements
                             "Retrying [{}] times failed upload for dataidentifer",
                             retry, identifier);
                         try {
-                            backend.writeAsync(identifier, file, this);
+                            write(identifier, file, true);
                         } catch (DataStoreException e) {
                             LOG.warn("exception", e);
                         }
@@ -830,6 +972,12 @@ public abstract class CachingDataStore extends AbstractDataStore implements
                 identifier);
             return false;
         }
+        DataReferences refs = references;
+        if (refs != null && refs.isReferenced(identifier)) {
+            LOG.debug("identifier [{}] is referenced confirmDelete= false ",
+                identifier);
+            return false;
+        }
 
         String fileName = getFileName(identifier);
         long lastModified = asyncWriteCache.getLastModified(fileName);
@@ -906,6 +1054,95 @@ public abstract class CachingDataStore extends AbstractDataStore implements
         }
     }
 
+    /**
+     * Write file to {@link Backend}. Files of at least
+     * {@link #multipartThreshold} bytes are uploaded in parts, if the backend
+     * is a {@link MultipartBackend}. In asynchronous mode the result is passed
+     * to the {@link AsyncUploadCallback} methods of this data store.
+     */
+    private void write(DataIdentifier identifier, File file,
+            boolean asyncUpload) throws DataStoreException {
+        if (backend instanceof MultipartBackend && isMultipart(file.length())) {
+            if (backend.exists(identifier, true)) {
+                LOG.debug("[{}] exists in backend, lastModified updated.",
+                    identifier);
+                if (asyncUpload) {
+                    onSuccess(new AsyncUploadResult(identifier, file));
+                }
+                return;
+            }
+            PartUpload upload = new PartUpload((MultipartBackend) backend,
+                identifier, file, asyncUpload);
+            upload.start();
+            if (!asyncUpload) {
+                upload.await();
+            }
+        } else if (asyncUpload) {
+            backend.writeAsync(identifier, file, this);
+        } else {
+            backend.write(identifier, file);
+        }
+    }
+
+    /**
+     * Download record from {@link Backend} in ranges concurrently to a
+     * temporary file, which is then moved to {@link LocalCache}.
+     */
+    private InputStream downloadInParts(DataIdentifier identifier,
+            String fileName) throws DataStoreException, IOException {
+        File temporary = newTemporaryFile();
+        try {
+            PartDownload download = new PartDownload(identifier, temporary,
+                getBackendLength(identifier));
+            download.start();
+            download.await();
+            File cached = cache.store(fileName, temporary);
+            if (cached != null && !cached.equals(temporary)) {
+                // the temporary file is deleted if it was not moved
+                return new LazyFileInputStream(cached);
+            }
+            // not admitted to the cache
+            InputStream in = new TempFileInputStream(temporary);
+            temporary = null;
+            return in;
+        } finally {
+            if (temporary != null) {
+                temporary.delete();
+            }
+        }
+    }
+
+    /**
+     * Return true if a record of the given length is transferred in parts.
+     */
+    private boolean isMultipart(long length) {
+        return multipartThreshold > 0 && length >= multipartThreshold
+            && length > partSize;
+    }
+
+    /**
+     * Return the length of the parts of a record of the given length.
+     */
+    private long getPartSize(long length) {
+        return Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+    }
+
+    /**
+     * Return the length of record from {@link #recLenCache} if available,
+     * otherwise retrieve it from {@link Backend}. Unlike
+     * {@link #getLength(DataIdentifier)} this method does not start an
+     * asynchronous download.
+     */
+    private long getBackendLength(DataIdentifier identifier)
+            throws DataStoreException {
+        Long length = recLenCache.get(identifier);
+        if (length == null) {
+            length = backend.getLength(identifier);
+            recLenCache.put(identifier, length);
+        }
+        return length;
+    }
+
     /**
      * Returns a unique temporary file to be used for creating a new data
      * record.
@@ -993,7 +1230,7 @@ public abstract class CachingDataStore extends AbstractDataStore implements
         try {
             DataIdentifier identifier = new DataIdentifier(f.getName());
             usesIdentifier(identifier);
-            backend.write(identifier, f);
+            write(identifier, f, false);
             if (updateAsyncUploadCache) {
                 String fileName = getFileName(identifier);
                 asyncWriteCache.remove(fileName);
@@ -1057,6 +1294,7 @@ public abstract class CachingDataStore extends AbstractDataStore implements
         cache.close();
         backend.close();
         downloadExecService.shutdown();
+        partExecService.shutdown();
     }
 
     /**
@@ -1219,6 +1457,38 @@ public abstract class CachingDataStore extends AbstractDataStore implements
         this.recLengthCacheSize = recLengthCacheSize;
     }
 
+    public long getMultipartThreshold() {
+        return multipartThreshold;
+    }
+
+    public void setMultipartThreshold(long multipartThreshold) {
+        this.multipartThreshold = multipartThreshold;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    public int getConcurrentPartsPerRecord() {
+        return concurrentPartsPerRecord;
+    }
+
+    public void setConcurrentPartsPerRecord(int concurrentPartsPerRecord) {
+        this.concurrentPartsPerRecord = concurrentPartsPerRecord;
+    }
+
+    public int getConcurrentParts() {
+        return concurrentParts;
+    }
+
+    public void setConcurrentParts(int concurrentParts) {
+        this.concurrentParts = concurrentParts;
+    }
+
     public Backend getBackend() {
         return backend;
     }
@@ -1393,4 +1663,321 @@ public abstract class CachingDataStore extends AbstractDataStore implements
         }
     }
 
+    /**
+     * This class transfers the parts of a record concurrently. At most
+     * {@link #concurrentPartsPerRecord} parts of the record are transferred
+     * at the same time by the threads of {@link #partExecService}, which are
+     * shared by all records. Each finished part starts the next part, so no
+     * thread of the pool waits for other parts.
+     */
+    private abstract class PartTransfer {
+
+        final DataIdentifier identifier;
+
+        final long length;
+
+        final long partLength;
+
+        final int partCount;
+
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private int nextPart;
+
+        private int running;
+
+        private boolean done;
+
+        private DataStoreException exception;
+
+        private long startTime;
+
+        PartTransfer(DataIdentifier identifier, long length) {
+            this.identifier = identifier;
+            this.length = length;
+            this.partLength = getPartSize(length);
+            this.partCount = (int) ((length + partLength - 1) / partLength);
+        }
+
+        /**
+         * Transfer a part of the record.
+         */
+        abstract void transferPart(int part, long offset, long length)
+                throws DataStoreException;
+
+        /**
+         * Called once after all parts are transferred or a part failed.
+         * @param exception the exception of the failed part or null
+         * @return the exception of the transfer or null
+         */
+        abstract DataStoreException complete(DataStoreException exception);
+
+        void start() throws DataStoreException {
+            startTime = System.currentTimeMillis();
+            LOG.debug("Transferring [{}] of length [{}] in [{}] parts.",
+                new Object[] { identifier, length, partCount });
+            boolean completed;
+            synchronized (this) {
+                int parts = Math.min(Math.max(1, concurrentPartsPerRecord),
+                    partCount);
+                while (exception == null && nextPart < parts) {
+                    startNextPart();
+                }
+                completed = isCompleted();
+            }
+            if (completed) {
+                finish();
+            }
+        }
+
+        /**
+         * Wait until the transfer is finished.
+         */
+        void await() throws DataStoreException {
+            try {
+                finished.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new DataStoreException("Interrupted while transferring ["
+                    + identifier + "]", ie);
+            }
+            synchronized (this) {
+                if (exception != null) {
+                    throw exception;
+                }
+            }
+        }
+
+        private void startNextPart() {
+            final int part = nextPart++;
+            running++;
+            try {
+                partExecService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        DataStoreException e = null;
+                        try {
+                            long offset = part * partLength;
+                            transferPart(part, offset,
+                                Math.min(partLength, length - offset));
+                        } catch (DataStoreException dse) {
+                            e = dse;
+                        } catch (RuntimeException re) {
+                            e = new DataStoreException(re);
+                        }
+                        partFinished(e);
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                running--;
+                exception = new DataStoreException("Transfer of ["
+                    + identifier + "] rejected", ree);
+            }
+        }
+
+        private void partFinished(DataStoreException e) {
+            boolean completed;
+            synchronized (this) {
+                running--;
+                if (e != null && exception == null) {
+                    exception = e;
+                }
+                if (exception == null && nextPart < partCount) {
+                    startNextPart();
+                }
+                completed = isCompleted();
+            }
+            if (completed) {
+                finish();
+            }
+        }
+
+        private boolean isCompleted() {
+            if (done || running > 0
+                || (exception == null && nextPart < partCount)) {
+                return false;
+            }
+            done = true;
+            return true;
+        }
+
+        private void finish() {
+            DataStoreException e;
+            synchronized (this) {
+                e = exception;
+            }
+            e = complete(e);
+            synchronized (this) {
+                exception = e;
+            }
+            finished.countDown();
+            if (e == null) {
+                LOG.debug("Transferred [{}] in [{}] parts in [{}]ms.",
+                    new Object[] { identifier, partCount,
+                        (System.currentTimeMillis() - startTime) });
+            } else {
+                LOG.warn("Transfer of [" + identifier + "] failed.", e);
+            }
+        }
+    }
+
+    /**
+     * This class uploads a record in parts to {@link MultipartBackend}.
+     */
+    private class PartUpload extends PartTransfer {
+
+        final MultipartBackend multipartBackend;
+
+        final File file;
+
+        final boolean asyncUpload;
+
+        final String[] partTags;
+
+        String uploadId;
+
+        PartUpload(MultipartBackend multipartBackend,
+                DataIdentifier identifier, File file, boolean asyncUpload) {
+            super(identifier, file.length());
+            this.multipartBackend = multipartBackend;
+            this.file = file;
+            this.asyncUpload = asyncUpload;
+            this.partTags = new String[partCount];
+        }
+
+        @Override
+        void start() throws DataStoreException {
+            uploadId = multipartBackend.initiateUpload(identifier, length);
+            super.start();
+        }
+
+        @Override
+        void transferPart(int part, long offset, long length)
+                throws DataStoreException {
+            String tag = multipartBackend.uploadPart(identifier, uploadId,
+                part + 1, file, offset, length);
+            synchronized (this) {
+                partTags[part] = tag;
+            }
+        }
+
+        /**
+         * Completes the upload, or aborts it if the upload failed or the
+         * record was deleted while it was uploaded. The check and the
+         * completion hold the lock of the data store, like
+         * {@link CachingDataStore#deleteRecord(DataIdentifier)}, so that a
+         * deleted record is not recreated.
+         */
+        @Override
+        DataStoreException complete(DataStoreException exception) {
+            boolean deleted = false;
+            if (exception == null) {
+                try {
+                    List<String> tags;
+                    synchronized (this) {
+                        tags = Arrays.asList(partTags);
+                    }
+                    synchronized (CachingDataStore.this) {
+                        deleted = asyncUpload && !asyncWriteCache.hasEntry(
+                            getFileName(identifier), false);
+                        if (!deleted) {
+                            multipartBackend.completeUpload(identifier,
+                                uploadId, tags);
+                        }
+                    }
+                } catch (DataStoreException e) {
+                    exception = e;
+                } catch (IOException e) {
+                    exception = new DataStoreException(e);
+                }
+            }
+            if (deleted) {
+                LOG.debug("[{}] was deleted while it was uploaded.", identifier);
+            }
+            if (exception != null || deleted) {
+                try {
+                    multipartBackend.abortUpload(identifier, uploadId);
+                } catch (DataStoreException e) {
+                    LOG.warn("Could not abort upload of [" + identifier + "]", e);
+                }
+            }
+            if (asyncUpload) {
+                AsyncUploadResult result = new AsyncUploadResult(identifier,
+                    file);
+                if (exception == null) {
+                    onSuccess(result);
+                } else {
+                    result.setException(exception);
+                    onFailure(result);
+                }
+            }
+            return exception;
+        }
+    }
+
+    /**
+     * This class downloads a record in ranges from {@link Backend} to a file.
+     */
+    private class PartDownload extends PartTransfer {
+
+        final File file;
+
+        PartDownload(DataIdentifier identifier, File file, long length) {
+            super(identifier, length);
+            this.file = file;
+        }
+
+        @Override
+        void start() throws DataStoreException {
+            try {
+                RandomAccessFile r = new RandomAccessFile(file, "rw");
+                try {
+                    r.setLength(length);
+                } finally {
+                    r.close();
+                }
+            } catch (IOException e) {
+                throw new DataStoreException("Could not create ["
+                    + file.getAbsolutePath() + "]", e);
+            }
+            super.start();
+        }
+
+        @Override
+        void transferPart(int part, long offset, long length)
+                throws DataStoreException {
+            InputStream in = backend.read(identifier, offset, length);
+            try {
+                RandomAccessFile out = new RandomAccessFile(file, "rw");
+                try {
+                    out.seek(offset);
+                    byte[] buffer = new byte[64 * 1024];
+                    long remaining = length;
+                    while (remaining > 0) {
+                        int n = in.read(buffer, 0,
+                            (int) Math.min(buffer.length, remaining));
+                        if (n < 0) {
+                            throw new IOException("Unexpected end of part ["
+                                + part + "]");
+                        }
+                        out.write(buffer, 0, n);
+                        remaining -= n;
+                    }
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                throw new DataStoreException("Could not download part [" + part
+                    + "] of [" + identifier + "]", e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        @Override
+        DataStoreException complete(DataStoreException exception) {
+            return exception;
+        }
+    }
+
 }
@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.data;
+
+/**
+ * Implemented by streams that know the identifier of a data record that
+ * most likely has the same content, for example streams copied from
+ * another data store. If a record with this identifier exists,
+ * {@link DataStore#addRecord(java.io.InputStream)} compares the stream
+ * with it instead of storing the stream first. The hint is never trusted:
+ * if the content differs, the stream is stored as a new record.
+ */
+public interface DataIdentifierHint {
+
+    /**
+     * @return the identifier of a record that probably has the same content,
+     *         or null if unknown.
+     */
+    DataIdentifier getIdentifierHint();
+
+}
@@ -54,6 +54,22 @@ public interface DataRecord {
      */
     InputStream getStream() throws DataStoreException;
 
+    /**
+     * Returns a range of the binary stream in this record. The stream starts
+     * at <code>offset</code> and ends after <code>length</code> bytes or at
+     * the end of the binary stream, whichever comes first. Data stores that
+     * support it position the stream without reading the preceding bytes.
+     *
+     * @param offset the position of the first byte, 0 for the start of the
+     *               binary stream
+     * @param length the maximum number of bytes, {@link Long#MAX_VALUE} for
+     *               the rest of the binary stream
+     * @return binary stream of the range, empty if <code>offset</code> is
+     *         at or after the end of the binary stream
+     * @throws DataStoreException if the record could not be accessed
+     */
+    InputStream getStream(long offset, long length) throws DataStoreException;
+
     /**
      * Returns the last modified of the record.
      * 
@@ -25,6 +25,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -37,11 +38,12 @@ import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.jackrabbit.core.data.util.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class FSBackend implements Backend {
+public class FSBackend implements MultipartBackend {
 
     private Properties properties;
 
@@ -69,6 +71,12 @@ public class FSBackend implements Backend {
      */
     private static final int ACCESS_TIME_RESOLUTION = 2000;
 
+    /**
+     * Prefix of the files that hold uploads in parts. They are created
+     * directly in the backend directory, where files are not records.
+     */
+    private static final String UPLOAD_PREFIX = "upload-";
+
     @Override
     public void init(CachingDataStore store, String homeDir, String config)
                     throws DataStoreException {
@@ -134,6 +142,20 @@ public class FSBackend implements Backend {
         }
     }
 
+    @Override
+    public InputStream read(DataIdentifier identifier, long offset,
+            long length) throws DataStoreException {
+        File file = getFile(identifier);
+        try {
+            InputStream in = new LazyFileInputStream(file, offset);
+            return length == Long.MAX_VALUE
+                ? in : new BoundedInputStream(in, length);
+        } catch (IOException e) {
+            throw new DataStoreException("Error opening input stream of "
+                + file.getAbsolutePath(), e);
+        }
+    }
+
     @Override
     public long getLength(DataIdentifier identifier) throws DataStoreException {
         File file = getFile(identifier);
@@ -164,10 +186,7 @@ public class FSBackend implements Backend {
         File dest = getFile(identifier);
         synchronized (this) {
             if (dest.exists()) {
-                long now = System.currentTimeMillis();
-                if (getLastModified(dest) < now + ACCESS_TIME_RESOLUTION) {
-                    setLastModified(dest, now + ACCESS_TIME_RESOLUTION);
-                }
+                updateLastModified(dest);
             } else {
                 try {
                     FileUtils.copyFile(src, dest);
@@ -182,6 +201,98 @@ public class FSBackend implements Backend {
 
     }
 
+    @Override
+    public String initiateUpload(DataIdentifier identifier, long length)
+            throws DataStoreException {
+        try {
+            File upload = File.createTempFile(UPLOAD_PREFIX, null, fsPathDir);
+            RandomAccessFile r = new RandomAccessFile(upload, "rw");
+            try {
+                r.setLength(length);
+            } finally {
+                r.close();
+            }
+            return upload.getName();
+        } catch (IOException ioe) {
+            throw new DataStoreException("Not able to start upload of ["
+                + identifier + "]", ioe);
+        }
+    }
+
+    /**
+     * Copies the part to the same position of the upload file.
+     */
+    @Override
+    public String uploadPart(DataIdentifier identifier, String uploadId,
+            int partNumber, File file, long offset, long length)
+            throws DataStoreException {
+        File upload = getUploadFile(uploadId);
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                RandomAccessFile out = new RandomAccessFile(upload, "rw");
+                try {
+                    out.seek(offset);
+                    FileChannel source = in.getChannel();
+                    long copied = 0;
+                    while (copied < length) {
+                        long n = source.transferTo(offset + copied,
+                            length - copied, out.getChannel());
+                        if (n <= 0) {
+                            throw new IOException("Unexpected end of file "
+                                + file.getAbsolutePath());
+                        }
+                        copied += n;
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new DataStoreException("Not able to write part ["
+                + partNumber + "] of [" + identifier + "]", ioe);
+        }
+        return String.valueOf(partNumber);
+    }
+
+    @Override
+    public void completeUpload(DataIdentifier identifier, String uploadId,
+            List<String> partTags) throws DataStoreException {
+        File upload = getUploadFile(uploadId);
+        File dest = getFile(identifier);
+        synchronized (this) {
+            if (dest.exists()) {
+                updateLastModified(dest);
+                upload.delete();
+            } else {
+                File parent = dest.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new DataStoreException("Could not create directory: "
+                        + parent.getAbsolutePath());
+                }
+                if (!upload.renameTo(dest)) {
+                    throw new DataStoreException("Not able to move ["
+                        + upload.getAbsolutePath() + "] to ["
+                        + dest.getAbsolutePath() + "]");
+                }
+            }
+        }
+        LOG.debug("upload of [{}] in [{}] parts completed.", identifier,
+            partTags.size());
+    }
+
+    @Override
+    public void abortUpload(DataIdentifier identifier, String uploadId)
+            throws DataStoreException {
+        File upload = getUploadFile(uploadId);
+        if (upload.exists() && !upload.delete()) {
+            LOG.warn("Failed to delete upload file [{}]",
+                upload.getAbsolutePath());
+        }
+    }
+
     @Override
     public void writeAsync(final DataIdentifier identifier, final File src,
                     final AsyncUploadCallback callback)
@@ -349,6 +460,33 @@ public class FSBackend implements Backend {
         return new File(file, string);
     }
 
+    /**
+     * Returns the file of an upload in parts.
+     * @param uploadId id of the upload
+     * @return the upload file
+     */
+    private File getUploadFile(String uploadId) {
+        if (!uploadId.startsWith(UPLOAD_PREFIX) || uploadId.indexOf('/') >= 0
+            || uploadId.indexOf(File.separatorChar) >= 0) {
+            throw new IllegalArgumentException("Invalid upload id: " + uploadId);
+        }
+        return new File(fsPathDir, uploadId);
+    }
+
+    /**
+     * Updates the last modified date of an existing record, as it is stored
+     * again.
+     * @param dest the file of the record
+     * @throws DataStoreException if modifying the date fails
+     */
+    private static void updateLastModified(File dest)
+            throws DataStoreException {
+        long now = System.currentTimeMillis();
+        if (getLastModified(dest) < now + ACCESS_TIME_RESOLUTION) {
+            setLastModified(dest, now + ACCESS_TIME_RESOLUTION);
+        }
+    }
+
     /**
      * Set the last modified date of a file, if the file is writable.
      * @param file the file
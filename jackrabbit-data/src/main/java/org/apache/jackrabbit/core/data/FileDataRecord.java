@@ -62,6 +62,22 @@ public class FileDataRecord extends AbstractDataRecord {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * The file is positioned at <code>offset</code> without reading the
+     * preceding bytes.
+     */
+    @Override
+    public InputStream getStream(long offset, long length)
+            throws DataStoreException {
+        checkRange(offset, length);
+        try {
+            return limit(new LazyFileInputStream(file, offset), length);
+        } catch (IOException e) {
+            throw new DataStoreException("Error opening input stream of " + file.getAbsolutePath(), e);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -23,7 +23,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
-import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
@@ -48,6 +47,8 @@ import org.slf4j.LoggerFactory;
  * &lt;DataStore class="org.apache.jackrabbit.core.data.FileDataStore">
  *     &lt;param name="{@link #setPath(String) path}" value="/data/datastore"/>
  *     &lt;param name="{@link #setMinRecordLength(int) minRecordLength}" value="1024"/>
+ *     &lt;param name="{@link #setDigestAlgorithm(String) digestAlgorithm}" value="SHA-1"/>
+ *     &lt;param name="{@link #setIngestBufferSize(int) ingestBufferSize}" value="262144"/>
  * &lt/DataStore>
  * </pre>
  * <p>
@@ -61,18 +62,13 @@ import org.slf4j.LoggerFactory;
  * atomic O(1) move operations with {@link File#renameTo(File)}.
  */
 public class FileDataStore extends AbstractDataStore
-        implements MultiDataStoreAware {
+        implements MultiDataStoreAware, ReferenceAwareDataStore {
 
     /**
      * Logger instance
      */
     private static Logger log = LoggerFactory.getLogger(FileDataStore.class);
 
-    /**
-     * The digest algorithm used to uniquely identify records.
-     */
-    private static final String DIGEST = "SHA-1";
-
     /**
      * The default value for the minimum object size.
      */
@@ -163,10 +159,15 @@ public class FileDataStore extends AbstractDataStore
     /**
      * Creates a new data record.
      * The stream is first consumed and the contents are saved in a temporary file
-     * and the SHA-1 message digest of the stream is calculated. If a
-     * record with the same SHA-1 digest (and length) is found then it is
+     * and the message digest of the stream is calculated. If a
+     * record with the same digest (and length) is found then it is
      * returned. Otherwise the temporary file is moved in place to become
      * the new data record that gets returned.
+     * <p>
+     * No temporary file is written for a record that already exists, if
+     * the record is small enough to be digested in memory, or if the
+     * record is found by a {@link DataIdentifierHint} of the stream or
+     * among the recently added records and has the same content.
      *
      * @param input binary stream
      * @return data record that contains the given stream
@@ -175,22 +176,40 @@ public class FileDataStore extends AbstractDataStore
     public DataRecord addRecord(InputStream input) throws DataStoreException {
         File temporary = null;
         try {
+            IngestStream in = new IngestStream(input,
+                    MessageDigest.getInstance(getDigestAlgorithm()), getIngestBufferSize());
+            if (in.isComplete()) {
+                DataRecord record =
+                        getExistingRecord(in.getIdentifier(), in.getLength());
+                if (record != null) {
+                    return record;
+                }
+            } else {
+                DataIdentifier hint = getHints().get(in);
+                DataRecord candidate = getCandidate(hint);
+                if (candidate != null && in.matches(candidate)) {
+                    DataRecord record = getExistingRecord(hint, in.getLength());
+                    if (record == null) {
+                        throw new IOException(
+                                "Record deleted while it was added: " + hint);
+                    }
+                    getHints().put(in, hint);
+                    return record;
+                }
+            }
             temporary = newTemporaryFile();
             DataIdentifier tempId = new DataIdentifier(temporary.getName());
             usesIdentifier(tempId);
             // Copy the stream to the temporary file and calculate the
             // stream length and the message digest of the stream
-            long length = 0;
-            MessageDigest digest = MessageDigest.getInstance(DIGEST);
-            OutputStream output = new DigestOutputStream(
-                    new FileOutputStream(temporary), digest);
+            OutputStream output = new FileOutputStream(temporary);
             try {
-                length = IOUtils.copyLarge(input, output);
+                IOUtils.copyLarge(in, output);
             } finally {
                 output.close();
             }
-            DataIdentifier identifier =
-                    new DataIdentifier(encodeHexString(digest.digest()));
+            long length = in.getLength();
+            DataIdentifier identifier = in.getIdentifier();
             File file;
 
             synchronized (this) {
@@ -211,26 +230,17 @@ public class FileDataStore extends AbstractDataStore
                                 + " (media read only?)");
                     }
                 } else {
-                    long now = System.currentTimeMillis();
-                    if (getLastModified(file) < now + ACCESS_TIME_RESOLUTION) {
-                        setLastModified(file, now + ACCESS_TIME_RESOLUTION);
-                    }
-                }
-                if (file.length() != length) {
-                    // Sanity checks on the record file. These should never fail,
-                    // but better safe than sorry...
-                    if (!file.isFile()) {
-                        throw new IOException("Not a file: " + file);
-                    }
-                    throw new IOException(DIGEST + " collision: " + file);
+                    touch(file);
                 }
+                checkLength(file, length);
             }
+            getHints().put(in, identifier);
             // this will also make sure that
             // tempId is not garbage collected until here
             inUse.remove(tempId);
             return new FileDataRecord(this, identifier, file);
         } catch (NoSuchAlgorithmException e) {
-            throw new DataStoreException(DIGEST + " not available", e);
+            throw new DataStoreException(getDigestAlgorithm() + " not available", e);
         } catch (IOException e) {
             throw new DataStoreException("Could not add record", e);
         } finally {
@@ -240,6 +250,56 @@ public class FileDataStore extends AbstractDataStore
         }
     }
 
+    /**
+     * Returns an existing record and updates its modified date, as if it
+     * was added again.
+     *
+     * @param identifier data identifier
+     * @param length the length of the added stream
+     * @return the record, or null if it does not exist
+     */
+    private synchronized DataRecord getExistingRecord(
+            DataIdentifier identifier, long length)
+            throws DataStoreException, IOException {
+        usesIdentifier(identifier);
+        File file = getFile(identifier);
+        if (!file.exists()) {
+            return null;
+        }
+        touch(file);
+        checkLength(file, length);
+        return new FileDataRecord(this, identifier, file);
+    }
+
+    /**
+     * Returns the record identified by a hint, if it exists.
+     *
+     * @param hint the hint, or null
+     * @return the record or null
+     */
+    private DataRecord getCandidate(DataIdentifier hint)
+            throws DataStoreException {
+        return hint != null ? getRecordIfStored(hint) : null;
+    }
+
+    private void touch(File file) throws DataStoreException {
+        long now = System.currentTimeMillis();
+        if (getLastModified(file) < now + ACCESS_TIME_RESOLUTION) {
+            setLastModified(file, now + ACCESS_TIME_RESOLUTION);
+        }
+    }
+
+    private void checkLength(File file, long length) throws IOException {
+        if (file.length() != length) {
+            // Sanity checks on the record file. These should never fail,
+            // but better safe than sorry...
+            if (!file.isFile()) {
+                throw new IOException("Not a file: " + file);
+            }
+            throw new IOException(getDigestAlgorithm() + " collision: " + file);
+        }
+    }
+
     /**
      * Returns the identified file. This method implements the pattern
      * used to avoid problems with too many files in a single directory.
@@ -314,16 +374,21 @@ public class FileDataStore extends AbstractDataStore
     }
 
     public int deleteAllOlderThan(long min) {
+        return deleteAllOlderThan(min, null);
+    }
+
+    public int deleteAllOlderThan(long min, DataReferences references) {
         int count = 0;
         for (File file : directory.listFiles()) {
             if (file.isDirectory()) { // skip top-level files
-                count += deleteOlderRecursive(file, min);
+                count += deleteOlderRecursive(file, min, references);
             }
         }
         return count;
     }
 
-    private int deleteOlderRecursive(File file, long min) {
+    private int deleteOlderRecursive(
+            File file, long min, DataReferences references) {
         int count = 0;
         if (file.isFile() && file.exists() && file.canWrite()) {
             synchronized (this) {
@@ -337,7 +402,8 @@ public class FileDataStore extends AbstractDataStore
                 }
                 if (lastModified < min) {
                     DataIdentifier id = new DataIdentifier(file.getName());
-                    if (!inUse.containsKey(id)) {
+                    if (!inUse.containsKey(id) && (references == null
+                            || !references.isReferenced(id))) {
                         if (log.isInfoEnabled()) {
                             log.info("Deleting old file " + file.getAbsolutePath() +
                                     " modified: " + new Timestamp(lastModified).toString() +
@@ -354,7 +420,7 @@ public class FileDataStore extends AbstractDataStore
             File[] list = file.listFiles();
             if (list != null) {
                 for (File f: list) {
-                    count += deleteOlderRecursive(f, min);
+                    count += deleteOlderRecursive(f, min, references);
                 }
             }
 
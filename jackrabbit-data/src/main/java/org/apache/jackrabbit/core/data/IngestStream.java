@@ -0,0 +1,448 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The content of a new data record, read by
+ * {@link DataStore#addRecord(InputStream)} implementations. It helps to
+ * detect records that already exist without storing the content first:
+ * <ul>
+ * <li>The first <code>bufferSize</code> bytes are read into memory. If the
+ * record is not larger ({@link #isComplete()}), its identifier is known
+ * immediately.</li>
+ * <li>A larger record can be compared with an existing record that probably
+ * has the same content ({@link #matches(DataRecord)}). Such a candidate is
+ * found by a {@link DataIdentifierHint} of the input stream or by a
+ * {@link HintCache} of recently added records.</li>
+ * </ul>
+ * Otherwise the content is read from this stream, which calculates the
+ * message digest and the length while it is read. The identifier is
+ * available once the stream is read to the end.
+ * <p>
+ * The digest is calculated by {@link MessageDigest} with the configured
+ * algorithm, which uses the CPU intrinsics of the JVM where available.
+ */
+public class IngestStream extends InputStream {
+
+    /**
+     * The default number of bytes kept in memory.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Size of the chunks compared with a candidate record.
+     */
+    private static final int COMPARE_SIZE = 64 * 1024;
+
+    /**
+     * The remaining input.
+     */
+    private final PushbackInputStream input;
+
+    /**
+     * The client supplied hint, or null.
+     */
+    private final DataIdentifier hint;
+
+    private final MessageDigest digest;
+
+    /**
+     * The first bytes of the input.
+     */
+    private final byte[] head;
+
+    /**
+     * True if the head contains the whole input.
+     */
+    private final boolean complete;
+
+    /**
+     * The content served by this stream, initialized on first use.
+     */
+    private InputStream content;
+
+    /**
+     * True if the served content is digested.
+     */
+    private boolean digesting;
+
+    /**
+     * True if a comparison failed after the input was partly consumed.
+     */
+    private boolean broken;
+
+    private long length;
+
+    private DataIdentifier identifier;
+
+    /**
+     * The checksum of the head, or -1 if not calculated yet.
+     */
+    private long checksum = -1;
+
+    /**
+     * Reads the first <code>bufferSize</code> bytes of the input. The input
+     * stream is not closed.
+     *
+     * @param input the content of the record.
+     * @param digest the message digest to calculate the identifier.
+     * @param bufferSize the number of bytes to keep in memory. If 0, only
+     *            the {@link DataIdentifierHint} of the input is used.
+     * @throws IOException if reading fails.
+     */
+    public IngestStream(InputStream input, MessageDigest digest, int bufferSize)
+            throws IOException {
+        this.input = new PushbackInputStream(input, 1);
+        this.hint = input instanceof DataIdentifierHint
+            ? checkHint(((DataIdentifierHint) input).getIdentifierHint()) : null;
+        this.digest = digest;
+        byte[] buffer = new byte[Math.max(0, bufferSize)];
+        int count = IOUtils.read(input, buffer);
+        int next = count < buffer.length ? -1 : input.read();
+        if (next < 0) {
+            head = count < buffer.length ? Arrays.copyOf(buffer, count) : buffer;
+            complete = true;
+            digest.update(head);
+            length = head.length;
+            identifier = new DataIdentifier(
+                AbstractDataStore.encodeHexString(digest.digest()));
+        } else {
+            this.input.unread(next);
+            head = buffer;
+            complete = false;
+        }
+    }
+
+    /**
+     * @return true if the whole record is in memory and the identifier and
+     *         length are known.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the identifier hint of the input stream, or null.
+     */
+    public DataIdentifier getHint() {
+        return hint;
+    }
+
+    /**
+     * Compares the content with the content of an existing record. Must be
+     * called before this stream is read. If the content matches, the
+     * identifier and the length of the record are used, and this stream is
+     * at its end. Otherwise this stream serves the whole content.
+     *
+     * @param candidate the record that probably has the same content.
+     * @return true if the content is equal.
+     * @throws IOException if reading fails. The content is lost in this
+     *             case and this stream can not be read.
+     */
+    public boolean matches(DataRecord candidate) throws IOException {
+        if (content != null || complete) {
+            throw new IllegalStateException("content already read");
+        }
+        InputStream existing;
+        try {
+            existing = candidate.getStream();
+        } catch (DataStoreException e) {
+            // the record was deleted in the meantime
+            return false;
+        }
+        boolean compared = false;
+        try {
+            byte[] in = new byte[COMPARE_SIZE];
+            byte[] ex = new byte[COMPARE_SIZE];
+            for (int pos = 0; pos < head.length; pos += COMPARE_SIZE) {
+                int n = Math.min(COMPARE_SIZE, head.length - pos);
+                if (IOUtils.read(existing, ex, 0, n) != n
+                        || !equals(head, pos, ex, n)) {
+                    setContent(new ByteArrayInputStream(head), input);
+                    compared = true;
+                    return false;
+                }
+            }
+            long matched = head.length;
+            while (true) {
+                int n = IOUtils.read(input, in);
+                if (n == 0) {
+                    if (existing.read() < 0) {
+                        identifier = candidate.getIdentifier();
+                        length = matched;
+                        content = new ByteArrayInputStream(new byte[0]);
+                        compared = true;
+                        return true;
+                    }
+                    setContent(new RangeStream(candidate, matched));
+                    compared = true;
+                    return false;
+                }
+                if (IOUtils.read(existing, ex, 0, n) != n
+                        || !equals(in, 0, ex, n)) {
+                    // the matched prefix is read again from the candidate
+                    setContent(new RangeStream(candidate, matched),
+                        new ByteArrayInputStream(in, 0, n), input);
+                    compared = true;
+                    return false;
+                }
+                matched += n;
+            }
+        } finally {
+            broken = !compared;
+            existing.close();
+        }
+    }
+
+    /**
+     * @return the checksum of the first bytes, used as the key of the
+     *         {@link HintCache}.
+     */
+    long getHeadChecksum() {
+        if (checksum < 0) {
+            CRC32 crc = new CRC32();
+            crc.update(head);
+            checksum = crc.getValue();
+        }
+        return checksum;
+    }
+
+    /**
+     * @return the identifier, or null if the content is not read yet.
+     */
+    public DataIdentifier getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return the length of the content read so far.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (broken) {
+            throw new IOException("Content lost after a failed comparison");
+        }
+        if (content == null) {
+            setContent(new ByteArrayInputStream(head), input);
+        }
+        int n = content.read(b, off, len);
+        if (n > 0 && digesting) {
+            digest.update(b, off, n);
+            length += n;
+        } else if (n < 0 && identifier == null) {
+            identifier = new DataIdentifier(
+                AbstractDataStore.encodeHexString(digest.digest()));
+        }
+        return n;
+    }
+
+    /**
+     * Does not close the input stream, it belongs to the caller.
+     */
+    @Override
+    public void close() {
+        content = new ByteArrayInputStream(new byte[0]);
+    }
+
+    private void setContent(InputStream... streams) {
+        if (complete) {
+            content = new ByteArrayInputStream(head);
+        } else {
+            List<InputStream> list = new ArrayList<InputStream>();
+            Collections.addAll(list, streams);
+            content = new SequenceInputStream(Collections.enumeration(list));
+            digesting = true;
+        }
+    }
+
+    /**
+     * @return the hint if it can be the identifier of a record, as the
+     *         stores derive file names from it, otherwise null.
+     */
+    private static DataIdentifier checkHint(DataIdentifier hint) {
+        if (hint == null || hint.toString().length() <= 6) {
+            return null;
+        }
+        String id = hint.toString();
+        for (int i = 0; i < id.length(); i++) {
+            if (Character.digit(id.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return hint;
+    }
+
+    private static boolean equals(byte[] a, int offset, byte[] b, int len) {
+        for (int i = 0; i < len; i++) {
+            if (a[offset + i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The first bytes of a record, opened on first use. Fails if the record
+     * is shorter than expected, so that a record changed or deleted in the
+     * meantime does not result in a truncated copy.
+     */
+    private static class RangeStream extends FilterInputStream {
+
+        private final DataRecord record;
+
+        private final long expected;
+
+        private long count;
+
+        RangeStream(DataRecord record, long expected) {
+            super(null);
+            this.record = record;
+            this.expected = expected;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (in == null) {
+                try {
+                    in = record.getStream(0, expected);
+                } catch (DataStoreException e) {
+                    IOException ioe = new IOException("Can not read "
+                        + record.getIdentifier());
+                    ioe.initCause(e);
+                    throw ioe;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, expected - count));
+            if (n > 0) {
+                count += n;
+            } else if (count < expected) {
+                throw new IOException("Record " + record.getIdentifier()
+                    + " ended after " + count + " of " + expected + " bytes");
+            } else {
+                n = -1;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Recently added records that were too large to be kept in memory, by
+     * the checksum of their first bytes. Used to find a candidate to compare
+     * a new record with, if the input stream has no
+     * {@link DataIdentifierHint}.
+     */
+    public static class HintCache {
+
+        /**
+         * The default maximum number of entries.
+         */
+        private static final int DEFAULT_SIZE = 1024;
+
+        private final Map<Long, DataIdentifier> hints;
+
+        public HintCache() {
+            this(DEFAULT_SIZE);
+        }
+
+        /**
+         * @param size the maximum number of entries.
+         */
+        public HintCache(final int size) {
+            hints = Collections.synchronizedMap(
+                new LinkedHashMap<Long, DataIdentifier>(16, 0.75f, true) {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<Long, DataIdentifier> eldest) {
+                        return size() > size;
+                    }
+                });
+        }
+
+        /**
+         * @param in the content of the new record.
+         * @return the identifier of a record that probably has the same
+         *         content, or null.
+         */
+        public DataIdentifier get(IngestStream in) {
+            if (in.isComplete()) {
+                return null;
+            }
+            DataIdentifier id = in.getHint();
+            if (id == null && in.head.length > 0) {
+                id = hints.get(in.getHeadChecksum());
+            }
+            return id;
+        }
+
+        /**
+         * Remembers the identifier of a new record.
+         *
+         * @param in the content of the record.
+         * @param identifier the identifier of the record.
+         */
+        public void put(IngestStream in, DataIdentifier identifier) {
+            if (!in.isComplete() && in.head.length > 0) {
+                hints.put(in.getHeadChecksum(), identifier);
+            }
+        }
+    }
+}
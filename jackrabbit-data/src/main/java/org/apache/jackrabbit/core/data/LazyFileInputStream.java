@@ -21,15 +21,18 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 import org.apache.commons.io.input.AutoCloseInputStream;
+import org.apache.jackrabbit.util.FileChannelProvider;
 
 /**
  * This input stream delays opening the file until the first byte is read, and
  * closes and discards the underlying stream as soon as the end of input has
  * been reached or when the stream is explicitly closed.
  */
-public class LazyFileInputStream extends AutoCloseInputStream {
+public class LazyFileInputStream extends AutoCloseInputStream
+        implements FileChannelProvider {
 
     /**
      * The file descriptor to use.
@@ -48,6 +51,11 @@ public class LazyFileInputStream extends AutoCloseInputStream {
      */
     protected boolean opened;
 
+    /**
+     * The position in the file at which the stream starts.
+     */
+    protected final long position;
+
     /**
      * Creates a new <code>LazyFileInputStream</code> for the given file. If the
      * file is unreadable, a FileNotFoundException is thrown.
@@ -64,6 +72,32 @@ public class LazyFileInputStream extends AutoCloseInputStream {
         }
         this.file = file;
         this.fd = null;
+        this.position = 0;
+    }
+
+    /**
+     * Creates a new <code>LazyFileInputStream</code> that starts at the given
+     * position of the file. If the file is unreadable, a
+     * FileNotFoundException is thrown. The file is not opened until the
+     * first byte is read from the stream, it is then positioned without
+     * reading the preceding bytes.
+     *
+     * @param file the file
+     * @param position the position in the file
+     * @throws java.io.FileNotFoundException
+     */
+    public LazyFileInputStream(File file, long position)
+            throws FileNotFoundException {
+        super(null);
+        if (!file.canRead()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("position must not be negative");
+        }
+        this.file = file;
+        this.fd = null;
+        this.position = position;
     }
 
     /**
@@ -77,6 +111,7 @@ public class LazyFileInputStream extends AutoCloseInputStream {
         super(null);
         this.file = null;
         this.fd = fd;
+        this.position = 0;
     }
 
     /**
@@ -101,11 +136,28 @@ public class LazyFileInputStream extends AutoCloseInputStream {
             if (fd != null) {
                 in = new FileInputStream(fd);
             } else {
-                in = new FileInputStream(file);
+                FileInputStream fis = new FileInputStream(file);
+                if (position > 0) {
+                    fis.getChannel().position(position);
+                }
+                in = fis;
             }
         }
     }
 
+    /**
+     * Returns the channel of the file, opening it if required. Returns
+     * <code>null</code> once the end of the stream was reached or the stream
+     * was closed.
+     */
+    public FileChannel getChannel() throws IOException {
+        open();
+        if (in instanceof FileInputStream) {
+            return ((FileInputStream) in).getChannel();
+        }
+        return null;
+    }
+
     public int read() throws IOException {
         open();
         return super.read();
@@ -27,6 +27,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -77,6 +78,12 @@ public class LocalCache {
     
     private AsyncUploadCache asyncUploadCache;
 
+    /**
+     * The persistent index of the cache, or null if the cache is built by a
+     * scan of its directory.
+     */
+    private final LocalCacheIndex index;
+
     /**
      * Build LRU cache of files located at 'path'. It uses lastModified property
      * of file to build LRU cache. If cache size exceeds limit size, this cache
@@ -94,6 +101,30 @@ public class LocalCache {
      */
     public LocalCache(String path, String tmpPath, long maxSizeInBytes, double cachePurgeTrigFactor,
             double cachePurgeResizeFactor, AsyncUploadCache asyncUploadCache) {
+        this(path, tmpPath, maxSizeInBytes, cachePurgeTrigFactor,
+            cachePurgeResizeFactor, asyncUploadCache, null);
+    }
+
+    /**
+     * Build LRU cache of files located at 'path' from a persistent index in
+     * 'indexPath'. The index is loaded before this constructor returns, so
+     * the cache is available in LRU order immediately. The cache directory
+     * is scanned only if there is no index or its log was cut off, for
+     * example by a crash.
+     * 
+     * @param path file system path
+     * @param tmpPath temporary directory used by cache.
+     * @param maxSizeInBytes maximum size of cache.
+     * @param cachePurgeTrigFactor factor which triggers cache to purge mode.
+     * @param cachePurgeResizeFactor after cache purge size of cache will be
+     * just less (cachePurgeResizeFactor * maxSizeInBytes).
+     * @param asyncUploadCache {@link AsyncUploadCache}
+     * @param indexPath directory of the index files or null to build the
+     * cache by a scan of its directory.
+     */
+    public LocalCache(String path, String tmpPath, long maxSizeInBytes, double cachePurgeTrigFactor,
+            double cachePurgeResizeFactor, AsyncUploadCache asyncUploadCache,
+            String indexPath) {
         directory = new File(path);
         tmp = new File(tmpPath);
         LOG.info(
@@ -104,7 +135,16 @@ public class LocalCache {
                 (cachePurgeResizeFactor * maxSizeInBytes) });
         cache = new LRUCache(maxSizeInBytes, cachePurgeTrigFactor, cachePurgeResizeFactor);
         this.asyncUploadCache = asyncUploadCache;
-        new Thread(new CacheBuildJob()).start();
+        boolean complete = false;
+        if (indexPath != null) {
+            index = new LocalCacheIndex(new File(indexPath), directory);
+            complete = cache.load();
+        } else {
+            index = null;
+        }
+        if (!complete) {
+            new Thread(new CacheBuildJob()).start();
+        }
     }
 
     /**
@@ -305,6 +345,11 @@ public class LocalCache {
     public void close() {
         LOG.debug("close");
         deleteOldFiles();
+        if (index != null) {
+            synchronized (cache) {
+                index.close(cache);
+            }
+        }
     }
 
     /**
@@ -420,7 +465,7 @@ public class LocalCache {
      * A LRU based extension {@link LinkedHashMap}. The key is file name and
      * value is length of file.
      */
-    private class LRUCache extends LinkedHashMap<String, Long> {
+    class LRUCache extends LinkedHashMap<String, Long> {
         private static final long serialVersionUID = 1L;
 
         volatile long currentSizeInBytes;
@@ -470,6 +515,9 @@ public class LocalCache {
                     LOG.debug("cache entry [{}], with size [{}] removed.",
                         fileName, flength);
                     currentSizeInBytes -= flength.longValue();
+                    if (index != null) {
+                        index.evicted(fileName, this);
+                    }
                 }
             } else if (!getFile(fileName).exists()) {
                 // second attempt. remove from cache if file doesn't exists
@@ -479,6 +527,9 @@ public class LocalCache {
                         "file not exists. cache entry [{}], with size [{}] removed.",
                         fileName, flength);
                     currentSizeInBytes -= flength.longValue();
+                    if (index != null) {
+                        index.evicted(fileName, this);
+                    }
                 }
             } else {
                 LOG.info("not able to remove cache entry [{}], size [{}]", key,
@@ -498,7 +549,12 @@ public class LocalCache {
                 if (oldValue == null) {
                     long flength = value.longValue();
                     currentSizeInBytes += flength;
-                    return super.put(fileName.replace("\\", "/"), value);
+                    String key = fileName.replace("\\", "/");
+                    Long result = super.put(key, value);
+                    if (index != null) {
+                        index.admitted(key, flength, this);
+                    }
+                    return result;
                 }
                 toBeDeleted.remove(fileName);
                 return oldValue;
@@ -512,8 +568,40 @@ public class LocalCache {
                 return null;
             }
             synchronized (this) {
-                return super.get(key);
+                Long length = super.get(key);
+                if (length != null && index != null) {
+                    index.accessed((String) key, this);
+                }
+                return length;
+            }
+        }
+
+        @Override
+        public synchronized boolean containsKey(Object key) {
+            return super.containsKey(key);
+        }
+
+        /**
+         * Loads the entries of the persistent index and starts logging
+         * changes to it.
+         * 
+         * @return true if the index contains all files of the cache.
+         */
+        synchronized boolean load() {
+            long time = System.currentTimeMillis();
+            Map<String, Long> entries = new LinkedHashMap<String, Long>();
+            boolean complete = index.load(entries);
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                if (super.put(entry.getKey(), entry.getValue()) == null) {
+                    currentSizeInBytes += entry.getValue().longValue();
+                }
             }
+            index.open(this);
+            LOG.info(
+                "loaded [{}] cache entries, currentSizeInBytes = [{}], in [{}] ms",
+                new Object[] { size(), currentSizeInBytes,
+                    (System.currentTimeMillis() - time) });
+            return complete;
         }
         
         /**
@@ -549,18 +637,23 @@ public class LocalCache {
                     for (String fileName : new ArrayList<String>(toBeDeleted)) {
                         cache.remove(fileName);
                     }
+                    // collect the least recently used entries first, so
+                    // that the purge only visits the entries it evicts
+                    // and those with pending async uploads
+                    List<String> evict = new ArrayList<String>();
+                    long size = cache.currentSizeInBytes;
                     Iterator<Map.Entry<String, Long>> itr = cache.entrySet().iterator();
-                    while (itr.hasNext()) {
+                    while (itr.hasNext() && size > cache.cachePurgeResize) {
                         Map.Entry<String, Long> entry = itr.next();
-                        if (entry.getKey() != null) {
-                            if (cache.currentSizeInBytes > cache.cachePurgeResize) {
-                                cache.remove(entry.getKey());
-                                itr = cache.entrySet().iterator();
-                            } else {
-                                break;
-                            }
+                        if (entry.getKey() != null
+                            && !asyncUploadCache.hasEntry(entry.getKey(), false)) {
+                            evict.add(entry.getKey());
+                            size -= entry.getValue().longValue();
                         }
                     }
+                    for (String fileName : evict) {
+                        cache.remove(fileName);
+                    }
                     LOG.info(
                         " cache purge job completed: cleaned [{}] files and currentSizeInBytes = [{}]",
                         (initialSize - cache.size()), cache.currentSizeInBytes);
@@ -621,6 +714,12 @@ public class LocalCache {
                     if (name.startsWith("/") || name.startsWith("\\")) {
                         name = name.substring(1);
                     }
+                    if ((index != null && index.isIndexFile(f))
+                        || cache.containsKey(name)) {
+                        // loaded from the index or stored meanwhile, do
+                        // not change its position in the LRU order
+                        continue;
+                    }
                     store(name, f);
                     long now = System.currentTimeMillis();
                     if (now > time + 10000) {
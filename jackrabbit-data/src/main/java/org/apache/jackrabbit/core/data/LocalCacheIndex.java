@@ -0,0 +1,492 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent index of the {@link LocalCache}. The index consists of a
+ * snapshot of the cache entries in LRU order and an append-only log of the
+ * admissions, accesses and evictions since the snapshot. Loading the index
+ * avoids rebuilding the cache by a scan of the cache directory.
+ * <p>
+ * Admissions and evictions are flushed to the log immediately, accesses are
+ * buffered, as losing them only affects the LRU order. A record torn by a
+ * crash ends the replay of the log. If the log ends cleanly, the index holds
+ * all admissions and evictions, even if the index was not closed. Otherwise
+ * {@link #load(Map)} returns <code>false</code> and the cache directory
+ * should be scanned for files missing in the index.
+ * <p>
+ * When the log grows larger than the cache, it is renamed to an old log and
+ * a new log is started. A background thread then writes a snapshot from a
+ * copy of the entries, so the cache is not blocked while the snapshot is
+ * synced to disk, and deletes the old log. Until then the old log is replayed
+ * before the log. On {@link #close(Map)} a snapshot marked clean is written.
+ * <p>
+ * This class is not thread safe, callers synchronize on the cache. Snapshot
+ * files are written while holding the snapshot lock only.
+ */
+class LocalCacheIndex {
+
+    /**
+     * Logger instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(LocalCacheIndex.class);
+
+    /**
+     * Common prefix of the index file names.
+     */
+    private static final String FILE_PREFIX = "local-cache-index";
+
+    /**
+     * Name of the snapshot file.
+     */
+    static final String SNAPSHOT_FILE = FILE_PREFIX + ".snapshot";
+
+    /**
+     * Name of the log file.
+     */
+    static final String LOG_FILE = FILE_PREFIX + ".log";
+
+    /**
+     * Name of the log file that is replaced by the next snapshot.
+     */
+    static final String OLD_LOG_FILE = FILE_PREFIX + ".log.old";
+
+    /**
+     * Marks the start and the end of a snapshot.
+     */
+    private static final int MAGIC = 0x4a524c43;
+
+    /**
+     * Version of the snapshot and log format.
+     */
+    private static final int VERSION = 1;
+
+    private static final byte ADMIT = 'A';
+
+    private static final byte ACCESS = 'T';
+
+    private static final byte EVICT = 'D';
+
+    /**
+     * Minimum number of log records before a snapshot is written.
+     */
+    private static final int MIN_LOG_RECORDS = 10000;
+
+    /**
+     * The snapshot file.
+     */
+    private final File snapshot;
+
+    /**
+     * The log file.
+     */
+    private final File log;
+
+    /**
+     * The old log file.
+     */
+    private final File oldLog;
+
+    /**
+     * The absolute path of the cache directory, stored in the snapshot to
+     * detect an index of another cache.
+     */
+    private final String cachePath;
+
+    /**
+     * The log output, or null if the index is not open.
+     */
+    private DataOutputStream out;
+
+    /**
+     * Number of records in the log.
+     */
+    private int logRecords;
+
+    /**
+     * Guards the snapshot and the old log file against concurrent writes by
+     * the snapshot thread.
+     */
+    private final Object snapshotLock = new Object();
+
+    /**
+     * True while a snapshot is written in the background.
+     */
+    private volatile boolean snapshotPending;
+
+    /**
+     * True once the index is closed or disabled, snapshots written in the
+     * background are then discarded.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * @param indexDir the directory of the index files.
+     * @param cacheDir the directory of the cache.
+     */
+    LocalCacheIndex(File indexDir, File cacheDir) {
+        this.snapshot = new File(indexDir, SNAPSHOT_FILE);
+        this.log = new File(indexDir, LOG_FILE);
+        this.oldLog = new File(indexDir, OLD_LOG_FILE);
+        this.cachePath = cacheDir.getAbsolutePath().replace("\\", "/");
+    }
+
+    /**
+     * Loads the snapshot and replays the log into <code>entries</code>. The
+     * eldest entry is added first.
+     *
+     * @param entries the map to fill with the file names and lengths.
+     * @return true if the logs were replayed to their end, so the index
+     *         contains all files of the cache, false otherwise.
+     */
+    boolean load(Map<String, Long> entries) {
+        if (!snapshot.exists()) {
+            LOG.info("local cache index [{}] not found.", snapshot.getAbsolutePath());
+            return false;
+        }
+        boolean clean;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(snapshot)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unknown format");
+            }
+            String path = in.readUTF();
+            if (!cachePath.equals(path)) {
+                LOG.info("local cache index [{}] belongs to cache [{}], ignored.",
+                    snapshot.getAbsolutePath(), path);
+                return false;
+            }
+            clean = in.readBoolean();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String fileName = in.readUTF();
+                entries.put(fileName, in.readLong());
+            }
+            if (in.readInt() != MAGIC) {
+                throw new IOException("snapshot incomplete");
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot read local cache index ["
+                + snapshot.getAbsolutePath() + "], ignored.", e);
+            entries.clear();
+            return false;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        // the logs are replayed even if the index was closed, the records
+        // are already contained in a clean snapshot, but replaying them again
+        // yields the same entries
+        boolean complete = true;
+        if (oldLog.exists() && oldLog.length() > 0) {
+            complete = replay(oldLog, entries);
+        }
+        if (complete && log.exists() && log.length() > 0) {
+            complete = replay(log, entries);
+        }
+        LOG.info("loaded [{}] entries from local cache index, closed cleanly = [{}], complete = [{}]",
+            new Object[] { entries.size(), clean, complete });
+        return complete;
+    }
+
+    /**
+     * Replays the log <code>file</code> into <code>entries</code>.
+     *
+     * @return true if the log was replayed completely.
+     */
+    private boolean replay(File file, Map<String, Long> entries) {
+        int count = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+            for (;;) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                String fileName = in.readUTF();
+                if (type == ADMIT) {
+                    long length = in.readLong();
+                    entries.remove(fileName);
+                    entries.put(fileName, length);
+                } else if (type == ACCESS) {
+                    Long length = entries.remove(fileName);
+                    if (length != null) {
+                        entries.put(fileName, length);
+                    }
+                } else if (type == EVICT) {
+                    entries.remove(fileName);
+                } else {
+                    throw new IOException("unknown record type " + type);
+                }
+                count++;
+            }
+            LOG.debug("replayed [{}] local cache index records.", count);
+            return true;
+        } catch (EOFException e) {
+            LOG.info("local cache index log ends with an incomplete record after [{}] records.",
+                count);
+        } catch (IOException e) {
+            LOG.warn("Cannot replay local cache index log ["
+                + file.getAbsolutePath() + "] after " + count + " records.", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return false;
+    }
+
+    /**
+     * Writes a snapshot of <code>entries</code> that is not marked clean and
+     * starts a new log. Until the index is closed, changes of the cache are
+     * appended to the log.
+     *
+     * @param entries the cache entries, eldest first.
+     */
+    void open(Map<String, Long> entries) {
+        try {
+            writeSnapshot(entries, false);
+            oldLog.delete();
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(log)));
+            logRecords = 0;
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Logs the admission of a file to the cache.
+     */
+    void admitted(String fileName, long length, Map<String, Long> entries) {
+        if (out != null) {
+            try {
+                out.writeByte(ADMIT);
+                out.writeUTF(fileName);
+                out.writeLong(length);
+                out.flush();
+                logged(entries);
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Logs the access of a cached file. The record is not flushed.
+     */
+    void accessed(String fileName, Map<String, Long> entries) {
+        if (out != null) {
+            try {
+                out.writeByte(ACCESS);
+                out.writeUTF(fileName);
+                logged(entries);
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Logs the eviction of a file from the cache.
+     */
+    void evicted(String fileName, Map<String, Long> entries) {
+        if (out != null) {
+            try {
+                out.writeByte(EVICT);
+                out.writeUTF(fileName);
+                out.flush();
+                logged(entries);
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot marked clean and closes the log.
+     *
+     * @param entries the cache entries, eldest first.
+     */
+    void close(Map<String, Long> entries) {
+        if (out != null) {
+            IOUtils.closeQuietly(out);
+            out = null;
+            stopped = true;
+            synchronized (snapshotLock) {
+                try {
+                    writeSnapshot(entries, true);
+                    truncateLog();
+                    oldLog.delete();
+                } catch (IOException e) {
+                    LOG.warn("Cannot write local cache index ["
+                        + snapshot.getAbsolutePath() + "].", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if <code>file</code> is one of the index files.
+     */
+    boolean isIndexFile(File file) {
+        return file.getName().startsWith(FILE_PREFIX)
+            && snapshot.getAbsoluteFile().getParentFile().equals(
+                file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Starts a new log and writes a snapshot in the background once the log
+     * is larger than the cache. Only one snapshot is written at a time.
+     */
+    private void logged(Map<String, Long> entries) throws IOException {
+        if (++logRecords > Math.max(MIN_LOG_RECORDS, 2 * entries.size())
+                && !snapshotPending) {
+            out.close();
+            out = null;
+            // an old log left by a failed snapshot is obsolete, since that
+            // snapshot was deleted
+            oldLog.delete();
+            if (!log.renameTo(oldLog)) {
+                throw new IOException("Cannot rename " + log.getAbsolutePath()
+                    + " to " + oldLog.getAbsolutePath());
+            }
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(log)));
+            logRecords = 0;
+            snapshotPending = true;
+            new Thread(new SnapshotJob(new LinkedHashMap<String, Long>(entries)),
+                "LocalCacheIndex snapshot").start();
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and renames it. The log is
+     * replayed on top of the new snapshot until it is truncated, which
+     * yields the same entries.
+     */
+    private void writeSnapshot(Map<String, Long> entries, boolean clean)
+            throws IOException {
+        long time = System.currentTimeMillis();
+        File tmp = new File(snapshot.getParentFile(), SNAPSHOT_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(fos));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeUTF(cachePath);
+            dos.writeBoolean(clean);
+            dos.writeInt(entries.size());
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                dos.writeUTF(entry.getKey());
+                dos.writeLong(entry.getValue());
+            }
+            dos.writeInt(MAGIC);
+            dos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(snapshot)) {
+            // the target may not be replaced on some platforms
+            snapshot.delete();
+            if (!tmp.renameTo(snapshot)) {
+                throw new IOException("Cannot rename " + tmp.getAbsolutePath()
+                    + " to " + snapshot.getAbsolutePath());
+            }
+        }
+        LOG.debug("local cache index snapshot of [{}] entries written in [{}] ms.",
+            entries.size(), System.currentTimeMillis() - time);
+    }
+
+    private void truncateLog() throws IOException {
+        new FileOutputStream(log).close();
+    }
+
+    /**
+     * Stops logging after an error. As the snapshot is not marked clean, the
+     * cache directory is scanned on the next start.
+     */
+    private void failed(IOException e) {
+        LOG.warn("Cannot write local cache index log [" + log.getAbsolutePath()
+            + "], the index is disabled.", e);
+        IOUtils.closeQuietly(out);
+        out = null;
+        stopped = true;
+        synchronized (snapshotLock) {
+            // an older snapshot must not be mistaken for the current state
+            snapshot.delete();
+        }
+    }
+
+    /**
+     * Writes a snapshot of a copy of the cache entries and deletes the old
+     * log, which is contained in that snapshot.
+     */
+    private class SnapshotJob implements Runnable {
+
+        private final Map<String, Long> entries;
+
+        SnapshotJob(Map<String, Long> entries) {
+            this.entries = entries;
+        }
+
+        public void run() {
+            try {
+                synchronized (snapshotLock) {
+                    if (!stopped) {
+                        try {
+                            writeSnapshot(entries, false);
+                            oldLog.delete();
+                        } catch (IOException e) {
+                            LOG.warn("Cannot write local cache index ["
+                                + snapshot.getAbsolutePath()
+                                + "], the cache directory is scanned on the next start.", e);
+                            // the next rotation drops the old log, which the
+                            // previous snapshot depends on
+                            snapshot.delete();
+                        }
+                    }
+                }
+            } finally {
+                snapshotPending = false;
+            }
+        }
+    }
+
+}
@@ -20,6 +20,7 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
@@ -571,6 +572,21 @@ public class MultiDataStore implements DataStore {
             log.warn("Interrupted: stopping move-data task.");
         }
 
+        /**
+         * Adds a record of the primary data store to the archive data store.
+         * The identifier is passed as a {@link DataIdentifierHint}, so that
+         * a record that is archived already is not stored again.
+         */
+        private void archive(DataRecord dataRecord) throws DataStoreException {
+            InputStream stream = new HintInputStream(
+                    dataRecord.getStream(), dataRecord.getIdentifier());
+            try {
+                archiveDataStore.addRecord(stream);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+        }
+
         /**
          * Moves outdated data from primary to archive data store
          */
@@ -591,13 +607,13 @@ public class MultiDataStore implements DataStore {
                                 // first write it to the file and then add it to
                                 // the archive data store ...
                                 if (writeDelayedDataIdentifier(identifier)) {
-                                    archiveDataStore.addRecord(dataRecord.getStream());
+                                    archive(dataRecord);
                                     moved++;
                                 }
                             } else {
                                 // first add it and then delete it .. not really
                                 // atomic ...
-                                archiveDataStore.addRecord(dataRecord.getStream());
+                                archive(dataRecord);
                                 ((MultiDataStoreAware) primaryDataStore).deleteRecord(identifier);
                                 moved++;
                             }
@@ -719,4 +735,22 @@ public class MultiDataStore implements DataStore {
         }
     }
 
+    /**
+     * A record stream that knows the identifier of the record.
+     */
+    private static class HintInputStream extends FilterInputStream
+            implements DataIdentifierHint {
+
+        private final DataIdentifier identifier;
+
+        HintInputStream(InputStream in, DataIdentifier identifier) {
+            super(in);
+            this.identifier = identifier;
+        }
+
+        public DataIdentifier getIdentifierHint() {
+            return identifier;
+        }
+    }
+
 }
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jackrabbit.core.data;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * A {@link Backend} that stores a record in parts, which are uploaded
+ * concurrently. {@link CachingDataStore} uploads records of at least
+ * {@link CachingDataStore#setMultipartThreshold(long) multipartThreshold}
+ * bytes this way. Downloads of such records read ranges concurrently with
+ * {@link Backend#read(DataIdentifier, long, long)}, which every backend
+ * supports.
+ * <p>
+ * The parts of an upload are uploaded concurrently, so
+ * {@link #uploadPart(DataIdentifier, String, int, File, long, long)} must be
+ * thread safe.
+ */
+public interface MultipartBackend extends Backend {
+
+    /**
+     * Starts the upload of a record in parts.
+     * @param identifier
+     *            key of the record.
+     * @param length
+     *            length of the record.
+     * @return id of the upload.
+     * @throws DataStoreException
+     *             for any error.
+     */
+    String initiateUpload(DataIdentifier identifier, long length)
+            throws DataStoreException;
+
+    /**
+     * Uploads a part of the record.
+     * @param identifier
+     *            key of the record.
+     * @param uploadId
+     *            id returned by {@link #initiateUpload(DataIdentifier, long)}.
+     * @param partNumber
+     *            number of the part, starting with 1.
+     * @param file
+     *            file that contains the record.
+     * @param offset
+     *            position of the part in the file and in the record.
+     * @param length
+     *            length of the part.
+     * @return tag of the uploaded part, which is passed to
+     *         {@link #completeUpload(DataIdentifier, String, List)}.
+     * @throws DataStoreException
+     *             for any error.
+     */
+    String uploadPart(DataIdentifier identifier, String uploadId,
+            int partNumber, File file, long offset, long length)
+            throws DataStoreException;
+
+    /**
+     * Completes the upload. The record is not visible before the upload is
+     * completed. If the record was stored in the meantime, its timestamp is
+     * updated as in {@link Backend#write(DataIdentifier, File)}.
+     * @param identifier
+     *            key of the record.
+     * @param uploadId
+     *            id of the upload.
+     * @param partTags
+     *            tags of all parts, ordered by part number.
+     * @throws DataStoreException
+     *             for any error.
+     */
+    void completeUpload(DataIdentifier identifier, String uploadId,
+            List<String> partTags) throws DataStoreException;
+
+    /**
+     * Aborts the upload and discards the uploaded parts.
+     * @param identifier
+     *            key of the record.
+     * @param uploadId
+     *            id of the upload.
+     * @throws DataStoreException
+     *             for any error.
+     */
+    void abortUpload(DataIdentifier identifier, String uploadId)
+            throws DataStoreException;
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.data;
+
+/**
+ * A data store that can delete the unused records if the garbage collector
+ * knows the referenced records, instead of touching them while scanning
+ * the repository.
+ */
+public interface ReferenceAwareDataStore {
+
+    /**
+     * Deletes all records that were last modified before <code>min</code>,
+     * and are neither in use nor referenced. Like
+     * {@link DataStore#deleteAllOlderThan(long)}, records that are added or
+     * accessed concurrently are not deleted.
+     *
+     * @param min the minimum time
+     * @param references the referenced records
+     * @return the number of data records deleted
+     * @throws DataStoreException if the data store could not be accessed
+     */
+    int deleteAllOlderThan(long min, DataReferences references)
+            throws DataStoreException;
+
+}
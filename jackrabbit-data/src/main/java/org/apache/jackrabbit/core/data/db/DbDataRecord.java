@@ -62,6 +62,20 @@ public class DbDataRecord extends AbstractDataRecord {
         return new BufferedInputStream(new DbInputStream(store, getIdentifier()));
     }
 
+    /**
+     * {@inheritDoc}
+     * Only the range is read from the database if the driver supports
+     * positional reads of blobs.
+     */
+    @Override
+    public InputStream getStream(long offset, long length)
+            throws DataStoreException {
+        checkRange(offset, length);
+        lastModified = store.touch(getIdentifier(), lastModified);
+        return new BufferedInputStream(
+                new DbInputStream(store, getIdentifier(), offset, length));
+    }
+
     /**
      * {@inheritDoc}
      */
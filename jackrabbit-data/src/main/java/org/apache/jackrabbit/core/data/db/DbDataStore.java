@@ -17,12 +17,15 @@
 package org.apache.jackrabbit.core.data.db;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.jackrabbit.core.data.AbstractDataStore;
 import org.apache.jackrabbit.core.data.DataIdentifier;
 import org.apache.jackrabbit.core.data.DataRecord;
+import org.apache.jackrabbit.core.data.DataReferences;
 import org.apache.jackrabbit.core.data.DataStoreException;
+import org.apache.jackrabbit.core.data.IngestStream;
 import org.apache.jackrabbit.core.data.MultiDataStoreAware;
+import org.apache.jackrabbit.core.data.ReferenceAwareDataStore;
 import org.apache.jackrabbit.core.util.db.CheckSchemaOperation;
 import org.apache.jackrabbit.core.util.db.ConnectionFactory;
 import org.apache.jackrabbit.core.util.db.ConnectionHelper;
@@ -41,9 +44,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.sql.Blob;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -75,6 +78,8 @@ import javax.sql.DataSource;
  *     &lt;param name="{@link #setTablePrefix(String) tablePrefix}" value=""/>
  *     &lt;param name="{@link #setSchemaObjectPrefix(String) schemaObjectPrefix}" value=""/>
  *     &lt;param name="{@link #setSchemaCheckEnabled(String) schemaCheckEnabled}" value="true"/>
+ *     &lt;param name="{@link #setDigestAlgorithm(String) digestAlgorithm}" value="SHA-1"/>
+ *     &lt;param name="{@link #setIngestBufferSize(int) ingestBufferSize}" value="262144"/>
  * &lt/DataStore>
  * </pre>
  * <p>
@@ -102,7 +107,7 @@ import javax.sql.DataSource;
  * &lt;param name="tablePrefix" value="ds.">
  */
 public class DbDataStore extends AbstractDataStore
-        implements DatabaseAware, MultiDataStoreAware {
+        implements DatabaseAware, MultiDataStoreAware, ReferenceAwareDataStore {
 
     /**
      * The default value for the minimum object size.
@@ -126,7 +131,7 @@ public class DbDataStore extends AbstractDataStore
     public static final String STORE_SIZE_MAX = "max";
 
     /**
-     * The digest algorithm used to uniquely identify records.
+     * The default digest algorithm used to uniquely identify records.
      */
     protected static final String DIGEST = "SHA-1";
 
@@ -252,6 +257,13 @@ public class DbDataStore extends AbstractDataStore
     protected String deleteOlderSQL =
         "DELETE FROM ${tablePrefix}${table} WHERE LAST_MODIFIED<?";
 
+    /**
+     * This is the property 'deleteOlderId'
+     * in the [databaseType].properties file, initialized with the default value.
+     */
+    protected String deleteOlderIdSQL =
+        "DELETE FROM ${tablePrefix}${table} WHERE ID=? AND LAST_MODIFIED<?";
+
     /**
      * This is the property 'selectMeta'
      * in the [databaseType].properties file, initialized with the default value.
@@ -314,6 +326,11 @@ public class DbDataStore extends AbstractDataStore
         String tempId = null;
         ResultSet rs = null;
         try {
+            IngestStream in = new IngestStream(stream, getDigest(), getIngestBufferSize());
+            DataRecord existing = getExistingRecord(in);
+            if (existing != null) {
+                return existing;
+            }
             long tempModified;
             while (true) {
                 try {
@@ -341,9 +358,6 @@ public class DbDataStore extends AbstractDataStore
                     rs = null;
                 }
             }
-            MessageDigest digest = getDigest();
-            DigestInputStream dIn = new DigestInputStream(stream, digest);
-            CountingInputStream in = new CountingInputStream(dIn);
             StreamWrapper wrapper;
             if (STORE_SIZE_MINUS_ONE.equals(storeStream)) {
                 wrapper = new StreamWrapper(in, -1);
@@ -358,9 +372,11 @@ public class DbDataStore extends AbstractDataStore
             }
             // UPDATE DATASTORE SET DATA=? WHERE ID=?
             conHelper.exec(updateDataSQL, wrapper, tempId);
-            long length = in.getByteCount();
-            DataIdentifier identifier =
-                    new DataIdentifier(encodeHexString(digest.digest()));
+            if (in.getIdentifier() == null && in.read() >= 0) {
+                throw new DataStoreException("Stream not stored completely");
+            }
+            long length = in.getLength();
+            DataIdentifier identifier = in.getIdentifier();
             usesIdentifier(identifier);
             String id = identifier.toString();
             long newModified;
@@ -399,7 +415,7 @@ public class DbDataStore extends AbstractDataStore
                 if (!rs.next()) {
                     // the row was deleted, which is unexpected / not allowed
                     String msg =
-                        DIGEST + " temporary entry deleted: " +
+                        getDigestAlgorithm() + " temporary entry deleted: " +
                             " id=" + tempId + " length=" + length;
                     log.error(msg);
                     throw new DataStoreException(msg);
@@ -409,6 +425,7 @@ public class DbDataStore extends AbstractDataStore
                 rs = null;
             }
             usesIdentifier(identifier);
+            getHints().put(in, identifier);
             DbDataRecord record = new DbDataRecord(this, identifier, length, newModified);
             return record;
         } catch (Exception e) {
@@ -428,6 +445,32 @@ public class DbDataStore extends AbstractDataStore
         }
     }
 
+    /**
+     * Returns an existing record with the same content, without storing the
+     * stream first. The record is found by the identifier, if the stream is
+     * small enough to be digested in memory, or by a hint.
+     *
+     * @return the record or null
+     */
+    private DataRecord getExistingRecord(IngestStream in)
+            throws DataStoreException, IOException {
+        if (in.isComplete()) {
+            DataRecord record = getRecordIfStored(in.getIdentifier());
+            // a different length is reported as a collision later on
+            if (record != null && record.getLength() == in.getLength()) {
+                return record;
+            }
+        } else {
+            DataIdentifier hint = getHints().get(in);
+            DataRecord candidate = hint == null ? null : getRecordIfStored(hint);
+            if (candidate != null && in.matches(candidate)) {
+                getHints().put(in, hint);
+                return candidate;
+            }
+        }
+        return null;
+    }
+
     /**
      * Check if a row with this ID already exists.
      *
@@ -445,7 +488,7 @@ public class DbDataStore extends AbstractDataStore
                 long lastModified = rs.getLong(2);
                 if (oldLength != length) {
                     String msg =
-                        DIGEST + " collision: temp=" + tempId
+                        getDigestAlgorithm() + " collision: temp=" + tempId
                         + " id=" + id + " length=" + length
                         + " oldLength=" + oldLength;
                     log.error(msg);
@@ -498,17 +541,7 @@ public class DbDataStore extends AbstractDataStore
 
     public synchronized int deleteAllOlderThan(long min) throws DataStoreException {
         try {
-            ArrayList<String> touch = new ArrayList<String>();
-            ArrayList<DataIdentifier> ids = new ArrayList<DataIdentifier>(inUse.keySet());
-            for (DataIdentifier identifier: ids) {
-                if (identifier != null) {
-                    touch.add(identifier.toString());
-                }
-            }
-            touch.addAll(temporaryInUse);
-            for (String key : touch) {
-                updateLastModifiedDate(key, 0);
-            }
+            touchInUse();
             // DELETE FROM DATASTORE WHERE LAST_MODIFIED<?
             return conHelper.update(deleteOlderSQL, min);
         } catch (Exception e) {
@@ -516,6 +549,43 @@ public class DbDataStore extends AbstractDataStore
         }
     }
 
+    public synchronized int deleteAllOlderThan(long min, DataReferences references)
+            throws DataStoreException {
+        try {
+            touchInUse();
+            int count = 0;
+            Iterator<DataIdentifier> it = getAllIdentifiers();
+            while (it.hasNext()) {
+                DataIdentifier identifier = it.next();
+                if (!references.isReferenced(identifier)) {
+                    // DELETE FROM DATASTORE WHERE ID=? AND LAST_MODIFIED<?
+                    count += conHelper.update(deleteOlderIdSQL, identifier.toString(), min);
+                }
+            }
+            return count;
+        } catch (Exception e) {
+            throw convert("Can not delete records", e);
+        }
+    }
+
+    /**
+     * Updates the modified date of the records in use, so that they are not
+     * deleted.
+     */
+    private void touchInUse() throws DataStoreException {
+        ArrayList<String> touch = new ArrayList<String>();
+        ArrayList<DataIdentifier> ids = new ArrayList<DataIdentifier>(inUse.keySet());
+        for (DataIdentifier identifier: ids) {
+            if (identifier != null) {
+                touch.add(identifier.toString());
+            }
+        }
+        touch.addAll(temporaryInUse);
+        for (String key : touch) {
+            updateLastModifiedDate(key, 0);
+        }
+    }
+
     public Iterator<DataIdentifier> getAllIdentifiers() throws DataStoreException {
         ArrayList<DataIdentifier> list = new ArrayList<DataIdentifier>();
         ResultSet rs = null;
@@ -585,6 +655,23 @@ public class DbDataStore extends AbstractDataStore
      *          or if the given identifier is invalid
      */
     InputStream openStream(DbInputStream inputStream, DataIdentifier identifier) throws DataStoreException {
+        return openStream(inputStream, identifier, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Open the input stream of a range of the record. This method sets those
+     * fields of the caller that need to be closed once the input stream is
+     * read.
+     *
+     * @param inputStream the database input stream object
+     * @param identifier data identifier
+     * @param offset the position of the first byte
+     * @param length the maximum number of bytes
+     * @throws DataStoreException if the data store could not be accessed,
+     *          or if the given identifier is invalid
+     */
+    InputStream openStream(DbInputStream inputStream, DataIdentifier identifier,
+            long offset, long length) throws DataStoreException {
         ResultSet rs = null;
         try {
             // SELECT ID, DATA FROM DATASTORE WHERE ID = ?
@@ -592,7 +679,12 @@ public class DbDataStore extends AbstractDataStore
             if (!rs.next()) {
                 throw new DataStoreException("Record not found: " + identifier);
             }
-            InputStream stream = rs.getBinaryStream(2);
+            InputStream stream;
+            if (offset == 0 && length == Long.MAX_VALUE) {
+                stream = rs.getBinaryStream(2);
+            } else {
+                stream = getRangeStream(rs, offset, length);
+            }
             if (stream == null) {
                 stream = new ByteArrayInputStream(new byte[0]);
                 DbUtility.close(rs);
@@ -612,6 +704,48 @@ public class DbDataStore extends AbstractDataStore
         }
     }
 
+    /**
+     * Returns the stream of a range of the data column of the current row.
+     * If the column is a <code>Blob</code>, only the range is read with
+     * {@link Blob#getBinaryStream(long, long)}. Otherwise the preceding
+     * bytes are skipped.
+     *
+     * @param rs the result set, positioned on the row
+     * @param offset the position of the first byte
+     * @param length the maximum number of bytes
+     * @return the stream, or <code>null</code> if the column is null
+     * @throws SQLException if the column cannot be read
+     * @throws IOException if the bytes cannot be skipped
+     */
+    private InputStream getRangeStream(ResultSet rs, long offset, long length)
+            throws SQLException, IOException {
+        try {
+            Blob blob = rs.getBlob(2);
+            if (blob == null) {
+                return null;
+            }
+            long size = blob.length();
+            if (offset >= size || length == 0) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            // positions of a blob start at 1
+            return blob.getBinaryStream(offset + 1, Math.min(length, size - offset));
+        } catch (SQLException e) {
+            // not a blob column, or positional reads are not supported
+            log.debug("Unable to read range of blob, skipping instead: " + e);
+        } catch (AbstractMethodError e) {
+            // JDBC 3 driver
+            log.debug("Unable to read range of blob, skipping instead: " + e);
+        }
+        InputStream stream = rs.getBinaryStream(2);
+        if (stream == null) {
+            return null;
+        }
+        IOUtils.skip(stream, offset);
+        return length == Long.MAX_VALUE
+                ? stream : new BoundedInputStream(stream, length);
+    }
+
     public synchronized void init(String homeDir) throws DataStoreException {
         try {
             initDatabaseType();
@@ -717,6 +851,7 @@ public class DbDataStore extends AbstractDataStore
         updateSQL = getProperty(prop, "update", updateSQL);
         deleteSQL = getProperty(prop, "delete", deleteSQL);
         deleteOlderSQL = getProperty(prop, "deleteOlder", deleteOlderSQL);
+        deleteOlderIdSQL = getProperty(prop, "deleteOlderId", deleteOlderIdSQL);
         selectMetaSQL = getProperty(prop, "selectMeta", selectMetaSQL);
         selectAllSQL = getProperty(prop, "selectAll", selectAllSQL);
         selectDataSQL = getProperty(prop, "selectData", selectDataSQL);
@@ -917,9 +1052,9 @@ public class DbDataStore extends AbstractDataStore
 
     protected synchronized MessageDigest getDigest() throws DataStoreException {
         try {
-            return MessageDigest.getInstance(DIGEST);
+            return MessageDigest.getInstance(getDigestAlgorithm());
         } catch (NoSuchAlgorithmException e) {
-            throw convert("No such algorithm: " + DIGEST, e);
+            throw convert("No such algorithm: " + getDigestAlgorithm(), e);
         }
     }
 
@@ -39,6 +39,16 @@ public class DbInputStream extends AutoCloseInputStream {
     protected DataIdentifier identifier;
     protected boolean endOfStream;
 
+    /**
+     * The position of the first byte of the stream in the record.
+     */
+    protected final long offset;
+
+    /**
+     * The maximum number of bytes of the stream.
+     */
+    protected final long length;
+
     protected ResultSet rs;
 
     /**
@@ -49,9 +59,25 @@ public class DbInputStream extends AutoCloseInputStream {
      * @param identifier the data identifier
      */
     protected DbInputStream(DbDataStore store, DataIdentifier identifier) {
+        this(store, identifier, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a database input stream for a range of the given identifier.
+     * Database access is delayed until the first byte is read from the stream.
+     *
+     * @param store the database data store
+     * @param identifier the data identifier
+     * @param offset the position of the first byte
+     * @param length the maximum number of bytes
+     */
+    protected DbInputStream(DbDataStore store, DataIdentifier identifier,
+            long offset, long length) {
         super(null);
         this.store = store;
         this.identifier = identifier;
+        this.offset = offset;
+        this.length = length;
     }
 
     /**
@@ -65,7 +91,7 @@ public class DbInputStream extends AutoCloseInputStream {
         }
         if (in == null) {
             try {
-                in = store.openStream(this, identifier);
+                in = store.openStream(this, identifier, offset, length);
             } catch (DataStoreException e) {
                 IOException e2 = new IOException(e.getMessage());
                 e2.initCause(e);
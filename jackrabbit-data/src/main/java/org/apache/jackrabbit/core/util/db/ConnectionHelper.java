@@ -22,8 +22,11 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.sql.DataSource;
@@ -49,6 +52,7 @@ import org.slf4j.LoggerFactory;
  * <li>{@link #exec(String, Object...)}</li>
  * <li>{@link #update(String, Object[])}</li>
  * <li>{@link #exec(String, Object[], boolean, int)}</li>
+ * <li>{@link #updateBatch(String, List)}</li>
  * </ul>
  *
  * <p>
@@ -347,6 +351,45 @@ public class ConnectionHelper {
         }
     }
 
+    /**
+     * Executes an update or delete statement once for each of the given
+     * parameter arrays, using a single JDBC batch, and returns the update
+     * counts.
+     *
+     * @param sql an SQL statement string
+     * @param paramsList the parameters for each execution of the SQL statement
+     * @return the update counts
+     * @throws SQLException on error
+     */
+    public final int[] updateBatch(final String sql, final List<Object[]> paramsList)
+            throws SQLException {
+        List<Object> allParams = new ArrayList<Object>();
+        for (Object[] params : paramsList) {
+            allParams.addAll(Arrays.asList(params));
+        }
+        return new RetryManager<int[]>(allParams.toArray()) {
+
+            @Override
+            protected int[] call() throws SQLException {
+                return reallyUpdateBatch(sql, paramsList);
+            }
+
+        }.doTry();
+    }
+
+    int[] reallyUpdateBatch(String sql, List<Object[]> paramsList) throws SQLException {
+        Connection con = null;
+        PreparedStatement stmt = null;
+        boolean inBatchMode = inBatchMode();
+        try {
+            con = getConnection(inBatchMode);
+            stmt = con.prepareStatement(sql);
+            return executeBatch(stmt, paramsList);
+        } finally {
+            closeResources(con, stmt, null, inBatchMode);
+        }
+    }
+
     /**
      * Executes a SQL query and returns the {@link ResultSet}. The
      * returned {@link ResultSet} should be closed by clients.
@@ -503,6 +546,31 @@ public class ConnectionHelper {
      * @throws SQLException on error
      */
     protected PreparedStatement execute(PreparedStatement stmt, Object[] params) throws SQLException {
+        setParameters(stmt, params);
+        stmt.execute();
+        return stmt;
+    }
+
+    /**
+     * This method is used by {@link #updateBatch(String, List)} to execute a statement with multiple
+     * parameter sets. This default implementation sets the parameters in the same way as
+     * {@link #execute(PreparedStatement, Object[])} and executes them as a single JDBC batch. Subclasses
+     * that need special parameter handling in {@code execute} should override this method as well.
+     *
+     * @param stmt the {@link PreparedStatement} to execute
+     * @param paramsList the parameters for each execution
+     * @return the update counts
+     * @throws SQLException on error
+     */
+    protected int[] executeBatch(PreparedStatement stmt, List<Object[]> paramsList) throws SQLException {
+        for (Object[] params : paramsList) {
+            setParameters(stmt, params);
+            stmt.addBatch();
+        }
+        return stmt.executeBatch();
+    }
+
+    private void setParameters(PreparedStatement stmt, Object[] params) throws SQLException {
         for (int i = 0; params != null && i < params.length; i++) {
             Object p = params[i];
             if (p instanceof StreamWrapper) {
@@ -512,8 +580,6 @@ public class ConnectionHelper {
                 stmt.setObject(i + 1, p);
             }
         }
-        stmt.execute();
-        return stmt;
     }
 
     /**
@@ -124,6 +124,20 @@ public final class Oracle10R1ConnectionHelper extends OracleConnectionHelper {
         }
     }
 
+    /**
+     * Executes the statement separately for each parameter set, because the
+     * temporary blobs created in {@link #execute(PreparedStatement, Object[])}
+     * must be freed right after the execution.
+     */
+    @Override
+    protected int[] executeBatch(PreparedStatement stmt, List<Object[]> paramsList) throws SQLException {
+        int[] counts = new int[paramsList.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = execute(stmt, paramsList.get(i)).getUpdateCount();
+        }
+        return counts;
+    }
+
     /**
      * Creates a temporary oracle.sql.BLOB instance via reflection and spools the contents of the specified
      * stream.
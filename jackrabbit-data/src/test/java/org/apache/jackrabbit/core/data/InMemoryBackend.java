@@ -77,6 +77,16 @@ public class InMemoryBackend implements Backend {
         return new ByteArrayInputStream(data.get(identifier));
     }
 
+    @Override
+    public InputStream read(final DataIdentifier identifier, long offset,
+            long length) throws DataStoreException {
+        log("read " + identifier + " [" + offset + ", " + length + "]");
+        byte[] bytes = data.get(identifier);
+        int start = (int) Math.min(offset, bytes.length);
+        int len = (int) Math.min(length, bytes.length - start);
+        return new ByteArrayInputStream(bytes, start, len);
+    }
+
     @Override
     public void writeAsync(final DataIdentifier identifier, final File file,
             final AsyncUploadCallback callback) throws DataStoreException {
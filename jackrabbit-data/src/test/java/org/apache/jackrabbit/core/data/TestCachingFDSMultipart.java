@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Properties;
+
+import javax.jcr.RepositoryException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test {@link CachingDataStore} with records that are transferred in parts
+ * to and from a {@link ThrottledFSBackend}.
+ */
+public class TestCachingFDSMultipart extends TestFileDataStore {
+
+    protected static final Logger LOG = LoggerFactory.getLogger(TestCachingFDSMultipart.class);
+
+    /**
+     * Bandwidth of a stream to the backend in bytes per second.
+     */
+    private long bandwidth = 20 * 1024 * 1024;
+
+    private int asyncUploadLimit = 100;
+
+    private int concurrentPartsPerRecord = 4;
+
+    private long partSize = 8 * 1024;
+
+    protected DataStore createDataStore() throws RepositoryException {
+        ThrottledCachingFDS cacheFDS = new ThrottledCachingFDS(bandwidth);
+        Properties props = loadProperties("/fs.properties");
+        String pathValue = props.getProperty(FSBackend.FS_BACKEND_PATH);
+        if (pathValue != null && !"".equals(pathValue.trim())) {
+            fsPath = pathValue + "/cachingFds" + "-"
+                + String.valueOf(randomGen.nextInt(100000)) + "-"
+                + String.valueOf(randomGen.nextInt(100000));
+        } else {
+            fsPath = dataStoreDir + "/cachingFds";
+        }
+        props.setProperty(FSBackend.FS_BACKEND_PATH, fsPath);
+        LOG.info("fsBackendPath [{}] set.", fsPath);
+        cacheFDS.setProperties(props);
+        cacheFDS.setSecret("12345");
+        cacheFDS.setAsyncUploadLimit(asyncUploadLimit);
+        cacheFDS.setMultipartThreshold(2 * partSize);
+        cacheFDS.setPartSize(partSize);
+        cacheFDS.setConcurrentPartsPerRecord(concurrentPartsPerRecord);
+        cacheFDS.init(dataStoreDir);
+        return cacheFDS;
+    }
+
+    /**
+     * Test that a record which is not in the local cache is downloaded in
+     * parts, and that no upload files are left in the backend.
+     */
+    public void testDownloadInParts() throws Exception {
+        asyncUploadLimit = 0;
+        CachingDataStore store = (CachingDataStore) createDataStore();
+        ds = store;
+        byte[] data = new byte[dataLength];
+        randomGen.nextBytes(data);
+        DataRecord rec = store.addRecord(new ByteArrayInputStream(data));
+        assertEquals(0, new File(fsPath).listFiles(new UploadFileFilter()).length);
+
+        store.deleteFromCache(rec.getIdentifier());
+        rec = store.getRecord(rec.getIdentifier());
+        assertRecord(data, rec);
+        // now served from the local cache
+        assertRecord(data, rec);
+        store.close();
+    }
+
+    /**
+     * Compare transfers of a record in one stream and in concurrent streams
+     * with a limited bandwidth per stream.
+     */
+    public void testConcurrentParts() throws Exception {
+        asyncUploadLimit = 0;
+        bandwidth = 1024 * 1024;
+        partSize = 64 * 1024;
+        dataLength = 1024 * 1024;
+
+        concurrentPartsPerRecord = 1;
+        long serial = transfer();
+        concurrentPartsPerRecord = 8;
+        long concurrent = transfer();
+        LOG.info("Upload and download of [{}] bytes in one stream took [{}]ms,"
+            + " in [{}] streams [{}]ms", new Object[] { dataLength, serial,
+            concurrentPartsPerRecord, concurrent });
+    }
+
+    /**
+     * Upload a record and download it again.
+     * @return time taken in ms
+     */
+    private long transfer() throws Exception {
+        CachingDataStore store = (CachingDataStore) createDataStore();
+        ds = store;
+        try {
+            byte[] data = new byte[dataLength];
+            randomGen.nextBytes(data);
+            long start = System.currentTimeMillis();
+            DataRecord rec = store.addRecord(new ByteArrayInputStream(data));
+            store.deleteFromCache(rec.getIdentifier());
+            assertRecord(data, store.getRecord(rec.getIdentifier()));
+            return System.currentTimeMillis() - start;
+        } finally {
+            store.close();
+        }
+    }
+
+    private static class UploadFileFilter implements FileFilter {
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().startsWith("upload-");
+        }
+    }
+
+    /**
+     * {@link CachingFDS} with a {@link ThrottledFSBackend}.
+     */
+    private static class ThrottledCachingFDS extends CachingFDS {
+
+        private final long bandwidth;
+
+        private Properties properties;
+
+        ThrottledCachingFDS(long bandwidth) {
+            this.bandwidth = bandwidth;
+        }
+
+        @Override
+        public void setProperties(Properties properties) {
+            super.setProperties(properties);
+            this.properties = properties;
+        }
+
+        @Override
+        protected Backend createBackend() {
+            ThrottledFSBackend backend = new ThrottledFSBackend(bandwidth);
+            backend.setProperties(properties);
+            return backend;
+        }
+    }
+}
@@ -217,6 +217,25 @@ public abstract class TestCaseBase extends TestCase {
         }
     }
 
+    /**
+     * Testcase to validate
+     * {@link ReferenceAwareDataStore#deleteAllOlderThan(long, DataReferences)}.
+     */
+    public void testDeleteUnreferenced() {
+        try {
+            long start = System.currentTimeMillis();
+            LOG.info("Testcase: " + this.getClass().getName()
+                + "#testDeleteUnreferenced, testDir=" + dataStoreDir);
+            doDeleteUnreferencedTest();
+            LOG.info("Testcase: " + this.getClass().getName()
+                + "#testDeleteUnreferenced finished, time taken = ["
+                + (System.currentTimeMillis() - start) + "]ms");
+        } catch (Exception e) {
+            LOG.error("error:", e);
+            fail(e.getMessage());
+        }
+    }
+
     /**
      * Testcase to validate {@link DataStore#getRecordFromReference(String)}
      */
@@ -235,6 +254,43 @@ public abstract class TestCaseBase extends TestCase {
         }
     }
 
+    /**
+     * Testcase to validate {@link DataRecord#getStream(long, long)}
+     */
+    public void testRangeRead() {
+        try {
+            long start = System.currentTimeMillis();
+            LOG.info("Testcase: " + this.getClass().getName()
+                + "#testRangeRead, testDir=" + dataStoreDir);
+            doRangeReadTest();
+            LOG.info("Testcase: " + this.getClass().getName()
+                + "#testRangeRead finished, time taken = ["
+                + (System.currentTimeMillis() - start) + "]ms");
+        } catch (Exception e) {
+            LOG.error("error:", e);
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Testcase to validate {@link DataStore#addRecord(InputStream)} of
+     * records that already exist.
+     */
+    public void testAddDuplicates() {
+        try {
+            long start = System.currentTimeMillis();
+            LOG.info("Testcase: " + this.getClass().getName()
+                + "#testAddDuplicates, testDir=" + dataStoreDir);
+            doAddDuplicatesTest();
+            LOG.info("Testcase: " + this.getClass().getName()
+                + "#testAddDuplicates finished, time taken = ["
+                + (System.currentTimeMillis() - start) + "]ms");
+        } catch (Exception e) {
+            LOG.error("error:", e);
+            fail(e.getMessage());
+        }
+    }
+
     /**
      * Testcase to validate mixed scenario use of {@link DataStore}.
      */
@@ -461,6 +517,50 @@ public abstract class TestCaseBase extends TestCase {
         ds.close();
     }
 
+    /**
+     * Asserts that
+     * {@link ReferenceAwareDataStore#deleteAllOlderThan(long, DataReferences)}
+     * keeps the referenced records and the records in use.
+     */
+    protected void doDeleteUnreferencedTest() throws Exception {
+        ds = createDataStore();
+        Random random = randomGen;
+        byte[] data = new byte[dataLength];
+        random.nextBytes(data);
+        final DataRecord rec1 = ds.addRecord(new ByteArrayInputStream(data));
+
+        data = new byte[dataLength];
+        random.nextBytes(data);
+        DataRecord rec2 = ds.addRecord(new ByteArrayInputStream(data));
+
+        data = new byte[dataLength];
+        random.nextBytes(data);
+        DataRecord rec3 = ds.addRecord(new ByteArrayInputStream(data));
+
+        // sleep for some time to ensure that async upload completes in backend.
+        sleep(10000);
+        long updateTime = System.currentTimeMillis();
+        ds.clearInUse();
+        // rec3 is used, but not referenced yet
+        rec3 = ds.getRecord(rec3.getIdentifier());
+        ds.updateModifiedDateOnAccess(updateTime);
+
+        assertEquals("only rec2 should be deleted", 1,
+            ((ReferenceAwareDataStore) ds).deleteAllOlderThan(updateTime,
+                new DataReferences() {
+                    public boolean isReferenced(DataIdentifier identifier) {
+                        return identifier.equals(rec1.getIdentifier());
+                    }
+                }));
+        assertNull("rec2 should be null",
+            ds.getRecordIfStored(rec2.getIdentifier()));
+        assertNotNull("rec1 should be kept",
+            ds.getRecordIfStored(rec1.getIdentifier()));
+        assertNotNull("rec3 should be kept",
+            ds.getRecordIfStored(rec3.getIdentifier()));
+        ds.close();
+    }
+
     /**
      * Test if record can be accessed via
      * {@link DataStore#getRecordFromReference(String)}
@@ -476,6 +576,79 @@ public abstract class TestCaseBase extends TestCase {
         ds.close();
     }
 
+    /**
+     * Test if ranges of a record can be read with
+     * {@link DataRecord#getStream(long, long)}, from the record returned by
+     * {@link DataStore#addRecord(InputStream)} and by
+     * {@link DataStore#getRecord(DataIdentifier)}.
+     */
+    protected void doRangeReadTest() throws Exception {
+        ds = createDataStore();
+        byte[] data = new byte[dataLength];
+        randomGen.nextBytes(data);
+        DataRecord rec = ds.addRecord(new ByteArrayInputStream(data));
+        assertRange(data, rec, 0, data.length);
+        rec = ds.getRecord(rec.getIdentifier());
+        assertRange(data, rec, 0, 10);
+        assertRange(data, rec, 1000, 5000);
+        assertRange(data, rec, data.length - 10, 10);
+        // ranges beyond the end are cut
+        assertRange(data, rec, data.length - 10, 100);
+        assertRange(data, rec, 5000, Long.MAX_VALUE);
+        assertRange(data, rec, data.length, 10);
+        assertRange(data, rec, data.length + 10, 10);
+        assertRange(data, rec, 100, 0);
+        try {
+            rec.getStream(-1, 10);
+            fail("negative offset");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        ds.close();
+    }
+
+    /**
+     * Test that adding a record again returns the existing record, for small
+     * records, large records and records with a {@link DataIdentifierHint},
+     * and that a wrong hint does not change the content.
+     */
+    protected void doAddDuplicatesTest() throws Exception {
+        ds = createDataStore();
+        byte[] data = new byte[dataLength];
+        randomGen.nextBytes(data);
+        DataRecord rec = ds.addRecord(new ByteArrayInputStream(data));
+        assertEquals(rec.getIdentifier(),
+            ds.addRecord(new ByteArrayInputStream(data)).getIdentifier());
+
+        byte[] large = new byte[4 * dataLength];
+        randomGen.nextBytes(large);
+        DataRecord largeRec = ds.addRecord(new ByteArrayInputStream(large));
+        DataIdentifier id = largeRec.getIdentifier();
+        assertEquals(id,
+            ds.addRecord(new ByteArrayInputStream(large)).getIdentifier());
+        assertEquals(id,
+            ds.addRecord(new HintStream(large, id)).getIdentifier());
+        assertRecord(large, ds.getRecord(id));
+
+        // content that differs from the hinted record
+        byte[] other = large.clone();
+        other[other.length - 1]++;
+        assertRecord(other, ds.addRecord(new HintStream(other, id)));
+        other = new byte[large.length + 1000];
+        System.arraycopy(large, 0, other, 0, large.length);
+        assertRecord(other, ds.addRecord(new HintStream(other, id)));
+        other = new byte[large.length - 1000];
+        System.arraycopy(large, 0, other, 0, other.length);
+        assertRecord(other, ds.addRecord(new HintStream(other, id)));
+        other = large.clone();
+        other[0]++;
+        assertRecord(other, ds.addRecord(new HintStream(other, id)));
+
+        assertRecord(large, ds.getRecord(id));
+        assertRecord(data, ds.getRecord(rec.getIdentifier()));
+        ds.close();
+    }
+
     /**
      * Method to validate mixed scenario use of {@link DataStore}.
      */
@@ -630,6 +803,19 @@ public abstract class TestCaseBase extends TestCase {
         }
     }
 
+    /**
+     * Assert a range read from a record.
+     */
+    protected void assertRange(byte[] expected, DataRecord record,
+            long offset, long length) throws Exception {
+        int from = (int) Math.min(offset, expected.length);
+        int to = (int) Math.min(from + Math.min(length, expected.length), expected.length);
+        byte[] range = new byte[to - from];
+        System.arraycopy(expected, from, range, 0, range.length);
+        assertEquals(new ByteArrayInputStream(range),
+            record.getStream(offset, length));
+    }
+
     /**
      * Assert inputstream read from reference.
      */
@@ -679,4 +865,22 @@ public abstract class TestCaseBase extends TestCase {
         }
         return configProp;
     }
+
+    /**
+     * A stream with a {@link DataIdentifierHint}.
+     */
+    static class HintStream extends ByteArrayInputStream implements
+            DataIdentifierHint {
+
+        private final DataIdentifier hint;
+
+        HintStream(byte[] data, DataIdentifier hint) {
+            super(data);
+            this.hint = hint;
+        }
+
+        public DataIdentifier getIdentifierHint() {
+            return hint;
+        }
+    }
 }
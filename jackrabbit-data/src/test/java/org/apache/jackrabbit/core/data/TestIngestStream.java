@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test cases to test {@link IngestStream} and the ingest of duplicate
+ * records into a {@link FileDataStore}.
+ */
+public class TestIngestStream extends TestCase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TestIngestStream.class);
+
+    private File directory;
+
+    private Random random = new Random(12345);
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = new File("target/ingest-" + random.nextInt(100000) + "-"
+            + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    public void testSmallRecord() throws Exception {
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        IngestStream in = new IngestStream(new ByteArrayInputStream(data),
+            MessageDigest.getInstance("SHA-1"), 1000);
+        assertTrue(in.isComplete());
+        assertEquals(1000, in.getLength());
+        assertEquals(digest("SHA-1", data), in.getIdentifier().toString());
+        assertTrue(Arrays.equals(data, IOUtils.toByteArray(in)));
+    }
+
+    public void testLargeRecord() throws Exception {
+        byte[] data = new byte[1001];
+        random.nextBytes(data);
+        IngestStream in = new IngestStream(new ByteArrayInputStream(data),
+            MessageDigest.getInstance("SHA-256"), 1000);
+        assertFalse(in.isComplete());
+        assertNull(in.getIdentifier());
+        assertTrue(Arrays.equals(data, IOUtils.toByteArray(in)));
+        assertEquals(1001, in.getLength());
+        assertEquals(digest("SHA-256", data), in.getIdentifier().toString());
+    }
+
+    public void testInvalidHint() throws Exception {
+        IngestStream in = new IngestStream(new TestCaseBase.HintStream(
+            new byte[10], new DataIdentifier("../../../reference.key")),
+            MessageDigest.getInstance("SHA-1"), 0);
+        assertNull(in.getHint());
+        in = new IngestStream(new TestCaseBase.HintStream(
+            new byte[10], new DataIdentifier("0123456789abcdef")),
+            MessageDigest.getInstance("SHA-1"), 0);
+        assertEquals("0123456789abcdef", in.getHint().toString());
+    }
+
+    public void testDigestAlgorithm() throws Exception {
+        FileDataStore store = createDataStore(IngestStream.DEFAULT_BUFFER_SIZE);
+        store.setDigestAlgorithm("SHA-256");
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        DataRecord rec = store.addRecord(new ByteArrayInputStream(data));
+        assertEquals(digest("SHA-256", data), rec.getIdentifier().toString());
+        assertTrue(Arrays.equals(data,
+            IOUtils.toByteArray(store.getRecord(rec.getIdentifier()).getStream())));
+        store.close();
+    }
+
+    /**
+     * Compares the ingest of a data set with mostly duplicate records with
+     * and without the in memory digest and the comparison of large records.
+     */
+    public void testDuplicateIngest() throws Exception {
+        byte[][] records = new byte[20][];
+        for (int i = 0; i < records.length; i++) {
+            // half of the records are larger than the buffer
+            records[i] = new byte[i % 2 == 0 ? 64 * 1024 : 1024 * 1024];
+            random.nextBytes(records[i]);
+        }
+        long baseline = ingest(createDataStore(0), records, 10);
+        long dedup = ingest(createDataStore(IngestStream.DEFAULT_BUFFER_SIZE),
+            records, 10);
+        LOG.info("ingest of {} records with {} distinct records took "
+            + "{} ms with temporary files, {} ms with in memory digests",
+            new Object[] { records.length * 10, records.length, baseline, dedup });
+    }
+
+    private long ingest(FileDataStore store, byte[][] records, int repeat)
+            throws Exception {
+        DataIdentifier[] ids = new DataIdentifier[records.length];
+        long time = System.currentTimeMillis();
+        for (int r = 0; r < repeat; r++) {
+            for (int i = 0; i < records.length; i++) {
+                DataIdentifier id = store.addRecord(
+                    new ByteArrayInputStream(records[i])).getIdentifier();
+                if (r == 0) {
+                    ids[i] = id;
+                } else {
+                    assertEquals(ids[i], id);
+                }
+            }
+        }
+        time = System.currentTimeMillis() - time;
+        for (int i = 0; i < records.length; i++) {
+            assertEquals(records[i].length, store.getRecord(ids[i]).getLength());
+        }
+        store.close();
+        return time;
+    }
+
+    private FileDataStore createDataStore(int ingestBufferSize) {
+        FileDataStore store = new FileDataStore();
+        store.setPath(new File(directory, "ds-" + ingestBufferSize).getPath());
+        store.setIngestBufferSize(ingestBufferSize);
+        store.init(directory.getPath());
+        return store;
+    }
+
+    private static String digest(String algorithm, byte[] data)
+            throws Exception {
+        return AbstractDataStore.encodeHexString(
+            MessageDigest.getInstance(algorithm).digest(data));
+    }
+}
@@ -355,6 +355,188 @@ public class TestLocalCache extends TestCase {
         }
     }
 
+    /**
+     * Test that the cache is loaded from its persistent index in LRU order
+     * after a restart.
+     */
+    public void testPersistentIndex() {
+        try {
+            AsyncUploadCache pendingFiles = new AsyncUploadCache();
+            pendingFiles.init(tempDirPath, cacheDirPath, 100);
+            pendingFiles.reset();
+            LocalCache cache = new LocalCache(cacheDirPath, tempDirPath, 400,
+                0.95, 0.70, pendingFiles, tempDirPath);
+            Random random = new Random(12345);
+            Map<String, byte[]> byteMap = new HashMap<String, byte[]>();
+            for (int i = 1; i <= 3; i++) {
+                byte[] data = new byte[100];
+                random.nextBytes(data);
+                byteMap.put("a" + i, data);
+                cache.store("a" + i, new ByteArrayInputStream(data));
+            }
+            // a1 becomes the most recently used entry
+            InputStream result = cache.getIfStored("a1");
+            assertEquals(new ByteArrayInputStream(byteMap.get("a1")), result);
+            cache.close();
+
+            cache = new LocalCache(cacheDirPath, tempDirPath, 400, 0.95,
+                0.70, pendingFiles, tempDirPath);
+            assertEquals(3, cache.cache.size());
+            assertEquals(300, cache.cache.currentSizeInBytes);
+
+            byte[] data = new byte[90];
+            random.nextBytes(data);
+            byteMap.put("a4", data);
+            // storing a4 should purge the least recently used a2 and a3
+            cache.store("a4", new ByteArrayInputStream(data));
+            Thread.sleep(1000);
+
+            assertNull("a2 should be null", cache.getIfStored("a2"));
+            assertNull("a3 should be null", cache.getIfStored("a3"));
+            result = cache.getIfStored("a1");
+            assertEquals(new ByteArrayInputStream(byteMap.get("a1")), result);
+            result = cache.getIfStored("a4");
+            assertEquals(new ByteArrayInputStream(byteMap.get("a4")), result);
+            cache.close();
+        } catch (Exception e) {
+            LOG.error("error:", e);
+            fail();
+        }
+    }
+
+    /**
+     * Test that the persistent index is recovered from its log if the cache
+     * was not closed, and that files missing in the index are found by a
+     * scan of the cache directory.
+     */
+    public void testPersistentIndexRecovery() {
+        try {
+            AsyncUploadCache pendingFiles = new AsyncUploadCache();
+            pendingFiles.init(tempDirPath, cacheDirPath, 100);
+            pendingFiles.reset();
+            LocalCache cache = new LocalCache(cacheDirPath, tempDirPath,
+                10000, 0.95, 0.70, pendingFiles, tempDirPath);
+            Random random = new Random(12345);
+            for (int i = 1; i <= 3; i++) {
+                byte[] data = new byte[100];
+                random.nextBytes(data);
+                cache.store("a" + i, new ByteArrayInputStream(data));
+            }
+            cache.delete("a2");
+            // a file the index missed before the crash
+            FileUtils.writeByteArrayToFile(new File(cacheDirPath, "b1"),
+                new byte[50]);
+            // a record torn by the crash
+            FileOutputStream log = new FileOutputStream(new File(tempDirPath,
+                LocalCacheIndex.LOG_FILE), true);
+            log.write(new byte[] { 'A', 0, 10, 'a' });
+            log.close();
+
+            cache = new LocalCache(cacheDirPath, tempDirPath, 10000, 0.95,
+                0.70, pendingFiles, tempDirPath);
+            assertTrue(cache.cache.containsKey("a1"));
+            assertFalse(cache.cache.containsKey("a2"));
+            assertTrue(cache.cache.containsKey("a3"));
+            for (int i = 0; i < 10 && !cache.cache.containsKey("b1"); i++) {
+                Thread.sleep(500);
+            }
+            assertTrue(cache.cache.containsKey("b1"));
+            assertEquals(250, cache.cache.currentSizeInBytes);
+            cache.close();
+        } catch (Exception e) {
+            LOG.error("error:", e);
+            fail();
+        }
+    }
+
+    /**
+     * Test that the cache directory is not scanned if the cache was not
+     * closed but the log of the persistent index ends cleanly.
+     */
+    public void testPersistentIndexCleanLog() {
+        try {
+            AsyncUploadCache pendingFiles = new AsyncUploadCache();
+            pendingFiles.init(tempDirPath, cacheDirPath, 100);
+            pendingFiles.reset();
+            LocalCache cache = new LocalCache(cacheDirPath, tempDirPath,
+                10000, 0.95, 0.70, pendingFiles, tempDirPath);
+            Random random = new Random(12345);
+            for (int i = 1; i <= 3; i++) {
+                byte[] data = new byte[100];
+                random.nextBytes(data);
+                cache.store("a" + i, new ByteArrayInputStream(data));
+            }
+            cache.delete("a2");
+            // only found by a scan of the cache directory
+            FileUtils.writeByteArrayToFile(new File(cacheDirPath, "b1"),
+                new byte[50]);
+
+            cache = new LocalCache(cacheDirPath, tempDirPath, 10000, 0.95,
+                0.70, pendingFiles, tempDirPath);
+            assertTrue(cache.cache.containsKey("a1"));
+            assertFalse(cache.cache.containsKey("a2"));
+            assertTrue(cache.cache.containsKey("a3"));
+            Thread.sleep(1000);
+            assertFalse(cache.cache.containsKey("b1"));
+            assertEquals(200, cache.cache.currentSizeInBytes);
+            cache.close();
+        } catch (Exception e) {
+            LOG.error("error:", e);
+            fail();
+        }
+    }
+
+    /**
+     * Test that the persistent index is recovered after a snapshot was
+     * written in the background and the cache was not closed.
+     */
+    public void testPersistentIndexSnapshot() {
+        try {
+            AsyncUploadCache pendingFiles = new AsyncUploadCache();
+            pendingFiles.init(tempDirPath, cacheDirPath, 100);
+            pendingFiles.reset();
+            LocalCache cache = new LocalCache(cacheDirPath, tempDirPath, 400,
+                0.95, 0.70, pendingFiles, tempDirPath);
+            Random random = new Random(12345);
+            for (int i = 1; i <= 3; i++) {
+                byte[] data = new byte[100];
+                random.nextBytes(data);
+                cache.store("a" + i, new ByteArrayInputStream(data));
+            }
+            File oldLog = new File(tempDirPath, LocalCacheIndex.OLD_LOG_FILE);
+            // enough accesses to start a new log and write a snapshot
+            for (int i = 0; i < 10001; i++) {
+                cache.getIfStored("a" + (i % 3 + 1)).close();
+            }
+            // a1 becomes the most recently used entry
+            cache.getIfStored("a1").close();
+            for (int i = 0; i < 10 && oldLog.exists(); i++) {
+                Thread.sleep(500);
+            }
+            assertFalse(oldLog.exists());
+            assertTrue(new File(tempDirPath, LocalCacheIndex.LOG_FILE).length() < 1000);
+            // logged after the snapshot
+            cache.store("a4", new ByteArrayInputStream(new byte[10]));
+
+            cache = new LocalCache(cacheDirPath, tempDirPath, 400, 0.95,
+                0.70, pendingFiles, tempDirPath);
+            assertEquals(4, cache.cache.size());
+            assertEquals(310, cache.cache.currentSizeInBytes);
+
+            // storing a5 should purge the least recently used a3 and a2
+            cache.store("a5", new ByteArrayInputStream(new byte[80]));
+            Thread.sleep(1000);
+            assertNull("a3 should be null", cache.getIfStored("a3"));
+            assertNull("a2 should be null", cache.getIfStored("a2"));
+            assertNotNull("a1 should be cached", cache.getIfStored("a1"));
+            assertNotNull("a4 should be cached", cache.getIfStored("a4"));
+            cache.close();
+        } catch (Exception e) {
+            LOG.error("error:", e);
+            fail();
+        }
+    }
+
     private class StoreWorker implements Runnable {
         Map<String, byte[]> byteMap;
 
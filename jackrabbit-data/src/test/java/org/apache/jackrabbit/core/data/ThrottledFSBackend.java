@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.core.data;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * {@link FSBackend} that limits the bandwidth of every stream to and from the
+ * backend. It simulates a remote storage, where each connection has a limited
+ * bandwidth, with the local file system. Concurrent streams are not limited
+ * together.
+ */
+public class ThrottledFSBackend extends FSBackend {
+
+    /**
+     * Bandwidth of a stream in bytes per second.
+     */
+    private final long bytesPerSecond;
+
+    public ThrottledFSBackend(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public InputStream read(DataIdentifier identifier)
+            throws DataStoreException {
+        return new ThrottledInputStream(super.read(identifier));
+    }
+
+    @Override
+    public InputStream read(DataIdentifier identifier, long offset,
+            long length) throws DataStoreException {
+        return new ThrottledInputStream(super.read(identifier, offset, length));
+    }
+
+    @Override
+    public void write(DataIdentifier identifier, File src)
+            throws DataStoreException {
+        pause(src.length(), System.currentTimeMillis());
+        super.write(identifier, src);
+    }
+
+    @Override
+    public String uploadPart(DataIdentifier identifier, String uploadId,
+            int partNumber, File file, long offset, long length)
+            throws DataStoreException {
+        pause(length, System.currentTimeMillis());
+        return super.uploadPart(identifier, uploadId, partNumber, file,
+            offset, length);
+    }
+
+    /**
+     * Wait until transferring the given number of bytes, started at the given
+     * time, takes as long as with the bandwidth of a stream.
+     */
+    private void pause(long bytes, long startTime) throws DataStoreException {
+        try {
+            sleep(bytes, startTime);
+        } catch (InterruptedIOException e) {
+            throw new DataStoreException(e);
+        }
+    }
+
+    private void sleep(long bytes, long startTime) throws InterruptedIOException {
+        long wait = startTime + bytes * 1000 / bytesPerSecond
+            - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Stream that is not read faster than the bandwidth of a stream.
+     */
+    private class ThrottledInputStream extends FilterInputStream {
+
+        private final long startTime = System.currentTimeMillis();
+
+        private long count;
+
+        ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+                sleep(count, startTime);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+                sleep(count, startTime);
+            }
+            return n;
+        }
+    }
+}
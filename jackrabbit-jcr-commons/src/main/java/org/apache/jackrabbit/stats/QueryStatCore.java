@@ -37,4 +37,15 @@ public interface QueryStatCore extends QueryStat {
      */
     void logQuery(final String language, final String statement, long durationMs);
 
+    /**
+     * Logs a query whose parsed query tree was found in the query plan
+     * cache.
+     */
+    void logPlanCacheHit();
+
+    /**
+     * Logs a query whose statement was not found in the query plan cache.
+     */
+    void logPlanCacheMiss();
+
 }
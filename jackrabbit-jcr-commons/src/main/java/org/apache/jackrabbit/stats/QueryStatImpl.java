@@ -21,6 +21,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.jackrabbit.api.stats.QueryStatDto;
 
@@ -89,6 +90,10 @@ public class QueryStatImpl implements QueryStatCore {
         }
     }
 
+    private final AtomicLong planCacheHits = new AtomicLong();
+
+    private final AtomicLong planCacheMisses = new AtomicLong();
+
     private boolean enabled = false;
 
     public QueryStatImpl() {
@@ -133,6 +138,26 @@ public class QueryStatImpl implements QueryStatCore {
         }
     }
 
+    public void logPlanCacheHit() {
+        if (enabled) {
+            planCacheHits.incrementAndGet();
+        }
+    }
+
+    public void logPlanCacheMiss() {
+        if (enabled) {
+            planCacheMisses.incrementAndGet();
+        }
+    }
+
+    public long getPlanCacheHitCount() {
+        return planCacheHits.get();
+    }
+
+    public long getPlanCacheMissCount() {
+        return planCacheMisses.get();
+    }
+
     public void clearSlowQueriesQueue() {
         slowQueries.clear();
     }
@@ -182,5 +207,7 @@ public class QueryStatImpl implements QueryStatCore {
     public void reset() {
         clearSlowQueriesQueue();
         clearPopularQueriesQueue();
+        planCacheHits.set(0);
+        planCacheMisses.set(0);
     }
 }
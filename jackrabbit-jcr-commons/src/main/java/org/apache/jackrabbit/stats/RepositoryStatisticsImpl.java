@@ -53,6 +53,10 @@ public class RepositoryStatisticsImpl implements
                 Type.QUERY_AVERAGE);
         createAvg(Type.OBSERVATION_EVENT_COUNTER, Type.OBSERVATION_EVENT_DURATION,
                 Type.OBSERVATION_EVENT_AVERAGE);
+        createAvg(Type.INDEX_UPDATE_COUNTER, Type.INDEX_VISIBILITY_LAG_DURATION,
+                Type.INDEX_VISIBILITY_LAG_AVERAGE);
+        createAvg(Type.INDEX_MERGE_COUNTER, Type.INDEX_MERGE_DURATION,
+                Type.INDEX_MERGE_AVERAGE);
     }
 
     private void createAvg(Type count, Type duration, Type avgTs) {
@@ -95,6 +99,10 @@ public class RepositoryStatisticsImpl implements
         return getOrCreateRecorder(type, resetValueEachSecond);
     }
 
+    public synchronized void removeTimeSeries(String type) {
+        recorders.remove(type);
+    }
+
     private synchronized TimeSeriesRecorder getOrCreateRecorder(Type type) {
         return getOrCreateRecorder(type.name(), type.isResetValueEachSecond());
     }
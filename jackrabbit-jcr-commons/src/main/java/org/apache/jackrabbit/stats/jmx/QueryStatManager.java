@@ -81,6 +81,20 @@ public class QueryStatManager implements QueryStatManagerMBean {
         queryStat.clearPopularQueriesQueue();
     }
 
+    public long getPlanCacheHitCount() {
+        return queryStat.getPlanCacheHitCount();
+    }
+
+    public long getPlanCacheMissCount() {
+        return queryStat.getPlanCacheMissCount();
+    }
+
+    public double getPlanCacheHitRatio() {
+        long hits = queryStat.getPlanCacheHitCount();
+        long lookups = hits + queryStat.getPlanCacheMissCount();
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
     public TabularData getSlowQueries() {
         return asTabularData(queryStat.getSlowQueries());
     }
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by input streams that read from a file. The channel of the
+ * file allows to transfer the remaining bytes of the stream with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * instead of copying them through a buffer on the heap.
+ *
+ * @since 2.10.2
+ */
+public interface FileChannelProvider {
+
+    /**
+     * Returns the channel of the underlying file. The position of the channel
+     * is the position of the next byte of the stream, and the stream ends
+     * at the end of the file. Bytes read from the channel are consumed from
+     * the stream.
+     *
+     * @return the channel, or <code>null</code> if the stream is not backed
+     *         by a file channel anymore, e.g. because it was closed.
+     * @throws IOException if the file cannot be opened.
+     */
+    FileChannel getChannel() throws IOException;
+
+}
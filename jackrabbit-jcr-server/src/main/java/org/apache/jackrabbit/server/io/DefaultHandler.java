@@ -32,6 +32,7 @@ import org.apache.tika.metadata.Metadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.jcr.Binary;
 import javax.jcr.Item;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -43,6 +44,7 @@ import javax.jcr.Session;
 import javax.jcr.nodetype.PropertyDefinition;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Map;
@@ -440,7 +442,24 @@ public class DefaultHandler implements IOHandler, PropertyHandler, CopyMoveHandl
     protected void exportData(ExportContext context, boolean isCollection, Node contentNode) throws IOException, RepositoryException {
         if (contentNode.hasProperty(JcrConstants.JCR_DATA)) {
             Property p = contentNode.getProperty(JcrConstants.JCR_DATA);
-            IOUtil.spool(p.getStream(), context.getOutputStream());
+            // spool the stream of the binary, which may allow a direct
+            // transfer from the data store file
+            Binary binary = p.getBinary();
+            try {
+                InputStream in = binary.getStream();
+                OutputStream out = null;
+                if (context instanceof ExportContextImpl) {
+                    // the content length is set by exportProperties, which
+                    // allows to skip the temporary file of the context
+                    out = ((ExportContextImpl) context).getDirectOutputStream();
+                }
+                if (out == null) {
+                    out = context.getOutputStream();
+                }
+                IOUtil.spool(in, out);
+            } finally {
+                binary.dispose();
+            }
         } // else: stream undefined -> content length was not set
     }
 
@@ -35,10 +35,12 @@ import java.util.Map;
 /**
  * <code>ExportContextImpl</code> implements an <code>ExportContext</code> that
  * wraps around the specified OutputContext as it was passed to
- * {@link DavResource#spool(OutputContext)}. If a stream is provided a temporary
+ * {@link DavResource#spool(OutputContext)}. If a stream is requested a temporary
  * file is created, which is deleted as soon as {@link #informCompleted(boolean)}
  * is called on this context. Note however, that the properties and the stream
  * are written to the  <code>OutputContext</code> but upon successful completion.
+ * Handlers that know the content length up front may bypass the temporary
+ * file with {@link #getDirectOutputStream()}.
  *
  * @see #informCompleted(boolean)
  */
@@ -51,15 +53,12 @@ public class ExportContextImpl extends AbstractExportContext {
 
     private File outFile;
     private OutputStream outStream;
+    private boolean direct;
 
     public ExportContextImpl(Item exportRoot, OutputContext outputCtx)
             throws IOException {
         super(exportRoot, outputCtx != null && outputCtx.hasStream(), null);
         this.outputCtx = outputCtx;
-        if (hasStream()) {
-            // we need a tmp file, since the export could fail
-            outFile = File.createTempFile("__exportcontext", "tmp");
-        }
     }
 
     /**
@@ -71,6 +70,10 @@ public class ExportContextImpl extends AbstractExportContext {
      */
     public OutputStream getOutputStream() {
         checkCompleted();
+        if (direct) {
+            // the data already goes to the output context
+            return outputCtx.getOutputStream();
+        }
         if (hasStream()) {
             try {
                 // clean up the stream retrieved by the preceding handler, that
@@ -79,6 +82,10 @@ public class ExportContextImpl extends AbstractExportContext {
                 if (outStream != null) {
                     outStream.close();
                 }
+                if (outFile == null) {
+                    // we need a tmp file, since the export could fail
+                    outFile = File.createTempFile("__exportcontext", "tmp");
+                }
                 outStream = new FileOutputStream(outFile);
                 return outStream;
             } catch (IOException e) {
@@ -88,6 +95,56 @@ public class ExportContextImpl extends AbstractExportContext {
         return null;
     }
 
+    /**
+     * Returns the output stream of the wrapped <code>OutputContext</code>
+     * if the content length has been set before, so that the data does not
+     * need to be staged in a temporary file. The properties set so far are
+     * written to the output context when this method is called for the first
+     * time. Since the data is sent right away, a failure of the export can
+     * not be reverted any more.
+     *
+     * @return the output stream of the wrapped output context or
+     * <code>null</code> if this context provides no stream or the content
+     * length is unknown.
+     * @see #getOutputStream()
+     */
+    public OutputStream getDirectOutputStream() {
+        checkCompleted();
+        if (!direct) {
+            if (!hasStream() || getContentLength() < 0) {
+                return null;
+            }
+            // discard the data of a preceding handler that failed
+            if (outStream != null) {
+                try {
+                    outStream.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                outStream = null;
+            }
+            writeProperties();
+            direct = true;
+        }
+        return outputCtx.getOutputStream();
+    }
+
+    /**
+     * @return the content length set on this context or
+     * {@link IOUtil#UNDEFINED_LENGTH} if it is not known.
+     */
+    private long getContentLength() {
+        String length = properties.get(DavConstants.HEADER_CONTENT_LENGTH);
+        if (length != null) {
+            try {
+                return Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                // ignore
+            }
+        }
+        return IOUtil.UNDEFINED_LENGTH;
+    }
+
     /**
      * @see ExportContext#setContentLanguage(String)
      */
@@ -167,28 +224,21 @@ public class ExportContextImpl extends AbstractExportContext {
                 // ignore
             }
         }
-        if (success) {
+        if (success && !direct) {
             // write properties and data to the output-context
             if (outputCtx != null) {
-                boolean hasContentLength = false;
-                for (String name : properties.keySet()) {
-                    String value = properties.get(name);
-                    if (name != null && value != null) {
-                        outputCtx.setProperty(name, value);
-                        // check for content-length
-                        hasContentLength = DavConstants.HEADER_CONTENT_LENGTH.equals(name);
-                    }
-                }
+                boolean hasContentLength = writeProperties();
 
-                if (outputCtx.hasStream() && outFile != null) {
+                if (outputCtx.hasStream()) {
                     OutputStream out = outputCtx.getOutputStream();
                     try {
                         // make sure the content-length is set
                         if (!hasContentLength) {
-                            outputCtx.setContentLength(outFile.length());
+                            outputCtx.setContentLength(outFile != null ? outFile.length() : 0);
+                        }
+                        if (outFile != null) {
+                            IOUtil.spool(new FileInputStream(outFile), out);
                         }
-                        FileInputStream in = new FileInputStream(outFile);
-                        IOUtil.spool(in, out);
                     } catch (IOException e) {
                         log.error(e.toString());
                     }
@@ -199,4 +249,23 @@ public class ExportContextImpl extends AbstractExportContext {
             outFile.delete();
         }
     }
+
+    /**
+     * Writes the properties set on this context to the wrapped
+     * <code>OutputContext</code>.
+     *
+     * @return <code>true</code> if the content length was among the properties.
+     */
+    private boolean writeProperties() {
+        boolean hasContentLength = false;
+        for (String name : properties.keySet()) {
+            String value = properties.get(name);
+            if (name != null && value != null) {
+                outputCtx.setProperty(name, value);
+                // check for content-length
+                hasContentLength |= DavConstants.HEADER_CONTENT_LENGTH.equals(name);
+            }
+        }
+        return hasContentLength;
+    }
 }
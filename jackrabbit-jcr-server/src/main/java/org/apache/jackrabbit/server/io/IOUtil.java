@@ -16,6 +16,7 @@
  */
 package org.apache.jackrabbit.server.io;
 
+import org.apache.jackrabbit.util.FileChannelProvider;
 import org.apache.jackrabbit.util.Text;
 import org.apache.jackrabbit.webdav.DavConstants;
 import org.apache.jackrabbit.webdav.util.HttpDateFormat;
@@ -23,10 +24,13 @@ import org.apache.jackrabbit.webdav.util.HttpDateFormat;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 
 /**
@@ -77,6 +81,11 @@ public final class IOUtil {
     }
 
     /**
+     * Copies the given input stream to the output stream and closes the input
+     * stream. If the input stream reads from a file and the output stream
+     * writes to a file or channel, the bytes are transferred with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which
+     * avoids copying them through a buffer on the heap.
      *
      * @param in
      * @param out
@@ -84,16 +93,73 @@ public final class IOUtil {
      */
     public static void spool(InputStream in, OutputStream out) throws IOException {
         try {
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = in.read(buffer)) >= 0) {
-                out.write(buffer, 0, read);
+            WritableByteChannel target = getChannel(out);
+            FileChannel source = target != null ? getChannel(in) : null;
+            if (source != null) {
+                out.flush();
+                transfer(source, target);
+            } else {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
             }
         } finally {
             in.close();
         }
     }
 
+    /**
+     * Transfers the remaining bytes of the source channel to the target and
+     * moves the position of the source to its end.
+     *
+     * @param source the file channel to read from
+     * @param target the channel to write to
+     * @throws IOException if an I/O error occurs
+     */
+    private static void transfer(FileChannel source, WritableByteChannel target)
+            throws IOException {
+        long position = source.position();
+        long size = source.size();
+        while (position < size) {
+            long transferred = source.transferTo(position, size - position, target);
+            if (transferred <= 0) {
+                // the file was truncated concurrently
+                break;
+            }
+            position += transferred;
+        }
+        source.position(position);
+    }
+
+    /**
+     * @param in an input stream
+     * @return the file channel the stream reads from or <code>null</code>.
+     * @throws IOException if an I/O error occurs
+     */
+    private static FileChannel getChannel(InputStream in) throws IOException {
+        if (in instanceof FileInputStream) {
+            return ((FileInputStream) in).getChannel();
+        } else if (in instanceof FileChannelProvider) {
+            return ((FileChannelProvider) in).getChannel();
+        }
+        return null;
+    }
+
+    /**
+     * @param out an output stream
+     * @return the channel the stream writes to or <code>null</code>.
+     */
+    private static WritableByteChannel getChannel(OutputStream out) {
+        if (out instanceof FileOutputStream) {
+            return ((FileOutputStream) out).getChannel();
+        } else if (out instanceof WritableByteChannel) {
+            return (WritableByteChannel) out;
+        }
+        return null;
+    }
+
     /**
      * Build a valid content type string from the given mimeType and encoding:
      * <pre>
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.server.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.io.OutputContext;
+
+/**
+ * <code>ExportContextImplTest</code>...
+ */
+public class ExportContextImplTest extends TestCase {
+
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private final OutputContext outputCtx = new OutputContext() {
+        public boolean hasStream() {
+            return true;
+        }
+        public OutputStream getOutputStream() {
+            return body;
+        }
+        public void setContentLanguage(String contentLanguage) {
+            setProperty(DavConstants.HEADER_CONTENT_LANGUAGE, contentLanguage);
+        }
+        public void setContentLength(long contentLength) {
+            setProperty(DavConstants.HEADER_CONTENT_LENGTH, contentLength + "");
+        }
+        public void setContentType(String contentType) {
+            setProperty(DavConstants.HEADER_CONTENT_TYPE, contentType);
+        }
+        public void setModificationTime(long modificationTime) {
+            setProperty(DavConstants.HEADER_LAST_MODIFIED, IOUtil.getLastModified(modificationTime));
+        }
+        public void setETag(String etag) {
+            setProperty(DavConstants.HEADER_ETAG, etag);
+        }
+        public void setProperty(String propertyName, String propertyValue) {
+            headers.put(propertyName, propertyValue);
+        }
+    };
+
+    public void testDirectOutputStream() throws Exception {
+        ExportContextImpl context = new ExportContextImpl(null, outputCtx);
+        context.setContentType("text/plain", null);
+        context.setContentLength(3);
+
+        OutputStream out = context.getDirectOutputStream();
+        assertSame(body, out);
+        // the headers are sent before the data
+        assertEquals("3", headers.get(DavConstants.HEADER_CONTENT_LENGTH));
+        assertEquals("text/plain", headers.get(DavConstants.HEADER_CONTENT_TYPE));
+
+        out.write(new byte[] {1, 2, 3});
+        context.informCompleted(true);
+        assertEquals(3, body.size());
+    }
+
+    public void testUnknownContentLength() throws Exception {
+        ExportContextImpl context = new ExportContextImpl(null, outputCtx);
+        assertNull(context.getDirectOutputStream());
+        context.setContentLength(IOUtil.UNDEFINED_LENGTH);
+        assertNull(context.getDirectOutputStream());
+
+        OutputStream out = context.getOutputStream();
+        assertNotSame(body, out);
+        out.write(new byte[] {1, 2, 3});
+        assertEquals(0, body.size());
+
+        context.informCompleted(true);
+        assertEquals(3, body.size());
+    }
+
+    public void testFailedExport() throws Exception {
+        ExportContextImpl context = new ExportContextImpl(null, outputCtx);
+        context.setContentLength(3);
+        context.getOutputStream().write(new byte[] {1, 2, 3});
+        context.informCompleted(false);
+        assertTrue(headers.isEmpty());
+        assertEquals(0, body.size());
+    }
+}
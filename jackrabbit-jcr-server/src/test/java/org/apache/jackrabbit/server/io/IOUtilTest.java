@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.server.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.util.FileChannelProvider;
+
+/**
+ * <code>IOUtilTest</code>...
+ */
+public class IOUtilTest extends TestCase {
+
+    private File source;
+
+    private File target;
+
+    private byte[] data = new byte[100000];
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        new Random(1).nextBytes(data);
+        source = File.createTempFile("ioutil", ".src");
+        target = File.createTempFile("ioutil", ".dst");
+        OutputStream out = new FileOutputStream(source);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        source.delete();
+        target.delete();
+        super.tearDown();
+    }
+
+    public void testSpoolFileToFile() throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        // bytes already read from the stream are not transferred again
+        assertEquals(data[0] & 0xff, in.read());
+        OutputStream out = new FileOutputStream(target);
+        try {
+            out.write(data[0]);
+            IOUtil.spool(in, out);
+        } finally {
+            out.close();
+        }
+        assertTrue(Arrays.equals(data, readTarget()));
+    }
+
+    public void testSpoolChannelProvider() throws IOException {
+        ChannelInputStream in = new ChannelInputStream(source);
+        OutputStream out = new FileOutputStream(target);
+        try {
+            IOUtil.spool(in, out);
+        } finally {
+            out.close();
+        }
+        assertTrue(in.channelUsed);
+        assertTrue(Arrays.equals(data, readTarget()));
+    }
+
+    public void testSpoolToStream() throws IOException {
+        ChannelInputStream in = new ChannelInputStream(source);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtil.spool(in, out);
+        // the output is not backed by a channel
+        assertFalse(in.channelUsed);
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    private byte[] readTarget() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtil.spool(new FileInputStream(target), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * A stream that provides the channel of the file it reads.
+     */
+    private static class ChannelInputStream extends FilterInputStream
+            implements FileChannelProvider {
+
+        private boolean channelUsed;
+
+        ChannelInputStream(File file) throws IOException {
+            super(new FileInputStream(file));
+        }
+
+        public FileChannel getChannel() {
+            channelUsed = true;
+            return ((FileInputStream) in).getChannel();
+        }
+    }
+}